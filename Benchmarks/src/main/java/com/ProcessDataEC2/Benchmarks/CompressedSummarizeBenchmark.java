@@ -0,0 +1,66 @@
+package com.ProcessDataEC2.Benchmarks;
+
+import com.example.cloudworkers.common.Compression;
+import com.example.cloudworkers.common.FlowSummarizer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SummarizeService.summarizeSerially on an in-memory flow CSV stored plain, as .csv.gz
+ * and as .csv.zst: decompression, parsing and pair aggregation on one thread.
+ *
+ * The setup prints the size of the object each codec stores, which is what the GET
+ * transfers. A codec pays off while the time it adds is below the transfer time it
+ * saves, (plain - compressed) / bandwidth, at the bandwidth an instance gets from S3.
+ *
+ * Run with: java -jar target/benchmarks.jar CompressedSummarizeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CompressedSummarizeBenchmark {
+
+    @Param({"1000000"})
+    public int rows;
+
+    @Param({"10000"})
+    public int pairs;
+
+    @Param({"NONE", "GZIP", "ZSTD"})
+    public Compression compression;
+
+    private byte[] stored;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] csv = FlowFiles.csv(rows, pairs);
+        stored = csv;
+        if (compression != Compression.NONE) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(csv.length / 2);
+            try (OutputStream out = compression.compress(bytes)) {
+                out.write(csv);
+            }
+            stored = bytes.toByteArray();
+        }
+        System.out.printf("%n%s: %,d bytes stored for %,d bytes of CSV (%.1fx)%n",
+                compression, stored.length, csv.length, (double) csv.length / stored.length);
+    }
+
+    @Benchmark
+    public FlowSummarizer summarize() throws IOException {
+        FlowSummarizer summarizer = new FlowSummarizer();
+        try (InputStream in = compression.decompress(new ByteArrayInputStream(stored))) {
+            summarizer.addCsv(in);
+        }
+        return summarizer;
+    }
+}
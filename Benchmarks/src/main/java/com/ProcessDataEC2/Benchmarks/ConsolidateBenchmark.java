@@ -0,0 +1,93 @@
+package com.ProcessDataEC2.Benchmarks;
+
+import com.ProcessDataEC2.ProcessDataEC2.Store.ConsolidatedStore;
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataMessage;
+import com.example.cloudworkers.common.MessagePacker;
+import com.example.cloudworkers.common.SummaryMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConsolidateService.handleConsolidation without SQS: unpacking a message, parsing
+ * each summary, the running moments update and encoding the Export record, with
+ * messages in the text and in the binary format. The setup prints the average size
+ * of a Summarize -> Consolidate message in each format.
+ *
+ * {@code formatFinalData} isolates the String.format of one text Export record.
+ *
+ * Run with: java -jar target/benchmarks.jar ConsolidateBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsolidateBenchmark {
+
+    private static final int MESSAGE_MASK = 63;
+
+    /** Summary records per SQS message. */
+    @Param({"1", "500"})
+    public int rows;
+
+    @Param({"1000", "1000000"})
+    public int pairs;
+
+    @Param({"TEXT", "BINARY"})
+    public MessagePacker.Format format;
+
+    private ConsolidatedStore store;
+    private String[] messages;
+    private FinalData finalData;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = new ConsolidatedStore(null);
+        for (int i = 0; i < pairs; i++) {
+            store.apply(FlowFiles.srcIp(i), FlowFiles.dstIp(i), 1000L + i, 10L);
+        }
+
+        SplittableRandom random = new SplittableRandom(42);
+        messages = new String[MESSAGE_MASK + 1];
+        long bytes = 0;
+        for (int m = 0; m <= MESSAGE_MASK; m++) {
+            List<String> bodies = new ArrayList<>();
+            MessagePacker packer = new MessagePacker(MessagePacker.SQS_MAX_PAYLOAD_BYTES, format, bodies::addAll);
+            for (int r = 0; r < rows; r++) {
+                int pair = random.nextInt(pairs);
+                packer.addSummary(FlowFiles.srcIp(pair), FlowFiles.dstIp(pair),
+                        random.nextInt(120_000_000), 1 + random.nextInt(200));
+            }
+            packer.flush();
+            messages[m] = bodies.get(0);
+            bytes += messages[m].length();
+        }
+        System.out.printf("%n%s: %,d bytes per message of %d summaries%n", format, bytes / messages.length, rows);
+        finalData = FinalData.ofSummary(1234567, 42).withSummary(7654321, 17);
+    }
+
+    @Benchmark
+    public long handleMessage(Blackhole blackhole) {
+        MessagePacker packer = new MessagePacker(MessagePacker.DEFAULT_MAX_BODY_BYTES, format, blackhole::consume);
+        for (SummaryMessage summary : SummaryMessage.unpack(messages[next++ & MESSAGE_MASK], blackhole::consume)) {
+            FinalData updated = store.apply(summary.getSrcIp(), summary.getDstIp(),
+                    summary.getTotalFlowDuration(), summary.getTotalFwdPkts());
+            packer.addFinalData(summary.getSrcIp(), summary.getDstIp(), updated);
+        }
+        packer.flush();
+        return packer.getRecordCount();
+    }
+
+    @Benchmark
+    public String formatFinalData() {
+        return FinalDataMessage.format("10.0.12.34", "192.168.12.34", finalData);
+    }
+}
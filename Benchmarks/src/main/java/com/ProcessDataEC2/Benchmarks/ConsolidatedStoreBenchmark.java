@@ -0,0 +1,57 @@
+package com.ProcessDataEC2.Benchmarks;
+
+import com.ProcessDataEC2.ProcessDataEC2.Store.ConsolidatedStore;
+import com.example.cloudworkers.common.FinalData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message cost of applying a summary to the resident consolidation state.
+ * The latency should stay flat as the number of stored pairs grows.
+ *
+ * Run with: java -jar target/benchmarks.jar ConsolidatedStoreBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsolidatedStoreBenchmark {
+
+    private static final int MESSAGE_MASK = 4095;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int pairs;
+
+    private ConsolidatedStore store;
+    private String[] srcIps;
+    private String[] dstIps;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // The repository is only used by load(), which the benchmark never calls
+        store = new ConsolidatedStore(null);
+        for (int i = 0; i < pairs; i++) {
+            store.apply(FlowFiles.srcIp(i), FlowFiles.dstIp(i), 1000L + i, 10L);
+        }
+
+        SplittableRandom random = new SplittableRandom(42);
+        srcIps = new String[MESSAGE_MASK + 1];
+        dstIps = new String[MESSAGE_MASK + 1];
+        for (int i = 0; i <= MESSAGE_MASK; i++) {
+            int pair = random.nextInt(pairs);
+            srcIps[i] = FlowFiles.srcIp(pair);
+            dstIps[i] = FlowFiles.dstIp(pair);
+        }
+    }
+
+    @Benchmark
+    public FinalData applyMessage() {
+        int i = next++ & MESSAGE_MASK;
+        return store.apply(srcIps[i], dstIps[i], 12345L, 17L);
+    }
+}
@@ -0,0 +1,56 @@
+package com.ProcessDataEC2.Benchmarks;
+
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataCsv;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The finalData.csv round trip done by the export stage: parsing the object into
+ * the pair map and serializing the map back, by number of pairs.
+ *
+ * Run with: java -jar target/benchmarks.jar FinalDataCsvBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FinalDataCsvBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int pairs;
+
+    private Map<String, FinalData> finalData;
+    private byte[] csv;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        finalData = FlowFiles.finalData(pairs);
+        csv = write();
+    }
+
+    @Benchmark
+    public Map<String, FinalData> read() throws IOException {
+        return FinalDataCsv.read(new InputStreamReader(new ByteArrayInputStream(csv), StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(pairs * 128);
+        try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+            FinalDataCsv.write(finalData, writer);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,100 @@
+package com.ProcessDataEC2.Benchmarks;
+
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataCsv;
+import com.example.cloudworkers.common.FinalDataSnapshot;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the consolidated statistics from the binary snapshot against parsing
+ * finalData.csv, by number of pairs. Both files are generated once in
+ * {@code java.io.tmpdir} and read from there.
+ *
+ * - open: maps the snapshot and verifies its checksum, after which any pair can be read.
+ * - lookup: one pair by binary search on the mapped snapshot.
+ * - scan: every record of the mapped snapshot, without building a map.
+ * - toMap: the mutable map the export stage updates, built from the snapshot.
+ * - csvRead: the same map parsed from finalData.csv.
+ *
+ * Run with: java -jar target/benchmarks.jar FinalDataSnapshotBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class FinalDataSnapshotBenchmark {
+
+    @Param({"1000000", "10000000"})
+    public int pairs;
+
+    private Path snapshotFile;
+    private Path csvFile;
+    private FinalDataSnapshot snapshot;
+    private SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+        snapshotFile = dir.resolve("finalData-" + pairs + ".snapshot");
+        csvFile = dir.resolve("finalData-" + pairs + ".csv");
+        if (!Files.exists(snapshotFile)) {
+            try (OutputStream out = Files.newOutputStream(snapshotFile)) {
+                FinalDataSnapshot.write(FlowFiles.finalData(pairs), out);
+            }
+        }
+        snapshot = FinalDataSnapshot.map(snapshotFile);
+        if (!Files.exists(csvFile)) {
+            try (Writer writer = Files.newBufferedWriter(csvFile, StandardCharsets.UTF_8)) {
+                snapshot.writeCsv(writer);
+            }
+        }
+        random = new SplittableRandom(7);
+    }
+
+    @Benchmark
+    public FinalDataSnapshot open() throws IOException {
+        return FinalDataSnapshot.map(snapshotFile);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public FinalData lookup() {
+        int pair = random.nextInt(pairs);
+        return snapshot.get(FlowFiles.srcIp(pair) + "," + FlowFiles.dstIp(pair));
+    }
+
+    @Benchmark
+    public long scan() {
+        long trafficNumber = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            trafficNumber += snapshot.valueAt(i).getTrafficNumber();
+        }
+        return trafficNumber;
+    }
+
+    @Benchmark
+    public Map<String, FinalData> toMap() {
+        return snapshot.toMap();
+    }
+
+    @Benchmark
+    public Map<String, FinalData> csvRead() throws IOException {
+        try (Reader reader = Files.newBufferedReader(csvFile, StandardCharsets.UTF_8)) {
+            return FinalDataCsv.read(reader);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.ProcessDataEC2.Benchmarks;
+
+import com.example.cloudworkers.common.FlowSummarizer;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summarizing a CIC-style flow file (80 columns, of which four are used) through
+ * commons-csv, as the workers used to, and through the byte-level FlowCsvScanner.
+ * Both feed the same FlowSummarizer so only the parsing differs.
+ *
+ * The file is generated once into java.io.tmpdir and reused across runs. The default
+ * size keeps a run short; for the multi-GB comparison pass e.g. -p sizeMb=4096.
+ *
+ * Run with: java -jar target/benchmarks.jar FlowCsvParseBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FlowCsvParseBenchmark {
+
+    private static final int PAIRS = 50_000;
+
+    @Param({"256"})
+    public int sizeMb;
+
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Paths.get(System.getProperty("java.io.tmpdir"), "flows-" + sizeMb + "mb.csv");
+        if (!Files.exists(file) || Files.size(file) < sizeMb * (1L << 20)) {
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                FlowFiles.write(writer, sizeMb * (1L << 20), PAIRS);
+            }
+        }
+    }
+
+    @Benchmark
+    public long commonsCsv() throws IOException {
+        FlowSummarizer summarizer = new FlowSummarizer();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file)))) {
+            for (CSVRecord record : CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(reader)) {
+                summarizer.add(record.get("Src IP"), record.get("Dst IP"),
+                        Long.parseLong(record.get("Flow Duration")), Long.parseLong(record.get("Tot Fwd Pkts")));
+            }
+        }
+        return summarizer.size();
+    }
+
+    @Benchmark
+    public long flowCsvScanner() throws IOException {
+        FlowSummarizer summarizer = new FlowSummarizer();
+        try (InputStream in = Files.newInputStream(file)) {
+            summarizer.addCsv(in);
+        }
+        return summarizer.size();
+    }
+}
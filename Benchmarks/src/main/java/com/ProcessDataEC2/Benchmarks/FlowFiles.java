@@ -0,0 +1,116 @@
+package com.ProcessDataEC2.Benchmarks;
+
+import com.example.cloudworkers.common.FinalData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic inputs shared by the benchmarks: CIC-style flow record files (80 columns,
+ * pairs drawn uniformly from a fixed cardinality) and finalData maps.
+ */
+public final class FlowFiles {
+
+    static final int COLUMNS = 80;
+
+    private FlowFiles() {
+    }
+
+    static String srcIp(int pair) {
+        return "10." + ((pair >>> 16) & 0xFF) + "." + ((pair >>> 8) & 0xFF) + "." + (pair & 0xFF);
+    }
+
+    static String dstIp(int pair) {
+        return "192.168." + ((pair >>> 8) & 0xFF) + "." + (pair & 0xFF);
+    }
+
+    static String header() {
+        StringBuilder header = new StringBuilder("Flow ID,Src IP,Src Port,Dst IP,Dst Port,Protocol,Timestamp,"
+                + "Flow Duration,Tot Fwd Pkts");
+        for (int column = 9; column < COLUMNS - 1; column++) {
+            header.append(",Feature ").append(column);
+        }
+        return header.append(",Label").toString();
+    }
+
+    /**
+     * Appends one row to {@code row} and returns it.
+     */
+    static StringBuilder row(StringBuilder row, SplittableRandom random, int pairs) {
+        int pair = random.nextInt(pairs);
+        row.append(srcIp(pair)).append('-').append(dstIp(pair))
+                .append('-').append(random.nextInt(65536)).append("-443-6,")
+                .append(srcIp(pair)).append(',')
+                .append(random.nextInt(65536)).append(',')
+                .append(dstIp(pair)).append(",443,6,")
+                .append("02/03/2018 08:47:38,")
+                .append(random.nextInt(120_000_000)).append(',')
+                .append(1 + random.nextInt(200));
+        for (int column = 9; column < COLUMNS - 1; column++) {
+            row.append(',');
+            if ((column & 1) == 0) {
+                row.append(random.nextInt(10_000));
+            } else {
+                row.append(random.nextInt(100_000)).append('.').append(random.nextInt(100));
+            }
+        }
+        return row.append(",Benign\n");
+    }
+
+    /**
+     * Writes rows until at least {@code sizeBytes} characters have been written.
+     */
+    static void write(Writer writer, long sizeBytes, int pairs) throws IOException {
+        SplittableRandom random = new SplittableRandom(42);
+        writer.write(header());
+        writer.write('\n');
+        long written = 0;
+        StringBuilder row = new StringBuilder(1024);
+        while (written < sizeBytes) {
+            row.setLength(0);
+            writer.append(row(row, random, pairs));
+            written += row.length();
+        }
+    }
+
+    static byte[] csv(int rows, int pairs) {
+        return csv(rows, pairs, 42);
+    }
+
+    public static byte[] csv(int rows, int pairs, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(rows * 400);
+        try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+            writer.write(header());
+            writer.write('\n');
+            StringBuilder row = new StringBuilder(1024);
+            for (int i = 0; i < rows; i++) {
+                row.setLength(0);
+                writer.append(row(row, random, pairs));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Map<String, FinalData> finalData(int pairs) {
+        SplittableRandom random = new SplittableRandom(42);
+        Map<String, FinalData> finalData = new HashMap<>();
+        for (int pair = 0; pair < pairs; pair++) {
+            FinalData data = FinalData.ofSummary(random.nextInt(120_000_000), 1 + random.nextInt(200));
+            for (int files = random.nextInt(5); files > 0; files--) {
+                data = data.withSummary(random.nextInt(120_000_000), 1 + random.nextInt(200));
+            }
+            finalData.put(srcIp(pair) + "," + dstIp(pair), data);
+        }
+        return finalData;
+    }
+}
@@ -0,0 +1,58 @@
+package com.ProcessDataEC2.Benchmarks;
+
+import com.example.cloudworkers.common.FlowSummarizer;
+import com.example.cloudworkers.common.MessagePacker;
+import com.example.cloudworkers.common.SummaryMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CPU side of SummarizeService.processCsvFile on an in-memory file: parsing and
+ * pair aggregation, then formatting and packing the summaries for SQS.
+ *
+ * Run with: java -jar target/benchmarks.jar SummarizeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SummarizeBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    @Param({"100", "10000", "1000000"})
+    public int pairs;
+
+    private byte[] csv;
+    private FlowSummarizer summarized;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        csv = FlowFiles.csv(rows, pairs);
+        summarized = new FlowSummarizer();
+        summarized.addCsv(new ByteArrayInputStream(csv));
+    }
+
+    @Benchmark
+    public FlowSummarizer summarize() throws IOException {
+        FlowSummarizer summarizer = new FlowSummarizer();
+        summarizer.addCsv(new ByteArrayInputStream(csv));
+        return summarizer;
+    }
+
+    @Benchmark
+    public long packSummaries(Blackhole blackhole) {
+        MessagePacker packer = new MessagePacker(blackhole::consume);
+        summarized.forEach((srcIp, dstIp, totalFlowDuration, totalFwdPkts) ->
+                packer.add(SummaryMessage.format(srcIp, dstIp, totalFlowDuration, totalFwdPkts)));
+        packer.flush();
+        return packer.getMessageCount();
+    }
+}
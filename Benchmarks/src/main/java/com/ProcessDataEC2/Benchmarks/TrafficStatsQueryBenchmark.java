@@ -0,0 +1,82 @@
+package com.ProcessDataEC2.Benchmarks;
+
+import com.ProcessDataEC2.ProcessDataEC2.Model.PairStats;
+import com.ProcessDataEC2.ProcessDataEC2.Model.StatsPage;
+import com.ProcessDataEC2.ProcessDataEC2.Service.TrafficStatsQueryService;
+import com.ProcessDataEC2.ProcessDataEC2.Service.TrafficStatsQueryService.RankBy;
+import com.ProcessDataEC2.ProcessDataEC2.Store.ConsolidatedStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read path of the query API without HTTP: a pair lookup, a page of the destinations
+ * of a source (10 per source) and a page of the top pairs. None of them should grow
+ * with the number of pairs.
+ *
+ * Run with: java -jar target/benchmarks.jar TrafficStatsQueryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrafficStatsQueryBenchmark {
+
+    private static final int QUERY_MASK = 4095;
+    private static final int DESTINATIONS_PER_SOURCE = 10;
+
+    @Param({"10000", "1000000"})
+    public int pairs;
+
+    private TrafficStatsQueryService queryService;
+    private String[] srcIps;
+    private String[] dstIps;
+    private int[] offsets;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ConsolidatedStore store = new ConsolidatedStore(null);
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < pairs; i++) {
+            store.apply(FlowFiles.srcIp(i / DESTINATIONS_PER_SOURCE), FlowFiles.dstIp(i),
+                    random.nextInt(1_000_000), random.nextInt(100));
+        }
+        queryService = new TrafficStatsQueryService(store);
+        queryService.start();
+
+        srcIps = new String[QUERY_MASK + 1];
+        dstIps = new String[QUERY_MASK + 1];
+        offsets = new int[QUERY_MASK + 1];
+        for (int i = 0; i <= QUERY_MASK; i++) {
+            int pair = random.nextInt(pairs);
+            srcIps[i] = FlowFiles.srcIp(pair / DESTINATIONS_PER_SOURCE);
+            dstIps[i] = FlowFiles.dstIp(pair);
+            offsets[i] = random.nextInt(pairs - 50);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queryService.stop();
+    }
+
+    @Benchmark
+    public PairStats pair() {
+        int i = next++ & QUERY_MASK;
+        return queryService.pair(srcIps[i], dstIps[i]);
+    }
+
+    @Benchmark
+    public StatsPage destinations() {
+        return queryService.destinations(srcIps[next++ & QUERY_MASK], 0, 100);
+    }
+
+    @Benchmark
+    public StatsPage topPage() {
+        return queryService.top(RankBy.AVG_FLOW_DURATION, offsets[next++ & QUERY_MASK], 50);
+    }
+}
@@ -0,0 +1,240 @@
+package com.ProcessDataEC2.Benchmarks;
+
+import com.cloudProject.CloudProject.Metrics.UploadMetrics;
+import com.cloudProject.CloudProject.Service.S3MultipartUploader;
+import com.cloudProject.CloudProject.Service.S3Service;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.web.multipart.MultipartFile;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploading a CSV file received by the UploadService: the former path, which loads
+ * the file on the heap with MultipartFile.getBytes() and sends it with one PutObject,
+ * against S3Service.uploadCsvFile, which streams it as a parallel multipart upload.
+ *
+ * S3 is replaced by a stand-in that consumes every request body at
+ * {@code mbPerRequest} MB/s, as a single connection to S3 would. The heap used per
+ * upload is reported by the gc profiler (gc.alloc.rate.norm, in bytes per upload):
+ *
+ * Run with: java -jar target/benchmarks.jar UploadBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class UploadBenchmark {
+
+    @Param({"64", "512"})
+    public int sizeMb;
+
+    /** Throughput of one S3 request, 0 for unlimited. */
+    @Param({"100"})
+    public int mbPerRequest;
+
+    private Path file;
+    private MultipartFile multipartFile;
+    private ThrottledS3Client s3Client;
+    private AnnotationConfigApplicationContext context;
+    private S3Service s3Service;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Paths.get(System.getProperty("java.io.tmpdir"), "upload-" + sizeMb + "mb.csv");
+        if (!Files.exists(file) || Files.size(file) < sizeMb * (1L << 20)) {
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                FlowFiles.write(writer, sizeMb * (1L << 20), 10_000);
+            }
+        }
+        multipartFile = new FileMultipartFile(file);
+        s3Client = new ThrottledS3Client(mbPerRequest);
+
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addLast(new MapPropertySource("benchmark", Map.of(
+                "aws.s3.bucket-name", "benchmark-bucket",
+                "aws.s3.unprocessed-folder", "unprocessed-data/")));
+        context.registerBean(S3Client.class, () -> s3Client);
+        context.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+        context.register(UploadMetrics.class, S3MultipartUploader.class, S3Service.class);
+        context.refresh();
+        s3Service = context.getBean(S3Service.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public long putObjectFromBytes() throws IOException {
+        s3Client.putObject(PutObjectRequest.builder()
+                        .bucket("benchmark-bucket")
+                        .key("unprocessed-data/upload.csv")
+                        .contentType("text/csv")
+                        .contentLength(multipartFile.getSize())
+                        .build(),
+                RequestBody.fromBytes(multipartFile.getBytes()));
+        return s3Client.received.get();
+    }
+
+    @Benchmark
+    public long streamingMultipart() {
+        s3Service.uploadCsvFile(multipartFile);
+        return s3Client.received.get();
+    }
+
+    /** A multipart request part spooled to disk, as the servlet container keeps large uploads. */
+    private static final class FileMultipartFile implements MultipartFile {
+
+        private final Path path;
+
+        FileMultipartFile(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public String getName() {
+            return "file";
+        }
+
+        @Override
+        public String getOriginalFilename() {
+            return path.getFileName().toString();
+        }
+
+        @Override
+        public String getContentType() {
+            return "text/csv";
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return getSize() == 0;
+        }
+
+        @Override
+        public long getSize() {
+            try {
+                return Files.size(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public byte[] getBytes() throws IOException {
+            return Files.readAllBytes(path);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return Files.newInputStream(path);
+        }
+
+        @Override
+        public void transferTo(File dest) throws IOException {
+            Files.copy(path, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Consumes request bodies at a fixed throughput per request and discards them. */
+    private static final class ThrottledS3Client implements S3Client {
+
+        private final long bytesPerSecond;
+        final AtomicLong received = new AtomicLong();
+
+        ThrottledS3Client(int mbPerRequest) {
+            this.bytesPerSecond = mbPerRequest * (1L << 20);
+        }
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+            consume(body);
+            return PutObjectResponse.builder().eTag("object").build();
+        }
+
+        @Override
+        public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+            return CreateMultipartUploadResponse.builder().uploadId("upload").build();
+        }
+
+        @Override
+        public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody body) {
+            consume(body);
+            return UploadPartResponse.builder().eTag("part-" + request.partNumber()).build();
+        }
+
+        @Override
+        public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            return CompleteMultipartUploadResponse.builder().eTag("object").build();
+        }
+
+        @Override
+        public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+            return AbortMultipartUploadResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void consume(RequestBody body) {
+            long started = System.nanoTime();
+            long length = 0;
+            byte[] chunk = new byte[64 * 1024];
+            try (InputStream in = body.contentStreamProvider().newStream()) {
+                for (int read; (read = in.read(chunk)) >= 0; ) {
+                    length += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            received.addAndGet(length);
+            if (bytesPerSecond > 0) {
+                long remaining = length * 1_000_000_000L / bytesPerSecond - (System.nanoTime() - started);
+                if (remaining > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+}
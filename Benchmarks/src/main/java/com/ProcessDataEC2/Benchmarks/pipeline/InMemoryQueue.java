@@ -0,0 +1,66 @@
+package com.ProcessDataEC2.Benchmarks.pipeline;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One in-memory SQS queue. A message counts as outstanding from the moment it is sent
+ * until its handler returns, so the pipeline is drained once no queue has any.
+ */
+public class InMemoryQueue {
+
+    /** A message and the time it was sent. */
+    record Message(String body, long sentNanos) {
+    }
+
+    private final String url;
+    private final LinkedBlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    InMemoryQueue(String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    void offer(String body) {
+        sent.incrementAndGet();
+        outstanding.incrementAndGet();
+        messages.add(new Message(body, System.nanoTime()));
+    }
+
+    /**
+     * Waits up to {@code timeout} for a first message, then adds up to
+     * {@code maxMessages} in total to {@code batch} without waiting further.
+     */
+    void poll(List<Message> batch, int maxMessages, long timeout, TimeUnit unit) throws InterruptedException {
+        Message first = messages.poll(timeout, unit);
+        if (first != null) {
+            batch.add(first);
+            messages.drainTo(batch, maxMessages - 1);
+        }
+    }
+
+    void completed() {
+        outstanding.decrementAndGet();
+    }
+
+    /** Messages waiting to be received. */
+    public int depth() {
+        return messages.size();
+    }
+
+    /** Messages sent and not yet handled. */
+    public long outstanding() {
+        return outstanding.get();
+    }
+
+    public long sentCount() {
+        return sent.get();
+    }
+}
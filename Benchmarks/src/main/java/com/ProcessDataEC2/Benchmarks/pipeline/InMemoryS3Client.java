@@ -0,0 +1,120 @@
+package com.ProcessDataEC2.Benchmarks.pipeline;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * S3 stand-in keeping objects in memory. Supports what the services use: whole and
+ * ranged ("bytes=a-" or "bytes=a-b") GetObject, PutObject, HeadObject and DeleteObject.
+ */
+public class InMemoryS3Client implements S3Client {
+
+    private final ConcurrentHashMap<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final AtomicLong gets = new AtomicLong();
+    private final AtomicLong puts = new AtomicLong();
+
+    public void put(String bucket, String key, byte[] content) {
+        objects.put(bucket + "/" + key, content);
+    }
+
+    public byte[] get(String bucket, String key) {
+        return objects.get(bucket + "/" + key);
+    }
+
+    public long getCount() {
+        return gets.get();
+    }
+
+    public long putCount() {
+        return puts.get();
+    }
+
+    @Override
+    public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+        gets.incrementAndGet();
+        byte[] content = require(request.bucket(), request.key());
+        int start = 0;
+        int end = content.length;
+        if (request.range() != null) {
+            String[] bounds = request.range().substring("bytes=".length()).split("-", -1);
+            start = (int) Math.min(Long.parseLong(bounds[0]), content.length);
+            if (!bounds[1].isEmpty()) {
+                end = (int) Math.min(Long.parseLong(bounds[1]) + 1, content.length);
+            }
+        }
+        GetObjectResponse response = GetObjectResponse.builder()
+                .contentLength((long) (end - start))
+                .eTag(eTag(content))
+                .build();
+        return new ResponseInputStream<>(response,
+                AbortableInputStream.create(new ByteArrayInputStream(content, start, end - start)));
+    }
+
+    @Override
+    public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+        puts.incrementAndGet();
+        byte[] content;
+        try (InputStream in = body.contentStreamProvider().newStream()) {
+            content = in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        put(request.bucket(), request.key(), content);
+        return PutObjectResponse.builder().eTag(eTag(content)).build();
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest request) {
+        byte[] content = require(request.bucket(), request.key());
+        return HeadObjectResponse.builder()
+                .contentLength((long) content.length)
+                .eTag(eTag(content))
+                .build();
+    }
+
+    @Override
+    public DeleteObjectResponse deleteObject(DeleteObjectRequest request) {
+        objects.remove(request.bucket() + "/" + request.key());
+        return DeleteObjectResponse.builder().build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static String eTag(byte[] content) {
+        return "\"" + Integer.toHexString(Arrays.hashCode(content)) + "-" + content.length + "\"";
+    }
+
+    private byte[] require(String bucket, String key) {
+        byte[] content = get(bucket, key);
+        if (content == null) {
+            throw NoSuchKeyException.builder().message("The specified key does not exist: " + key).build();
+        }
+        return content;
+    }
+}
@@ -0,0 +1,62 @@
+package com.ProcessDataEC2.Benchmarks.pipeline;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SQS stand-in: sending enqueues the bodies on an {@link InMemoryQueue} per queue URL,
+ * from which the harness delivers them to the listeners.
+ */
+public class InMemorySqsAsyncClient implements SqsAsyncClient {
+
+    private final Map<String, InMemoryQueue> queues = new ConcurrentHashMap<>();
+
+    public InMemoryQueue queue(String queueUrl) {
+        return queues.computeIfAbsent(queueUrl, InMemoryQueue::new);
+    }
+
+    @Override
+    public CompletableFuture<SendMessageResponse> sendMessage(SendMessageRequest request) {
+        queue(request.queueUrl()).offer(request.messageBody());
+        return CompletableFuture.completedFuture(SendMessageResponse.builder()
+                .messageId(UUID.randomUUID().toString())
+                .build());
+    }
+
+    @Override
+    public CompletableFuture<SendMessageBatchResponse> sendMessageBatch(SendMessageBatchRequest request) {
+        InMemoryQueue queue = queue(request.queueUrl());
+        List<SendMessageBatchResultEntry> successful = new ArrayList<>(request.entries().size());
+        for (SendMessageBatchRequestEntry entry : request.entries()) {
+            queue.offer(entry.messageBody());
+            successful.add(SendMessageBatchResultEntry.builder()
+                    .id(entry.id())
+                    .messageId(UUID.randomUUID().toString())
+                    .build());
+        }
+        return CompletableFuture.completedFuture(SendMessageBatchResponse.builder()
+                .successful(successful)
+                .build());
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
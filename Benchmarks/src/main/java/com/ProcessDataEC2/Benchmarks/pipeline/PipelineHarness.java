@@ -0,0 +1,245 @@
+package com.ProcessDataEC2.Benchmarks.pipeline;
+
+import com.ProcessDataEC2.Benchmarks.FlowFiles;
+import com.ProcessDataEC2.ProcessDataEC2.Messaging.SqsBatchSender;
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.ProcessDataEC2.ProcessDataEC2.Service.ConsolidateService;
+import com.ProcessDataEC2.ProcessDataEC2.Service.ExportService;
+import com.ProcessDataEC2.ProcessDataEC2.Service.FusedPipeline;
+import com.ProcessDataEC2.ProcessDataEC2.Service.RangedCsvSummarizer;
+import com.ProcessDataEC2.ProcessDataEC2.Service.SummarizeService;
+import com.ProcessDataEC2.ProcessDataEC2.Store.ConsolidatedStore;
+import com.ProcessDataEC2.ProcessDataEC2.Store.FileCheckpointStore;
+import com.ProcessDataEC2.ProcessDataEC2.Store.FinalDataRepository;
+import com.ProcessDataEC2.ProcessDataEC2.Store.TrafficSketchStore;
+import com.ProcessDataEC2.ProcessDataEC2.Store.WindowedStatsStore;
+import com.ProcessDataEC2.ProcessDataEC2.Store.WriteBehindFinalDataWriter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs SummarizeService -> ConsolidateService -> ExportService end to end in one
+ * process, with S3 and SQS replaced by in-memory stand-ins.
+ *
+ * The real service classes are wired by Spring exactly as in the application, minus
+ * the AWS clients and the SQS listener container: a {@link StageRunner} per queue
+ * delivers the messages instead. Generated flow files are uploaded together with their
+ * S3 event notification, and the run ends once every message has been handled.
+ * Reported are files/s, rows/s, messages/s and latency percentiles per stage, and
+ * the depth of every queue over time.
+ *
+ * Options (defaults in brackets): --files [20] --rows [100000] --pairs [10000]
+ * --uploadIntervalMs [0] --summarizeThreads [1] --consolidateThreads [4]
+ * --exportThreads [1] --batchSize [10] --sampleMs [500]. Any app.* property of the services can be
+ * overridden with -D, e.g. -Dapp.export.writeBehind=false, or -Dapp.pipeline.fused=true to
+ * run the stages connected in process instead of through the intermediate queues.
+ *
+ * Run with: java -cp target/benchmarks.jar com.ProcessDataEC2.Benchmarks.pipeline.PipelineHarness --files 50
+ */
+public class PipelineHarness {
+
+    private static final String BUCKET = "harness-bucket";
+    private static final String FINAL_DATA_KEY = "processed-data/finalData.csv";
+    private static final String S3_EVENTS_QUEUE = "in-memory://S3EventNotificationQueue";
+    private static final String SUMMARIZE_TO_CONSOLIDATE_QUEUE = "in-memory://SQS_SummarizeToConsolidate";
+    private static final String CONSOLIDATE_TO_EXPORT_QUEUE = "in-memory://SQS_ConsolidateToExport";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int files = Integer.parseInt(options.getOrDefault("files", "20"));
+        int rows = Integer.parseInt(options.getOrDefault("rows", "100000"));
+        int pairs = Integer.parseInt(options.getOrDefault("pairs", "10000"));
+        long uploadIntervalMs = Long.parseLong(options.getOrDefault("uploadIntervalMs", "0"));
+        int summarizeThreads = Integer.parseInt(options.getOrDefault("summarizeThreads", "1"));
+        int consolidateThreads = Integer.parseInt(options.getOrDefault("consolidateThreads", "4"));
+        int exportThreads = Integer.parseInt(options.getOrDefault("exportThreads", "1"));
+        int batchSize = Integer.parseInt(options.getOrDefault("batchSize", "10"));
+        long sampleMs = Long.parseLong(options.getOrDefault("sampleMs", "500"));
+
+        InMemoryS3Client s3 = new InMemoryS3Client();
+        InMemorySqsAsyncClient sqs = new InMemorySqsAsyncClient();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        AnnotationConfigApplicationContext context = createContext(s3, sqs, registry);
+
+        List<StageRunner> stages = List.of(
+                new StageRunner("summarize", sqs.queue(S3_EVENTS_QUEUE),
+                        context.getBean(SummarizeService.class)::handleS3Notifications, summarizeThreads,
+                        batchSize),
+                new StageRunner("consolidate", sqs.queue(SUMMARIZE_TO_CONSOLIDATE_QUEUE),
+                        context.getBean(ConsolidateService.class)::handleConsolidation, consolidateThreads,
+                        batchSize),
+                new StageRunner("export", sqs.queue(CONSOLIDATE_TO_EXPORT_QUEUE),
+                        context.getBean(ExportService.class)::handleExport, exportThreads, batchSize));
+
+        System.out.printf("Generating %d files of %d rows over %d pairs...%n", files, rows, pairs);
+        List<byte[]> contents = new ArrayList<>(files);
+        long totalBytes = 0;
+        for (int i = 0; i < files; i++) {
+            byte[] csv = FlowFiles.csv(rows, pairs, i);
+            contents.add(csv);
+            totalBytes += csv.length;
+        }
+
+        List<long[]> depthSamples = new ArrayList<>();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        long start = System.nanoTime();
+        sampler.scheduleAtFixedRate(() -> {
+            long[] sample = new long[stages.size() + 1];
+            sample[0] = System.nanoTime() - start;
+            for (int i = 0; i < stages.size(); i++) {
+                sample[i + 1] = stages.get(i).getQueue().depth();
+            }
+            synchronized (depthSamples) {
+                depthSamples.add(sample);
+            }
+        }, 0, sampleMs, TimeUnit.MILLISECONDS);
+        stages.forEach(StageRunner::start);
+
+        for (int i = 0; i < files; i++) {
+            String key = "unprocessed-data/harness-" + i + ".csv";
+            s3.put(BUCKET, key, contents.get(i));
+            sqs.queue(S3_EVENTS_QUEUE).offer(s3Event(key, contents.get(i).length));
+            if (uploadIntervalMs > 0) {
+                Thread.sleep(uploadIntervalMs);
+            }
+        }
+        FusedPipeline fused = context.getBeanProvider(FusedPipeline.class).getIfAvailable();
+        while (stages.stream().anyMatch(stage -> stage.getQueue().outstanding() > 0)
+                || fused != null && fused.pendingBatches() > 0) {
+            Thread.sleep(5);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        sampler.shutdown();
+        for (StageRunner stage : stages) {
+            stage.stop();
+        }
+        // Closing flushes the write-behind export
+        FinalDataRepository repository = context.getBean(FinalDataRepository.class);
+        context.close();
+        long gets = s3.getCount();
+        long puts = s3.putCount();
+        int finalPairs = repository.load().size();
+
+        report(files, rows, pairs, totalBytes, elapsed, stages, depthSamples, gets, puts, finalPairs, registry);
+    }
+
+    private static AnnotationConfigApplicationContext createContext(S3Client s3, SqsAsyncClient sqs,
+                                                                    MeterRegistry registry) throws IOException {
+        Path snapshotDir = Files.createTempDirectory("harness");
+        snapshotDir.toFile().deleteOnExit();
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("app.s3.bucketName", BUCKET);
+        properties.put("app.s3.finalDataKey", FINAL_DATA_KEY);
+        properties.put("app.sqs.summarizeToConsolidateQueue", SUMMARIZE_TO_CONSOLIDATE_QUEUE);
+        properties.put("app.sqs.consolidateToExportQueue", CONSOLIDATE_TO_EXPORT_QUEUE);
+        properties.put("app.export.flushIntervalMs", "1000");
+        properties.put("app.export.localSnapshotDir", snapshotDir.toString());
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        // System properties come first, so -Dapp.* overrides these defaults
+        context.getEnvironment().getPropertySources().addLast(new MapPropertySource("harness", properties));
+        context.registerBean(S3Client.class, () -> s3);
+        context.registerBean(SqsAsyncClient.class, () -> sqs);
+        context.registerBean(MeterRegistry.class, () -> registry);
+        context.register(PipelineMetrics.class, SqsBatchSender.class, FinalDataRepository.class, ConsolidatedStore.class,
+                FileCheckpointStore.class,
+                WriteBehindFinalDataWriter.class, RangedCsvSummarizer.class,
+                SummarizeService.class, ConsolidateService.class, ExportService.class, FusedPipeline.class,
+                WindowedStatsStore.class, TrafficSketchStore.class);
+        context.refresh();
+        return context;
+    }
+
+    private static String s3Event(String key, long size) {
+        return "{\"Records\":[{\"s3\":{\"bucket\":{\"name\":\"" + BUCKET + "\"},"
+                + "\"object\":{\"key\":\"" + key + "\",\"size\":" + size + "}}}]}";
+    }
+
+    private static void report(int files, int rows, int pairs, long totalBytes, long elapsedNanos,
+                               List<StageRunner> stages, List<long[]> depthSamples, long gets, long puts,
+                               int finalPairs, MeterRegistry registry)
+            throws IOException {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf(Locale.ROOT, "%nProcessed %d files (%d rows, %.1f MB, %d pairs) in %.2f s%n",
+                files, (long) files * rows, totalBytes / 1e6, pairs, seconds);
+        System.out.printf(Locale.ROOT, "Throughput: %.2f files/s, %.0f rows/s, %.1f MB/s%n",
+                files / seconds, files * (double) rows / seconds, totalBytes / 1e6 / seconds);
+
+        System.out.printf("%nStage        messages      msg/s   latency ms p50 / p95 / p99 / max        batch ms p50 / p95 / p99%n");
+        for (StageRunner stage : stages) {
+            StageRunner.Latencies latency = stage.getLatency();
+            StageRunner.Latencies serviceTime = stage.getServiceTime();
+            System.out.printf(Locale.ROOT, "%-12s %8d %10.1f   %8.2f %8.2f %8.2f %8.2f   %8.2f %8.2f %8.2f%n",
+                    stage.getName(), stage.handledCount(), stage.handledCount() / seconds,
+                    latency.percentileMillis(50), latency.percentileMillis(95),
+                    latency.percentileMillis(99), latency.percentileMillis(100),
+                    serviceTime.percentileMillis(50), serviceTime.percentileMillis(95),
+                    serviceTime.percentileMillis(99));
+        }
+
+        Timer fusedLatency = registry.find("pipeline.fused.latency").timer();
+        if (fusedLatency != null) {
+            System.out.printf(Locale.ROOT, "fused        %8d batches, latency ms mean %.2f / max %.2f%n", fusedLatency.count(),
+                    fusedLatency.mean(TimeUnit.MILLISECONDS), fusedLatency.max(TimeUnit.MILLISECONDS));
+        }
+
+        System.out.printf("%nS3: %d GetObject, %d PutObject; finalData holds %d pairs%n", gets, puts, finalPairs);
+        for (Timer timer : registry.find("pipeline.s3.requests").timers()) {
+            System.out.printf(Locale.ROOT, "  %s %s: %d requests, mean %.2f ms, max %.2f ms%n",
+                    timer.getId().getTag("operation"), timer.getId().getTag("object"), timer.count(),
+                    timer.mean(TimeUnit.MILLISECONDS), timer.max(TimeUnit.MILLISECONDS));
+        }
+
+        System.out.printf("%nQueue depth%n%8s", "t (s)");
+        for (StageRunner stage : stages) {
+            System.out.printf(" %12s", stage.getName());
+        }
+        System.out.println();
+        synchronized (depthSamples) {
+            for (long[] sample : depthSamples) {
+                System.out.printf(Locale.ROOT, "%8.2f", sample[0] / 1e9);
+                for (int i = 1; i < sample.length; i++) {
+                    System.out.printf(" %12d", sample[i]);
+                }
+                System.out.println();
+            }
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String name = args[i].substring(2);
+            int equals = name.indexOf('=');
+            if (equals >= 0) {
+                options.put(name.substring(0, equals), name.substring(equals + 1));
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Missing value for --" + name);
+            }
+        }
+        return options;
+    }
+}
@@ -0,0 +1,131 @@
+package com.ProcessDataEC2.Benchmarks.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Delivers the messages of one queue to a listener method on a fixed number of
+ * threads, in batches of up to {@code batchSize} like the SQS listener container
+ * would, and records per message the latency from send to handled and per batch the
+ * time spent in the handler.
+ */
+public class StageRunner {
+
+    private final String name;
+    private final InMemoryQueue queue;
+    private final Consumer<List<String>> listener;
+    private final int batchSize;
+    private final List<Thread> threads = new ArrayList<>();
+    private final Latencies latency = new Latencies();
+    private final Latencies serviceTime = new Latencies();
+    private final AtomicLong handled = new AtomicLong();
+    private volatile boolean running = true;
+
+    public StageRunner(String name, InMemoryQueue queue, Consumer<List<String>> listener, int concurrency,
+                       int batchSize) {
+        this.name = name;
+        this.queue = queue;
+        this.listener = listener;
+        this.batchSize = batchSize;
+        for (int i = 0; i < concurrency; i++) {
+            Thread thread = new Thread(this::run, name + "-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+    }
+
+    public void start() {
+        threads.forEach(Thread::start);
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public InMemoryQueue getQueue() {
+        return queue;
+    }
+
+    public long handledCount() {
+        return handled.get();
+    }
+
+    public Latencies getLatency() {
+        return latency;
+    }
+
+    public Latencies getServiceTime() {
+        return serviceTime;
+    }
+
+    private void run() {
+        List<InMemoryQueue.Message> batch = new ArrayList<>(batchSize);
+        List<String> bodies = new ArrayList<>(batchSize);
+        while (running) {
+            batch.clear();
+            try {
+                queue.poll(batch, batchSize, 50, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            bodies.clear();
+            for (InMemoryQueue.Message message : batch) {
+                bodies.add(message.body());
+            }
+            long started = System.nanoTime();
+            try {
+                listener.accept(bodies);
+            } finally {
+                long finished = System.nanoTime();
+                serviceTime.record(finished - started);
+                for (InMemoryQueue.Message message : batch) {
+                    latency.record(finished - message.sentNanos());
+                    handled.incrementAndGet();
+                    queue.completed();
+                }
+            }
+        }
+    }
+
+    /** Recorded durations in nanoseconds. */
+    public static final class Latencies {
+
+        private long[] values = new long[1024];
+        private int count;
+
+        synchronized void record(long nanos) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = nanos;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return the value in milliseconds, 0 if nothing was recorded.
+         */
+        public synchronized double percentileMillis(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * count) - 1;
+            return sorted[Math.max(0, Math.min(index, count - 1))] / 1e6;
+        }
+    }
+}
@@ -3,93 +3,146 @@ package com.example.cloudworkers.lambda;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.example.cloudworkers.common.Compression;
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataCsv;
+import com.example.cloudworkers.common.FinalDataManifest;
+import com.example.cloudworkers.common.FinalDataSnapshot;
+import com.example.cloudworkers.common.MessagePacker;
+import com.example.cloudworkers.common.SummaryMessage;
+import com.example.cloudworkers.common.WorkerPriming;
+import org.crac.Core;
+import org.crac.Resource;
+import software.amazon.awssdk.core.ResponseBytes;
 import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
 import software.amazon.awssdk.regions.Region;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
-
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Logger;
 
-public class ConsolidatorWorkerLambda implements RequestHandler<SQSEvent, String> {
+public class ConsolidatorWorkerLambda implements RequestHandler<SQSEvent, String>, Resource {
+    private static final Logger logger = Logger.getLogger(ConsolidatorWorkerLambda.class.getName());
     private static final String BUCKET_NAME = "projetcloudiot";
     private static final String FINAL_DATA_KEY = "processed-data/finalData.csv";
+    private static final String FINAL_DATA_SNAPSHOT_KEY = "processed-data/finalData.snapshot";
+    private static final String FINAL_DATA_MANIFEST_KEY = "processed-data/finalData.manifest";
     private static final String SQS_QUEUE_URL_OUTPUT = "https://sqs.us-east-1.amazonaws.com/816069142521/SQS_ConsolidateToExport";
+    private static final int MAX_SEND_ATTEMPTS = 3;
 
     private final S3Client s3 = S3Client.builder()
             .region(Region.US_EAST_1) // Change to your region
+            .httpClient(ApacheHttpClient.create())
             .build();
 
     private final SqsClient sqs = SqsClient.builder()
             .region(Region.US_EAST_1) // Change to your region
+            .httpClient(ApacheHttpClient.create())
             .build();
 
+    public ConsolidatorWorkerLambda() {
+        // Primes the instance before a SnapStart checkpoint; does nothing without SnapStart
+        Core.getGlobalContext().register(this);
+    }
+
+    /**
+     * Runs once when a version is published with SnapStart, before the snapshot every
+     * sandbox is restored from: loads and initializes the flow formats and the S3 and
+     * SQS request paths, so the first event pays neither.
+     */
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> checkpoint) throws Exception {
+        WorkerPriming.prime();
+
+        // Whether the object or queue is readable does not matter, only that the calls were made
+        try {
+            s3.headObject(HeadObjectRequest.builder()
+                    .bucket(BUCKET_NAME)
+                    .key(FINAL_DATA_MANIFEST_KEY)
+                    .build());
+        } catch (SdkException e) {
+            logger.warning("S3 priming call failed: " + e.getMessage());
+        }
+        try {
+            sqs.getQueueAttributes(GetQueueAttributesRequest.builder()
+                    .queueUrl(SQS_QUEUE_URL_OUTPUT)
+                    .attributeNames(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)
+                    .build());
+        } catch (SdkException e) {
+            logger.warning("SQS priming call failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> checkpoint) {
+        // Connections opened before the checkpoint are reopened by the SDK on first use
+    }
+
     @Override
     public String handleRequest(SQSEvent event, Context context) {
+        // Fetch existing finalData once for the whole invocation
+        Map<String, FinalData> finalDataMap = fetchFinalData(context);
+        MessagePacker packer = new MessagePacker(MessagePacker.DEFAULT_MAX_BODY_BYTES, MessagePacker.Format.BINARY,
+                bodies -> sendBatchToSQS(bodies, context));
+
         for (SQSEvent.SQSMessage msg : event.getRecords()) {
             String body = msg.getBody();
-            context.getLogger().log("Processing message: " + body);
+            context.getLogger().log("Processing message with " + body.length() + " bytes");
 
+            List<SummaryMessage> summaries;
             try {
-                String calculatedData = processMessage(body, context);
-                if (calculatedData != null) {
-                    sendMessageToSQS(calculatedData, context);
-                    context.getLogger().log("Sent calculated data to output SQS: " + calculatedData);
-                }
-                // No need to delete the message; Lambda auto-deletes upon successful execution
+                // Binary or text records, see SummaryMessage
+                summaries = SummaryMessage.unpack(body,
+                        record -> context.getLogger().log("Invalid message format: " + record));
             } catch (Exception e) {
                 context.getLogger().log("Error processing message: " + e.getMessage());
-                // Optionally, handle retries or dead-letter queues
+                continue;
+            }
+            for (SummaryMessage summary : summaries) {
+                FinalData calculatedData = processMessage(summary, finalDataMap, context);
+                if (calculatedData != null) {
+                    packer.addFinalData(summary.getSrcIp(), summary.getDstIp(), calculatedData);
+                }
             }
         }
+
+        // Throws, like every batch sent before, unless SQS took all of it: the event is
+        // then retried. Lambda deletes the messages only once the invocation succeeds
+        packer.flush();
+        context.getLogger().log("Sent " + packer.getRecordCount() + " calculated records to output SQS in "
+                + packer.getMessageCount() + " messages");
         return "Success";
     }
 
-    public String processMessage(String messageBody, Context context) {
+    public FinalData processMessage(SummaryMessage summary, Map<String, FinalData> finalDataMap, Context context) {
         try {
-            // Message format: SrcIP,DstIP,TotalFlowDuration,TotalFwdPkts
-            String[] parts = messageBody.split(",");
-            if (parts.length != 4) {
-                context.getLogger().log("Invalid message format: " + messageBody);
-                return null;
-            }
-
-            String srcIp = parts[0];
-            String dstIp = parts[1];
-            long totalFlowDuration = Long.parseLong(parts[2]);
-            long totalFwdPkts = Long.parseLong(parts[3]);
-
-            String keyPair = srcIp + "," + dstIp;
-
-            // Fetch existing finalData.csv
-            Map<String, FinalData> finalDataMap = fetchFinalData(context);
+            String keyPair = summary.getSrcIp() + "," + summary.getDstIp();
 
             // Get existing data or initialize with zeros
-            FinalData existingData = finalDataMap.getOrDefault(keyPair, new FinalData());
-
-            // Calculate new statistics
-            double newAvgFlowDuration = (existingData.avgFlowDuration * existingData.trafficNumber + totalFlowDuration) / (existingData.trafficNumber + 1);
-            double newStdDevFlowDuration = Math.abs(totalFlowDuration - newAvgFlowDuration);
-            double newAvgTotFwdPkts = (existingData.avgTotFwdPkts * existingData.trafficNumber + totalFwdPkts) / (existingData.trafficNumber + 1);
-            double newStdDevTotFwdPkts = Math.abs(totalFwdPkts - newAvgTotFwdPkts);
-            int newTrafficNumber = existingData.trafficNumber + 1;
-
-            // Create updated FinalData
-            FinalData updatedData = new FinalData(newAvgFlowDuration, newStdDevFlowDuration, newAvgTotFwdPkts, newStdDevTotFwdPkts, newTrafficNumber);
+            FinalData existingData = finalDataMap.getOrDefault(keyPair, FinalData.EMPTY);
 
-            // Prepare the structured data to send to Export Client
-            String calculatedData = String.format("%s,%s,%.2f,%.2f,%.2f,%.2f,%d",
-                    srcIp, dstIp, updatedData.avgFlowDuration, updatedData.stdDevFlowDuration,
-                    updatedData.avgTotFwdPkts, updatedData.stdDevTotFwdPkts, updatedData.trafficNumber);
+            // Fold this file's totals into the running moments of the pair
+            FinalData updatedData = existingData.withSummary(summary.getTotalFlowDuration(), summary.getTotalFwdPkts());
+            finalDataMap.put(keyPair, updatedData);
 
-            return calculatedData;
+            // The statistics to send to Export Client
+            return updatedData;
 
         } catch (Exception e) {
             context.getLogger().log("Error processing message: " + e.getMessage());
@@ -100,76 +153,117 @@ public class ConsolidatorWorkerLambda implements RequestHandler<SQSEvent, String
     public Map<String, FinalData> fetchFinalData(Context context) {
         Map<String, FinalData> finalDataMap = new HashMap<>();
 
+        // Every shard of the sharded finalData, if it has been sharded
         try {
-            GetObjectRequest getFinal = GetObjectRequest.builder()
+            GetObjectRequest getManifest = GetObjectRequest.builder()
                     .bucket(BUCKET_NAME)
-                    .key(FINAL_DATA_KEY)
+                    .key(FINAL_DATA_MANIFEST_KEY)
                     .build();
 
-            ResponseInputStream<GetObjectResponse> finalDataObj = s3.getObject(getFinal);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(finalDataObj));
-            Iterable<CSVRecord> csvRecords = CSVFormat.DEFAULT
-                    .withFirstRecordAsHeader()
-                    .parse(reader);
-
-            for (CSVRecord record : csvRecords) {
-                String srcIp = record.get("Src IP");
-                String dstIp = record.get("Dst IP");
-                double avgFlowDuration = Double.parseDouble(record.get("Avg Flow Duration"));
-                double stdDevFlowDuration = Double.parseDouble(record.get("StdDev Flow Duration"));
-                double avgTotFwdPkts = Double.parseDouble(record.get("Avg Tot Fwd Pkts"));
-                double stdDevTotFwdPkts = Double.parseDouble(record.get("StdDev Tot Fwd Pkts"));
-                int trafficNumber = Integer.parseInt(record.get("TrafficNumber"));
-
-                String keyPair = srcIp + "," + dstIp;
-                finalDataMap.put(keyPair, new FinalData(avgFlowDuration, stdDevFlowDuration, avgTotFwdPkts, stdDevTotFwdPkts, trafficNumber));
+            FinalDataManifest manifest = FinalDataManifest.read(s3.getObjectAsBytes(getManifest).asInputStream());
+            for (int shard = 0; shard < manifest.getShardCount(); shard++) {
+                try {
+                    GetObjectRequest getShard = GetObjectRequest.builder()
+                            .bucket(BUCKET_NAME)
+                            .key(manifest.shardKey(shard))
+                            .build();
+
+                    finalDataMap.putAll(FinalDataSnapshot.open(s3.getObjectAsBytes(getShard).asByteBuffer()).toMap());
+                } catch (NoSuchKeyException e) {
+                    // A shard that was never written holds no pairs
+                }
             }
+            return finalDataMap;
 
         } catch (NoSuchKeyException e) {
-            // finalData.csv does not exist yet. Initialize empty map.
-            context.getLogger().log("finalData.csv does not exist. Initializing with empty data.");
+            context.getLogger().log("finalData.manifest does not exist. Reading finalData.snapshot.");
         } catch (Exception e) {
-            context.getLogger().log("Error fetching finalData.csv: " + e.getMessage());
+            context.getLogger().log("Error fetching the finalData shards: " + e.getMessage());
+            return new HashMap<>();
         }
 
-        return finalDataMap;
-    }
+        // The snapshot is read in place; finalData.csv only until the first snapshot is written
+        try {
+            GetObjectRequest getSnapshot = GetObjectRequest.builder()
+                    .bucket(BUCKET_NAME)
+                    .key(FINAL_DATA_SNAPSHOT_KEY)
+                    .build();
+
+            ResponseBytes<GetObjectResponse> snapshot = s3.getObjectAsBytes(getSnapshot);
+            return FinalDataSnapshot.open(snapshot.asByteBuffer()).toMap();
+
+        } catch (NoSuchKeyException e) {
+            context.getLogger().log("finalData.snapshot does not exist. Reading finalData.csv.");
+        } catch (Exception e) {
+            context.getLogger().log("Error fetching finalData.snapshot: " + e.getMessage() + ". Reading finalData.csv.");
+        }
 
-    public void sendMessageToSQS(String messageBody, Context context) {
         try {
-            SendMessageRequest sendMsgRequest = SendMessageRequest.builder()
-                    .queueUrl(SQS_QUEUE_URL_OUTPUT)
-                    .messageBody(messageBody)
+            GetObjectRequest getFinal = GetObjectRequest.builder()
+                    .bucket(BUCKET_NAME)
+                    .key(FINAL_DATA_KEY)
                     .build();
 
-            sqs.sendMessage(sendMsgRequest);
+            ResponseInputStream<GetObjectResponse> finalDataObj = s3.getObject(getFinal);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    Compression.ofContentEncoding(finalDataObj.response().contentEncoding()).decompress(finalDataObj),
+                    StandardCharsets.UTF_8));
+            finalDataMap = FinalDataCsv.read(reader);
+
+        } catch (NoSuchKeyException e) {
+            // finalData.csv does not exist yet. Initialize empty map.
+            context.getLogger().log("finalData.csv does not exist. Initializing with empty data.");
         } catch (Exception e) {
-            context.getLogger().log("Error sending message to output SQS: " + e.getMessage());
+            context.getLogger().log("Error fetching finalData.csv: " + e.getMessage());
         }
+
+        return finalDataMap;
     }
 
-    private static class FinalData {
-        double avgFlowDuration;
-        double stdDevFlowDuration;
-        double avgTotFwdPkts;
-        double stdDevTotFwdPkts;
-        int trafficNumber;
-
-        FinalData() {
-            this.avgFlowDuration = 0.0;
-            this.stdDevFlowDuration = 0.0;
-            this.avgTotFwdPkts = 0.0;
-            this.stdDevTotFwdPkts = 0.0;
-            this.trafficNumber = 0;
+    /**
+     * Sends up to ten message bodies in a single request. Entries SQS fails to take for
+     * a fault of its own, or all of them if the request fails, are sent again, up to
+     * {@code MAX_SEND_ATTEMPTS} attempts in all.
+     *
+     * @throws IllegalStateException if any of them is still not delivered, or was rejected.
+     */
+    public void sendBatchToSQS(List<String> messageBodies, Context context) {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>();
+        for (int i = 0; i < messageBodies.size(); i++) {
+            entries.add(SendMessageBatchRequestEntry.builder()
+                    .id(Integer.toString(i))
+                    .messageBody(messageBodies.get(i))
+                    .build());
         }
-
-        FinalData(double avgFlowDuration, double stdDevFlowDuration, double avgTotFwdPkts,
-                  double stdDevTotFwdPkts, int trafficNumber) {
-            this.avgFlowDuration = avgFlowDuration;
-            this.stdDevFlowDuration = stdDevFlowDuration;
-            this.avgTotFwdPkts = avgTotFwdPkts;
-            this.stdDevTotFwdPkts = stdDevTotFwdPkts;
-            this.trafficNumber = trafficNumber;
+        for (int attempt = 1; ; attempt++) {
+            List<SendMessageBatchRequestEntry> unsent = new ArrayList<>();
+            try {
+                SendMessageBatchResponse response = sqs.sendMessageBatch(SendMessageBatchRequest.builder()
+                        .queueUrl(SQS_QUEUE_URL_OUTPUT)
+                        .entries(entries)
+                        .build());
+                for (BatchResultErrorEntry failed : response.failed()) {
+                    context.getLogger().log("Message " + failed.id() + " rejected by SQS: " + failed.code() + " " + failed.message());
+                    if (failed.senderFault()) {
+                        throw new IllegalStateException("Message rejected by SQS: " + failed.code() + " " + failed.message());
+                    }
+                    for (SendMessageBatchRequestEntry entry : entries) {
+                        if (entry.id().equals(failed.id())) {
+                            unsent.add(entry);
+                        }
+                    }
+                }
+            } catch (SdkException e) {
+                context.getLogger().log("Error sending message batch to output SQS (attempt " + attempt + "): " + e.getMessage());
+                unsent = entries;
+            }
+            if (unsent.isEmpty()) {
+                return;
+            }
+            if (attempt >= MAX_SEND_ATTEMPTS) {
+                throw new IllegalStateException(unsent.size() + " messages were not delivered to output SQS");
+            }
+            entries = unsent;
         }
     }
 }
@@ -3,39 +3,97 @@ package com.example.cloudworkers.lambda;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.example.cloudworkers.common.Compression;
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataCsv;
+import com.example.cloudworkers.common.FinalDataManifest;
+import com.example.cloudworkers.common.FinalDataMessage;
+import com.example.cloudworkers.common.FinalDataSnapshot;
+import com.example.cloudworkers.common.WorkerPriming;
+import org.crac.Core;
+import org.crac.Resource;
+import software.amazon.awssdk.core.ResponseBytes;
 import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.core.sync.RequestBody;  
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
 import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
 import software.amazon.awssdk.regions.Region;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.csv.CSVPrinter;
-import org.apache.commons.csv.CSVParser;
-
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
 
-public class ExportClientLambda implements RequestHandler<SQSEvent, String> {
+public class ExportClientLambda implements RequestHandler<SQSEvent, String>, Resource {
+    private static final Logger logger = Logger.getLogger(ExportClientLambda.class.getName());
     private static final String BUCKET_NAME = "projetcloudiot";
     private static final String FINAL_DATA_KEY = "processed-data/finalData.csv";
+    private static final String FINAL_DATA_SNAPSHOT_KEY = "processed-data/finalData.snapshot";
+    private static final String FINAL_DATA_MANIFEST_KEY = "processed-data/finalData.manifest";
+    private static final String FINAL_DATA_SHARD_PREFIX = "processed-data/finalData/";
+    private static final int SHARD_COUNT = 16;
     private static final String SQS_QUEUE_URL_INPUT = "https://sqs.us-east-1.amazonaws.com/816069142521/SQS_ConsolidateToExport"; // Replace with your SQS Queue URL
 
     private final S3Client s3 = S3Client.builder()
             .region(Region.US_EAST_1) // Change to your region
+            .httpClient(ApacheHttpClient.create())
             .build();
 
     private final SqsClient sqs = SqsClient.builder()
             .region(Region.US_EAST_1) // Change to your region
+            .httpClient(ApacheHttpClient.create())
             .build();
 
+    public ExportClientLambda() {
+        // Primes the instance before a SnapStart checkpoint; does nothing without SnapStart
+        Core.getGlobalContext().register(this);
+    }
+
+    /**
+     * Runs once when a version is published with SnapStart, before the snapshot every
+     * sandbox is restored from: loads and initializes the flow formats and the S3 and
+     * SQS request paths, so the first event pays neither.
+     */
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> checkpoint) throws Exception {
+        WorkerPriming.prime();
+
+        // Whether the object or queue is readable does not matter, only that the calls were made
+        try {
+            s3.headObject(HeadObjectRequest.builder()
+                    .bucket(BUCKET_NAME)
+                    .key(FINAL_DATA_MANIFEST_KEY)
+                    .build());
+        } catch (SdkException e) {
+            logger.warning("S3 priming call failed: " + e.getMessage());
+        }
+        try {
+            sqs.getQueueAttributes(GetQueueAttributesRequest.builder()
+                    .queueUrl(SQS_QUEUE_URL_INPUT)
+                    .attributeNames(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)
+                    .build());
+        } catch (SdkException e) {
+            logger.warning("SQS priming call failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> checkpoint) {
+        // Connections opened before the checkpoint are reopened by the SDK on first use
+    }
+
     @Override
     public String handleRequest(SQSEvent event, Context context) {
         for (SQSEvent.SQSMessage msg : event.getRecords()) {
@@ -47,49 +105,118 @@ public class ExportClientLambda implements RequestHandler<SQSEvent, String> {
                 deleteMessage(msg, context);
                 context.getLogger().log("Processed and deleted message: " + body);
             } catch (Exception e) {
-                context.getLogger().log("Error processing message: " + e.getMessage());
-                // Optionally, handle retries or dead-letter queues
+                // Not deleted: the message is delivered again after its visibility timeout
+                context.getLogger().log("Error processing message, leaving it on the queue: " + e.getMessage());
             }
         }
         return "Success";
     }
 
-    public void processMessage(String messageBody, Context context) {
-        try {
-            // Message format: SrcIP,DstIP,AvgFlowDuration,StdDevFlowDuration,AvgTotFwdPkts,StdDevTotFwdPkts,TrafficNumber
-            String[] parts = messageBody.split(",");
-            if (parts.length != 7) {
-                context.getLogger().log("Invalid message format: " + messageBody);
-                return;
-            }
+    /**
+     * Applies the records of one message. Anything that fails is thrown, so the message
+     * is not deleted and is delivered again.
+     */
+    public void processMessage(String messageBody, Context context) throws IOException {
+        // Parse every record (format: see FinalDataMessage)
+        List<FinalDataMessage> messages = FinalDataMessage.unpack(messageBody,
+                record -> context.getLogger().log("Invalid message format: " + record));
+        if (messages.isEmpty()) {
+            return;
+        }
 
-            String srcIp = parts[0];
-            String dstIp = parts[1];
-            double avgFlowDuration = Double.parseDouble(parts[2]);
-            double stdDevFlowDuration = Double.parseDouble(parts[3]);
-            double avgTotFwdPkts = Double.parseDouble(parts[4]);
-            double stdDevTotFwdPkts = Double.parseDouble(parts[5]);
-            int trafficNumber = Integer.parseInt(parts[6]);
+        FinalDataManifest manifest = fetchManifest();
+        if (manifest == null) {
+            // Not sharded yet: the whole dataset is written once as shards
+            Map<String, FinalData> finalDataMap = fetchFinalData(context);
+            for (FinalDataMessage message : messages) {
+                finalDataMap.merge(message.getKeyPair(), message.getData(), FinalData::newest);
+            }
+            writeFinalData(finalDataMap, context);
+            return;
+        }
 
-            String keyPair = srcIp + "," + dstIp;
+        // Update or add the FinalData entry of every record in the shard it belongs to;
+        // records can be redelivered or reordered, so the highest TrafficNumber wins
+        Map<Integer, Map<String, FinalData>> updatesByShard = new TreeMap<>();
+        for (FinalDataMessage message : messages) {
+            updatesByShard.computeIfAbsent(manifest.shardOf(message.getKeyPair()), shard -> new HashMap<>())
+                    .merge(message.getKeyPair(), message.getData(), FinalData::newest);
+        }
+        for (Map.Entry<Integer, Map<String, FinalData>> updates : updatesByShard.entrySet()) {
+            Map<String, FinalData> shard = fetchShard(manifest, updates.getKey());
+            updates.getValue().forEach((keyPair, data) -> shard.merge(keyPair, data, FinalData::newest));
+            writeShard(manifest, updates.getKey(), shard);
+        }
+        context.getLogger().log("Updated " + updatesByShard.size() + " of " + manifest.getShardCount()
+                + " finalData shards with " + messages.size() + " records.");
+    }
 
-            // Fetch existing finalData.csv
-            Map<String, FinalData> finalDataMap = fetchFinalData(context);
+    /**
+     * @return the layout of the sharded finalData, or null if it has not been sharded yet.
+     */
+    public FinalDataManifest fetchManifest() throws IOException {
+        try {
+            GetObjectRequest getManifest = GetObjectRequest.builder()
+                    .bucket(BUCKET_NAME)
+                    .key(FINAL_DATA_MANIFEST_KEY)
+                    .build();
 
-            // Update or add the FinalData entry
-            FinalData data = new FinalData(avgFlowDuration, stdDevFlowDuration, avgTotFwdPkts, stdDevTotFwdPkts, trafficNumber);
-            finalDataMap.put(keyPair, data);
+            return FinalDataManifest.read(s3.getObjectAsBytes(getManifest).asInputStream());
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+    }
 
-            // Write updated finalData.csv back to S3
-            writeFinalData(finalDataMap, context);
+    /**
+     * Reads one shard; a shard that was never written is empty. Any other failure is
+     * thrown, so the shard is never rewritten from partial data.
+     */
+    public Map<String, FinalData> fetchShard(FinalDataManifest manifest, int shard) {
+        try {
+            GetObjectRequest getShard = GetObjectRequest.builder()
+                    .bucket(BUCKET_NAME)
+                    .key(manifest.shardKey(shard))
+                    .build();
 
-        } catch (Exception e) {
-            context.getLogger().log("Error processing message: " + e.getMessage());
+            ResponseBytes<GetObjectResponse> snapshot = s3.getObjectAsBytes(getShard);
+            return FinalDataSnapshot.open(snapshot.asByteBuffer()).toMap();
+        } catch (NoSuchKeyException e) {
+            return new HashMap<>();
         }
     }
 
-    public Map<String, FinalData> fetchFinalData(Context context) {
-        Map<String, FinalData> finalDataMap = new HashMap<>();
+    public void writeShard(FinalDataManifest manifest, int shard, Map<String, FinalData> records) throws IOException {
+        ByteArrayOutputStream snapshotStream = new ByteArrayOutputStream();
+        FinalDataSnapshot.write(records, snapshotStream);
+
+        PutObjectRequest putShard = PutObjectRequest.builder()
+                .bucket(BUCKET_NAME)
+                .key(manifest.shardKey(shard))
+                .build();
+
+        s3.putObject(putShard, RequestBody.fromBytes(snapshotStream.toByteArray()));
+    }
+
+    /**
+     * Reads the dataset that predates the shards: the snapshot, or finalData.csv until
+     * the first snapshot was written. Only a dataset that does not exist at all is
+     * empty; any other failure is thrown, as the shards written from the result replace
+     * it.
+     */
+    public Map<String, FinalData> fetchFinalData(Context context) throws IOException {
+        // The snapshot is read in place
+        try {
+            GetObjectRequest getSnapshot = GetObjectRequest.builder()
+                    .bucket(BUCKET_NAME)
+                    .key(FINAL_DATA_SNAPSHOT_KEY)
+                    .build();
+
+            ResponseBytes<GetObjectResponse> snapshot = s3.getObjectAsBytes(getSnapshot);
+            return FinalDataSnapshot.open(snapshot.asByteBuffer()).toMap();
+
+        } catch (NoSuchKeyException e) {
+            context.getLogger().log("finalData.snapshot does not exist. Reading finalData.csv.");
+        }
 
         try {
             GetObjectRequest getFinal = GetObjectRequest.builder()
@@ -98,59 +225,38 @@ public class ExportClientLambda implements RequestHandler<SQSEvent, String> {
                     .build();
 
             ResponseInputStream<GetObjectResponse> finalDataObj = s3.getObject(getFinal);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(finalDataObj));
-            CSVParser csvParser = CSVFormat.DEFAULT
-                    .withFirstRecordAsHeader()
-                    .parse(reader);
-
-            for (CSVRecord record : csvParser) {
-                String srcIp = record.get("Src IP");
-                String dstIp = record.get("Dst IP");
-                double avgFlowDuration = Double.parseDouble(record.get("Avg Flow Duration"));
-                double stdDevFlowDuration = Double.parseDouble(record.get("StdDev Flow Duration"));
-                double avgTotFwdPkts = Double.parseDouble(record.get("Avg Tot Fwd Pkts"));
-                double stdDevTotFwdPkts = Double.parseDouble(record.get("StdDev Tot Fwd Pkts"));
-                int trafficNumber = Integer.parseInt(record.get("TrafficNumber"));
-
-                String keyPair = srcIp + "," + dstIp;
-                finalDataMap.put(keyPair, new FinalData(avgFlowDuration, stdDevFlowDuration, avgTotFwdPkts, stdDevTotFwdPkts, trafficNumber));
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    Compression.ofContentEncoding(finalDataObj.response().contentEncoding()).decompress(finalDataObj),
+                    StandardCharsets.UTF_8))) {
+                return FinalDataCsv.read(reader);
             }
 
         } catch (NoSuchKeyException e) {
             // finalData.csv does not exist yet. Initialize empty map.
             context.getLogger().log("finalData.csv does not exist. Initializing with empty data.");
-        } catch (Exception e) {
-            context.getLogger().log("Error fetching finalData.csv: " + e.getMessage());
+            return new HashMap<>();
         }
-
-        return finalDataMap;
     }
 
-    public void writeFinalData(Map<String, FinalData> finalDataMap, Context context) {
-        try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            CSVPrinter csvPrinter = new CSVPrinter(new PrintWriter(outputStream), CSVFormat.DEFAULT
-                    .withHeader("Src IP", "Dst IP", "Avg Flow Duration", "StdDev Flow Duration", "Avg Tot Fwd Pkts", "StdDev Tot Fwd Pkts", "TrafficNumber"));
-
-            for (Map.Entry<String, FinalData> entry : finalDataMap.entrySet()) {
-                String[] ips = entry.getKey().split(",");
-                FinalData data = entry.getValue();
-                csvPrinter.printRecord(ips[0], ips[1], data.avgFlowDuration, data.stdDevFlowDuration,
-                        data.avgTotFwdPkts, data.stdDevTotFwdPkts, data.trafficNumber);
-            }
-            csvPrinter.flush();
-
-            PutObjectRequest putFinal = PutObjectRequest.builder()
-                    .bucket(BUCKET_NAME)
-                    .key(FINAL_DATA_KEY)
-                    .build();
+    /**
+     * Writes the whole dataset as SHARD_COUNT shards and then the manifest that makes them current.
+     */
+    public void writeFinalData(Map<String, FinalData> finalDataMap, Context context) throws IOException {
+        FinalDataManifest manifest = FinalDataManifest.create(FINAL_DATA_SHARD_PREFIX, SHARD_COUNT);
+        List<Map<String, FinalData>> shards = manifest.split(finalDataMap);
+        for (int shard = 0; shard < shards.size(); shard++) {
+            writeShard(manifest, shard, shards.get(shard));
+        }
 
-            s3.putObject(putFinal, RequestBody.fromBytes(outputStream.toByteArray()));
-            context.getLogger().log("Uploaded updated finalData.csv to S3.");
+        ByteArrayOutputStream manifestStream = new ByteArrayOutputStream();
+        manifest.write(manifestStream);
+        PutObjectRequest putManifest = PutObjectRequest.builder()
+                .bucket(BUCKET_NAME)
+                .key(FINAL_DATA_MANIFEST_KEY)
+                .build();
 
-        } catch (Exception e) {
-            context.getLogger().log("Error writing finalData.csv: " + e.getMessage());
-        }
+        s3.putObject(putManifest, RequestBody.fromBytes(manifestStream.toByteArray()));
+        context.getLogger().log("Uploaded finalData to S3 as " + manifest + ".");
     }
 
     public void deleteMessage(SQSEvent.SQSMessage msg, Context context) {
@@ -167,21 +273,4 @@ public class ExportClientLambda implements RequestHandler<SQSEvent, String> {
             context.getLogger().log("Error deleting message from input SQS: " + e.getMessage());
         }
     }
-
-    private static class FinalData {
-        double avgFlowDuration;
-        double stdDevFlowDuration;
-        double avgTotFwdPkts;
-        double stdDevTotFwdPkts;
-        int trafficNumber;
-
-        FinalData(double avgFlowDuration, double stdDevFlowDuration, double avgTotFwdPkts,
-                  double stdDevTotFwdPkts, int trafficNumber) {
-            this.avgFlowDuration = avgFlowDuration;
-            this.stdDevFlowDuration = stdDevFlowDuration;
-            this.avgTotFwdPkts = avgTotFwdPkts;
-            this.stdDevTotFwdPkts = stdDevTotFwdPkts;
-            this.trafficNumber = trafficNumber;
-        }
-    }
 }
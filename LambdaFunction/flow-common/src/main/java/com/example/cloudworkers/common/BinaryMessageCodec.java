@@ -0,0 +1,298 @@
+package com.example.cloudworkers.common;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * The binary body of Summarize -> Consolidate and Consolidate -> Export messages, the
+ * compact alternative to one text record per line.
+ *
+ * A body is {@link #MARKER} followed by the base64 of:
+ * <pre>
+ * version    1 byte, {@link #VERSION}
+ * type       1 byte, {@link #SUMMARY} or {@link #FINAL_DATA}
+ * count      varint, the number of records
+ * records
+ * </pre>
+ * Every record starts with its Src IP and Dst IP: a canonical IPv4 address as a 0
+ * tag byte and its 4 bytes, any other address (IPv6, non-canonical text) as a 1 tag
+ * byte and its UTF-8 text prefixed by a varint length, so every address reads back
+ * exactly as it was written. Then
+ * <ul>
+ *   <li>a summary: TotalFlowDuration and TotalFwdPkts as zigzag varints;</li>
+ *   <li>final data: TrafficNumber as a varint, then the mean and M2 of Flow Duration
+ *   and of Tot Fwd Pkts as raw big-endian doubles, so the statistics keep their full
+ *   precision.</li>
+ * </ul>
+ * Varints are little-endian groups of 7 bits, the high bit set on all but the last.
+ *
+ * No text record starts with {@link #MARKER}, so consumers tell the two formats apart
+ * by the first character and read both while producers are being switched over.
+ */
+public final class BinaryMessageCodec {
+
+    public static final char MARKER = '~';
+    public static final int VERSION = 1;
+
+    public static final int SUMMARY = 1;
+    public static final int FINAL_DATA = 2;
+
+    private static final int IPV4 = 0;
+    private static final int TEXT = 1;
+
+    private BinaryMessageCodec() {
+    }
+
+    public static boolean isBinary(String body) {
+        return !body.isEmpty() && body.charAt(0) == MARKER;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the body is not a binary body of summaries.
+     */
+    public static List<SummaryMessage> decodeSummaries(String body) {
+        ByteBuffer in = open(body, SUMMARY);
+        try {
+            int count = readCount(in);
+            List<SummaryMessage> summaries = new ArrayList<SummaryMessage>(count);
+            for (int i = 0; i < count; i++) {
+                String srcIp = readIp(in);
+                String dstIp = readIp(in);
+                summaries.add(new SummaryMessage(srcIp, dstIp, readZigZag(in), readZigZag(in)));
+            }
+            return checkEnd(in, summaries);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary message");
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the body is not a binary body of final data.
+     */
+    public static List<FinalDataMessage> decodeFinalData(String body) {
+        ByteBuffer in = open(body, FINAL_DATA);
+        try {
+            int count = readCount(in);
+            List<FinalDataMessage> messages = new ArrayList<FinalDataMessage>(count);
+            for (int i = 0; i < count; i++) {
+                String srcIp = readIp(in);
+                String dstIp = readIp(in);
+                long trafficNumber = readVarint(in);
+                double avgFlowDuration = in.getDouble();
+                double m2FlowDuration = in.getDouble();
+                double avgTotFwdPkts = in.getDouble();
+                double m2TotFwdPkts = in.getDouble();
+                messages.add(new FinalDataMessage(srcIp, dstIp, FinalData.of(trafficNumber,
+                        avgFlowDuration, m2FlowDuration, avgTotFwdPkts, m2TotFwdPkts)));
+            }
+            return checkEnd(in, messages);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary message");
+        }
+    }
+
+    private static ByteBuffer open(String body, int type) {
+        if (!isBinary(body)) {
+            throw new IllegalArgumentException("Not a binary message");
+        }
+        ByteBuffer in = ByteBuffer.wrap(Base64.getDecoder().decode(body.substring(1)));
+        if (in.remaining() < 2) {
+            throw new IllegalArgumentException("Truncated binary message");
+        }
+        int version = in.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary message version " + version);
+        }
+        int actual = in.get();
+        if (actual != type) {
+            throw new IllegalArgumentException("Binary message of type " + actual + ", expected " + type);
+        }
+        return in;
+    }
+
+    private static int readCount(ByteBuffer in) {
+        long count = readVarint(in);
+        // Every record takes at least 2 bytes
+        if (count > in.remaining() / 2) {
+            throw new IllegalArgumentException("Invalid record count " + count);
+        }
+        return (int) count;
+    }
+
+    private static <T> List<T> checkEnd(ByteBuffer in, List<T> records) {
+        if (in.hasRemaining()) {
+            throw new IllegalArgumentException(in.remaining() + " bytes after the last record");
+        }
+        return records;
+    }
+
+    private static String readIp(ByteBuffer in) {
+        int tag = in.get();
+        if (tag == IPV4) {
+            return IpAddresses.formatIpv4(in.getInt() & 0xFFFFFFFFL);
+        }
+        if (tag != TEXT) {
+            throw new IllegalArgumentException("Invalid address tag " + tag);
+        }
+        long length = readVarint(in);
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String text = new String(in.array(), in.arrayOffset() + in.position(), (int) length, StandardCharsets.UTF_8);
+        in.position(in.position() + (int) length);
+        return text;
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint longer than 10 bytes");
+    }
+
+    private static long readZigZag(ByteBuffer in) {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Records of one type appended to a growing buffer, sealed into a body by
+     * {@link #seal()}. Used by {@link MessagePacker}; not thread safe.
+     */
+    static final class Encoder {
+
+        private byte[] buf = new byte[1024];
+        private int size;
+        private int count;
+        private int type;
+
+        int type() {
+            return type;
+        }
+
+        int count() {
+            return count;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /** The length of the body sealed with {@code rawBytes} of records and {@code records} of them. */
+        static int bodyLength(int rawBytes, int records) {
+            int bytes = 2 + varintLength(records) + rawBytes;
+            return 1 + (bytes + 2) / 3 * 4;
+        }
+
+        void start(int type) {
+            this.type = type;
+        }
+
+        void summary(String srcIp, String dstIp, long totalFlowDuration, long totalFwdPkts) {
+            writeIp(srcIp);
+            writeIp(dstIp);
+            writeVarint((totalFlowDuration << 1) ^ (totalFlowDuration >> 63));
+            writeVarint((totalFwdPkts << 1) ^ (totalFwdPkts >> 63));
+            count++;
+        }
+
+        void finalData(String srcIp, String dstIp, FinalData data) {
+            writeIp(srcIp);
+            writeIp(dstIp);
+            writeVarint(data.getTrafficNumber());
+            writeDouble(data.getFlowDuration().getMean());
+            writeDouble(data.getFlowDuration().getM2());
+            writeDouble(data.getTotFwdPkts().getMean());
+            writeDouble(data.getTotFwdPkts().getM2());
+            count++;
+        }
+
+        /** Drops everything after the first {@code size} bytes, the last record. */
+        void truncate(int size) {
+            this.size = size;
+            count--;
+        }
+
+        String seal() {
+            byte[] header = new byte[2 + varintLength(count)];
+            header[0] = VERSION;
+            header[1] = (byte) type;
+            int p = 2;
+            for (long v = count; ; v >>>= 7) {
+                if ((v & ~0x7FL) == 0) {
+                    header[p] = (byte) v;
+                    break;
+                }
+                header[p++] = (byte) ((v & 0x7F) | 0x80);
+            }
+            byte[] bytes = new byte[header.length + size];
+            System.arraycopy(header, 0, bytes, 0, header.length);
+            System.arraycopy(buf, 0, bytes, header.length, size);
+            size = 0;
+            count = 0;
+            return MARKER + Base64.getEncoder().encodeToString(bytes);
+        }
+
+        private void writeIp(String ip) {
+            long ipv4 = IpAddresses.parseIpv4(ip);
+            if (ipv4 != IpAddresses.NOT_IPV4) {
+                ensure(5);
+                buf[size++] = IPV4;
+                buf[size++] = (byte) (ipv4 >>> 24);
+                buf[size++] = (byte) (ipv4 >>> 16);
+                buf[size++] = (byte) (ipv4 >>> 8);
+                buf[size++] = (byte) ipv4;
+            } else {
+                byte[] text = ip.getBytes(StandardCharsets.UTF_8);
+                ensure(1);
+                buf[size++] = TEXT;
+                writeVarint(text.length);
+                ensure(text.length);
+                System.arraycopy(text, 0, buf, size, text.length);
+                size += text.length;
+            }
+        }
+
+        private void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+        }
+
+        private void writeDouble(double value) {
+            ensure(8);
+            long bits = Double.doubleToRawLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (bits >>> shift);
+            }
+        }
+
+        private void ensure(int bytes) {
+            if (size + bytes > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + bytes));
+            }
+        }
+
+        private static int varintLength(long value) {
+            int length = 1;
+            while ((value & ~0x7FL) != 0) {
+                value >>>= 7;
+                length++;
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.cloudworkers.common;
+
+import com.github.luben.zstd.ZstdInputStreamNoFinalizer;
+import com.github.luben.zstd.ZstdOutputStreamNoFinalizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The codecs flow CSVs and finalData.csv may be stored with.
+ *
+ * A flow CSV names its codec by the suffix of its key ({@code .csv}, {@code .csv.gz},
+ * {@code .csv.zst}); finalData.csv keeps its key and records the codec as the
+ * Content-Encoding of the object instead, so readers that predate compression
+ * still find it. Both directions stream: nothing is decompressed or compressed
+ * ahead of the reader or writer.
+ *
+ * A compressed object cannot be read from an arbitrary byte offset, so it is
+ * always summarized from its first byte to its last by a single reader.
+ */
+public enum Compression {
+
+    NONE("", null),
+    GZIP(".gz", "gzip"),
+    ZSTD(".zst", "zstd");
+
+    private static final String CSV = ".csv";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String suffix;
+    private final String contentEncoding;
+
+    Compression(String suffix, String contentEncoding) {
+        this.suffix = suffix;
+        this.contentEncoding = contentEncoding;
+    }
+
+    /** What follows ".csv" in the key of a flow CSV stored with this codec. */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /** The Content-Encoding of an object stored with this codec, null for {@link #NONE}. */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public InputStream decompress(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdInputStreamNoFinalizer(in);
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Closing the returned stream finishes the compressed data and closes {@code out}.
+     */
+    public OutputStream compress(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdOutputStreamNoFinalizer(out);
+            default:
+                return out;
+        }
+    }
+
+    /**
+     * Whether {@code key} names a flow CSV, compressed or not.
+     */
+    public static boolean isFlowCsv(String key) {
+        return ofKey(key) != null;
+    }
+
+    /**
+     * The codec of the flow CSV {@code key}, or null if the key does not name one.
+     */
+    public static Compression ofKey(String key) {
+        String lower = key.toLowerCase(Locale.ROOT);
+        for (Compression compression : values()) {
+            if (lower.endsWith(CSV + compression.suffix)) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The codec of an object with the given Content-Encoding; {@link #NONE} when
+     * there is none or it is not one of ours.
+     */
+    public static Compression ofContentEncoding(String contentEncoding) {
+        if (contentEncoding != null) {
+            for (Compression compression : values()) {
+                if (contentEncoding.equalsIgnoreCase(compression.contentEncoding)) {
+                    return compression;
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * The codec configured by name: "none", "gzip" or "zstd", in any case.
+     *
+     * @throws IllegalArgumentException for any other name.
+     */
+    public static Compression named(String name) {
+        for (Compression compression : values()) {
+            if (compression.name().equalsIgnoreCase(name.trim())) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression " + name + ", expected none, gzip or zstd");
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.cloudworkers.common;
+
+/**
+ * Count-Min sketch: an upper bound of the total weight added under each key, in a
+ * fixed {@code depth x width} table of counters whatever the number of keys.
+ *
+ * Each row adds a key to one counter picked by its own hash, and a key's estimate is
+ * the smallest of its counters, so it is never below the true total and exceeds it
+ * by at most {@code e / width} of all the weight added, with probability
+ * {@code 1 - e^-depth}. Updates are conservative: a counter is only raised as far
+ * as the new estimate needs, which tightens the bound for skewed traffic.
+ *
+ * Keys are 64-bit hashes supplied by the caller. Not thread safe.
+ */
+public final class CountMinSketch {
+
+    private final int width;
+    private final int depth;
+    private final int mask;
+    private final long[] counters;
+
+    /**
+     * @param width counters per row, rounded up to a power of two.
+     * @param depth number of rows.
+     */
+    public CountMinSketch(int width, int depth) {
+        if (width < 1 || width > (1 << 30) || depth < 1 || depth > 32) {
+            throw new IllegalArgumentException("Invalid Count-Min sketch: width " + width + ", depth " + depth);
+        }
+        this.width = width == 1 ? 1 : Integer.highestOneBit(width - 1) << 1;
+        this.depth = depth;
+        this.mask = this.width - 1;
+        this.counters = new long[this.width * depth];
+    }
+
+    public void add(long hash, long weight) {
+        long estimate = estimate(hash) + weight;
+        int first = (int) hash;
+        int second = (int) (hash >>> 32) | 1;
+        for (int row = 0; row < depth; row++) {
+            int index = row * width + ((first + row * second) & mask);
+            if (counters[index] < estimate) {
+                counters[index] = estimate;
+            }
+        }
+    }
+
+    public long estimate(long hash) {
+        // Row hashes are derived from the two halves of the key hash (Kirsch-Mitzenmacher)
+        int first = (int) hash;
+        int second = (int) (hash >>> 32) | 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters[row * width + ((first + row * second) & mask)]);
+        }
+        return min;
+    }
+
+    /** The size of the counter table. */
+    public long sizeBytes() {
+        return counters.length * 8L;
+    }
+}
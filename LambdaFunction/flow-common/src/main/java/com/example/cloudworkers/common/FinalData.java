@@ -0,0 +1,92 @@
+package com.example.cloudworkers.common;
+
+/**
+ * Consolidated statistics of one Src IP / Dst IP combination: the moments of the
+ * per-file total flow duration and total forward packets. TrafficNumber is the
+ * number of summaries folded in.
+ *
+ * Because both series are kept as {@link RunningMoments}, two FinalData built from
+ * disjoint sets of summaries can be merged into exactly the value a single
+ * consolidator would have produced, whatever the merge order.
+ */
+public final class FinalData {
+
+    public static final FinalData EMPTY = new FinalData(RunningMoments.EMPTY, RunningMoments.EMPTY);
+
+    private final RunningMoments flowDuration;
+    private final RunningMoments totFwdPkts;
+
+    public FinalData(RunningMoments flowDuration, RunningMoments totFwdPkts) {
+        if (flowDuration.getCount() != totFwdPkts.getCount()) {
+            throw new IllegalArgumentException("Flow duration and forward packet counts differ: "
+                    + flowDuration.getCount() + " != " + totFwdPkts.getCount());
+        }
+        this.flowDuration = flowDuration;
+        this.totFwdPkts = totFwdPkts;
+    }
+
+    public static FinalData of(long trafficNumber, double avgFlowDuration, double m2FlowDuration,
+                               double avgTotFwdPkts, double m2TotFwdPkts) {
+        return new FinalData(new RunningMoments(trafficNumber, avgFlowDuration, m2FlowDuration),
+                new RunningMoments(trafficNumber, avgTotFwdPkts, m2TotFwdPkts));
+    }
+
+    /**
+     * Statistics of a single summarized file.
+     */
+    public static FinalData ofSummary(long totalFlowDuration, long totalFwdPkts) {
+        return new FinalData(RunningMoments.of(totalFlowDuration), RunningMoments.of(totalFwdPkts));
+    }
+
+    public FinalData withSummary(long totalFlowDuration, long totalFwdPkts) {
+        return new FinalData(flowDuration.plus(totalFlowDuration), totFwdPkts.plus(totalFwdPkts));
+    }
+
+    /**
+     * The later of two statistics of the same pair, the one that folds in more
+     * summaries; {@code candidate} on a tie. Export records can be redelivered or
+     * reordered, and every writer of finalData keeps the newest this way.
+     */
+    public static FinalData newest(FinalData current, FinalData candidate) {
+        return candidate.getTrafficNumber() >= current.getTrafficNumber() ? candidate : current;
+    }
+
+    public FinalData merge(FinalData other) {
+        return new FinalData(flowDuration.merge(other.flowDuration), totFwdPkts.merge(other.totFwdPkts));
+    }
+
+    public RunningMoments getFlowDuration() {
+        return flowDuration;
+    }
+
+    public RunningMoments getTotFwdPkts() {
+        return totFwdPkts;
+    }
+
+    public long getTrafficNumber() {
+        return flowDuration.getCount();
+    }
+
+    public double getAvgFlowDuration() {
+        return flowDuration.getMean();
+    }
+
+    public double getStdDevFlowDuration() {
+        return flowDuration.getStdDev();
+    }
+
+    public double getAvgTotFwdPkts() {
+        return totFwdPkts.getMean();
+    }
+
+    public double getStdDevTotFwdPkts() {
+        return totFwdPkts.getStdDev();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{avgFlow=%.2f, stdDevFlow=%.2f, avgFwdPkts=%.2f, stdDevPkts=%.2f, trafficNum=%d}",
+                getAvgFlowDuration(), getStdDevFlowDuration(), getAvgTotFwdPkts(), getStdDevTotFwdPkts(),
+                getTrafficNumber());
+    }
+}
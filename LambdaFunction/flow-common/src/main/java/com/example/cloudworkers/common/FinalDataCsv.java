@@ -0,0 +1,105 @@
+package com.example.cloudworkers.common;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes finalData.csv, keyed by "srcIp,dstIp".
+ *
+ * The first seven columns are the human readable statistics. The two M2 columns
+ * carry what is needed to keep merging exactly; files written before they existed
+ * are still accepted, with M2 reconstructed from the recorded standard deviation.
+ */
+public final class FinalDataCsv {
+
+    public static final String SRC_IP = "Src IP";
+    public static final String DST_IP = "Dst IP";
+    public static final String AVG_FLOW_DURATION = "Avg Flow Duration";
+    public static final String STD_DEV_FLOW_DURATION = "StdDev Flow Duration";
+    public static final String AVG_TOT_FWD_PKTS = "Avg Tot Fwd Pkts";
+    public static final String STD_DEV_TOT_FWD_PKTS = "StdDev Tot Fwd Pkts";
+    public static final String TRAFFIC_NUMBER = "TrafficNumber";
+    public static final String M2_FLOW_DURATION = "M2 Flow Duration";
+    public static final String M2_TOT_FWD_PKTS = "M2 Tot Fwd Pkts";
+
+    public static final String[] HEADER = {
+            SRC_IP, DST_IP, AVG_FLOW_DURATION, STD_DEV_FLOW_DURATION, AVG_TOT_FWD_PKTS,
+            STD_DEV_TOT_FWD_PKTS, TRAFFIC_NUMBER, M2_FLOW_DURATION, M2_TOT_FWD_PKTS
+    };
+
+    private FinalDataCsv() {
+    }
+
+    public static Map<String, FinalData> read(Reader reader) throws IOException {
+        Map<String, FinalData> finalDataMap = new HashMap<>();
+        Iterable<CSVRecord> csvRecords = CSVFormat.DEFAULT
+                .withFirstRecordAsHeader()
+                .parse(reader);
+
+        for (CSVRecord record : csvRecords) {
+            long trafficNumber = Long.parseLong(record.get(TRAFFIC_NUMBER));
+            double avgFlowDuration = Double.parseDouble(record.get(AVG_FLOW_DURATION));
+            double avgTotFwdPkts = Double.parseDouble(record.get(AVG_TOT_FWD_PKTS));
+            double m2FlowDuration = readM2(record, M2_FLOW_DURATION, STD_DEV_FLOW_DURATION, trafficNumber);
+            double m2TotFwdPkts = readM2(record, M2_TOT_FWD_PKTS, STD_DEV_TOT_FWD_PKTS, trafficNumber);
+
+            String keyPair = record.get(SRC_IP) + "," + record.get(DST_IP);
+            finalDataMap.put(keyPair, FinalData.of(trafficNumber,
+                    avgFlowDuration, m2FlowDuration, avgTotFwdPkts, m2TotFwdPkts));
+        }
+        return finalDataMap;
+    }
+
+    public static void write(Map<String, FinalData> finalDataMap, Writer writer) throws IOException {
+        write(Collections.singletonList(finalDataMap), writer);
+    }
+
+    /**
+     * Writes the records of several maps, such as the shards of the dataset, as one
+     * file without merging them first.
+     */
+    public static void write(Iterable<? extends Map<String, FinalData>> finalDataMaps, Writer writer) throws IOException {
+        CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT.withHeader(HEADER));
+        for (Map<String, FinalData> finalDataMap : finalDataMaps) {
+            for (Map.Entry<String, FinalData> entry : finalDataMap.entrySet()) {
+                printRecord(csvPrinter, entry.getKey(), entry.getValue());
+            }
+        }
+        csvPrinter.flush();
+    }
+
+    static void printRecord(CSVPrinter csvPrinter, String keyPair, FinalData data) throws IOException {
+        String[] ips = keyPair.split(",");
+        csvPrinter.printRecord(
+                ips[0],
+                ips[1],
+                data.getAvgFlowDuration(),
+                data.getStdDevFlowDuration(),
+                data.getAvgTotFwdPkts(),
+                data.getStdDevTotFwdPkts(),
+                data.getTrafficNumber(),
+                data.getFlowDuration().getM2(),
+                data.getTotFwdPkts().getM2()
+        );
+    }
+
+    /**
+     * Legacy files have no M2 column; the population variance definition gives
+     * M2 = stdDev^2 * n.
+     */
+    private static double readM2(CSVRecord record, String m2Column, String stdDevColumn, long trafficNumber) {
+        if (record.isMapped(m2Column) && record.isSet(m2Column)) {
+            return Double.parseDouble(record.get(m2Column));
+        }
+        double stdDev = Double.parseDouble(record.get(stdDevColumn));
+        return stdDev * stdDev * trafficNumber;
+    }
+}
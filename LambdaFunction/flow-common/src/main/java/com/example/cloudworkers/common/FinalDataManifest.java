@@ -0,0 +1,149 @@
+package com.example.cloudworkers.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Layout of the consolidated statistics split into shards.
+ *
+ * Every pair belongs to the shard given by a hash of its "srcIp,dstIp" key, and
+ * every shard is a {@link FinalDataSnapshot} object under the manifest's prefix,
+ * so an update only rewrites the shards of the pairs it touches. A shard object
+ * that does not exist holds no pairs.
+ *
+ * Resharding writes every shard under a new prefix and then replaces the manifest,
+ * the small object that names the layout in use:
+ * <pre>
+ * version=1
+ * shardCount=16
+ * prefix=processed-data/finalData/1734567890123/
+ * </pre>
+ */
+public final class FinalDataManifest {
+
+    public static final int VERSION = 1;
+
+    private final int shardCount;
+    private final String prefix;
+
+    public FinalDataManifest(int shardCount, String prefix) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+        }
+        this.shardCount = shardCount;
+        this.prefix = prefix;
+    }
+
+    /**
+     * A new layout of {@code shardCount} shards under a fresh prefix below {@code basePrefix}.
+     */
+    public static FinalDataManifest create(String basePrefix, int shardCount) {
+        return new FinalDataManifest(shardCount, basePrefix + System.currentTimeMillis() + "/");
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public int shardOf(String keyPair) {
+        return shardOf(keyPair, shardCount);
+    }
+
+    /**
+     * The shard of a pair. The hash is part of the stored format: writers in every
+     * process must agree on it, so it must never change.
+     */
+    public static int shardOf(String keyPair, int shardCount) {
+        // String.hashCode is specified; the finalizer of MurmurHash3 spreads it over the shards
+        int h = keyPair.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % shardCount;
+    }
+
+    public String shardKey(int shard) {
+        if (shard < 0 || shard >= shardCount) {
+            throw new IndexOutOfBoundsException("Shard " + shard + " of " + shardCount);
+        }
+        return prefix + String.format("shard-%04d.snapshot", shard);
+    }
+
+    /**
+     * Splits the pairs into one map per shard, indexed by shard.
+     */
+    public List<Map<String, FinalData>> split(Map<String, FinalData> finalData) {
+        List<Map<String, FinalData>> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new HashMap<String, FinalData>());
+        }
+        for (Map.Entry<String, FinalData> entry : finalData.entrySet()) {
+            shards.get(shardOf(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+        return shards;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        writer.write("version=" + VERSION + "\n");
+        writer.write("shardCount=" + shardCount + "\n");
+        writer.write("prefix=" + prefix + "\n");
+        writer.flush();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the stream does not hold a supported manifest.
+     */
+    public static FinalDataManifest read(InputStream in) throws IOException {
+        Properties properties = new Properties();
+        properties.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        if (!String.valueOf(VERSION).equals(properties.getProperty("version"))) {
+            throw new IllegalArgumentException("Unsupported manifest version " + properties.getProperty("version"));
+        }
+        String prefix = properties.getProperty("prefix");
+        String shardCount = properties.getProperty("shardCount");
+        if (prefix == null || shardCount == null) {
+            throw new IllegalArgumentException("Incomplete manifest: " + properties);
+        }
+        try {
+            return new FinalDataManifest(Integer.parseInt(shardCount), prefix);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid shardCount " + shardCount, e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FinalDataManifest)) {
+            return false;
+        }
+        FinalDataManifest other = (FinalDataManifest) o;
+        return shardCount == other.shardCount && prefix.equals(other.prefix);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * shardCount + prefix.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return shardCount + " shards under " + prefix;
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.cloudworkers.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * The Consolidate -> Export record: one pair and its consolidated statistics.
+ * Several records are packed into one SQS message by {@link MessagePacker}, as text
+ * or as {@link BinaryMessageCodec binary}. Only the binary format keeps the
+ * statistics at full precision; text rounds them to two decimals.
+ *
+ * Text format: srcIp,dstIp,avgFlowDuration,stdDevFlowDuration,avgTotFwdPkts,stdDevTotFwdPkts,trafficNumber,m2FlowDuration,m2TotFwdPkts
+ *
+ * The two trailing M2 fields are optional when parsing so messages produced by an
+ * older consolidator are still understood.
+ */
+public final class FinalDataMessage {
+
+    private final String srcIp;
+    private final String dstIp;
+    private final FinalData data;
+
+    public FinalDataMessage(String srcIp, String dstIp, FinalData data) {
+        this.srcIp = srcIp;
+        this.dstIp = dstIp;
+        this.data = data;
+    }
+
+    public static String format(String srcIp, String dstIp, FinalData data) {
+        return String.format(Locale.ROOT, "%s,%s,%.2f,%.2f,%.2f,%.2f,%d,%.2f,%.2f",
+                srcIp, dstIp,
+                data.getAvgFlowDuration(),
+                data.getStdDevFlowDuration(),
+                data.getAvgTotFwdPkts(),
+                data.getStdDevTotFwdPkts(),
+                data.getTrafficNumber(),
+                data.getFlowDuration().getM2(),
+                data.getTotFwdPkts().getM2());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the body is not a Consolidate -> Export message.
+     */
+    public static FinalDataMessage parse(String messageBody) {
+        String[] parts = messageBody.split(",");
+        if (parts.length != 7 && parts.length != 9) {
+            throw new IllegalArgumentException("Invalid message format for Export: " + messageBody);
+        }
+
+        double avgFlowDuration = Double.parseDouble(parts[2]);
+        double stdDevFlowDuration = Double.parseDouble(parts[3]);
+        double avgTotFwdPkts = Double.parseDouble(parts[4]);
+        double stdDevTotFwdPkts = Double.parseDouble(parts[5]);
+        long trafficNumber = Long.parseLong(parts[6]);
+        double m2FlowDuration = parts.length == 9
+                ? Double.parseDouble(parts[7])
+                : stdDevFlowDuration * stdDevFlowDuration * trafficNumber;
+        double m2TotFwdPkts = parts.length == 9
+                ? Double.parseDouble(parts[8])
+                : stdDevTotFwdPkts * stdDevTotFwdPkts * trafficNumber;
+
+        return new FinalDataMessage(parts[0], parts[1], FinalData.of(trafficNumber,
+                avgFlowDuration, m2FlowDuration, avgTotFwdPkts, m2TotFwdPkts));
+    }
+
+    /**
+     * Reads every record of a message body, text or binary. Invalid text records, and
+     * binary bodies that cannot be decoded, are handed to {@code invalid} and skipped.
+     */
+    public static List<FinalDataMessage> unpack(String body, Consumer<String> invalid) {
+        if (BinaryMessageCodec.isBinary(body)) {
+            try {
+                return BinaryMessageCodec.decodeFinalData(body);
+            } catch (IllegalArgumentException e) {
+                invalid.accept(body);
+                return new ArrayList<>();
+            }
+        }
+        List<FinalDataMessage> messages = new ArrayList<>();
+        for (String record : MessagePacker.unpack(body)) {
+            try {
+                messages.add(parse(record));
+            } catch (IllegalArgumentException e) {
+                invalid.accept(record);
+            }
+        }
+        return messages;
+    }
+
+    public String getSrcIp() {
+        return srcIp;
+    }
+
+    public String getDstIp() {
+        return dstIp;
+    }
+
+    public String getKeyPair() {
+        return srcIp + "," + dstIp;
+    }
+
+    public FinalData getData() {
+        return data;
+    }
+}
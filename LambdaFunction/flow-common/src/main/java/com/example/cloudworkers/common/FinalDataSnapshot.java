@@ -0,0 +1,283 @@
+package com.example.cloudworkers.common;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the consolidated statistics, the compact alternative to
+ * finalData.csv. Nothing is parsed on load: the snapshot is read in place from a
+ * (typically memory-mapped) buffer, and a pair is found by binary search.
+ *
+ * Layout, big-endian:
+ * <pre>
+ * header   32 bytes  magic "FDS1", version, record count, record size, key bytes (long), 8 reserved
+ * records  48 bytes  key offset, key length, TrafficNumber, avg and M2 of Flow Duration,
+ *                    avg and M2 of Tot Fwd Pkts
+ * keys               the UTF-8 "srcIp,dstIp" keys, referenced by the records
+ * trailer   8 bytes  CRC-32 of everything before it
+ * </pre>
+ * Records are sorted by the unsigned bytes of their key. A snapshot is limited to
+ * 2 GB, about 30 million pairs.
+ */
+public final class FinalDataSnapshot {
+
+    public static final int MAGIC = 0x46445331;
+    public static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 32;
+    static final int RECORD_BYTES = 48;
+    static final int TRAILER_BYTES = 8;
+
+    private static final Comparator<Map.Entry<byte[], FinalData>> RECORD_ORDER =
+            (a, b) -> compareKeys(a.getKey(), b.getKey());
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int keysStart;
+
+    private FinalDataSnapshot(ByteBuffer buffer, int size, int keysStart) {
+        this.buffer = buffer;
+        this.size = size;
+        this.keysStart = keysStart;
+    }
+
+    /**
+     * Writes the snapshot of {@code finalData} to {@code out}, which is left open.
+     */
+    public static void write(Map<String, FinalData> finalData, OutputStream out) throws IOException {
+        // The values are taken along with the keys, as looking them up again may not be cheap
+        @SuppressWarnings("unchecked")
+        Map.Entry<byte[], FinalData>[] records = new Map.Entry[finalData.size()];
+        int i = 0;
+        long keyBytes = 0;
+        for (Map.Entry<String, FinalData> entry : finalData.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            records[i++] = new AbstractMap.SimpleImmutableEntry<>(key, entry.getValue());
+            keyBytes += key.length;
+        }
+        Arrays.sort(records, RECORD_ORDER);
+        long length = HEADER_BYTES + (long) records.length * RECORD_BYTES + keyBytes + TRAILER_BYTES;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Snapshot of " + records.length + " pairs exceeds 2 GB");
+        }
+
+        CRC32 crc = new CRC32();
+        BufferedOutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+        DataOutputStream data = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(records.length);
+        data.writeInt(RECORD_BYTES);
+        data.writeLong(keyBytes);
+        data.writeLong(0);
+
+        int keyOffset = 0;
+        for (Map.Entry<byte[], FinalData> record : records) {
+            byte[] key = record.getKey();
+            FinalData value = record.getValue();
+            data.writeInt(keyOffset);
+            data.writeInt(key.length);
+            data.writeLong(value.getTrafficNumber());
+            data.writeDouble(value.getFlowDuration().getMean());
+            data.writeDouble(value.getFlowDuration().getM2());
+            data.writeDouble(value.getTotFwdPkts().getMean());
+            data.writeDouble(value.getTotFwdPkts().getM2());
+            keyOffset += key.length;
+        }
+        for (Map.Entry<byte[], FinalData> record : records) {
+            data.write(record.getKey());
+        }
+        data.flush();
+
+        // The trailer itself is not part of the checksum
+        new DataOutputStream(buffered).writeLong(crc.getValue());
+        buffered.flush();
+    }
+
+    /**
+     * Maps the snapshot file read-only and checks it.
+     */
+    public static FinalDataSnapshot map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Snapshot " + path + " exceeds 2 GB");
+            }
+            // The mapping stays valid after the channel is closed
+            return open(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads a snapshot from the whole of {@code buffer}, from position 0 to its limit.
+     *
+     * @throws IllegalArgumentException if the buffer does not hold a valid snapshot.
+     */
+    public static FinalDataSnapshot open(ByteBuffer buffer) {
+        ByteBuffer snapshot = buffer.duplicate();
+        int length = ((Buffer) snapshot).limit();
+        if (length < HEADER_BYTES + TRAILER_BYTES || snapshot.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a finalData snapshot");
+        }
+        if (snapshot.getInt(4) != VERSION || snapshot.getInt(12) != RECORD_BYTES) {
+            throw new IllegalArgumentException("Unsupported snapshot version " + snapshot.getInt(4));
+        }
+        int size = snapshot.getInt(8);
+        long keyBytes = snapshot.getLong(16);
+        long expected = HEADER_BYTES + (long) size * RECORD_BYTES + keyBytes + TRAILER_BYTES;
+        if (size < 0 || keyBytes < 0 || expected != length) {
+            throw new IllegalArgumentException("Truncated snapshot: " + length + " bytes, expected " + expected);
+        }
+
+        CRC32 crc = new CRC32();
+        ByteBuffer body = snapshot.duplicate();
+        ((Buffer) body).position(0);
+        ((Buffer) body).limit(length - TRAILER_BYTES);
+        crc.update(body);
+        if (crc.getValue() != snapshot.getLong(length - TRAILER_BYTES)) {
+            throw new IllegalArgumentException("Snapshot checksum mismatch");
+        }
+        return new FinalDataSnapshot(snapshot, size, HEADER_BYTES + size * RECORD_BYTES);
+    }
+
+    /** Number of pairs. */
+    public int size() {
+        return size;
+    }
+
+    /** The "srcIp,dstIp" key of the record at {@code index}, in key order. */
+    public String keyAt(int index) {
+        int record = record(index);
+        byte[] key = new byte[buffer.getInt(record + 4)];
+        ByteBuffer keys = buffer.duplicate();
+        ((Buffer) keys).position(keysStart + buffer.getInt(record));
+        keys.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    public FinalData valueAt(int index) {
+        int record = record(index);
+        return FinalData.of(buffer.getLong(record + 8),
+                buffer.getDouble(record + 16), buffer.getDouble(record + 24),
+                buffer.getDouble(record + 32), buffer.getDouble(record + 40));
+    }
+
+    /**
+     * @return the statistics of the pair, or null if the snapshot does not hold it.
+     */
+    public FinalData get(String keyPair) {
+        int index = indexOf(keyPair.getBytes(StandardCharsets.UTF_8));
+        return index < 0 ? null : valueAt(index);
+    }
+
+    /**
+     * @return the index of the first record whose key is not before {@code keyPair}, or
+     *         {@link #size()} if there is none. The records of the keys starting with
+     *         "srcIp," follow each other from there.
+     */
+    public int ceilingIndex(String keyPair) {
+        byte[] key = keyPair.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareAt(mid, key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copies every pair into a new mutable map. {@link FinalDataSnapshotMap} reads them
+     * in place instead.
+     */
+    public Map<String, FinalData> toMap() {
+        Map<String, FinalData> finalData = new HashMap<>(Math.max(16, (int) (size / 0.75f) + 1));
+        for (int i = 0; i < size; i++) {
+            finalData.put(keyAt(i), valueAt(i));
+        }
+        return finalData;
+    }
+
+    /**
+     * Writes the snapshot as finalData.csv, in key order.
+     */
+    public void writeCsv(Writer writer) throws IOException {
+        CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT.withHeader(FinalDataCsv.HEADER));
+        for (int i = 0; i < size; i++) {
+            FinalDataCsv.printRecord(csvPrinter, keyAt(i), valueAt(i));
+        }
+        csvPrinter.flush();
+    }
+
+    private int record(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size + " pairs");
+        }
+        return HEADER_BYTES + index * RECORD_BYTES;
+    }
+
+    private int indexOf(byte[] key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareAt(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Compares the key of the record at {@code index} with {@code key}. */
+    private int compareAt(int index, byte[] key) {
+        int record = HEADER_BYTES + index * RECORD_BYTES;
+        int start = keysStart + buffer.getInt(record);
+        int length = buffer.getInt(record + 4);
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = (buffer.get(start + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static int compareKeys(byte[] a, byte[] b) {
+        int common = Math.min(a.length, b.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.cloudworkers.common;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+/**
+ * The statistics of one or more {@link FinalDataSnapshot}s as a mutable map, without
+ * copying them: a pair is looked up in place, by binary search in the snapshot that
+ * holds it. Pairs put since are kept in a small overlay, which reads check first,
+ * so the snapshots are never written.
+ *
+ * Iteration passes the pairs of the snapshots in order, with their new value if they
+ * were put since, and then the pairs the snapshots do not hold. Pairs cannot be
+ * removed. Not thread safe while it is written; a map that is no longer written can
+ * be read by several threads.
+ */
+public final class FinalDataSnapshotMap extends AbstractMap<String, FinalData> {
+
+    private final FinalDataSnapshot[] snapshots;
+    private final ToIntFunction<String> snapshotOf;
+    private final int snapshotPairs;
+    private final Map<String, FinalData> replaced = new HashMap<>();
+    private final Map<String, FinalData> added = new HashMap<>();
+    private Set<Entry<String, FinalData>> entrySet;
+
+    public FinalDataSnapshotMap(FinalDataSnapshot snapshot) {
+        this(new FinalDataSnapshot[]{snapshot}, null);
+    }
+
+    /**
+     * @param snapshots  snapshots holding disjoint pairs, null for one with no pairs.
+     * @param snapshotOf the index of the snapshot a pair belongs to, for example
+     *                   {@link FinalDataManifest#shardOf}; null if there is one snapshot.
+     */
+    public FinalDataSnapshotMap(FinalDataSnapshot[] snapshots, ToIntFunction<String> snapshotOf) {
+        this.snapshots = snapshots.clone();
+        this.snapshotOf = snapshotOf;
+        int pairs = 0;
+        for (FinalDataSnapshot snapshot : snapshots) {
+            pairs += snapshot == null ? 0 : snapshot.size();
+        }
+        this.snapshotPairs = pairs;
+    }
+
+    @Override
+    public int size() {
+        return snapshotPairs + added.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public FinalData get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        FinalData data = replaced.get(key);
+        if (data == null) {
+            data = added.get(key);
+        }
+        return data != null ? data : inSnapshot((String) key);
+    }
+
+    @Override
+    public FinalData put(String key, FinalData value) {
+        if (value == null) {
+            throw new NullPointerException("No statistics for " + key);
+        }
+        if (added.containsKey(key)) {
+            return added.put(key, value);
+        }
+        FinalData current = inSnapshot(key);
+        if (current == null) {
+            return added.put(key, value);
+        }
+        FinalData previous = replaced.put(key, value);
+        return previous != null ? previous : current;
+    }
+
+    @Override
+    public Set<Entry<String, FinalData>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<String, FinalData>>() {
+                @Override
+                public Iterator<Entry<String, FinalData>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return FinalDataSnapshotMap.this.size();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * The keys held by the snapshots from {@code fromKey} inclusive to {@code toKey}
+     * exclusive, read in place in key order: the order of their UTF-8 bytes, which for
+     * IP pairs is that of {@link String#compareTo}. Pairs added since are left out.
+     */
+    public Iterator<String> snapshotKeys(String fromKey, String toKey) {
+        return new KeyRangeIterator(fromKey, toKey);
+    }
+
+    /**
+     * The number of keys {@link #snapshotKeys} passes, without reading them.
+     */
+    public int snapshotKeyCount(String fromKey, String toKey) {
+        int count = 0;
+        for (FinalDataSnapshot snapshot : snapshots) {
+            if (snapshot != null) {
+                count += snapshot.ceilingIndex(toKey) - snapshot.ceilingIndex(fromKey);
+            }
+        }
+        return count;
+    }
+
+    private FinalData inSnapshot(String keyPair) {
+        FinalDataSnapshot snapshot = snapshots[snapshotOf == null ? 0 : snapshotOf.applyAsInt(keyPair)];
+        return snapshot == null ? null : snapshot.get(keyPair);
+    }
+
+    /** The keys of a range of every snapshot, merged in key order. */
+    private final class KeyRangeIterator implements Iterator<String> {
+
+        private final int[] next = new int[snapshots.length];
+        private final int[] end = new int[snapshots.length];
+        private final String[] heads = new String[snapshots.length];
+
+        KeyRangeIterator(String fromKey, String toKey) {
+            for (int i = 0; i < snapshots.length; i++) {
+                if (snapshots[i] != null) {
+                    next[i] = snapshots[i].ceilingIndex(fromKey);
+                    end[i] = snapshots[i].ceilingIndex(toKey);
+                    advance(i);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (String head : heads) {
+                if (head != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String next() {
+            int first = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] != null && (first < 0 || heads[i].compareTo(heads[first]) < 0)) {
+                    first = i;
+                }
+            }
+            if (first < 0) {
+                throw new NoSuchElementException();
+            }
+            String key = heads[first];
+            advance(first);
+            return key;
+        }
+
+        private void advance(int snapshot) {
+            heads[snapshot] = next[snapshot] < end[snapshot] ? snapshots[snapshot].keyAt(next[snapshot]++) : null;
+        }
+    }
+
+    /** The pairs of each snapshot in turn, then the added ones. */
+    private final class EntryIterator implements Iterator<Entry<String, FinalData>> {
+
+        private int snapshot;
+        private int index;
+        private Iterator<Entry<String, FinalData>> addedEntries;
+
+        @Override
+        public boolean hasNext() {
+            while (snapshot < snapshots.length) {
+                if (snapshots[snapshot] != null && index < snapshots[snapshot].size()) {
+                    return true;
+                }
+                snapshot++;
+                index = 0;
+            }
+            if (addedEntries == null) {
+                addedEntries = added.entrySet().iterator();
+            }
+            return addedEntries.hasNext();
+        }
+
+        @Override
+        public Entry<String, FinalData> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (snapshot == snapshots.length) {
+                return addedEntries.next();
+            }
+            String keyPair = snapshots[snapshot].keyAt(index);
+            FinalData data = replaced.isEmpty() ? null : replaced.get(keyPair);
+            if (data == null) {
+                data = snapshots[snapshot].valueAt(index);
+            }
+            index++;
+            return new SimpleImmutableEntry<>(keyPair, data);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package com.example.cloudworkers.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Byte-level reader for the flow record CSV files, for when only a few of their
+ * columns are needed.
+ *
+ * The columns to read are resolved once against the header; every row is then
+ * scanned straight from a byte buffer. Other columns are skipped without being
+ * decoded, numbers are parsed in place and the IP columns go through a small cache,
+ * so a row normally costs no allocation at all. Quoted fields, CRLF line endings
+ * and blank lines are handled like the commons-csv default format.
+ *
+ * <pre>
+ * FlowCsvScanner scanner = new FlowCsvScanner(in, SRC_IP, DST_IP, FLOW_DURATION);
+ * while (scanner.next()) {
+ *     scanner.getString(0); scanner.getString(1); scanner.getLong(2);
+ * }
+ * </pre>
+ *
+ * Not thread safe.
+ */
+public final class FlowCsvScanner implements Closeable {
+
+    public static final String SRC_IP = "Src IP";
+    public static final String DST_IP = "Dst IP";
+    public static final String FLOW_DURATION = "Flow Duration";
+    public static final String TOT_FWD_PKTS = "Tot Fwd Pkts";
+    public static final String TIMESTAMP = "Timestamp";
+
+    static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private static final int STRING_CACHE_SIZE = 1 << 12;
+
+    private final InputStream in;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    /** Column index in the file -> position in the requested columns, or -1. */
+    private int[] slotOfField;
+    private final int[] starts;
+    private final int[] ends;
+    private final boolean[] quoted;
+    private int lastNeededField;
+    private List<String> headerFields;
+
+    private final String[] stringCache = new String[STRING_CACHE_SIZE];
+    private final int[] timestampParts = new int[6];
+    private long rowCount;
+
+    public FlowCsvScanner(InputStream in, String... columns) throws IOException {
+        this(in, DEFAULT_BUFFER_SIZE, columns);
+    }
+
+    /**
+     * Reads the header of {@code in} and resolves the requested columns.
+     *
+     * @throws IllegalArgumentException if a column is not in the header.
+     */
+    public FlowCsvScanner(InputStream in, int bufferSize, String... columns) throws IOException {
+        this.in = in;
+        this.buf = new byte[Math.max(bufferSize, 16)];
+        this.starts = new int[columns.length];
+        this.ends = new int[columns.length];
+        this.quoted = new boolean[columns.length];
+
+        List<String> header = readHeader();
+        slotOfField = new int[header.size()];
+        Arrays.fill(slotOfField, -1);
+        for (int slot = 0; slot < columns.length; slot++) {
+            int field = header.indexOf(columns[slot]);
+            if (field < 0) {
+                throw new IllegalArgumentException("Mapping for " + columns[slot] + " not found, expected one of " + header);
+            }
+            slotOfField[field] = slot;
+            lastNeededField = Math.max(lastNeededField, field);
+        }
+    }
+
+    /**
+     * Moves to the next row.
+     *
+     * @return false once the input is exhausted.
+     * @throws IllegalArgumentException if the row is missing a requested column.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int fields = scanRow();
+            if (fields < 0) {
+                if (!fill()) {
+                    return false;
+                }
+                continue;
+            }
+            if (fields == 0) {
+                continue; // blank line
+            }
+            rowCount++;
+            if (fields <= lastNeededField) {
+                throw new IllegalArgumentException("Row " + rowCount + " has " + fields
+                        + " columns, expected at least " + (lastNeededField + 1));
+            }
+            return true;
+        }
+    }
+
+    /** The number of rows returned by {@link #next()} so far. */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @param column position of the column in the constructor arguments.
+     * @throws NumberFormatException if the field is not an integer.
+     */
+    public long getLong(int column) {
+        int start = starts[column];
+        int end = ends[column];
+        if (quoted[column]) {
+            start++;
+            end--;
+        }
+        if (start >= end) {
+            throw new NumberFormatException("Empty number in row " + rowCount);
+        }
+
+        boolean negative = false;
+        int i = start;
+        if (buf[i] == '-' || buf[i] == '+') {
+            negative = buf[i] == '-';
+            i++;
+            if (i == end) {
+                throw numberFormat(start, end);
+            }
+        }
+        // Accumulate negatively so Long.MIN_VALUE parses like it does in Long.parseLong
+        long limitValue = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multMin = limitValue / 10;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9 || result < multMin) {
+                throw numberFormat(start, end);
+            }
+            result *= 10;
+            if (result < limitValue + digit) {
+                throw numberFormat(start, end);
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Parses the field as a date and time in UTC, without building a String. Day first
+     * ({@code 02/03/2018 08:47:38}, {@code 3/7/2017 8:55 PM}) and year first
+     * ({@code 2018-03-02 08:47:38}) dates are accepted; seconds are optional.
+     *
+     * @param column position of the column in the constructor arguments.
+     * @return seconds since the epoch.
+     * @throws NumberFormatException if the field is not such a date and time.
+     */
+    public long getEpochSecond(int column) {
+        int start = starts[column];
+        int end = ends[column];
+        if (quoted[column]) {
+            start++;
+            end--;
+        }
+
+        // Up to six numbers: the date in either order, then hours, minutes and seconds
+        int[] parts = timestampParts;
+        int count = 0;
+        int firstDigits = 0;
+        boolean pm = false;
+        boolean am = false;
+        int i = start;
+        while (i < end) {
+            byte b = buf[i];
+            if (b >= '0' && b <= '9') {
+                if (count == parts.length) {
+                    throw numberFormat(start, end);
+                }
+                int value = 0;
+                int digits = 0;
+                while (i < end && buf[i] >= '0' && buf[i] <= '9' && digits < 9) {
+                    value = value * 10 + buf[i] - '0';
+                    digits++;
+                    i++;
+                }
+                if (count == 0) {
+                    firstDigits = digits;
+                }
+                parts[count++] = value;
+            } else {
+                pm |= b == 'P' || b == 'p';
+                am |= b == 'A' || b == 'a';
+                i++;
+            }
+        }
+        if (count < 5) {
+            throw numberFormat(start, end);
+        }
+
+        int year = firstDigits == 4 ? parts[0] : parts[2];
+        int month = parts[1];
+        int day = firstDigits == 4 ? parts[2] : parts[0];
+        int hour = parts[3];
+        int minute = parts[4];
+        int second = count > 5 ? parts[5] : 0;
+        if (pm && hour < 12) {
+            hour += 12;
+        } else if (am && hour == 12) {
+            hour = 0;
+        }
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+            throw numberFormat(start, end);
+        }
+        return daysFromCivil(year, month, day) * 86_400L + hour * 3600L + minute * 60L + second;
+    }
+
+    /**
+     * @param column position of the column in the constructor arguments.
+     */
+    public String getString(int column) {
+        int start = starts[column];
+        int end = ends[column];
+        if (quoted[column]) {
+            return decodeQuoted(start, end);
+        }
+
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        int index = (hash ^ (hash >>> 16)) & (STRING_CACHE_SIZE - 1);
+        String cached = stringCache[index];
+        if (cached != null && matches(cached, start, end)) {
+            return cached;
+        }
+        String value = new String(buf, start, end - start, StandardCharsets.UTF_8);
+        stringCache[index] = value;
+        return value;
+    }
+
+    /**
+     * Parses the field as an IPv4 address without building a String.
+     *
+     * @param column position of the column in the constructor arguments.
+     * @return the address, or {@link IpAddresses#NOT_IPV4} if the field is anything else.
+     */
+    public long getIpv4(int column) {
+        if (quoted[column]) {
+            return IpAddresses.NOT_IPV4;
+        }
+        return IpAddresses.parseIpv4(buf, starts[column], ends[column]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private List<String> readHeader() throws IOException {
+        headerFields = new ArrayList<>();
+        slotOfField = new int[0];
+        lastNeededField = Integer.MAX_VALUE;
+        while (true) {
+            headerFields.clear();
+            int fields = scanRow();
+            if (fields < 0) {
+                if (!fill()) {
+                    throw new IllegalArgumentException("CSV input has no header");
+                }
+                continue;
+            }
+            if (fields > 0) {
+                break;
+            }
+        }
+        List<String> header = headerFields;
+        headerFields = null;
+        lastNeededField = 0;
+        if (!header.isEmpty() && header.get(0).startsWith("\uFEFF")) {
+            header.set(0, header.get(0).substring(1));
+        }
+        return header;
+    }
+
+    /**
+     * Scans one row starting at {@code pos} and records the requested fields.
+     *
+     * @return the number of fields in the row, 0 for a blank line, or -1 if the
+     *         buffer does not hold the whole row yet ({@code pos} is then unchanged).
+     */
+    private int scanRow() {
+        int field = 0;
+        int fieldStart = pos;
+        boolean inQuotes = false;
+        boolean skipping = false;
+        int i = pos;
+        for (; i < limit; i++) {
+            byte b = buf[i];
+            if (inQuotes) {
+                if (b == '"') {
+                    if (i + 1 == limit && !eof) {
+                        return -1;
+                    }
+                    if (i + 1 < limit && buf[i + 1] == '"') {
+                        i++;
+                    } else {
+                        inQuotes = false;
+                    }
+                }
+            } else if (b == '"') {
+                inQuotes = i == fieldStart;
+            } else if (b == '\n') {
+                int end = i > fieldStart && buf[i - 1] == '\r' ? i - 1 : i;
+                pos = i + 1;
+                if (field == 0 && end == fieldStart) {
+                    return 0;
+                }
+                if (!skipping) {
+                    endField(field, fieldStart, end);
+                }
+                return field + 1;
+            } else if (b == ',' && !skipping) {
+                endField(field, fieldStart, i);
+                field++;
+                fieldStart = i + 1;
+                // Nothing after the last requested column is looked at
+                skipping = field > lastNeededField;
+            } else if (b == ',') {
+                field++;
+                fieldStart = i + 1;
+            }
+        }
+
+        if (!eof || i == pos) {
+            return -1;
+        }
+        // Last row without a trailing newline
+        int end = i > fieldStart && buf[i - 1] == '\r' ? i - 1 : i;
+        pos = i;
+        if (field == 0 && end == fieldStart) {
+            return 0;
+        }
+        if (!skipping) {
+            endField(field, fieldStart, end);
+        }
+        return field + 1;
+    }
+
+    private void endField(int field, int start, int end) {
+        if (headerFields != null) {
+            boolean isQuoted = end - start >= 2 && buf[start] == '"' && buf[end - 1] == '"';
+            headerFields.add(isQuoted ? decodeQuoted(start, end)
+                    : new String(buf, start, end - start, StandardCharsets.UTF_8));
+            return;
+        }
+        if (field >= slotOfField.length) {
+            return;
+        }
+        int slot = slotOfField[field];
+        if (slot >= 0) {
+            starts[slot] = start;
+            ends[slot] = end;
+            quoted[slot] = end - start >= 2 && buf[start] == '"' && buf[end - 1] == '"';
+        }
+    }
+
+    /**
+     * Makes room for and reads more input, growing the buffer if a single row
+     * does not fit.
+     *
+     * @return false if there is nothing left to scan.
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read < 0) {
+            eof = true;
+            return limit > 0;
+        }
+        limit += read;
+        return true;
+    }
+
+    private boolean matches(String value, int start, int end) {
+        if (value.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i - start) != buf[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decodeQuoted(int start, int end) {
+        return new String(buf, start + 1, end - start - 2, StandardCharsets.UTF_8).replace("\"\"", "\"");
+    }
+
+    /**
+     * Days from 1970-01-01 to the given date of the proleptic Gregorian calendar.
+     */
+    static long daysFromCivil(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146_097 + dayOfEra - 719_468;
+    }
+
+    private NumberFormatException numberFormat(int start, int end) {
+        return new NumberFormatException("For input string: \""
+                + new String(buf, start, end - start, StandardCharsets.UTF_8) + "\" in row " + rowCount);
+    }
+}
@@ -0,0 +1,397 @@
+package com.example.cloudworkers.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The Summarize step: totals of Flow Duration and Tot Fwd Pkts per Src IP -> Dst IP
+ * pair over one flow record file.
+ *
+ * Rows are read with a {@link FlowCsvScanner} and the totals are kept in
+ * {@link PairSumTable}s. An IPv4 pair is packed into one long straight from the
+ * row bytes, so the common case allocates nothing per row. Any other address (IPv6,
+ * or text that is not a canonical dotted quad) is given a 32-bit id the first time
+ * it is seen and its pairs are packed from the two ids instead; the original text is
+ * kept for output.
+ *
+ * With a memory budget, the tables are spilled to a temporary file sorted by pair
+ * once they hold about {@code budget / 64} pairs, and cleared for the next rows.
+ * {@link #forEach} and {@link #merge} then spill the rest and stream a k-way merge of
+ * the spill files, so memory holds one buffer per file instead of every pair. Only
+ * the text of the addresses that are not IPv4 stays in memory. Spill files are
+ * deleted as soon as they are merged, and the rest by {@link #close()}, which must be
+ * called once the totals are used or the summary failed. Not thread safe.
+ */
+public final class FlowSummarizer implements Closeable {
+
+    /** Receives the totals of one pair. */
+    public interface SummaryConsumer {
+        void accept(String srcIp, String dstIp, long totalFlowDuration, long totalFwdPkts);
+    }
+
+    /** Receives the totals of one pair key, from the IPv4 table or from the other one. */
+    private interface EntryConsumer {
+        void accept(boolean ipv4, long key, long totalFlowDuration, long totalFwdPkts);
+    }
+
+    /** Bytes per pair of the two tables, counting their free slots. */
+    private static final int BYTES_PER_PAIR = 64;
+    private static final int MIN_SPILL_PAIRS = 256;
+    /** Spill files merged at once; more are first merged into fewer, larger ones. */
+    private static final int MAX_MERGE_FILES = 64;
+    private static final int SPILL_BUFFER_BYTES = 1 << 16;
+
+    private final PairSumTable ipv4Pairs = new PairSumTable();
+    private final PairSumTable otherPairs = new PairSumTable();
+    private final Map<String, Integer> addressIds = new HashMap<>();
+    private final List<String> addresses = new ArrayList<>();
+    private final long spillAtPairs;
+    private final File spillDirectory;
+    private final List<File> spills = new ArrayList<>();
+    private long spilledPairs;
+    private long rowCount;
+
+    public FlowSummarizer() {
+        this(0, null);
+    }
+
+    /**
+     * @param memoryBudgetBytes memory for the pair totals before they spill to disk, 0 for no limit.
+     * @param spillDirectory where the spill files go, null for the default temporary directory.
+     */
+    public FlowSummarizer(long memoryBudgetBytes, File spillDirectory) {
+        this.spillAtPairs = memoryBudgetBytes <= 0 ? Long.MAX_VALUE
+                : Math.max(MIN_SPILL_PAIRS, memoryBudgetBytes / BYTES_PER_PAIR);
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Adds every row of a flow record CSV file.
+     *
+     * @return the number of rows read.
+     * @throws IllegalArgumentException if a required column is missing.
+     * @throws NumberFormatException if Flow Duration or Tot Fwd Pkts is not an integer.
+     */
+    public long addCsv(InputStream in) throws IOException {
+        return addCsv(in, null);
+    }
+
+    /**
+     * Adds every row of a flow record CSV file, and also to the time windows of its
+     * Timestamp if {@code windows} is not null.
+     *
+     * @return the number of rows read.
+     * @throws IllegalArgumentException if a required column is missing.
+     * @throws NumberFormatException if Flow Duration, Tot Fwd Pkts or Timestamp is malformed.
+     */
+    public long addCsv(InputStream in, FlowWindows windows) throws IOException {
+        FlowCsvScanner scanner = windows == null
+                ? new FlowCsvScanner(in, FlowCsvScanner.SRC_IP, FlowCsvScanner.DST_IP,
+                        FlowCsvScanner.FLOW_DURATION, FlowCsvScanner.TOT_FWD_PKTS)
+                : new FlowCsvScanner(in, FlowCsvScanner.SRC_IP, FlowCsvScanner.DST_IP,
+                        FlowCsvScanner.FLOW_DURATION, FlowCsvScanner.TOT_FWD_PKTS, FlowCsvScanner.TIMESTAMP);
+        while (scanner.next()) {
+            long flowDuration = scanner.getLong(2);
+            long totFwdPkts = scanner.getLong(3);
+            addRow(scanner, flowDuration, totFwdPkts);
+            if (windows != null) {
+                windows.add(scanner.getEpochSecond(4), scanner, flowDuration, totFwdPkts);
+            }
+        }
+        return scanner.getRowCount();
+    }
+
+    /**
+     * Adds the current row of a scanner whose first two columns are Src IP and Dst IP.
+     */
+    void addRow(FlowCsvScanner scanner, long flowDuration, long totFwdPkts) {
+        long src = scanner.getIpv4(0);
+        long dst = scanner.getIpv4(1);
+        if (src != IpAddresses.NOT_IPV4 && dst != IpAddresses.NOT_IPV4) {
+            ipv4Pairs.add(IpAddresses.pairKey(src, dst), flowDuration, totFwdPkts);
+        } else {
+            otherPairs.add(IpAddresses.pairKey(addressId(scanner.getString(0)), addressId(scanner.getString(1))),
+                    flowDuration, totFwdPkts);
+        }
+        rowCount++;
+        spillIfFull();
+    }
+
+    public void add(String srcIp, String dstIp, long flowDuration, long totFwdPkts) {
+        long src = IpAddresses.parseIpv4(srcIp);
+        long dst = IpAddresses.parseIpv4(dstIp);
+        if (src != IpAddresses.NOT_IPV4 && dst != IpAddresses.NOT_IPV4) {
+            ipv4Pairs.add(IpAddresses.pairKey(src, dst), flowDuration, totFwdPkts);
+        } else {
+            otherPairs.add(IpAddresses.pairKey(addressId(srcIp), addressId(dstIp)), flowDuration, totFwdPkts);
+        }
+        rowCount++;
+        spillIfFull();
+    }
+
+    /**
+     * Adds the totals of {@code other}, for example the summary of another part of the same file.
+     */
+    public void merge(final FlowSummarizer other) {
+        other.forEachEntry((ipv4, key, totalFlowDuration, totalFwdPkts) -> {
+            if (ipv4) {
+                ipv4Pairs.add(key, totalFlowDuration, totalFwdPkts);
+            } else {
+                otherPairs.add(IpAddresses.pairKey(addressId(other.addresses.get((int) IpAddresses.pairSrc(key))),
+                                addressId(other.addresses.get((int) IpAddresses.pairDst(key)))),
+                        totalFlowDuration, totalFwdPkts);
+            }
+            spillIfFull();
+        });
+        rowCount += other.rowCount;
+    }
+
+    /**
+     * Passes the totals of every pair. Once the summarizer has spilled, pairs come in
+     * key order from a merge of the spill files.
+     *
+     * @throws UncheckedIOException if a spill file cannot be written or read.
+     */
+    public void forEach(SummaryConsumer consumer) {
+        forEachEntry((ipv4, key, totalFlowDuration, totalFwdPkts) -> {
+            if (ipv4) {
+                consumer.accept(IpAddresses.formatIpv4(IpAddresses.pairSrc(key)),
+                        IpAddresses.formatIpv4(IpAddresses.pairDst(key)), totalFlowDuration, totalFwdPkts);
+            } else {
+                consumer.accept(addresses.get((int) IpAddresses.pairSrc(key)),
+                        addresses.get((int) IpAddresses.pairDst(key)), totalFlowDuration, totalFwdPkts);
+            }
+        });
+    }
+
+    /** The number of distinct pairs, or an upper bound of it once the summarizer has spilled. */
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, ipv4Pairs.size() + otherPairs.size() + spilledPairs);
+    }
+
+    /** The number of rows added. */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /** The number of spill files on disk. */
+    public int getSpillCount() {
+        return spills.size();
+    }
+
+    /**
+     * Deletes the spill files; the summarizer must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        for (File spill : spills) {
+            spill.delete();
+        }
+        spills.clear();
+        spilledPairs = 0;
+    }
+
+    private int addressId(String address) {
+        Integer id = addressIds.get(address);
+        if (id == null) {
+            id = addresses.size();
+            addressIds.put(address, id);
+            addresses.add(address);
+        }
+        return id;
+    }
+
+    private void spillIfFull() {
+        if (ipv4Pairs.size() + otherPairs.size() >= spillAtPairs) {
+            spill();
+        }
+    }
+
+    private void forEachEntry(EntryConsumer consumer) {
+        if (spills.isEmpty()) {
+            ipv4Pairs.forEach((key, totalFlowDuration, totalFwdPkts) ->
+                    consumer.accept(true, key, totalFlowDuration, totalFwdPkts));
+            otherPairs.forEach((key, totalFlowDuration, totalFwdPkts) ->
+                    consumer.accept(false, key, totalFlowDuration, totalFwdPkts));
+            return;
+        }
+        if (ipv4Pairs.size() + otherPairs.size() > 0) {
+            spill();
+        }
+        while (spills.size() > MAX_MERGE_FILES) {
+            List<File> merged = new ArrayList<>(spills.subList(0, MAX_MERGE_FILES));
+            spills.subList(0, MAX_MERGE_FILES).clear();
+            File file = newSpillFile();
+            // Until merged, the files are still deleted by close()
+            spills.add(file);
+            spills.addAll(merged);
+            try (SpillWriter writer = new SpillWriter(file)) {
+                mergeSpills(merged, writer::write);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to merge spill files into " + file, e);
+            }
+            spills.removeAll(merged);
+            for (File spill : merged) {
+                spill.delete();
+            }
+        }
+        mergeSpills(spills, consumer);
+    }
+
+    /**
+     * Writes the tables to a new spill file, IPv4 pairs first, each sorted by key, and clears them.
+     */
+    private void spill() {
+        File file = newSpillFile();
+        spills.add(file);
+        try (SpillWriter writer = new SpillWriter(file)) {
+            for (long key : ipv4Pairs.sortedKeys()) {
+                writer.write(true, key, ipv4Pairs.getFirst(key), ipv4Pairs.getSecond(key));
+            }
+            for (long key : otherPairs.sortedKeys()) {
+                writer.write(false, key, otherPairs.getFirst(key), otherPairs.getSecond(key));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to spill pair totals to " + file, e);
+        }
+        spilledPairs += ipv4Pairs.size() + otherPairs.size();
+        ipv4Pairs.clear();
+        otherPairs.clear();
+    }
+
+    private File newSpillFile() {
+        try {
+            return File.createTempFile("flow-summary-", ".spill", spillDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create a spill file in " + spillDirectory, e);
+        }
+    }
+
+    /**
+     * Streams the pairs of the files in order, adding up the totals of a pair found in several files.
+     */
+    private static void mergeSpills(List<File> files, EntryConsumer consumer) {
+        PriorityQueue<SpillReader> readers = new PriorityQueue<>(files.size());
+        try {
+            for (File file : files) {
+                SpillReader reader = new SpillReader(file);
+                if (reader.next()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            while (!readers.isEmpty()) {
+                SpillReader head = readers.poll();
+                boolean ipv4 = head.ipv4;
+                long key = head.key;
+                long totalFlowDuration = head.first;
+                long totalFwdPkts = head.second;
+                advance(readers, head);
+                while (!readers.isEmpty() && readers.peek().ipv4 == ipv4 && readers.peek().key == key) {
+                    SpillReader same = readers.poll();
+                    totalFlowDuration += same.first;
+                    totalFwdPkts += same.second;
+                    advance(readers, same);
+                }
+                consumer.accept(ipv4, key, totalFlowDuration, totalFwdPkts);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read spill files", e);
+        } finally {
+            for (SpillReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void advance(PriorityQueue<SpillReader> readers, SpillReader reader) throws IOException {
+        if (reader.next()) {
+            readers.add(reader);
+        } else {
+            reader.close();
+        }
+    }
+
+    /** Spill record: a tag (1 for IPv4), the pair key and the two totals. */
+    private static final class SpillWriter implements Closeable {
+
+        private final DataOutputStream out;
+
+        SpillWriter(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), SPILL_BUFFER_BYTES));
+        }
+
+        void write(boolean ipv4, long key, long first, long second) {
+            try {
+                out.writeByte(ipv4 ? 1 : 0);
+                out.writeLong(key);
+                out.writeLong(first);
+                out.writeLong(second);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /** Reads a spill file record by record; ordered by its current record, IPv4 pairs first. */
+    private static final class SpillReader implements Comparable<SpillReader> {
+
+        private final DataInputStream in;
+        private boolean ipv4;
+        private long key;
+        private long first;
+        private long second;
+
+        SpillReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), SPILL_BUFFER_BYTES));
+        }
+
+        boolean next() throws IOException {
+            int tag = in.read();
+            if (tag < 0) {
+                return false;
+            }
+            ipv4 = tag == 1;
+            key = in.readLong();
+            first = in.readLong();
+            second = in.readLong();
+            return true;
+        }
+
+        @Override
+        public int compareTo(SpillReader other) {
+            if (ipv4 != other.ipv4) {
+                return ipv4 ? -1 : 1;
+            }
+            return Long.compare(key, other.key);
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // Nothing was written
+            }
+        }
+    }
+}
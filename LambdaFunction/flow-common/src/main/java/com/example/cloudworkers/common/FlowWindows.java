@@ -0,0 +1,133 @@
+package com.example.cloudworkers.common;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Totals of Flow Duration and Tot Fwd Pkts per Src IP -> Dst IP pair and time window,
+ * by the Timestamp of each flow record.
+ *
+ * Windows are {@code sizeSeconds} long and start every {@code slideSeconds}, aligned
+ * to the epoch: tumbling windows when both are equal, sliding (hopping) windows when
+ * the slide is shorter, in which case every flow counts in {@code size / slide}
+ * windows. A window is emitted to the {@link WindowConsumer} and forgotten once the
+ * newest timestamp seen is {@code allowedLatenessSeconds} past its end, so only the
+ * windows that can still change are kept in memory. {@link #flush()} emits the rest.
+ *
+ * A flow arriving after its window was emitted opens it again, and the window is
+ * emitted a second time with the totals of the late flows only. Emitted totals are
+ * therefore partial sums, to be added up per pair and window downstream; the same
+ * holds for the windows of different parts of a file summarized separately.
+ *
+ * Not thread safe.
+ */
+public final class FlowWindows {
+
+    /** Receives the totals of one pair in one window. */
+    public interface WindowConsumer {
+        void accept(long windowStart, long windowEnd, String srcIp, String dstIp,
+                    long totalFlowDuration, long totalFwdPkts);
+    }
+
+    private final long sizeSeconds;
+    private final long slideSeconds;
+    private final long allowedLatenessSeconds;
+    private final WindowConsumer consumer;
+    private final TreeMap<Long, FlowSummarizer> open = new TreeMap<Long, FlowSummarizer>();
+    private long maxTimestamp = Long.MIN_VALUE;
+    private long emittedWindows;
+
+    /**
+     * @throws IllegalArgumentException unless {@code 0 < slideSeconds <= sizeSeconds}
+     *         and {@code allowedLatenessSeconds >= 0}.
+     */
+    public FlowWindows(long sizeSeconds, long slideSeconds, long allowedLatenessSeconds, WindowConsumer consumer) {
+        if (slideSeconds <= 0 || slideSeconds > sizeSeconds || allowedLatenessSeconds < 0) {
+            throw new IllegalArgumentException("Invalid windows: size " + sizeSeconds + " s, slide " + slideSeconds
+                    + " s, allowed lateness " + allowedLatenessSeconds + " s");
+        }
+        this.sizeSeconds = sizeSeconds;
+        this.slideSeconds = slideSeconds;
+        this.allowedLatenessSeconds = allowedLatenessSeconds;
+        this.consumer = consumer;
+    }
+
+    public void add(long epochSecond, String srcIp, String dstIp, long flowDuration, long totFwdPkts) {
+        for (long start = lastWindowStart(epochSecond); start > epochSecond - sizeSeconds; start -= slideSeconds) {
+            window(start).add(srcIp, dstIp, flowDuration, totFwdPkts);
+        }
+        advance(epochSecond);
+    }
+
+    /**
+     * Adds the current row of a scanner whose first two columns are Src IP and Dst IP.
+     */
+    void add(long epochSecond, FlowCsvScanner scanner, long flowDuration, long totFwdPkts) {
+        for (long start = lastWindowStart(epochSecond); start > epochSecond - sizeSeconds; start -= slideSeconds) {
+            window(start).addRow(scanner, flowDuration, totFwdPkts);
+        }
+        advance(epochSecond);
+    }
+
+    /**
+     * Emits every window still open.
+     */
+    public void flush() {
+        while (!open.isEmpty()) {
+            emit(open.pollFirstEntry());
+        }
+    }
+
+    /** The number of windows held in memory. */
+    public int openWindows() {
+        return open.size();
+    }
+
+    /** The number of times a window was emitted. */
+    public long getEmittedWindows() {
+        return emittedWindows;
+    }
+
+    private long lastWindowStart(long epochSecond) {
+        long remainder = epochSecond % slideSeconds;
+        return epochSecond - (remainder < 0 ? remainder + slideSeconds : remainder);
+    }
+
+    private FlowSummarizer window(long start) {
+        FlowSummarizer window = open.get(start);
+        if (window == null) {
+            window = new FlowSummarizer();
+            open.put(start, window);
+        }
+        return window;
+    }
+
+    /**
+     * Emits the windows that ended {@code allowedLatenessSeconds} before the newest timestamp.
+     */
+    private void advance(long epochSecond) {
+        if (epochSecond <= maxTimestamp) {
+            // Only a late flow can have reopened a window that is already over
+            if (open.firstKey() + sizeSeconds + allowedLatenessSeconds > maxTimestamp) {
+                return;
+            }
+        } else {
+            maxTimestamp = epochSecond;
+        }
+        while (!open.isEmpty() && open.firstKey() + sizeSeconds + allowedLatenessSeconds <= maxTimestamp) {
+            emit(open.pollFirstEntry());
+        }
+    }
+
+    private void emit(Map.Entry<Long, FlowSummarizer> window) {
+        final long start = window.getKey();
+        final long end = start + sizeSeconds;
+        window.getValue().forEach(new FlowSummarizer.SummaryConsumer() {
+            @Override
+            public void accept(String srcIp, String dstIp, long totalFlowDuration, long totalFwdPkts) {
+                consumer.accept(start, end, srcIp, dstIp, totalFlowDuration, totalFwdPkts);
+            }
+        });
+        emittedWindows++;
+    }
+}
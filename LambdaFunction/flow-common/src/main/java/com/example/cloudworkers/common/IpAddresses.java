@@ -0,0 +1,99 @@
+package com.example.cloudworkers.common;
+
+/**
+ * IPv4 addresses as unsigned 32-bit values held in a long, so that a Src IP -> Dst IP
+ * pair fits in a single long key.
+ *
+ * Only the canonical dotted-quad form is accepted (no leading zeros, no spaces), so
+ * formatting a parsed address gives back exactly the original text.
+ */
+public final class IpAddresses {
+
+    /** Returned by the parse methods for anything that is not a canonical IPv4 address. */
+    public static final long NOT_IPV4 = -1L;
+
+    private IpAddresses() {
+    }
+
+    public static long parseIpv4(CharSequence text) {
+        long address = 0;
+        int octets = 0;
+        int i = 0;
+        int length = text.length();
+        while (i < length && octets < 4) {
+            int start = i;
+            int octet = 0;
+            while (i < length && i - start < 3) {
+                int digit = text.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                octet = octet * 10 + digit;
+                i++;
+            }
+            if (i == start || octet > 255 || (i - start > 1 && text.charAt(start) == '0')) {
+                return NOT_IPV4;
+            }
+            address = (address << 8) | octet;
+            octets++;
+            if (octets < 4) {
+                if (i == length || text.charAt(i) != '.') {
+                    return NOT_IPV4;
+                }
+                i++;
+            }
+        }
+        return octets == 4 && i == length ? address : NOT_IPV4;
+    }
+
+    /**
+     * Same as {@link #parseIpv4(CharSequence)} on the ASCII bytes {@code [start, end)}.
+     */
+    public static long parseIpv4(byte[] buf, int start, int end) {
+        long address = 0;
+        int octets = 0;
+        int i = start;
+        while (i < end && octets < 4) {
+            int octetStart = i;
+            int octet = 0;
+            while (i < end && i - octetStart < 3) {
+                int digit = buf[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                octet = octet * 10 + digit;
+                i++;
+            }
+            if (i == octetStart || octet > 255 || (i - octetStart > 1 && buf[octetStart] == '0')) {
+                return NOT_IPV4;
+            }
+            address = (address << 8) | octet;
+            octets++;
+            if (octets < 4) {
+                if (i == end || buf[i] != '.') {
+                    return NOT_IPV4;
+                }
+                i++;
+            }
+        }
+        return octets == 4 && i == end ? address : NOT_IPV4;
+    }
+
+    public static String formatIpv4(long address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "."
+                + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    /** Packs two addresses (IPv4 values or other 32-bit ids) into one pair key. */
+    public static long pairKey(long src, long dst) {
+        return (src << 32) | (dst & 0xFFFFFFFFL);
+    }
+
+    public static long pairSrc(long pairKey) {
+        return pairKey >>> 32;
+    }
+
+    public static long pairDst(long pairKey) {
+        return pairKey & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.cloudworkers.common;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The lines of a file that start inside the byte range {@code [rangeStart, rangeEnd)}.
+ *
+ * The wrapped stream must be positioned at {@code rangeStart - 1} (or at 0 for the
+ * first range): if that byte is not a newline the partial line is skipped, as it
+ * belongs to the previous range. The last line is read to its end even if it runs
+ * past {@code rangeEnd}, and nothing after it is read. Splitting a file into
+ * adjacent ranges therefore yields every line exactly once.
+ *
+ * Lines are split on '\n' only, so quoted fields must not contain line breaks.
+ */
+public final class LineRangeInputStream extends FilterInputStream {
+
+    private final long rangeEnd;
+    /** Absolute position of the next byte of the wrapped stream. */
+    private long position;
+    private boolean aligned;
+    private boolean done;
+
+    /**
+     * @param in the file, positioned at {@code max(rangeStart - 1, 0)}.
+     */
+    public LineRangeInputStream(InputStream in, long rangeStart, long rangeEnd) {
+        super(in);
+        this.rangeEnd = rangeEnd;
+        this.position = Math.max(rangeStart - 1, 0);
+        this.aligned = rangeStart == 0;
+        this.done = rangeStart >= rangeEnd;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (done || (!aligned && !skipPartialLine())) {
+            return -1;
+        }
+
+        int read = in.read(b, off, len);
+        if (read < 0) {
+            done = true;
+            return -1;
+        }
+        // A newline at rangeEnd - 1 or later ends the last line that starts in the range
+        int from = (int) Math.max(0, Math.min(read, rangeEnd - 1 - position));
+        for (int i = from; i < read; i++) {
+            if (b[off + i] == '\n') {
+                read = i + 1;
+                done = true;
+                break;
+            }
+        }
+        position += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @return false if no line starts inside the range.
+     */
+    private boolean skipPartialLine() throws IOException {
+        int b;
+        while ((b = in.read()) >= 0) {
+            position++;
+            if (b == '\n') {
+                aligned = true;
+                done = done || position >= rangeEnd;
+                return !done;
+            }
+        }
+        done = true;
+        return false;
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.cloudworkers.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Packs many records into few SQS messages.
+ *
+ * In the {@link Format#TEXT} format records are joined with '\n' into message bodies
+ * of at most {@code maxBodyBytes} (UTF-8); in the {@link Format#BINARY} format the
+ * summaries and final data added with {@link #addSummary} and {@link #addFinalData}
+ * are encoded into bodies of that size by {@link BinaryMessageCodec}. Bodies are
+ * grouped into batches of at most ten, the SendMessageBatch limit. With the default
+ * body size a full batch also stays under the 256 KiB total payload limit of
+ * SendMessageBatch. Every completed batch is handed to the sink; {@link #flush()}
+ * hands over whatever is left and then runs the optional {@code flushed} hook, where
+ * a sink that sends asynchronously waits for its sends and reports any that failed.
+ *
+ * Consumers split a text body back into records with {@link #unpack(String)}, which
+ * also accepts the single-record bodies sent by older producers, and read either
+ * format with {@link SummaryMessage#unpack(String, Consumer)} and
+ * {@link FinalDataMessage#unpack(String, Consumer)}. Not thread safe.
+ */
+public final class MessagePacker {
+
+    public enum Format {
+        TEXT,
+        BINARY;
+
+        /**
+         * The format configured by name: "text" or "binary", in any case.
+         *
+         * @throws IllegalArgumentException for any other name.
+         */
+        public static Format named(String name) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(name.trim())) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown message format " + name + ", expected text or binary");
+        }
+    }
+
+    public static final int SQS_MAX_BATCH_ENTRIES = 10;
+    public static final int SQS_MAX_PAYLOAD_BYTES = 262_144;
+    public static final int DEFAULT_MAX_BODY_BYTES = SQS_MAX_PAYLOAD_BYTES / SQS_MAX_BATCH_ENTRIES;
+
+    private final int maxBodyBytes;
+    private final Format format;
+    private final Consumer<List<String>> batchSink;
+    private final Runnable flushed;
+
+    private final StringBuilder body = new StringBuilder();
+    private final BinaryMessageCodec.Encoder encoder;
+    private int bodyBytes;
+    private List<String> batch = new ArrayList<>(SQS_MAX_BATCH_ENTRIES);
+    private long recordCount;
+    private long messageCount;
+
+    /**
+     * @param flushed run at the end of every {@link #flush()}; what it throws is thrown by flush.
+     */
+    public MessagePacker(int maxBodyBytes, Format format, Consumer<List<String>> batchSink, Runnable flushed) {
+        if (maxBodyBytes <= 0 || maxBodyBytes > SQS_MAX_PAYLOAD_BYTES) {
+            throw new IllegalArgumentException("maxBodyBytes must be in (0, " + SQS_MAX_PAYLOAD_BYTES + "]: " + maxBodyBytes);
+        }
+        this.maxBodyBytes = maxBodyBytes;
+        this.format = format;
+        this.batchSink = batchSink;
+        this.flushed = flushed;
+        this.encoder = format == Format.BINARY ? new BinaryMessageCodec.Encoder() : null;
+    }
+
+    public MessagePacker(int maxBodyBytes, Format format, Consumer<List<String>> batchSink) {
+        this(maxBodyBytes, format, batchSink, null);
+    }
+
+    public MessagePacker(int maxBodyBytes, Consumer<List<String>> batchSink) {
+        this(maxBodyBytes, Format.TEXT, batchSink);
+    }
+
+    public MessagePacker(Consumer<List<String>> batchSink) {
+        this(DEFAULT_MAX_BODY_BYTES, batchSink);
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Adds a one-line text record.
+     *
+     * @throws IllegalStateException if the packer writes binary bodies.
+     */
+    public void add(String record) {
+        if (encoder != null) {
+            throw new IllegalStateException("Text records cannot be added to binary messages");
+        }
+        int recordBytes = utf8Length(record);
+        int separatorBytes = body.length() == 0 ? 0 : 1;
+        if (body.length() > 0 && bodyBytes + separatorBytes + recordBytes > maxBodyBytes) {
+            sealBody();
+            separatorBytes = 0;
+        }
+        if (separatorBytes > 0) {
+            body.append('\n');
+        }
+        body.append(record);
+        bodyBytes += separatorBytes + recordBytes;
+        recordCount++;
+    }
+
+    /**
+     * Adds a {@link SummaryMessage} record, in the format of the packer.
+     */
+    public void addSummary(String srcIp, String dstIp, long totalFlowDuration, long totalFwdPkts) {
+        if (encoder == null) {
+            add(SummaryMessage.format(srcIp, dstIp, totalFlowDuration, totalFwdPkts));
+            return;
+        }
+        int mark = startRecord(BinaryMessageCodec.SUMMARY);
+        encoder.summary(srcIp, dstIp, totalFlowDuration, totalFwdPkts);
+        if (endRecord(mark)) {
+            encoder.summary(srcIp, dstIp, totalFlowDuration, totalFwdPkts);
+        }
+    }
+
+    /**
+     * Adds a {@link FinalDataMessage} record, in the format of the packer.
+     */
+    public void addFinalData(String srcIp, String dstIp, FinalData data) {
+        if (encoder == null) {
+            add(FinalDataMessage.format(srcIp, dstIp, data));
+            return;
+        }
+        int mark = startRecord(BinaryMessageCodec.FINAL_DATA);
+        encoder.finalData(srcIp, dstIp, data);
+        if (endRecord(mark)) {
+            encoder.finalData(srcIp, dstIp, data);
+        }
+    }
+
+    /**
+     * Emits the partially filled body and batch, if any, then runs the {@code flushed} hook.
+     */
+    public void flush() {
+        if (body.length() > 0 || (encoder != null && encoder.count() > 0)) {
+            sealBody();
+        }
+        if (!batch.isEmpty()) {
+            emitBatch();
+        }
+        if (flushed != null) {
+            flushed.run();
+        }
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Splits a message body into its non-empty records.
+     */
+    public static List<String> unpack(String body) {
+        List<String> records = new ArrayList<>();
+        int start = 0;
+        int length = body.length();
+        while (start <= length) {
+            int end = body.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+            String record = body.substring(start, end).trim();
+            if (!record.isEmpty()) {
+                records.add(record);
+            }
+            start = end + 1;
+        }
+        return records;
+    }
+
+    /**
+     * Seals the binary body if it holds records of another type.
+     *
+     * @return the size of the body before the record.
+     */
+    private int startRecord(int type) {
+        if (encoder.count() > 0 && encoder.type() != type) {
+            sealBody();
+        }
+        encoder.start(type);
+        return encoder.size();
+    }
+
+    /**
+     * Moves the record just encoded out of a body it makes too large, into a new one.
+     *
+     * @return true if the record was removed and must be encoded again.
+     */
+    private boolean endRecord(int mark) {
+        recordCount++;
+        if (encoder.count() > 1 && BinaryMessageCodec.Encoder.bodyLength(encoder.size(), encoder.count()) > maxBodyBytes) {
+            encoder.truncate(mark);
+            sealBody();
+            return true;
+        }
+        return false;
+    }
+
+    private void sealBody() {
+        if (encoder != null) {
+            batch.add(encoder.seal());
+        } else {
+            batch.add(body.toString());
+            body.setLength(0);
+            bodyBytes = 0;
+        }
+        messageCount++;
+        if (batch.size() == SQS_MAX_BATCH_ENTRIES) {
+            emitBatch();
+        }
+    }
+
+    private void emitBatch() {
+        List<String> full = batch;
+        batch = new ArrayList<>(SQS_MAX_BATCH_ENTRIES);
+        batchSink.accept(full);
+    }
+
+    static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
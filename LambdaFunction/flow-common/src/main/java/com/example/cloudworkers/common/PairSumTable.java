@@ -0,0 +1,152 @@
+package com.example.cloudworkers.common;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from a long pair key to two long running sums.
+ *
+ * Keys and sums live in parallel primitive arrays probed linearly, so adding to an
+ * existing key allocates nothing and an entry costs 25 bytes instead of a boxed key,
+ * a map node and a summary object. The table doubles once it is three quarters full.
+ * Not thread safe.
+ */
+public final class PairSumTable {
+
+    /** Receives one key and its sums. */
+    public interface Consumer {
+        void accept(long key, long first, long second);
+    }
+
+    private static final int DEFAULT_CAPACITY = 1 << 10;
+
+    private long[] keys;
+    private long[] firsts;
+    private long[] seconds;
+    private boolean[] used;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public PairSumTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PairSumTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize * 4 / 3, 16) - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Adds {@code first} and {@code second} to the sums of {@code key}, creating it at zero if absent.
+     */
+    public void add(long key, long first, long second) {
+        int slot = slot(key);
+        if (used[slot]) {
+            firsts[slot] += first;
+            seconds[slot] += second;
+            return;
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        firsts[slot] = first;
+        seconds[slot] = second;
+        if (++size > resizeAt) {
+            grow();
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return used[slot(key)];
+    }
+
+    public long getFirst(long key) {
+        int slot = slot(key);
+        return used[slot] ? firsts[slot] : 0;
+    }
+
+    public long getSecond(long key) {
+        int slot = slot(key);
+        return used[slot] ? seconds[slot] : 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes every key, keeping the slots for reuse.
+     */
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /** The keys in ascending order. */
+    public long[] sortedKeys() {
+        long[] sorted = new long[size];
+        int count = 0;
+        for (int slot = 0; slot < used.length; slot++) {
+            if (used[slot]) {
+                sorted[count++] = keys[slot];
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    public void forEach(Consumer consumer) {
+        for (int slot = 0; slot < used.length; slot++) {
+            if (used[slot]) {
+                consumer.accept(keys[slot], firsts[slot], seconds[slot]);
+            }
+        }
+    }
+
+    /** The slot holding {@code key}, or the empty slot where it would go. */
+    private int slot(long key) {
+        int slot = mix(key) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldFirsts = firsts;
+        long[] oldSeconds = seconds;
+        boolean[] oldUsed = used;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = slot(oldKeys[i]);
+                used[slot] = true;
+                keys[slot] = oldKeys[i];
+                firsts[slot] = oldFirsts[i];
+                seconds[slot] = oldSeconds[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalStateException("PairSumTable cannot grow beyond " + (1 << 30) + " slots");
+        }
+        keys = new long[capacity];
+        firsts = new long[capacity];
+        seconds = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 4 * 3;
+    }
+
+    /** Murmur3 finalizer, so that keys differing only in their low or high half spread out. */
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
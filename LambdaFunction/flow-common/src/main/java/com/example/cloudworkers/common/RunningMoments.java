@@ -0,0 +1,79 @@
+package com.example.cloudworkers.common;
+
+/**
+ * Count, mean and M2 (sum of squared deviations from the mean) of a series of values.
+ *
+ * Single values are folded in with Welford's update and partial results are combined
+ * with Chan et al.'s pairwise formula, so moments computed by different workers or
+ * batches can be merged in any order and any grouping. Instances are immutable.
+ */
+public final class RunningMoments {
+
+    public static final RunningMoments EMPTY = new RunningMoments(0, 0.0, 0.0);
+
+    private final long count;
+    private final double mean;
+    private final double m2;
+
+    public RunningMoments(long count, double mean, double m2) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must not be negative: " + count);
+        }
+        this.count = count;
+        this.mean = count == 0 ? 0.0 : mean;
+        this.m2 = count == 0 ? 0.0 : m2;
+    }
+
+    public static RunningMoments of(double value) {
+        return new RunningMoments(1, value, 0.0);
+    }
+
+    public RunningMoments plus(double value) {
+        long n = count + 1;
+        double delta = value - mean;
+        double newMean = mean + delta / n;
+        return new RunningMoments(n, newMean, m2 + delta * (value - newMean));
+    }
+
+    public RunningMoments merge(RunningMoments other) {
+        if (other.count == 0) {
+            return this;
+        }
+        if (count == 0) {
+            return other;
+        }
+        long n = count + other.count;
+        double delta = other.mean - mean;
+        double newMean = mean + delta * other.count / n;
+        double newM2 = m2 + other.m2 + delta * delta * ((double) count * other.count / n);
+        return new RunningMoments(n, newMean, newM2);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getM2() {
+        return m2;
+    }
+
+    /**
+     * Population variance; zero until at least one value has been seen.
+     */
+    public double getVariance() {
+        return count == 0 ? 0.0 : m2 / count;
+    }
+
+    public double getStdDev() {
+        return Math.sqrt(getVariance());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{count=%d, mean=%.2f, stdDev=%.2f}", count, mean, getStdDev());
+    }
+}
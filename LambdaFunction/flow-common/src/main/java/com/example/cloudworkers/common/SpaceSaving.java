@@ -0,0 +1,168 @@
+package com.example.cloudworkers.common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-Saving: the keys with the largest total weight, tracked in a fixed number of
+ * counters whatever the number of keys.
+ *
+ * A key that is not tracked while all counters are taken replaces the key with the
+ * smallest count, and inherits that count as its possible overestimate. Every key
+ * whose true total exceeds {@code 1 / capacity} of all the weight added is therefore
+ * tracked, with a count that is at most its error above the truth. Counters are kept
+ * in a min-heap, so an update costs O(log capacity).
+ *
+ * Not thread safe.
+ */
+public final class SpaceSaving<K> {
+
+    /** Receives one tracked key, its count and how much of the count may be overestimated. */
+    public interface Consumer<K> {
+        void accept(K key, long count, long error);
+    }
+
+    private final int capacity;
+    private final Object[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    private final Map<K, Integer> positions;
+    private int size;
+
+    public SpaceSaving(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Space-Saving capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.keys = new Object[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.positions = new HashMap<>(capacity * 4 / 3 + 1);
+    }
+
+    /**
+     * Adds {@code weight} to the count of {@code key}.
+     *
+     * @return the key that was evicted to track {@code key}, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public K add(K key, long weight) {
+        Integer position = positions.get(key);
+        if (position != null) {
+            counts[position] += weight;
+            siftDown(position);
+            return null;
+        }
+        if (size < capacity) {
+            int last = size++;
+            set(last, key, weight, 0);
+            siftUp(last);
+            return null;
+        }
+        K evicted = (K) keys[0];
+        positions.remove(evicted);
+        long min = counts[0];
+        set(0, key, min + weight, min);
+        siftDown(0);
+        return evicted;
+    }
+
+    public boolean contains(K key) {
+        return positions.containsKey(key);
+    }
+
+    /** The count of {@code key}, or 0 if it is not tracked. */
+    public long count(K key) {
+        Integer position = positions.get(key);
+        return position == null ? 0 : counts[position];
+    }
+
+    /** How much of the count of {@code key} may be overestimated, or 0 if it is not tracked. */
+    public long error(K key) {
+        Integer position = positions.get(key);
+        return position == null ? 0 : errors[position];
+    }
+
+    /** The smallest tracked count once every counter is taken, an upper bound of any untracked key. */
+    public long minCount() {
+        return size < capacity ? 0 : counts[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<K> consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept((K) keys[i], counts[i], errors[i]);
+        }
+    }
+
+    /**
+     * Passes at most {@code limit} tracked keys, highest count first.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachTop(int limit, Consumer<K> consumer) {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+        for (int i = 0; i < Math.min(limit, size); i++) {
+            int position = order[i];
+            consumer.accept((K) keys[position], counts[position], errors[position]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (counts[parent] <= counts[position]) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && counts[left] < counts[smallest]) {
+                smallest = left;
+            }
+            if (right < size && counts[right] < counts[smallest]) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void swap(int a, int b) {
+        Object key = keys[a];
+        long count = counts[a];
+        long error = errors[a];
+        set(a, (K) keys[b], counts[b], errors[b]);
+        set(b, (K) key, count, error);
+    }
+
+    private void set(int position, K key, long count, long error) {
+        keys[position] = key;
+        counts[position] = count;
+        errors[position] = error;
+        positions.put(key, position);
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.cloudworkers.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The Summarize -> Consolidate record: the totals of one pair over one file.
+ * Several records are packed into one SQS message by {@link MessagePacker}, as text
+ * or as {@link BinaryMessageCodec binary}.
+ *
+ * Text format: srcIp,dstIp,totalFlowDuration,totalFwdPkts
+ */
+public final class SummaryMessage {
+
+    private final String srcIp;
+    private final String dstIp;
+    private final long totalFlowDuration;
+    private final long totalFwdPkts;
+
+    public SummaryMessage(String srcIp, String dstIp, long totalFlowDuration, long totalFwdPkts) {
+        this.srcIp = srcIp;
+        this.dstIp = dstIp;
+        this.totalFlowDuration = totalFlowDuration;
+        this.totalFwdPkts = totalFwdPkts;
+    }
+
+    public static String format(String srcIp, String dstIp, long totalFlowDuration, long totalFwdPkts) {
+        return srcIp + "," + dstIp + "," + totalFlowDuration + "," + totalFwdPkts;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the record is not a Summarize -> Consolidate record.
+     */
+    public static SummaryMessage parse(String record) {
+        String[] parts = record.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Invalid message format for Consolidation: " + record);
+        }
+        return new SummaryMessage(parts[0], parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+    }
+
+    /**
+     * Reads every record of a message body, text or binary. Invalid text records, and
+     * binary bodies that cannot be decoded, are handed to {@code invalid} and skipped.
+     */
+    public static List<SummaryMessage> unpack(String body, Consumer<String> invalid) {
+        if (BinaryMessageCodec.isBinary(body)) {
+            try {
+                return BinaryMessageCodec.decodeSummaries(body);
+            } catch (IllegalArgumentException e) {
+                invalid.accept(body);
+                return new ArrayList<>();
+            }
+        }
+        List<SummaryMessage> summaries = new ArrayList<>();
+        for (String record : MessagePacker.unpack(body)) {
+            try {
+                summaries.add(parse(record));
+            } catch (IllegalArgumentException e) {
+                invalid.accept(record);
+            }
+        }
+        return summaries;
+    }
+
+    public String getSrcIp() {
+        return srcIp;
+    }
+
+    public String getDstIp() {
+        return dstIp;
+    }
+
+    public long getTotalFlowDuration() {
+        return totalFlowDuration;
+    }
+
+    public long getTotalFwdPkts() {
+        return totalFwdPkts;
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.cloudworkers.common;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate traffic statistics in memory fixed by the constructor arguments,
+ * whatever the number of distinct pairs:
+ *
+ * <ul>
+ *   <li>the Tot Fwd Pkts volume of any pair, from a {@link CountMinSketch};</li>
+ *   <li>the heaviest pairs by volume, from a {@link SpaceSaving} of {@code heavyPairs} counters;</li>
+ *   <li>the number of distinct destinations of the sources with the most pairs, from one
+ *       {@link HyperLogLog} per source tracked by a {@link SpaceSaving} of
+ *       {@code fanOutSources} counters;</li>
+ *   <li>the number of distinct pairs, from one more {@link HyperLogLog}.</li>
+ * </ul>
+ *
+ * A source that enters the fan-out counters in place of another starts with an empty
+ * HyperLogLog, so the fan-out of a source that was evicted before is underestimated.
+ * Not thread safe.
+ */
+public final class TrafficSketch {
+
+    /** Receives one heavy pair, its estimated volume and how much of it may be overestimated. */
+    public interface HeavyPairConsumer {
+        void accept(String srcIp, String dstIp, long estimatedFwdPkts, long maxError);
+    }
+
+    /** Receives one source and the estimated number of its distinct destinations. */
+    public interface FanOutConsumer {
+        void accept(String srcIp, long estimatedDestinations);
+    }
+
+    private final int precision;
+    private final CountMinSketch pairVolumes;
+    private final SpaceSaving<String> heavyPairs;
+    private final SpaceSaving<String> fanOutSources;
+    private final Map<String, HyperLogLog> destinations = new HashMap<>();
+    private final HyperLogLog distinctPairs;
+    private long totalFwdPkts;
+
+    /**
+     * @param heavyPairs the number of pairs tracked by volume.
+     * @param fanOutSources the number of sources whose destinations are counted.
+     * @param countMinWidth counters per row of the volume sketch.
+     * @param countMinDepth rows of the volume sketch.
+     * @param precision of every {@link HyperLogLog}, {@code 2^precision} bytes each.
+     */
+    public TrafficSketch(int heavyPairs, int fanOutSources, int countMinWidth, int countMinDepth, int precision) {
+        this.precision = precision;
+        this.pairVolumes = new CountMinSketch(countMinWidth, countMinDepth);
+        this.heavyPairs = new SpaceSaving<>(heavyPairs);
+        this.fanOutSources = new SpaceSaving<>(fanOutSources);
+        this.distinctPairs = new HyperLogLog(precision);
+    }
+
+    public void add(String srcIp, String dstIp, long totFwdPkts) {
+        String keyPair = srcIp + "," + dstIp;
+        long pairHash = hash(keyPair);
+        pairVolumes.add(pairHash, totFwdPkts);
+        heavyPairs.add(keyPair, totFwdPkts);
+        distinctPairs.add(pairHash);
+        totalFwdPkts += totFwdPkts;
+
+        String evicted = fanOutSources.add(srcIp, 1);
+        HyperLogLog sourceDestinations;
+        if (evicted != null) {
+            // Reuse the registers of the source it replaced
+            sourceDestinations = destinations.remove(evicted);
+            sourceDestinations.clear();
+            destinations.put(srcIp, sourceDestinations);
+        } else {
+            sourceDestinations = destinations.get(srcIp);
+            if (sourceDestinations == null) {
+                sourceDestinations = new HyperLogLog(precision);
+                destinations.put(srcIp, sourceDestinations);
+            }
+        }
+        sourceDestinations.add(hash(dstIp));
+    }
+
+    /**
+     * Whether the pair is a heavy hitter: its volume is at least {@code 1 / heavyPairs} of
+     * all the volume added, even after taking off its possible overestimate.
+     */
+    public boolean isHeavy(String srcIp, String dstIp) {
+        String keyPair = srcIp + "," + dstIp;
+        long guaranteed = heavyPairs.count(keyPair) - heavyPairs.error(keyPair);
+        return guaranteed > 0 && guaranteed >= totalFwdPkts / heavyPairs.capacity();
+    }
+
+    /** An upper bound of the Tot Fwd Pkts volume of the pair. */
+    public long estimateFwdPkts(String srcIp, String dstIp) {
+        String keyPair = srcIp + "," + dstIp;
+        long estimate = pairVolumes.estimate(hash(keyPair));
+        return heavyPairs.contains(keyPair) ? Math.min(estimate, heavyPairs.count(keyPair)) : estimate;
+    }
+
+    /**
+     * Passes the heaviest pairs, heaviest first.
+     */
+    public void forEachHeavyPair(int limit, HeavyPairConsumer consumer) {
+        heavyPairs.forEachTop(limit, (keyPair, count, error) -> {
+            int comma = keyPair.indexOf(',');
+            consumer.accept(keyPair.substring(0, comma), keyPair.substring(comma + 1), count, error);
+        });
+    }
+
+    /**
+     * The estimated number of distinct destinations of the source, or -1 if its
+     * destinations are not counted.
+     */
+    public long estimateFanOut(String srcIp) {
+        HyperLogLog sourceDestinations = destinations.get(srcIp);
+        return sourceDestinations == null ? -1 : sourceDestinations.estimate();
+    }
+
+    /**
+     * Passes the sources with the most distinct destinations, most first.
+     */
+    public void forEachTopFanOut(int limit, FanOutConsumer consumer) {
+        List<Map.Entry<String, Long>> fanOuts = new ArrayList<>(destinations.size());
+        for (Map.Entry<String, HyperLogLog> source : destinations.entrySet()) {
+            fanOuts.add(new AbstractMap.SimpleEntry<>(source.getKey(), source.getValue().estimate()));
+        }
+        Collections.sort(fanOuts, (a, b) -> Long.compare(b.getValue(), a.getValue()));
+        for (int i = 0; i < Math.min(limit, fanOuts.size()); i++) {
+            consumer.accept(fanOuts.get(i).getKey(), fanOuts.get(i).getValue());
+        }
+    }
+
+    /** The estimated number of distinct pairs added. */
+    public long estimateDistinctPairs() {
+        return distinctPairs.estimate();
+    }
+
+    public long getTotalFwdPkts() {
+        return totalFwdPkts;
+    }
+
+    /**
+     * The size of the counters and registers, which does not grow once every tracked
+     * slot is taken. Tracked keys add their own text on top.
+     */
+    public long sizeBytes() {
+        return pairVolumes.sizeBytes() + (long) (fanOutSources.capacity() + 1) * (1 << precision)
+                + (long) (heavyPairs.capacity() + fanOutSources.capacity()) * 24;
+    }
+
+    /** FNV-1a over the chars, then the Murmur3 finalizer to spread the bits. */
+    static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
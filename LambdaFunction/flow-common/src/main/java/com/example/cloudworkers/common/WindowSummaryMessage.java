@@ -0,0 +1,71 @@
+package com.example.cloudworkers.common;
+
+/**
+ * The windowed Summarize record: the totals of one pair over one time window of one
+ * file, or of one part of it, as emitted by {@link FlowWindows}. Records of the same
+ * pair and window are added up. Several records are packed into one SQS message by
+ * {@link MessagePacker}.
+ *
+ * Format: srcIp,dstIp,windowStart,windowEnd,totalFlowDuration,totalFwdPkts
+ * with the window bounds in epoch seconds.
+ */
+public final class WindowSummaryMessage {
+
+    private final String srcIp;
+    private final String dstIp;
+    private final long windowStart;
+    private final long windowEnd;
+    private final long totalFlowDuration;
+    private final long totalFwdPkts;
+
+    public WindowSummaryMessage(String srcIp, String dstIp, long windowStart, long windowEnd,
+                                long totalFlowDuration, long totalFwdPkts) {
+        this.srcIp = srcIp;
+        this.dstIp = dstIp;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.totalFlowDuration = totalFlowDuration;
+        this.totalFwdPkts = totalFwdPkts;
+    }
+
+    public static String format(String srcIp, String dstIp, long windowStart, long windowEnd,
+                                long totalFlowDuration, long totalFwdPkts) {
+        return srcIp + "," + dstIp + "," + windowStart + "," + windowEnd + "," + totalFlowDuration + "," + totalFwdPkts;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the record is not a windowed Summarize record.
+     */
+    public static WindowSummaryMessage parse(String record) {
+        String[] parts = record.split(",");
+        if (parts.length != 6) {
+            throw new IllegalArgumentException("Invalid message format for a window summary: " + record);
+        }
+        return new WindowSummaryMessage(parts[0], parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                Long.parseLong(parts[4]), Long.parseLong(parts[5]));
+    }
+
+    public String getSrcIp() {
+        return srcIp;
+    }
+
+    public String getDstIp() {
+        return dstIp;
+    }
+
+    public long getWindowStart() {
+        return windowStart;
+    }
+
+    public long getWindowEnd() {
+        return windowEnd;
+    }
+
+    public long getTotalFlowDuration() {
+        return totalFlowDuration;
+    }
+
+    public long getTotalFwdPkts() {
+        return totalFwdPkts;
+    }
+}
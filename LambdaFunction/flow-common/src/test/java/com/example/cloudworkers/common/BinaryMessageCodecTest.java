@@ -0,0 +1,97 @@
+package com.example.cloudworkers.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryMessageCodecTest {
+
+    @Test
+    void summariesRoundTripInBoundedBodiesSmallerThanText() {
+        List<List<String>> batches = new ArrayList<>();
+        MessagePacker packer = new MessagePacker(1_000, MessagePacker.Format.BINARY, batches::add);
+        List<String> expected = new ArrayList<>();
+        int textBytes = 0;
+        for (int i = 0; i < 2_000; i++) {
+            String srcIp = i % 10 == 0 ? "fe80:0:0:0:0:0:0:" + Integer.toHexString(i) : "10.0." + (i % 256) + ".1";
+            String dstIp = i % 17 == 0 ? "010.0.0.1" : "192.168.1." + (i / 256);
+            long totalFlowDuration = i % 3 == 0 ? -i : i * 123_456L;
+            packer.addSummary(srcIp, dstIp, totalFlowDuration, i);
+            String text = SummaryMessage.format(srcIp, dstIp, totalFlowDuration, i);
+            expected.add(text);
+            textBytes += text.length() + 1;
+        }
+        packer.flush();
+
+        List<String> decoded = new ArrayList<>();
+        int binaryBytes = 0;
+        for (List<String> batch : batches) {
+            for (String body : batch) {
+                assertTrue(body.length() <= 1_000, body.length() + " bytes");
+                binaryBytes += body.length();
+                for (SummaryMessage summary : SummaryMessage.unpack(body, invalid -> {
+                    throw new AssertionError(invalid);
+                })) {
+                    decoded.add(SummaryMessage.format(summary.getSrcIp(), summary.getDstIp(),
+                            summary.getTotalFlowDuration(), summary.getTotalFwdPkts()));
+                }
+            }
+        }
+        assertEquals(expected, decoded);
+        assertEquals(2_000, packer.getRecordCount());
+        assertTrue(binaryBytes < textBytes, binaryBytes + " >= " + textBytes);
+    }
+
+    @Test
+    void finalDataKeepsFullPrecision() {
+        FinalData data = FinalData.ofSummary(1, 3).withSummary(2, 5).withSummary(10, 7);
+        List<String> bodies = new ArrayList<>();
+        MessagePacker packer = new MessagePacker(MessagePacker.DEFAULT_MAX_BODY_BYTES, MessagePacker.Format.BINARY,
+                bodies::addAll);
+        packer.addFinalData("10.0.0.1", "2001:db8::1", data);
+        packer.flush();
+
+        List<FinalDataMessage> messages = FinalDataMessage.unpack(bodies.get(0), invalid -> {
+            throw new AssertionError(invalid);
+        });
+        assertEquals(1, messages.size());
+        assertEquals("10.0.0.1,2001:db8::1", messages.get(0).getKeyPair());
+        FinalData decoded = messages.get(0).getData();
+        assertEquals(3, decoded.getTrafficNumber());
+        assertEquals(data.getAvgFlowDuration(), decoded.getAvgFlowDuration(), 0.0);
+        assertEquals(data.getFlowDuration().getM2(), decoded.getFlowDuration().getM2(), 0.0);
+        assertEquals(data.getStdDevTotFwdPkts(), decoded.getStdDevTotFwdPkts(), 0.0);
+    }
+
+    @Test
+    void textBodiesAreStillReadAndBadBodiesReported() {
+        List<String> invalid = new ArrayList<>();
+        List<SummaryMessage> summaries = SummaryMessage.unpack("a,b,1,2\nnot a record\nc,d,3,4", invalid::add);
+        assertEquals(2, summaries.size());
+        assertEquals(Collections.singletonList("not a record"), invalid);
+
+        // Summaries are not final data, and versions other than 1 are refused
+        List<String> bodies = new ArrayList<>();
+        MessagePacker packer = new MessagePacker(MessagePacker.DEFAULT_MAX_BODY_BYTES, MessagePacker.Format.BINARY,
+                bodies::addAll);
+        packer.addSummary("10.0.0.1", "10.0.0.2", 1, 1);
+        packer.flush();
+        assertTrue(FinalDataMessage.unpack(bodies.get(0), invalid::add).isEmpty());
+        assertEquals(bodies.get(0), invalid.get(1));
+
+        byte[] bytes = Base64.getDecoder().decode(bodies.get(0).substring(1));
+        bytes[0] = 2;
+        String version2 = BinaryMessageCodec.MARKER + Base64.getEncoder().encodeToString(bytes);
+        assertThrows(IllegalArgumentException.class, () -> BinaryMessageCodec.decodeSummaries(version2));
+        String truncated = bodies.get(0).substring(0, bodies.get(0).length() - 4);
+        assertThrows(IllegalArgumentException.class, () -> BinaryMessageCodec.decodeSummaries(truncated));
+        assertThrows(IllegalStateException.class, () -> packer.add("a,b,1,2"));
+    }
+}
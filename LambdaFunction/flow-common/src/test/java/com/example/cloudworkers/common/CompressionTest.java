@@ -0,0 +1,67 @@
+package com.example.cloudworkers.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompressionTest {
+
+    @Test
+    void everyCodecSummarizesTheSameTotalsAsPlainCsv() throws IOException {
+        StringBuilder csv = new StringBuilder("Src IP,Dst IP,Flow Duration,Tot Fwd Pkts\n");
+        for (int i = 0; i < 50_000; i++) {
+            csv.append("10.0.").append(i % 100).append(".1,192.168.0.").append(i % 7).append(',')
+                    .append(i).append(',').append(i % 5).append('\n');
+        }
+        byte[] plain = csv.toString().getBytes(StandardCharsets.UTF_8);
+        Map<String, String> expected = totals(Compression.NONE, plain);
+
+        for (Compression compression : new Compression[]{Compression.GZIP, Compression.ZSTD}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (OutputStream out = compression.compress(bytes)) {
+                out.write(plain);
+            }
+            assertTrue(bytes.size() * 4 < plain.length, compression + " wrote " + bytes.size() + " bytes");
+            assertEquals(expected, totals(compression, bytes.toByteArray()), compression.name());
+        }
+    }
+
+    @Test
+    void namesTheCodecOfAFlowCsvByItsKey() {
+        assertEquals(Compression.NONE, Compression.ofKey("unprocessed-data/flows.csv"));
+        assertEquals(Compression.GZIP, Compression.ofKey("unprocessed-data/flows.CSV.GZ"));
+        assertEquals(Compression.ZSTD, Compression.ofKey("unprocessed-data/flows.csv.zst"));
+        assertNull(Compression.ofKey("unprocessed-data/flows.gz"));
+        assertFalse(Compression.isFlowCsv("unprocessed-data/flows.txt"));
+
+        assertEquals(Compression.GZIP, Compression.ofContentEncoding("gzip"));
+        assertEquals(Compression.NONE, Compression.ofContentEncoding(null));
+        assertEquals(Compression.NONE, Compression.ofContentEncoding("br"));
+        assertEquals(Compression.ZSTD, Compression.named(" Zstd "));
+        assertThrows(IllegalArgumentException.class, () -> Compression.named("lz4"));
+    }
+
+    private static Map<String, String> totals(Compression compression, byte[] bytes) throws IOException {
+        FlowSummarizer summarizer = new FlowSummarizer();
+        try (InputStream in = compression.decompress(new ByteArrayInputStream(bytes))) {
+            assertEquals(50_000, summarizer.addCsv(in));
+        }
+        Map<String, String> totals = new HashMap<>();
+        summarizer.forEach((srcIp, dstIp, totalFlowDuration, totalFwdPkts) ->
+                totals.put(srcIp + "," + dstIp, totalFlowDuration + "," + totalFwdPkts));
+        return totals;
+    }
+}
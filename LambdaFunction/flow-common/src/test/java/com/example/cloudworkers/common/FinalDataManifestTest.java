@@ -0,0 +1,70 @@
+package com.example.cloudworkers.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FinalDataManifestTest {
+
+    @Test
+    void shardOfAPairNeverChanges() {
+        // Objects written by other processes depend on these values
+        assertEquals(0, FinalDataManifest.shardOf("10.0.0.1,10.0.0.2", 16));
+        assertEquals(2, FinalDataManifest.shardOf("192.168.1.10,8.8.8.8", 16));
+        assertEquals(4, FinalDataManifest.shardOf("2001:db8::1,fe80::2", 16));
+        assertEquals(706, FinalDataManifest.shardOf("192.168.1.10,8.8.8.8", 1024));
+    }
+
+    @Test
+    void splitSpreadsPairsOverEveryShard() {
+        Map<String, FinalData> finalData = new HashMap<>();
+        for (int i = 0; i < 16_000; i++) {
+            finalData.put("10.0." + (i >> 8) + "." + (i & 0xFF) + ",172.16.0.1", FinalData.ofSummary(i, 1));
+        }
+        FinalDataManifest manifest = new FinalDataManifest(16, "processed-data/finalData/1/");
+
+        List<Map<String, FinalData>> shards = manifest.split(finalData);
+
+        assertEquals(16, shards.size());
+        int total = 0;
+        for (int shard = 0; shard < shards.size(); shard++) {
+            for (String keyPair : shards.get(shard).keySet()) {
+                assertEquals(shard, manifest.shardOf(keyPair));
+            }
+            // Within 20% of an even split
+            assertTrue(Math.abs(shards.get(shard).size() - 1000) < 200, "shard " + shard + ": " + shards.get(shard).size());
+            total += shards.get(shard).size();
+        }
+        assertEquals(finalData.size(), total);
+    }
+
+    @Test
+    void roundTripAndShardKeys() throws IOException {
+        FinalDataManifest manifest = FinalDataManifest.create("processed-data/finalData/", 8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manifest.write(bytes);
+
+        FinalDataManifest read = FinalDataManifest.read(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertEquals(manifest, read);
+        assertTrue(read.shardKey(7).startsWith("processed-data/finalData/"));
+        assertTrue(read.shardKey(7).endsWith("/shard-0007.snapshot"));
+        assertThrows(IndexOutOfBoundsException.class, () -> read.shardKey(8));
+    }
+
+    @Test
+    void rejectsUnknownVersions() {
+        byte[] manifest = "version=2\nshardCount=4\nprefix=p/\n".getBytes(StandardCharsets.UTF_8);
+        assertThrows(IllegalArgumentException.class, () -> FinalDataManifest.read(new ByteArrayInputStream(manifest)));
+    }
+}
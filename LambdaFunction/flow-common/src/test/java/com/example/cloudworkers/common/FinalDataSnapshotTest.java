@@ -0,0 +1,163 @@
+package com.example.cloudworkers.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FinalDataSnapshotTest {
+
+    @Test
+    void roundTripKeepsEveryPairInKeyOrder() throws IOException {
+        Map<String, FinalData> finalData = finalData(5000);
+        finalData.put("2001:db8::1,fe80::2", FinalData.ofSummary(7, 3).withSummary(9, 4));
+        finalData.put("host-é,10.0.0.1", FinalData.ofSummary(1, 1));
+
+        FinalDataSnapshot snapshot = FinalDataSnapshot.open(ByteBuffer.wrap(write(finalData)));
+
+        assertEquals(finalData.size(), snapshot.size());
+        for (int i = 1; i < snapshot.size(); i++) {
+            byte[] previous = snapshot.keyAt(i - 1).getBytes(StandardCharsets.UTF_8);
+            byte[] current = snapshot.keyAt(i).getBytes(StandardCharsets.UTF_8);
+            assertTrue(compareUnsigned(previous, current) < 0);
+        }
+        Map<String, FinalData> loaded = snapshot.toMap();
+        assertEquals(finalData.keySet(), loaded.keySet());
+        for (Map.Entry<String, FinalData> entry : finalData.entrySet()) {
+            assertSame(entry.getValue(), loaded.get(entry.getKey()));
+            assertSame(entry.getValue(), snapshot.get(entry.getKey()));
+        }
+        assertNull(snapshot.get("10.9.9.9,10.9.9.8"));
+        assertNull(snapshot.get(""));
+    }
+
+    @Test
+    void snapshotMapReadsInPlaceAndKeepsUpdatesInAnOverlay() throws IOException {
+        Map<String, FinalData> finalData = finalData(1000);
+        for (int i = 0; i < 40; i++) {
+            finalData.put("10.1.0.1,192.168.0." + i, FinalData.ofSummary(i, 1));
+        }
+        FinalDataManifest manifest = FinalDataManifest.create("shards/", 4);
+        FinalDataSnapshot[] shards = new FinalDataSnapshot[4];
+        for (int shard = 0; shard < 3; shard++) {
+            shards[shard] = FinalDataSnapshot.open(ByteBuffer.wrap(write(manifest.split(finalData).get(shard))));
+        }
+        finalData.keySet().removeIf(keyPair -> manifest.shardOf(keyPair) == 3);
+        Map<String, FinalData> map = new FinalDataSnapshotMap(shards, manifest::shardOf);
+
+        assertEquals(finalData.size(), map.size());
+        assertEquals(finalData.keySet(), map.keySet());
+        // The destinations of a source, merged from every shard in order
+        List<String> destinations = new ArrayList<>();
+        FinalDataSnapshotMap snapshots = (FinalDataSnapshotMap) map;
+        snapshots.snapshotKeys("10.1.0.1,", "10.1.0.1-").forEachRemaining(destinations::add);
+        List<String> expected = new ArrayList<>(new TreeSet<>(finalData.keySet()).subSet("10.1.0.1,", "10.1.0.1-"));
+        assertTrue(expected.size() > 20);
+        assertEquals(expected, destinations);
+        assertEquals(expected.size(), snapshots.snapshotKeyCount("10.1.0.1,", "10.1.0.1-"));
+        assertEquals(0, snapshots.snapshotKeyCount("10.1.0.2,", "10.1.0.2-"));
+        String existing = finalData.keySet().iterator().next();
+        map.merge(existing, FinalData.ofSummary(5, 5), FinalData::merge);
+        finalData.merge(existing, FinalData.ofSummary(5, 5), FinalData::merge);
+        map.put("10.9.9.9,10.9.9.8", FinalData.ofSummary(1, 2));
+        finalData.put("10.9.9.9,10.9.9.8", FinalData.ofSummary(1, 2));
+
+        assertEquals(finalData.size(), map.size());
+        Map<String, FinalData> read = FinalDataSnapshot.open(ByteBuffer.wrap(write(map))).toMap();
+        assertEquals(finalData.keySet(), read.keySet());
+        for (Map.Entry<String, FinalData> entry : finalData.entrySet()) {
+            assertSame(entry.getValue(), map.get(entry.getKey()));
+            assertSame(entry.getValue(), read.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    void emptySnapshot() throws IOException {
+        FinalDataSnapshot snapshot = FinalDataSnapshot.open(ByteBuffer.wrap(write(new HashMap<>())));
+
+        assertEquals(0, snapshot.size());
+        assertNull(snapshot.get("10.0.0.1,10.0.0.2"));
+    }
+
+    @Test
+    void corruptOrTruncatedSnapshotIsRejected() throws IOException {
+        byte[] bytes = write(finalData(100));
+
+        byte[] flipped = bytes.clone();
+        flipped[FinalDataSnapshot.HEADER_BYTES + 20] ^= 1;
+        assertThrows(IllegalArgumentException.class, () -> FinalDataSnapshot.open(ByteBuffer.wrap(flipped)));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> FinalDataSnapshot.open(ByteBuffer.wrap(bytes, 0, bytes.length - 1).slice()));
+        assertThrows(IllegalArgumentException.class,
+                () -> FinalDataSnapshot.open(ByteBuffer.wrap("Src IP,Dst IP\n".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void derivedCsvReadsBackToTheSamePairs() throws IOException {
+        Map<String, FinalData> finalData = finalData(200);
+        StringWriter csv = new StringWriter();
+
+        FinalDataSnapshot.open(ByteBuffer.wrap(write(finalData))).writeCsv(csv);
+
+        Map<String, FinalData> read = FinalDataCsv.read(new InputStreamReader(
+                new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+        assertEquals(finalData.keySet(), read.keySet());
+        for (Map.Entry<String, FinalData> entry : finalData.entrySet()) {
+            assertSame(entry.getValue(), read.get(entry.getKey()));
+        }
+    }
+
+    private static byte[] write(Map<String, FinalData> finalData) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FinalDataSnapshot.write(finalData, bytes);
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, FinalData> finalData(int pairs) {
+        Random random = new Random(pairs);
+        Map<String, FinalData> finalData = new HashMap<>();
+        for (int i = 0; i < pairs; i++) {
+            FinalData data = FinalData.ofSummary(random.nextInt(1_000_000), random.nextInt(100));
+            for (int files = random.nextInt(4); files > 0; files--) {
+                data = data.withSummary(random.nextInt(1_000_000), random.nextInt(100));
+            }
+            finalData.put("10.0." + (i >> 8) + "." + (i & 0xFF) + ",192.168.1." + random.nextInt(256), data);
+        }
+        return finalData;
+    }
+
+    private static void assertSame(FinalData expected, FinalData actual) {
+        assertEquals(expected.getTrafficNumber(), actual.getTrafficNumber());
+        assertEquals(expected.getAvgFlowDuration(), actual.getAvgFlowDuration(), 0.0);
+        assertEquals(expected.getFlowDuration().getM2(), actual.getFlowDuration().getM2(), 0.0);
+        assertEquals(expected.getAvgTotFwdPkts(), actual.getAvgTotFwdPkts(), 0.0);
+        assertEquals(expected.getTotFwdPkts().getM2(), actual.getTotFwdPkts().getM2(), 0.0);
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.cloudworkers.common;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FlowCsvScannerTest {
+
+    private static final String[] COLUMNS = {
+            FlowCsvScanner.SRC_IP, FlowCsvScanner.DST_IP, FlowCsvScanner.FLOW_DURATION, FlowCsvScanner.TOT_FWD_PKTS
+    };
+
+    @Test
+    void readsTheSameFieldsAsCommonsCsv() throws IOException {
+        String csv = "Flow ID,Src IP,Src Port,Dst IP,Flow Duration,Label,Tot Fwd Pkts,Extra\r\n"
+                + "a,10.0.0.1,80,10.0.0.2,1500,\"Benign, really\",3,x\r\n"
+                + "\r\n"
+                + "\"b\"\"c\",\"10.0.0.3\",443,10.0.0.4,-42,\"multi\nline\",0,\"tail,\"\"q\"\"\"\r\n"
+                + "d,10.0.0.1,80,10.0.0.2,9223372036854775807,DoS,7,";
+
+        // Buffer sizes that force rows to straddle refills and the buffer to grow
+        for (int bufferSize : new int[] {16, 23, 64, FlowCsvScanner.DEFAULT_BUFFER_SIZE}) {
+            assertEquals(readWithCommonsCsv(csv), readWithScanner(csv, bufferSize), "bufferSize=" + bufferSize);
+        }
+    }
+
+    @Test
+    void reusesIpStringsAcrossRows() throws IOException {
+        String csv = "Src IP,Dst IP,Flow Duration,Tot Fwd Pkts\n10.0.0.1,10.0.0.2,1,1\n10.0.0.1,10.0.0.2,2,2\n";
+        FlowCsvScanner scanner = new FlowCsvScanner(stream(csv), COLUMNS);
+
+        scanner.next();
+        String first = scanner.getString(0);
+        scanner.next();
+        assertSame(first, scanner.getString(0));
+        assertFalse(scanner.next());
+        assertEquals(2, scanner.getRowCount());
+    }
+
+    @Test
+    void rejectsMissingColumnsAndInvalidNumbers() throws IOException {
+        assertThrows(IllegalArgumentException.class,
+                () -> new FlowCsvScanner(stream("Src IP,Dst IP,Flow Duration\n"), COLUMNS));
+
+        FlowCsvScanner shortRow = new FlowCsvScanner(stream("Src IP,Dst IP,Flow Duration,Tot Fwd Pkts\n1,2,3\n"), COLUMNS);
+        assertThrows(IllegalArgumentException.class, shortRow::next);
+
+        FlowCsvScanner badNumber = new FlowCsvScanner(stream("Src IP,Dst IP,Flow Duration,Tot Fwd Pkts\n1,2,1.5,3\n"), COLUMNS);
+        badNumber.next();
+        assertThrows(NumberFormatException.class, () -> badNumber.getLong(2));
+    }
+
+    @Test
+    void parsesTimestampsInEitherDateOrder() throws IOException {
+        String csv = "Timestamp\n"
+                + "02/03/2018 08:47:38\n"
+                + "2018-03-02 08:47:38\n"
+                + "\"3/7/2017 8:55 PM\"\n"
+                + "01/01/1970 12:00:05 AM\n"
+                + "31/02/2018 25:00\n";
+        FlowCsvScanner scanner = new FlowCsvScanner(stream(csv), FlowCsvScanner.TIMESTAMP);
+        scanner.next();
+        assertEquals(1519980458L, scanner.getEpochSecond(0));
+        scanner.next();
+        assertEquals(1519980458L, scanner.getEpochSecond(0));
+        scanner.next();
+        assertEquals(1499115300L, scanner.getEpochSecond(0));
+        scanner.next();
+        assertEquals(5L, scanner.getEpochSecond(0));
+        scanner.next();
+        assertThrows(NumberFormatException.class, () -> scanner.getEpochSecond(0));
+    }
+
+    private static List<String> readWithScanner(String csv, int bufferSize) throws IOException {
+        List<String> rows = new ArrayList<>();
+        FlowCsvScanner scanner = new FlowCsvScanner(stream(csv), bufferSize, COLUMNS);
+        while (scanner.next()) {
+            rows.add(scanner.getString(0) + "|" + scanner.getString(1) + "|" + scanner.getLong(2) + "|" + scanner.getLong(3));
+        }
+        return rows;
+    }
+
+    private static List<String> readWithCommonsCsv(String csv) throws IOException {
+        List<String> rows = new ArrayList<>();
+        for (CSVRecord record : CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(new StringReader(csv))) {
+            rows.add(record.get("Src IP") + "|" + record.get("Dst IP") + "|"
+                    + Long.parseLong(record.get("Flow Duration")) + "|" + Long.parseLong(record.get("Tot Fwd Pkts")));
+        }
+        return rows;
+    }
+
+    private static ByteArrayInputStream stream(String csv) {
+        return new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8));
+    }
+}
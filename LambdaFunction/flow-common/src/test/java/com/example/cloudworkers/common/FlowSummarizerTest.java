@@ -0,0 +1,97 @@
+package com.example.cloudworkers.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlowSummarizerTest {
+
+    @Test
+    void matchesStringKeyedTotalsForManyPairs() {
+        FlowSummarizer summarizer = new FlowSummarizer();
+        Map<String, long[]> sums = new HashMap<>();
+        SplittableRandom random = new SplittableRandom(7);
+
+        // Enough distinct pairs to make the tables grow several times
+        for (int i = 0; i < 200_000; i++) {
+            int pair = random.nextInt(50_000);
+            String srcIp = "10." + (pair >>> 8 & 0xFF) + "." + (pair & 0xFF) + ".1";
+            String dstIp = pair % 10 == 0 ? "fe80:0:0:0:0:0:0:" + Integer.toHexString(pair) : "192.168.0." + (pair % 256);
+            long flowDuration = random.nextInt(1_000_000);
+            long totFwdPkts = random.nextInt(100);
+
+            summarizer.add(srcIp, dstIp, flowDuration, totFwdPkts);
+            long[] totals = sums.computeIfAbsent(srcIp + "," + dstIp, k -> new long[2]);
+            totals[0] += flowDuration;
+            totals[1] += totFwdPkts;
+        }
+
+        Map<String, String> expected = new HashMap<>();
+        sums.forEach((keyPair, totals) -> expected.put(keyPair, totals[0] + "," + totals[1]));
+        assertEquals(expected.size(), summarizer.size());
+        assertEquals(200_000, summarizer.getRowCount());
+        assertEquals(expected, totals(summarizer));
+    }
+
+    @Test
+    void spillsToDiskOverItsMemoryBudgetWithTheSameTotals(@TempDir File spillDirectory) {
+        FlowSummarizer inMemory = new FlowSummarizer();
+        FlowSummarizer left = new FlowSummarizer(64 * 1024, spillDirectory);
+        FlowSummarizer right = new FlowSummarizer(64 * 1024, spillDirectory);
+        SplittableRandom random = new SplittableRandom(11);
+        for (int i = 0; i < 300_000; i++) {
+            int pair = random.nextInt(100_000);
+            String srcIp = "10." + (pair >>> 8 & 0xFF) + "." + (pair & 0xFF) + ".1";
+            String dstIp = pair % 10 == 0 ? "fe80::" + Integer.toHexString(pair) : "192.168.0." + (pair % 256);
+            long flowDuration = random.nextInt(1_000_000);
+            inMemory.add(srcIp, dstIp, flowDuration, 1);
+            (i % 2 == 0 ? left : right).add(srcIp, dstIp, flowDuration, 1);
+        }
+        assertTrue(left.getSpillCount() > 64, "spilled " + left.getSpillCount() + " times");
+
+        // Merging spilled summaries spills again, and iterating merges every file
+        left.merge(right);
+        right.close();
+        assertEquals(300_000, left.getRowCount());
+        assertEquals(totals(inMemory), totals(left));
+
+        left.close();
+        assertEquals(0, spillDirectory.listFiles().length);
+    }
+
+    @Test
+    void keepsTheOriginalTextOfAddressesThatAreNotCanonicalIpv4() throws IOException {
+        String csv = "Src IP,Dst IP,Flow Duration,Tot Fwd Pkts\n"
+                + "10.0.0.1,10.0.0.2,5,1\n"
+                + "10.0.0.1,10.0.0.2,7,2\n"
+                + "2001:db8::1,10.0.0.2,3,3\n"
+                + "010.0.0.1,10.0.0.2,1,1\n"
+                + "10.0.0.1,10.0.0.256,1,1\n";
+        FlowSummarizer summarizer = new FlowSummarizer();
+        assertEquals(5, summarizer.addCsv(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8))));
+
+        Map<String, String> totals = totals(summarizer);
+        assertEquals(4, totals.size());
+        assertEquals("12,3", totals.get("10.0.0.1,10.0.0.2"));
+        assertEquals("3,3", totals.get("2001:db8::1,10.0.0.2"));
+        assertEquals("1,1", totals.get("010.0.0.1,10.0.0.2"));
+        assertEquals("1,1", totals.get("10.0.0.1,10.0.0.256"));
+    }
+
+    private static Map<String, String> totals(FlowSummarizer summarizer) {
+        Map<String, String> totals = new HashMap<>();
+        summarizer.forEach((srcIp, dstIp, totalFlowDuration, totalFwdPkts) ->
+                totals.put(srcIp + "," + dstIp, totalFlowDuration + "," + totalFwdPkts));
+        return totals;
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.cloudworkers.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FlowWindowsTest {
+
+    @Test
+    void emitsTumblingWindowsOnceTheyAreOverAndKeepsOnlyOpenOnes() {
+        List<String> emitted = new ArrayList<>();
+        FlowWindows windows = new FlowWindows(60, 60, 0, collect(emitted));
+
+        windows.add(0, "10.0.0.1", "10.0.0.2", 5, 1);
+        windows.add(59, "10.0.0.1", "10.0.0.2", 7, 2);
+        windows.add(30, "2001:db8::1", "10.0.0.2", 3, 3);
+        assertEquals(0, emitted.size());
+        assertEquals(1, windows.openWindows());
+
+        // The first flow of the next window closes the previous one
+        windows.add(60, "10.0.0.1", "10.0.0.2", 1, 1);
+        assertEquals(2, emitted.size());
+        assertEquals("10.0.0.1,10.0.0.2,0,60,12,3", emitted.get(0));
+        assertEquals("2001:db8::1,10.0.0.2,0,60,3,3", emitted.get(1));
+        assertEquals(1, windows.openWindows());
+
+        // Thousands of minutes later only one window is still held
+        for (int minute = 2; minute < 5000; minute++) {
+            windows.add(minute * 60L + 1, "10.0.0.1", "10.0.0.2", 1, 1);
+        }
+        assertEquals(1, windows.openWindows());
+        windows.flush();
+        assertEquals(0, windows.openWindows());
+        assertEquals(5000, windows.getEmittedWindows());
+    }
+
+    @Test
+    void countsEveryFlowInEachSlidingWindowThatCoversIt() {
+        List<String> emitted = new ArrayList<>();
+        FlowWindows windows = new FlowWindows(60, 20, 0, collect(emitted));
+        windows.add(45, "10.0.0.1", "10.0.0.2", 10, 1);
+        windows.flush();
+
+        // Windows [-20,40) does not cover 45, [0,60), [20,80) and [40,100) do
+        assertEquals(3, emitted.size());
+        assertEquals("10.0.0.1,10.0.0.2,0,60,10,1", emitted.get(0));
+        assertEquals("10.0.0.1,10.0.0.2,20,80,10,1", emitted.get(1));
+        assertEquals("10.0.0.1,10.0.0.2,40,100,10,1", emitted.get(2));
+    }
+
+    @Test
+    void addsUpLateFlowsAsASecondPartialWindow() {
+        List<String> emitted = new ArrayList<>();
+        FlowWindows windows = new FlowWindows(60, 60, 30, collect(emitted));
+        windows.add(10, "10.0.0.1", "10.0.0.2", 5, 1);
+        windows.add(80, "10.0.0.1", "10.0.0.2", 1, 1);
+        // Within the allowed lateness: still the first emission of [0,60)
+        windows.add(20, "10.0.0.1", "10.0.0.2", 2, 1);
+        windows.add(90, "10.0.0.1", "10.0.0.2", 1, 1);
+        assertEquals("10.0.0.1,10.0.0.2,0,60,7,2", emitted.get(0));
+
+        windows.add(30, "10.0.0.1", "10.0.0.2", 4, 1);
+        windows.flush();
+        Map<Long, Long> totals = new HashMap<>();
+        for (String record : emitted) {
+            WindowSummaryMessage message = WindowSummaryMessage.parse(record);
+            totals.merge(message.getWindowStart(), message.getTotalFlowDuration(), Long::sum);
+        }
+        assertEquals(3, emitted.size());
+        assertEquals(11L, totals.get(0L));
+        assertEquals(2L, totals.get(60L));
+    }
+
+    @Test
+    void windowsTheRowsOfACsvFile() throws IOException {
+        String csv = "Src IP,Dst IP,Flow Duration,Tot Fwd Pkts,Timestamp\n"
+                + "10.0.0.1,10.0.0.2,5,1,01/01/1970 00:00:10\n"
+                + "2001:db8::1,10.0.0.2,3,3,01/01/1970 00:00:50\n"
+                + "10.0.0.1,10.0.0.2,7,2,01/01/1970 00:01:10\n";
+        List<String> emitted = new ArrayList<>();
+        FlowWindows windows = new FlowWindows(60, 60, 0, collect(emitted));
+        FlowSummarizer summarizer = new FlowSummarizer();
+        assertEquals(3, summarizer.addCsv(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), windows));
+        windows.flush();
+
+        assertEquals(2, summarizer.size());
+        assertEquals(3, emitted.size());
+        assertEquals("10.0.0.1,10.0.0.2,0,60,5,1", emitted.get(0));
+        assertEquals("2001:db8::1,10.0.0.2,0,60,3,3", emitted.get(1));
+        assertEquals("10.0.0.1,10.0.0.2,60,120,7,2", emitted.get(2));
+    }
+
+    @Test
+    void rejectsASlideLongerThanTheWindow() {
+        assertThrows(IllegalArgumentException.class, () -> new FlowWindows(60, 120, 0, collect(new ArrayList<>())));
+        assertThrows(IllegalArgumentException.class, () -> new FlowWindows(60, 0, 0, collect(new ArrayList<>())));
+    }
+
+    private static FlowWindows.WindowConsumer collect(List<String> emitted) {
+        return (windowStart, windowEnd, srcIp, dstIp, totalFlowDuration, totalFwdPkts) -> emitted.add(
+                WindowSummaryMessage.format(srcIp, dstIp, windowStart, windowEnd, totalFlowDuration, totalFwdPkts));
+    }
+}
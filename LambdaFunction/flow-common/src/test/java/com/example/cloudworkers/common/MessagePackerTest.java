@@ -0,0 +1,57 @@
+package com.example.cloudworkers.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessagePackerTest {
+
+    @Test
+    void packsRecordsIntoBoundedBodiesAndBatches() {
+        List<List<String>> batches = new ArrayList<>();
+        MessagePacker packer = new MessagePacker(100, batches::add);
+
+        List<String> records = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            String record = SummaryMessage.format("10.0.0." + (i % 256), "192.168.1." + (i / 256), i * 1000L, i);
+            records.add(record);
+            packer.add(record);
+        }
+        packer.flush();
+
+        List<String> unpacked = new ArrayList<>();
+        int bodies = 0;
+        for (List<String> batch : batches) {
+            assertTrue(batch.size() <= MessagePacker.SQS_MAX_BATCH_ENTRIES);
+            for (String body : batch) {
+                assertTrue(body.getBytes(StandardCharsets.UTF_8).length <= 100);
+                unpacked.addAll(MessagePacker.unpack(body));
+                bodies++;
+            }
+        }
+        assertEquals(records, unpacked);
+        assertEquals(500, packer.getRecordCount());
+        assertEquals(bodies, packer.getMessageCount());
+    }
+
+    @Test
+    void unpackAcceptsSingleRecordAndBlankLines() {
+        assertEquals(Collections.singletonList("a,b,1,2"), MessagePacker.unpack("a,b,1,2"));
+        assertEquals(Arrays.asList("a,b,1,2", "c,d,3,4"), MessagePacker.unpack("a,b,1,2\r\n\nc,d,3,4\n"));
+        assertTrue(MessagePacker.unpack("").isEmpty());
+    }
+
+    @Test
+    void flushWithoutRecordsEmitsNothing() {
+        List<List<String>> batches = new ArrayList<>();
+        new MessagePacker(batches::add).flush();
+        assertTrue(batches.isEmpty());
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.cloudworkers.common;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class RunningMomentsTest {
+
+    private static final double[] VALUES = {12, 7, 3, 44, 1_000_000, 5, 5, 19, 250, 0.5, 61};
+
+    @Test
+    void plusMatchesTwoPassComputation() {
+        RunningMoments moments = RunningMoments.EMPTY;
+        for (double value : VALUES) {
+            moments = moments.plus(value);
+        }
+
+        double mean = 0;
+        for (double value : VALUES) {
+            mean += value;
+        }
+        mean /= VALUES.length;
+        double m2 = 0;
+        for (double value : VALUES) {
+            m2 += (value - mean) * (value - mean);
+        }
+
+        assertEquals(VALUES.length, moments.getCount());
+        assertEquals(mean, moments.getMean(), 1e-9);
+        assertEquals(m2, moments.getM2(), 1e-3);
+        assertEquals(Math.sqrt(m2 / VALUES.length), moments.getStdDev(), 1e-9);
+    }
+
+    @Test
+    void mergeIsIndependentOfGroupingAndOrder() {
+        RunningMoments sequential = RunningMoments.EMPTY;
+        for (double value : VALUES) {
+            sequential = sequential.plus(value);
+        }
+
+        RunningMoments left = RunningMoments.EMPTY;
+        RunningMoments right = RunningMoments.EMPTY;
+        for (int i = 0; i < VALUES.length; i++) {
+            if (i % 3 == 0) {
+                left = left.plus(VALUES[i]);
+            } else {
+                right = right.plus(VALUES[i]);
+            }
+        }
+
+        for (RunningMoments merged : new RunningMoments[]{left.merge(right), right.merge(left)}) {
+            assertEquals(sequential.getCount(), merged.getCount());
+            assertEquals(sequential.getMean(), merged.getMean(), 1e-9);
+            assertEquals(sequential.getM2(), merged.getM2(), 1e-3);
+        }
+    }
+
+    @Test
+    void emptyIsTheIdentity() {
+        RunningMoments one = RunningMoments.of(42);
+        assertSame(one, one.merge(RunningMoments.EMPTY));
+        assertSame(one, RunningMoments.EMPTY.merge(one));
+        assertEquals(0.0, one.getStdDev());
+    }
+
+    @Test
+    void finalDataMergeMatchesSequentialSummaries() {
+        FinalData sequential = FinalData.EMPTY
+                .withSummary(100, 3)
+                .withSummary(300, 9)
+                .withSummary(50, 1);
+        FinalData merged = FinalData.ofSummary(50, 1)
+                .merge(FinalData.EMPTY.withSummary(100, 3).withSummary(300, 9));
+
+        assertEquals(3, merged.getTrafficNumber());
+        assertEquals(sequential.getAvgFlowDuration(), merged.getAvgFlowDuration(), 1e-9);
+        assertEquals(sequential.getStdDevFlowDuration(), merged.getStdDevFlowDuration(), 1e-9);
+        assertEquals(sequential.getAvgTotFwdPkts(), merged.getAvgTotFwdPkts(), 1e-9);
+        assertEquals(sequential.getStdDevTotFwdPkts(), merged.getStdDevTotFwdPkts(), 1e-9);
+    }
+}
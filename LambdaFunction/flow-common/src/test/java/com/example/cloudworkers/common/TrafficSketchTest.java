@@ -0,0 +1,109 @@
+package com.example.cloudworkers.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrafficSketchTest {
+
+    @Test
+    void findsTheHeavyPairsAmongMillionsOfPackets() {
+        TrafficSketch sketch = new TrafficSketch(100, 16, 1 << 14, 4, 12);
+        Map<String, Long> volumes = new HashMap<>();
+        SplittableRandom random = new SplittableRandom(3);
+        for (int i = 0; i < 300_000; i++) {
+            String srcIp;
+            String dstIp;
+            long pkts;
+            if (i % 100 == 0) {
+                // Ten heavy pairs, a third of the volume
+                srcIp = "10.0.0." + (i / 100 % 10);
+                dstIp = "192.168.0.1";
+                pkts = 50;
+            } else {
+                int pair = random.nextInt(1_000_000);
+                srcIp = "172.16." + (pair >>> 8 & 0xFF) + "." + (pair & 0xFF);
+                dstIp = "192.168.1." + (pair % 100);
+                pkts = 1 + random.nextInt(2);
+            }
+            sketch.add(srcIp, dstIp, pkts);
+            volumes.merge(srcIp + "," + dstIp, pkts, Long::sum);
+        }
+
+        List<String> top = new ArrayList<>();
+        sketch.forEachHeavyPair(10, (srcIp, dstIp, estimatedFwdPkts, maxError) -> {
+            long volume = volumes.get(srcIp + "," + dstIp);
+            assertTrue(estimatedFwdPkts >= volume && estimatedFwdPkts - maxError <= volume);
+            top.add(srcIp);
+        });
+        assertEquals(10, top.size());
+        for (String srcIp : top) {
+            assertTrue(srcIp.startsWith("10.0.0."), srcIp);
+            assertTrue(sketch.isHeavy(srcIp, "192.168.0.1"));
+        }
+        assertFalse(sketch.isHeavy("172.16.0.1", "192.168.1.1"));
+
+        // Count-Min never underestimates
+        volumes.forEach((keyPair, volume) -> {
+            int comma = keyPair.indexOf(',');
+            assertTrue(sketch.estimateFwdPkts(keyPair.substring(0, comma), keyPair.substring(comma + 1)) >= volume);
+        });
+        assertEquals(volumes.size(), sketch.estimateDistinctPairs(), volumes.size() * 0.05);
+    }
+
+    @Test
+    void countsTheDestinationsOfAScanningSource() {
+        TrafficSketch sketch = new TrafficSketch(16, 8, 1 << 10, 4, 12);
+        for (int i = 0; i < 50_000; i++) {
+            sketch.add("10.6.6.6", "192.168." + (i >>> 8 & 0xFF) + "." + (i & 0xFF), 1);
+            if (i % 10 == 0) {
+                sketch.add("10.0.0." + (i % 7), "192.168.0." + (i % 3), 1);
+            }
+        }
+
+        assertEquals(50_000, sketch.estimateFanOut("10.6.6.6"), 50_000 * 0.05);
+        assertEquals(3, sketch.estimateFanOut("10.0.0.1"));
+        assertEquals(-1, sketch.estimateFanOut("10.9.9.9"));
+        List<String> top = new ArrayList<>();
+        sketch.forEachTopFanOut(2, (srcIp, estimatedDestinations) -> top.add(srcIp));
+        assertEquals("10.6.6.6", top.get(0));
+        assertEquals(2, top.size());
+    }
+
+    @Test
+    void keepsItsSizeWhateverTheNumberOfPairs() {
+        TrafficSketch sketch = new TrafficSketch(100, 16, 1 << 14, 4, 10);
+        long size = sketch.sizeBytes();
+        for (int i = 0; i < 200_000; i++) {
+            sketch.add("10.0." + (i >>> 8 & 0xFF) + "." + (i & 0xFF), "192.168.0." + (i % 256), 1);
+        }
+        assertEquals(size, sketch.sizeBytes());
+
+        SpaceSaving<Integer> counters = new SpaceSaving<>(4);
+        for (int i = 0; i < 1000; i++) {
+            counters.add(i, 1);
+        }
+        assertEquals(4, counters.size());
+    }
+
+    @Test
+    void mergesHyperLogLogs() {
+        HyperLogLog a = new HyperLogLog(12);
+        HyperLogLog b = new HyperLogLog(12);
+        for (int i = 0; i < 20_000; i++) {
+            a.add(TrafficSketch.hash("a" + i));
+            b.add(TrafficSketch.hash("b" + i));
+            b.add(TrafficSketch.hash("a" + i));
+        }
+        a.merge(b);
+        assertEquals(40_000, a.estimate(), 40_000 * 0.05);
+    }
+}
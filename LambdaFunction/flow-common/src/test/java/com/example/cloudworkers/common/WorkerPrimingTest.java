@@ -0,0 +1,17 @@
+package com.example.cloudworkers.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WorkerPrimingTest {
+
+    @Test
+    void everyFormatReadsBackWhatWasWritten() throws IOException {
+        // Twice, as a checkpoint taken after a failed publication primes again
+        assertEquals(2, WorkerPriming.prime());
+        assertEquals(2, WorkerPriming.prime());
+    }
+}
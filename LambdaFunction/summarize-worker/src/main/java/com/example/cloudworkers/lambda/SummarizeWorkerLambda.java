@@ -3,33 +3,85 @@ package com.example.cloudworkers.lambda;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.example.cloudworkers.common.Compression;
+import com.example.cloudworkers.common.FlowSummarizer;
+import com.example.cloudworkers.common.MessagePacker;
+import com.example.cloudworkers.common.WorkerPriming;
+import org.crac.Core;
+import org.crac.Resource;
 import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
 import software.amazon.awssdk.regions.Region;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.Map;
-
-public class SummarizeWorkerLambda implements RequestHandler<S3Event, String> {
+public class SummarizeWorkerLambda implements RequestHandler<S3Event, String>, Resource {
+    private static final Logger logger = Logger.getLogger(SummarizeWorkerLambda.class.getName());
     private static final String BUCKET_NAME = "projetcloudiot";
     private static final String SQS_QUEUE_URL = "https://sqs.us-east-1.amazonaws.com/816069142521/SQS_SummarizeToConsolidate";
+    private static final int MAX_SEND_ATTEMPTS = 3;
 
     private final S3Client s3 = S3Client.builder()
             .region(Region.US_EAST_1)
+            .httpClient(ApacheHttpClient.create())
             .build();
 
     private final SqsClient sqs = SqsClient.builder()
             .region(Region.US_EAST_1)
+            .httpClient(ApacheHttpClient.create())
             .build();
 
+    public SummarizeWorkerLambda() {
+        // Primes the instance before a SnapStart checkpoint; does nothing without SnapStart
+        Core.getGlobalContext().register(this);
+    }
+
+    /**
+     * Runs once when a version is published with SnapStart, before the snapshot every
+     * sandbox is restored from: loads and initializes the flow formats and the S3 and
+     * SQS request paths, so the first event pays neither.
+     */
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> checkpoint) throws Exception {
+        WorkerPriming.prime();
+
+        // Whether the object or queue is readable does not matter, only that the calls were made
+        try {
+            s3.headObject(HeadObjectRequest.builder()
+                    .bucket(BUCKET_NAME)
+                    .key("unprocessed-data/")
+                    .build());
+        } catch (SdkException e) {
+            logger.warning("S3 priming call failed: " + e.getMessage());
+        }
+        try {
+            sqs.getQueueAttributes(GetQueueAttributesRequest.builder()
+                    .queueUrl(SQS_QUEUE_URL)
+                    .attributeNames(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)
+                    .build());
+        } catch (SdkException e) {
+            logger.warning("SQS priming call failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> checkpoint) {
+        // Connections opened before the checkpoint are reopened by the SDK on first use
+    }
+
     @Override
     public String handleRequest(S3Event event, Context context) {
         String srcBucket = event.getRecords().get(0).getS3().getBucket().getName();
@@ -37,13 +89,13 @@ public class SummarizeWorkerLambda implements RequestHandler<S3Event, String> {
 
         context.getLogger().log("Processing file: " + objectKey);
 
-        // Check if the object is in the unprocessed-data/ folder and is a CSV file
-        if (!objectKey.startsWith("unprocessed-data/") || !objectKey.endsWith(".csv")) {
+        // Check if the object is in the unprocessed-data/ folder and is a CSV file, plain or compressed
+        if (!objectKey.startsWith("unprocessed-data/") || !Compression.isFlowCsv(objectKey)) {
             context.getLogger().log("Ignoring non-CSV or non-target folder file: " + objectKey);
             return "Ignored";
         }
 
-        Map<String, Summary> summaryMap = new HashMap<>();
+        FlowSummarizer summarizer = new FlowSummarizer();
 
         try {
             GetObjectRequest getObj = GetObjectRequest.builder()
@@ -51,57 +103,72 @@ public class SummarizeWorkerLambda implements RequestHandler<S3Event, String> {
                     .key(objectKey)
                     .build();
 
-            ResponseInputStream<GetObjectResponse> s3Object = s3.getObject(getObj);
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(s3Object));
-            Iterable<CSVRecord> records = CSVFormat.DEFAULT
-                    .withFirstRecordAsHeader()
-                    .parse(reader);
-
-            for (CSVRecord record : records) {
-                String srcIp = record.get("Src IP");
-                String dstIp = record.get("Dst IP");
-                long flowDuration = Long.parseLong(record.get("Flow Duration"));
-                long totFwdPkts = Long.parseLong(record.get("Tot Fwd Pkts"));
-
-                String keyPair = srcIp + "," + dstIp;
-                summaryMap.putIfAbsent(keyPair, new Summary());
-                Summary summary = summaryMap.get(keyPair);
-                summary.totalFlowDuration += flowDuration;
-                summary.totalFwdPkts += totFwdPkts;
+            // .csv.gz and .csv.zst are decompressed as they are read
+            try (ResponseInputStream<GetObjectResponse> s3Object = s3.getObject(getObj);
+                 InputStream csv = Compression.ofKey(objectKey).decompress(s3Object)) {
+                summarizer.addCsv(csv);
             }
 
-            // Send each summary to SQS
-            for (Map.Entry<String, Summary> entry : summaryMap.entrySet()) {
-                String keyPair = entry.getKey();
-                Summary summary = entry.getValue();
-                String messageBody = keyPair + "," + summary.totalFlowDuration + "," + summary.totalFwdPkts;
-                sendMessageToSQS(messageBody, context);
-                context.getLogger().log("Sent summary to SQS: " + messageBody);
-            }
+            // Pack the summaries into as few SendMessageBatch calls as possible, in the compact binary format
+            MessagePacker packer = new MessagePacker(MessagePacker.DEFAULT_MAX_BODY_BYTES, MessagePacker.Format.BINARY,
+                    bodies -> sendBatchToSQS(bodies, context));
+            summarizer.forEach(packer::addSummary);
+            packer.flush();
+            context.getLogger().log("Sent " + packer.getRecordCount() + " summaries of " + summarizer.getRowCount()
+                    + " rows to SQS in " + packer.getMessageCount() + " messages");
 
             return "Success";
         } catch (Exception e) {
             context.getLogger().log("Error processing file " + objectKey + ": " + e.getMessage());
-            return "Error";
+            // Failing the invocation has Lambda retry the event
+            throw new IllegalStateException("Failed to summarize " + objectKey, e);
         }
     }
 
-    public void sendMessageToSQS(String messageBody, Context context) {
-        try {
-            SendMessageRequest sendMsgRequest = SendMessageRequest.builder()
-                    .queueUrl(SQS_QUEUE_URL)
-                    .messageBody(messageBody)
-                    .build();
-
-            sqs.sendMessage(sendMsgRequest);
-        } catch (Exception e) {
-            context.getLogger().log("Error sending message to SQS: " + e.getMessage());
+    /**
+     * Sends up to ten message bodies in a single request. Entries SQS fails to take for
+     * a fault of its own, or all of them if the request fails, are sent again, up to
+     * {@code MAX_SEND_ATTEMPTS} attempts in all.
+     *
+     * @throws IllegalStateException if any of them is still not delivered, or was rejected.
+     */
+    public void sendBatchToSQS(List<String> messageBodies, Context context) {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>();
+        for (int i = 0; i < messageBodies.size(); i++) {
+            entries.add(SendMessageBatchRequestEntry.builder()
+                    .id(Integer.toString(i))
+                    .messageBody(messageBodies.get(i))
+                    .build());
+        }
+        for (int attempt = 1; ; attempt++) {
+            List<SendMessageBatchRequestEntry> unsent = new ArrayList<>();
+            try {
+                SendMessageBatchResponse response = sqs.sendMessageBatch(SendMessageBatchRequest.builder()
+                        .queueUrl(SQS_QUEUE_URL)
+                        .entries(entries)
+                        .build());
+                for (BatchResultErrorEntry failed : response.failed()) {
+                    context.getLogger().log("Message " + failed.id() + " rejected by SQS: " + failed.code() + " " + failed.message());
+                    if (failed.senderFault()) {
+                        throw new IllegalStateException("Message rejected by SQS: " + failed.code() + " " + failed.message());
+                    }
+                    for (SendMessageBatchRequestEntry entry : entries) {
+                        if (entry.id().equals(failed.id())) {
+                            unsent.add(entry);
+                        }
+                    }
+                }
+            } catch (SdkException e) {
+                context.getLogger().log("Error sending message batch to SQS (attempt " + attempt + "): " + e.getMessage());
+                unsent = entries;
+            }
+            if (unsent.isEmpty()) {
+                return;
+            }
+            if (attempt >= MAX_SEND_ATTEMPTS) {
+                throw new IllegalStateException(unsent.size() + " messages were not delivered to SQS");
+            }
+            entries = unsent;
         }
-    }
-
-    private static class Summary {
-        long totalFlowDuration = 0;
-        long totalFwdPkts = 0;
     }
 }
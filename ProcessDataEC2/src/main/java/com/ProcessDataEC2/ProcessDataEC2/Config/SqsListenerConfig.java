@@ -0,0 +1,27 @@
+package com.ProcessDataEC2.ProcessDataEC2.Config;
+
+import io.awspring.cloud.sqs.config.SqsMessageListenerContainerFactory;
+import io.awspring.cloud.sqs.listener.acknowledgement.handler.AcknowledgementMode;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+
+/**
+ * Container factory of the {@code @SqsListener} methods.
+ *
+ * The listeners receive batches and acknowledge each message they handled themselves,
+ * so a failure only leaves the affected messages on the queue. Concurrency, messages
+ * per poll and poll timeout are set per listener on the annotations, from the
+ * {@code app.sqs.listener.<stage>.*} properties.
+ */
+@Configuration
+public class SqsListenerConfig {
+
+    @Bean
+    public SqsMessageListenerContainerFactory<Object> defaultSqsListenerContainerFactory(SqsAsyncClient sqsAsyncClient) {
+        return SqsMessageListenerContainerFactory.builder()
+                .sqsAsyncClient(sqsAsyncClient)
+                .configure(options -> options.acknowledgementMode(AcknowledgementMode.MANUAL))
+                .build();
+    }
+}
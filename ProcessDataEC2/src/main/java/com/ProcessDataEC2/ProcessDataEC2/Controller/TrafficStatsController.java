@@ -0,0 +1,113 @@
+package com.ProcessDataEC2.ProcessDataEC2.Controller;
+
+import com.ProcessDataEC2.ProcessDataEC2.Model.ErrorResponse;
+import com.ProcessDataEC2.ProcessDataEC2.Model.FanOut;
+import com.ProcessDataEC2.ProcessDataEC2.Model.PairStats;
+import com.ProcessDataEC2.ProcessDataEC2.Service.TrafficStatsQueryService;
+import com.ProcessDataEC2.ProcessDataEC2.Service.TrafficStatsQueryService.RankBy;
+import com.ProcessDataEC2.ProcessDataEC2.Store.TrafficSketchStore;
+import com.ProcessDataEC2.ProcessDataEC2.Store.WindowedStatsStore;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Optional;
+
+/**
+ * Query API over the consolidated traffic statistics of this instance.
+ *
+ * IPs are passed as query parameters, so IPv6 addresses need no escaping in the path.
+ * The time windows of a pair are only served with {@code app.window.enabled=true}, and
+ * the sketch estimates under {@code /sketch} with {@code app.sketch.enabled=true}.
+ */
+@RestController
+@RequestMapping("/api/stats")
+public class TrafficStatsController {
+
+    private final TrafficStatsQueryService queryService;
+    private final Optional<WindowedStatsStore> windowedStatsStore;
+    private final Optional<TrafficSketchStore> sketchStore;
+
+    public TrafficStatsController(TrafficStatsQueryService queryService,
+                                  Optional<WindowedStatsStore> windowedStatsStore,
+                                  Optional<TrafficSketchStore> sketchStore) {
+        this.queryService = queryService;
+        this.windowedStatsStore = windowedStatsStore;
+        this.sketchStore = sketchStore;
+    }
+
+    @GetMapping("/pair")
+    public ResponseEntity<?> pair(@RequestParam String srcIp, @RequestParam String dstIp) {
+        PairStats stats = queryService.pair(srcIp, dstIp);
+        if (stats == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(new ErrorResponse("No traffic from " + srcIp + " to " + dstIp));
+        }
+        return ResponseEntity.ok(stats);
+    }
+
+    @GetMapping("/destinations")
+    public ResponseEntity<?> destinations(@RequestParam String srcIp,
+                                          @RequestParam(required = false) String after,
+                                          @RequestParam(defaultValue = "0") int offset,
+                                          @RequestParam(defaultValue = "100") int limit) {
+        try {
+            return ResponseEntity.ok(queryService.destinations(srcIp, after, offset, limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(new ErrorResponse(e.getMessage()));
+        }
+    }
+
+    @GetMapping("/top")
+    public ResponseEntity<?> top(@RequestParam(defaultValue = "avgFlowDuration") String by,
+                                 @RequestParam(defaultValue = "0") int offset,
+                                 @RequestParam(defaultValue = "10") int limit) {
+        try {
+            return ResponseEntity.ok(queryService.top(RankBy.of(by), offset, limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(new ErrorResponse(e.getMessage()));
+        }
+    }
+
+    @GetMapping("/windows")
+    public ResponseEntity<?> windows(@RequestParam String srcIp, @RequestParam String dstIp) {
+        if (windowedStatsStore.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(new ErrorResponse("Time windows are disabled (app.window.enabled)"));
+        }
+        return ResponseEntity.ok(windowedStatsStore.get().windowsOf(srcIp, dstIp));
+    }
+
+    @GetMapping("/sketch/heavy")
+    public ResponseEntity<?> heavyPairs(@RequestParam(defaultValue = "10") int limit) {
+        if (sketchStore.isEmpty()) {
+            return sketchesDisabled();
+        }
+        return ResponseEntity.ok(sketchStore.get().heavyPairs(limit));
+    }
+
+    @GetMapping("/sketch/fanout")
+    public ResponseEntity<?> fanOut(@RequestParam(required = false) String srcIp,
+                                    @RequestParam(defaultValue = "10") int limit) {
+        if (sketchStore.isEmpty()) {
+            return sketchesDisabled();
+        }
+        if (srcIp == null) {
+            return ResponseEntity.ok(sketchStore.get().topFanOut(limit));
+        }
+        FanOut fanOut = sketchStore.get().fanOut(srcIp);
+        if (fanOut == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(new ErrorResponse("The destinations of " + srcIp + " are not counted"));
+        }
+        return ResponseEntity.ok(fanOut);
+    }
+
+    private static ResponseEntity<ErrorResponse> sketchesDisabled() {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                .body(new ErrorResponse("Traffic sketches are disabled (app.sketch.enabled)"));
+    }
+}
@@ -0,0 +1,166 @@
+package com.ProcessDataEC2.ProcessDataEC2.Messaging;
+
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.example.cloudworkers.common.MessagePacker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends packed record batches with SendMessageBatch.
+ *
+ * Summaries and final data are packed in {@code app.sqs.messageFormat}: binary (the
+ * default, see {@link com.example.cloudworkers.common.BinaryMessageCodec}) or text,
+ * for consumers that predate the binary format. Consumers read both.
+ *
+ * Entries rejected by SQS (throttling, transient errors) are resent a bounded
+ * number of times. A send completes exceptionally if any of its entries is still not
+ * delivered then, or was rejected for a fault of the sender.
+ *
+ * The packers of {@link #packerFor} send their batches as they fill up and wait for
+ * all of them in {@link MessagePacker#flush()}, which throws if any was not
+ * delivered: once flush returns, every record added before is on the queue, and the
+ * message or file it came from can be acknowledged or checkpointed.
+ */
+@Component
+public class SqsBatchSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(SqsBatchSender.class);
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final SqsAsyncClient sqsAsyncClient;
+    private final AtomicInteger inFlight;
+
+    @Value("${app.sqs.maxMessageBytes:" + MessagePacker.DEFAULT_MAX_BODY_BYTES + "}")
+    private int maxMessageBytes = MessagePacker.DEFAULT_MAX_BODY_BYTES;
+
+    @Value("${app.sqs.messageFormat:binary}")
+    private String messageFormat = "binary";
+
+    public SqsBatchSender(SqsAsyncClient sqsAsyncClient, PipelineMetrics metrics) {
+        this.sqsAsyncClient = sqsAsyncClient;
+        this.inFlight = metrics.sqsSendsInFlight();
+    }
+
+    /**
+     * Returns a packer in the configured format whose completed batches are sent to the given queue.
+     * Not thread safe, like every packer.
+     */
+    public MessagePacker packerFor(String queueUrl) {
+        return packerFor(queueUrl, MessagePacker.Format.named(messageFormat));
+    }
+
+    public MessagePacker packerFor(String queueUrl, MessagePacker.Format format) {
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        return new MessagePacker(maxMessageBytes, format, bodies -> sends.add(send(queueUrl, bodies)),
+                () -> awaitDelivery(queueUrl, sends));
+    }
+
+    /**
+     * Waits for every send made since the last call, then forgets them.
+     *
+     * @throws IllegalStateException if any of them was not delivered.
+     */
+    private static void awaitDelivery(String queueUrl, List<CompletableFuture<Void>> sends) {
+        CompletableFuture<?>[] pending = sends.toArray(new CompletableFuture<?>[0]);
+        sends.clear();
+        int failed = 0;
+        Throwable cause = null;
+        for (CompletableFuture<?> send : pending) {
+            try {
+                send.join();
+            } catch (CompletionException | CancellationException e) {
+                failed++;
+                cause = cause == null ? (e.getCause() == null ? e : e.getCause()) : cause;
+            }
+        }
+        if (failed > 0) {
+            throw new IllegalStateException(failed + " of " + pending.length + " batches to " + queueUrl
+                    + " were not delivered", cause);
+        }
+    }
+
+    /**
+     * Sends up to ten message bodies in a single request.
+     */
+    public CompletableFuture<Void> send(String queueUrl, List<String> bodies) {
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>(bodies.size());
+        for (int i = 0; i < bodies.size(); i++) {
+            entries.add(SendMessageBatchRequestEntry.builder()
+                    .id(Integer.toString(i))
+                    .messageBody(bodies.get(i))
+                    .build());
+        }
+        inFlight.incrementAndGet();
+        return send(queueUrl, entries, 1)
+                .whenComplete((ignored, err) -> inFlight.decrementAndGet());
+    }
+
+    private CompletableFuture<Void> send(String queueUrl, List<SendMessageBatchRequestEntry> entries, int attempt) {
+        return sqsAsyncClient.sendMessageBatch(SendMessageBatchRequest.builder()
+                        .queueUrl(queueUrl)
+                        .entries(entries)
+                        .build())
+                .handle((resp, err) -> {
+                    if (err != null) {
+                        if (attempt < MAX_ATTEMPTS) {
+                            logger.warn("SendMessageBatch to {} failed (attempt {}): {}", queueUrl, attempt, err.getMessage());
+                            return send(queueUrl, entries, attempt + 1);
+                        }
+                        logger.error("Failed to send {} messages to {}: {}", entries.size(), queueUrl, err.getMessage(), err);
+                        return CompletableFuture.<Void>failedFuture(new IllegalStateException(
+                                entries.size() + " messages to " + queueUrl + " were not delivered", err));
+                    }
+                    if (!resp.hasFailed() || resp.failed().isEmpty()) {
+                        logger.debug("Sent batch of {} messages to {}", entries.size(), queueUrl);
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+
+                    List<SendMessageBatchRequestEntry> retry = new ArrayList<>();
+                    BatchResultErrorEntry lost = null;
+                    for (BatchResultErrorEntry failed : resp.failed()) {
+                        SendMessageBatchRequestEntry entry = entries.get(Integer.parseInt(failed.id()));
+                        if (failed.senderFault() || attempt >= MAX_ATTEMPTS) {
+                            logger.error("Message {} rejected by {}: {} {}", failed.id(), queueUrl, failed.code(), failed.message());
+                            lost = failed;
+                        } else {
+                            retry.add(entry);
+                        }
+                    }
+                    CompletableFuture<Void> retried = retry.isEmpty()
+                            ? CompletableFuture.<Void>completedFuture(null)
+                            : send(queueUrl, reindex(retry), attempt + 1);
+                    if (lost == null) {
+                        return retried;
+                    }
+                    IllegalStateException rejected = new IllegalStateException("Message rejected by " + queueUrl + ": "
+                            + lost.code() + " " + lost.message());
+                    // The retried entries still complete before the send is reported failed
+                    return retried.<Void>handle((ignored, retryErr) -> {
+                        throw rejected;
+                    });
+                })
+                .thenCompose(f -> f);
+    }
+
+    private static List<SendMessageBatchRequestEntry> reindex(List<SendMessageBatchRequestEntry> entries) {
+        List<SendMessageBatchRequestEntry> reindexed = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            reindexed.add(entries.get(i).toBuilder().id(Integer.toString(i)).build());
+        }
+        return reindexed;
+    }
+}
@@ -0,0 +1,52 @@
+package com.ProcessDataEC2.ProcessDataEC2.Messaging;
+
+import io.awspring.cloud.sqs.listener.acknowledgement.BatchAcknowledgement;
+import org.springframework.messaging.Message;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Glue between the batch {@code @SqsListener} methods and the services, which take
+ * plain message bodies and report which of them they handled.
+ */
+public final class SqsBatches {
+
+    private SqsBatches() {
+    }
+
+    public static List<String> payloads(List<Message<String>> messages) {
+        List<String> payloads = new ArrayList<>(messages.size());
+        for (Message<String> message : messages) {
+            payloads.add(message.getPayload());
+        }
+        return payloads;
+    }
+
+    /**
+     * The SQS message id of every message, which Spring Cloud AWS sets as the id header.
+     */
+    public static List<String> messageIds(List<Message<String>> messages) {
+        List<String> ids = new ArrayList<>(messages.size());
+        for (Message<String> message : messages) {
+            ids.add(String.valueOf(message.getHeaders().getId()));
+        }
+        return ids;
+    }
+
+    /**
+     * Acknowledges the messages whose index is set in {@code handled}; the others
+     * become visible again once their visibility timeout expires.
+     */
+    public static void acknowledge(List<Message<String>> messages, BitSet handled,
+                                   BatchAcknowledgement<String> acknowledgement) {
+        List<Message<String>> acknowledged = new ArrayList<>(handled.cardinality());
+        for (int i = handled.nextSetBit(0); i >= 0 && i < messages.size(); i = handled.nextSetBit(i + 1)) {
+            acknowledged.add(messages.get(i));
+        }
+        if (!acknowledged.isEmpty()) {
+            acknowledgement.acknowledge(acknowledged);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.ProcessDataEC2.ProcessDataEC2.Metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Meters of the three pipeline stages, exposed through the actuator
+ * ({@code /actuator/metrics} and {@code /actuator/prometheus}).
+ *
+ * Counters are monotonic, so throughput such as rows parsed per second is
+ * the rate of the counter over the scrape interval.
+ */
+@Component
+public class PipelineMetrics {
+
+    public static final String SUMMARIZE = "summarize";
+    public static final String CONSOLIDATE = "consolidate";
+    public static final String EXPORT = "export";
+
+    public static final String GET = "GetObject";
+    public static final String PUT = "PutObject";
+
+    private final MeterRegistry registry;
+    private final Counter rowsParsed;
+    private final AtomicInteger sqsSendsInFlight = new AtomicInteger();
+
+    public PipelineMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.rowsParsed = Counter.builder("pipeline.summarize.rows")
+                .description("Flow records parsed from uploaded CSV files")
+                .register(registry);
+        Gauge.builder("pipeline.sqs.sends.inflight", sqsSendsInFlight, AtomicInteger::get)
+                .description("SendMessageBatch requests awaiting a response")
+                .register(registry);
+    }
+
+    public void rowsParsed(long rows) {
+        rowsParsed.increment(rows);
+    }
+
+    /**
+     * Records that a stage emitted {@code pairs} records to the next queue.
+     */
+    public void pairsEmitted(String stage, long pairs) {
+        Counter.builder("pipeline.pairs.emitted")
+                .description("Pair records sent to the next stage")
+                .tag("stage", stage)
+                .register(registry)
+                .increment(pairs);
+    }
+
+    /**
+     * Records one message handled by a listener, with the time spent in the handler.
+     */
+    public void messageHandled(String listener, boolean success, long nanos) {
+        Timer.builder("pipeline.messages")
+                .description("Messages handled per listener")
+                .tag("listener", listener)
+                .tag("outcome", success ? "success" : "failure")
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records a batch of messages handled together by a listener. Every message is also
+     * recorded by {@link #messageHandled}, with an equal share of the batch time.
+     */
+    public void batchHandled(String listener, int messages, int failed, long nanos) {
+        Timer.builder("pipeline.batches")
+                .description("Message batches handled per listener")
+                .tag("listener", listener)
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        for (int i = 0; i < messages; i++) {
+            messageHandled(listener, i >= failed, nanos / messages);
+        }
+    }
+
+    /**
+     * Records one S3 request and the bytes it transferred.
+     *
+     * @param object what was transferred, e.g. "finalData" or "input".
+     */
+    public void s3Request(String operation, String object, long nanos, long bytes) {
+        Timer.builder("pipeline.s3.requests")
+                .description("Latency of S3 requests")
+                .tag("operation", operation)
+                .tag("object", object)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        if (bytes > 0) {
+            Counter.builder("pipeline.s3.bytes")
+                    .description("Bytes transferred to and from S3")
+                    .baseUnit("bytes")
+                    .tag("operation", operation)
+                    .tag("object", object)
+                    .register(registry)
+                    .increment(bytes);
+        }
+    }
+
+    /**
+     * Exposes the depth of an in-memory queue of the fused pipeline feeding {@code stage}.
+     */
+    public void fusedQueue(String stage, Collection<?> queue) {
+        Gauge.builder("pipeline.fused.queue", queue, Collection::size)
+                .description("Record batches waiting in the fused pipeline")
+                .tag("stage", stage)
+                .register(registry);
+    }
+
+    /**
+     * Records the time from a batch of summaries entering the fused pipeline to its export.
+     */
+    public void fusedBatchExported(long nanos) {
+        Timer.builder("pipeline.fused.latency")
+                .description("Time from summarized to exported in the fused pipeline")
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Tracks the asynchronous SQS sends that have not completed yet.
+     */
+    public AtomicInteger sqsSendsInFlight() {
+        return sqsSendsInFlight;
+    }
+}
@@ -0,0 +1,4 @@
+package com.ProcessDataEC2.ProcessDataEC2.Model;
+
+public record ErrorResponse(String error) {
+}
@@ -0,0 +1,7 @@
+package com.ProcessDataEC2.ProcessDataEC2.Model;
+
+/**
+ * The estimated number of distinct destinations of a source, as returned by the query API.
+ */
+public record FanOut(String srcIp, long estimatedDestinations) {
+}
@@ -0,0 +1,8 @@
+package com.ProcessDataEC2.ProcessDataEC2.Model;
+
+/**
+ * A pair with one of the largest Tot Fwd Pkts volumes, as returned by the query API.
+ * The volume is an estimate that may be up to {@code maxError} too high.
+ */
+public record HeavyPair(String srcIp, String dstIp, long estimatedFwdPkts, long maxError) {
+}
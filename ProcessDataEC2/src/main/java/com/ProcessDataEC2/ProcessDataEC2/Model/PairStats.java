@@ -0,0 +1,25 @@
+package com.ProcessDataEC2.ProcessDataEC2.Model;
+
+import com.example.cloudworkers.common.FinalData;
+
+/**
+ * Consolidated statistics of one Src IP / Dst IP pair, as returned by the query API.
+ */
+public record PairStats(String srcIp, String dstIp, long trafficNumber,
+                        double avgFlowDuration, double stdDevFlowDuration,
+                        double avgTotFwdPkts, double stdDevTotFwdPkts) {
+
+    public static PairStats of(String srcIp, String dstIp, FinalData data) {
+        return new PairStats(srcIp, dstIp, data.getTrafficNumber(),
+                data.getAvgFlowDuration(), data.getStdDevFlowDuration(),
+                data.getAvgTotFwdPkts(), data.getStdDevTotFwdPkts());
+    }
+
+    /**
+     * @param keyPair "SrcIP,DstIP", as the pairs are keyed in the store.
+     */
+    public static PairStats of(String keyPair, FinalData data) {
+        int comma = keyPair.indexOf(',');
+        return of(keyPair.substring(0, comma), keyPair.substring(comma + 1), data);
+    }
+}
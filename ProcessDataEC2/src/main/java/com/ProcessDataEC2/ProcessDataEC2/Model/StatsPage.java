@@ -0,0 +1,11 @@
+package com.ProcessDataEC2.ProcessDataEC2.Model;
+
+import java.util.List;
+
+/**
+ * One page of a query result.
+ *
+ * @param total the number of results over all pages.
+ */
+public record StatsPage(List<PairStats> items, int offset, int limit, long total) {
+}
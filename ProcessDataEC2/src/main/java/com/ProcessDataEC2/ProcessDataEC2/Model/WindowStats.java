@@ -0,0 +1,8 @@
+package com.ProcessDataEC2.ProcessDataEC2.Model;
+
+/**
+ * Totals of one Src IP / Dst IP pair over one time window, as returned by the query API.
+ * Window bounds are epoch seconds, the end excluded.
+ */
+public record WindowStats(long windowStart, long windowEnd, long totalFlowDuration, long totalFwdPkts) {
+}
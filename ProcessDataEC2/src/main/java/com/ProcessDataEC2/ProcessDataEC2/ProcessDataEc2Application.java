@@ -3,11 +3,17 @@ package com.ProcessDataEC2.ProcessDataEC2;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+import java.util.Map;
+
 @SpringBootApplication
 public class ProcessDataEc2Application {
 
 	public static void main(String[] args) {
-		SpringApplication.run(ProcessDataEc2Application.class, args);
+		SpringApplication application = new SpringApplication(ProcessDataEc2Application.class);
+		// Overridable in application.properties
+		application.setDefaultProperties(Map.of(
+				"management.endpoints.web.exposure.include", "health,metrics,prometheus"));
+		application.run(args);
 	}
 
 }
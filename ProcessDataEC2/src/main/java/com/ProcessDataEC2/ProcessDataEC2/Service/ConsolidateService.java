@@ -1,175 +1,195 @@
 package com.ProcessDataEC2.ProcessDataEC2.Service;
 
+import com.ProcessDataEC2.ProcessDataEC2.Messaging.SqsBatchSender;
+import com.ProcessDataEC2.ProcessDataEC2.Messaging.SqsBatches;
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.ProcessDataEC2.ProcessDataEC2.Store.ConsolidatedStore;
+import com.ProcessDataEC2.ProcessDataEC2.Store.TrafficSketchStore;
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataMessage;
+import com.example.cloudworkers.common.MessagePacker;
+import com.example.cloudworkers.common.SummaryMessage;
 import io.awspring.cloud.sqs.annotation.SqsListener;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
+import io.awspring.cloud.sqs.listener.acknowledgement.BatchAcknowledgement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
 import org.springframework.stereotype.Service;
-import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.services.s3.model.*;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.sqs.SqsAsyncClient;
-import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
-
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.HashMap;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 /**
  * This service listens to the Summarize -> Consolidate SQS queue,
- * loads existing finalData, updates or creates a new record with
- * average & std dev computations, then sends to Consolidate->Export queue.
+ * updates or creates the record of each pair in the resident
+ * {@link ConsolidatedStore} with mergeable mean & M2 moments,
+ * then sends to Consolidate->Export queue.
+ *
+ * Messages are acknowledged only once their Export records are confirmed sent. For
+ * the last {@code app.consolidate.appliedMessageIds} messages applied, the id is
+ * remembered with the number of its records applied, so a redelivered message only
+ * applies the records it had not: the current statistics of the others are sent
+ * again instead. A message that failed part-way, or whose sends failed, never counts
+ * a summary twice.
+ *
+ * With {@code app.sketch.enabled=true} every summary also goes into the
+ * {@link TrafficSketchStore}, which may leave out of the consolidated store the pairs
+ * that are not heavy hitters; those are not exported either.
  */
 @Service
 public class ConsolidateService {
 
     private static final Logger logger = LoggerFactory.getLogger(ConsolidateService.class);
 
-    @Value("${app.s3.bucketName}")
-    private String bucketName;
-
-    @Value("${app.s3.finalDataKey}")
-    private String finalDataKey;
-
     @Value("${app.sqs.consolidateToExportQueue}")
     private String consolidateToExportQueueUrl;
 
-    private final S3Client s3Client;
-    private final SqsAsyncClient sqsAsyncClient;
+    @Value("${app.consolidate.appliedMessageIds:100000}")
+    private int appliedMessageIdCapacity = 100_000;
 
-    public ConsolidateService(S3Client s3Client, SqsAsyncClient sqsAsyncClient) {
-        this.s3Client = s3Client;
-        this.sqsAsyncClient = sqsAsyncClient;
+    // The number of records applied of the most recently applied messages, by id, oldest first
+    private final Map<String, Integer> appliedRecords = Collections.synchronizedMap(
+            new LinkedHashMap<String, Integer>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > appliedMessageIdCapacity;
+                }
+            });
+
+    private final ConsolidatedStore consolidatedStore;
+    private final SqsBatchSender sqsBatchSender;
+    private final Optional<TrafficSketchStore> sketchStore;
+    private final PipelineMetrics metrics;
+
+    public ConsolidateService(ConsolidatedStore consolidatedStore, SqsBatchSender sqsBatchSender,
+                              Optional<TrafficSketchStore> sketchStore, PipelineMetrics metrics) {
+        this.consolidatedStore = consolidatedStore;
+        this.sqsBatchSender = sqsBatchSender;
+        this.sketchStore = sketchStore;
+        this.metrics = metrics;
     }
 
-    @SqsListener("https://sqs.us-east-1.amazonaws.com/816069142521/SQS_SummarizeToConsolidate")
-    public void handleConsolidation(String message) {
-        // message format: SrcIP,DstIP,TotalFlowDuration,TotalFwdPkts
-        logger.info("Received Consolidation message: {}", message);
+    /**
+     * Receives up to {@code app.sqs.listener.consolidate.maxMessagesPerPoll} messages and
+     * consolidates them as one group, so their Export records share fewer, fuller messages.
+     */
+    @SqsListener(value = "${app.sqs.summarizeToConsolidateQueue}",
+            maxConcurrentMessages = "${app.sqs.listener.consolidate.maxConcurrentMessages:40}",
+            maxMessagesPerPoll = "${app.sqs.listener.consolidate.maxMessagesPerPoll:10}",
+            pollTimeoutSeconds = "${app.sqs.listener.consolidate.pollTimeoutSeconds:10}")
+    public void onConsolidation(List<Message<String>> messages, BatchAcknowledgement<String> acknowledgement) {
+        SqsBatches.acknowledge(messages, handleConsolidation(SqsBatches.messageIds(messages),
+                SqsBatches.payloads(messages)), acknowledgement);
+    }
 
-        try {
-            String[] parts = message.split(",");
-            if (parts.length != 4) {
-                logger.warn("Invalid message format for Consolidation: {}", message);
-                return;
-            }
+    /**
+     * Consolidates messages without ids, which are never recognized as redelivered.
+     */
+    public BitSet handleConsolidation(List<String> messages) {
+        return handleConsolidation(null, messages);
+    }
 
-            String srcIp = parts[0];
-            String dstIp = parts[1];
-            long totalFlowDuration = Long.parseLong(parts[2]);
-            long totalFwdPkts = Long.parseLong(parts[3]);
-
-            // 1. Fetch existing finalData from S3
-            logger.debug("Fetching existing finalData.csv from bucket={} key={}", bucketName, finalDataKey);
-            Map<String, FinalData> finalDataMap = fetchFinalData();
-
-            // 2. Compute new stats
-            String keyPair = srcIp + "," + dstIp;
-            FinalData existing = finalDataMap.getOrDefault(keyPair, new FinalData());
-
-            double newAvgFlowDuration = (existing.avgFlowDuration * existing.trafficNumber + totalFlowDuration)
-                    / (existing.trafficNumber + 1);
-            double newStdDevFlowDuration = Math.abs(totalFlowDuration - newAvgFlowDuration); 
-            double newAvgTotFwdPkts = (existing.avgTotFwdPkts * existing.trafficNumber + totalFwdPkts)
-                    / (existing.trafficNumber + 1);
-            double newStdDevTotFwdPkts = Math.abs(totalFwdPkts - newAvgTotFwdPkts);
-            int newTrafficNumber = existing.trafficNumber + 1;
-
-            logger.debug("For keyPair={} => newAvgFlowDuration={}, newStdDevFlowDuration={}, newAvgTotFwdPkts={}, newStdDevTotFwdPkts={}, newTrafficNumber={}",
-                    keyPair, newAvgFlowDuration, newStdDevFlowDuration, newAvgTotFwdPkts, newStdDevTotFwdPkts, newTrafficNumber);
-
-            // 3. Build output data
-            String calculatedData = String.format("%s,%s,%.2f,%.2f,%.2f,%.2f,%d",
-                    srcIp, dstIp,
-                    newAvgFlowDuration,
-                    newStdDevFlowDuration,
-                    newAvgTotFwdPkts,
-                    newStdDevTotFwdPkts,
-                    newTrafficNumber
-            );
-
-            // 4. Send to Consolidate->Export queue
-            logger.debug("Sending calculated data to Export queue={} : {}", consolidateToExportQueueUrl, calculatedData);
-            sqsAsyncClient.sendMessage(
-                    SendMessageRequest.builder()
-                            .queueUrl(consolidateToExportQueueUrl)
-                            .messageBody(calculatedData)
-                            .build()
-            ).whenComplete((resp, err) -> {
-                if (err != null) {
-                    logger.error("Failed to send message to Export queue: {}", err.getMessage(), err);
-                } else {
-                    logger.info("Successfully sent message to Export queue: {}", calculatedData);
+    /**
+     * message format: {@link SummaryMessage} records, binary or one SrcIP,DstIP,TotalFlowDuration,TotalFwdPkts per line
+     *
+     * A message is handled once all its records are applied and their Export records
+     * confirmed sent. If any send fails, no message is handled. Applying a summary is
+     * not idempotent, so the records applied of every message with an id are counted
+     * as they are: redelivered, it skips those, in the order they are unpacked.
+     *
+     * @param messageIds the SQS message id of every message, or null.
+     * @return the indexes of the messages that were handled and can be deleted.
+     */
+    public BitSet handleConsolidation(List<String> messageIds, List<String> messages) {
+        logger.info("Received {} Consolidation messages", messages.size());
+        long started = System.nanoTime();
+        BitSet handled = new BitSet(messages.size());
+
+        MessagePacker packer = sqsBatchSender.packerFor(consolidateToExportQueueUrl);
+        for (int i = 0; i < messages.size(); i++) {
+            String messageId = messageIds == null ? null : messageIds.get(i);
+            Integer appliedBefore = messageId == null ? null : appliedRecords.get(messageId);
+            int applied = 0;
+            try {
+                for (SummaryMessage summary : SummaryMessage.unpack(messages.get(i),
+                        record -> logger.warn("Invalid message format for Consolidation: {}", record))) {
+                    // 1. Apply the summary to the resident statistics, unless it already was
+                    FinalData updated;
+                    if (appliedBefore != null && applied < appliedBefore) {
+                        updated = consolidatedStore.get(summary.getSrcIp(), summary.getDstIp());
+                    } else {
+                        updated = apply(summary);
+                    }
+                    applied++;
+                    if (updated == null) {
+                        continue;
+                    }
+
+                    // 2. Queue the calculated data for the Consolidate->Export queue
+                    packer.addFinalData(summary.getSrcIp(), summary.getDstIp(), updated);
                 }
-            });
+                handled.set(i);
+            } catch (Exception e) {
+                logger.error("Error consolidating message: {}", e.getMessage(), e);
+            } finally {
+                if (messageId != null && (appliedBefore == null || applied > appliedBefore)) {
+                    appliedRecords.put(messageId, applied);
+                }
+            }
+        }
 
+        try {
+            // 3. Send the remaining calculated data and wait until all of it is delivered
+            packer.flush();
+            logger.info("Consolidated {} records into {} Export messages", packer.getRecordCount(), packer.getMessageCount());
+            metrics.pairsEmitted(PipelineMetrics.CONSOLIDATE, packer.getRecordCount());
         } catch (Exception e) {
-            logger.error("Error consolidating message: {}", e.getMessage(), e);
+            // Redelivered, the applied messages only send their statistics again
+            logger.error("Error sending consolidated records: {}", e.getMessage(), e);
+            handled.clear();
+        } finally {
+            metrics.batchHandled(PipelineMetrics.CONSOLIDATE, messages.size(),
+                    messages.size() - handled.cardinality(), System.nanoTime() - started);
         }
+        return handled;
     }
 
-    private Map<String, FinalData> fetchFinalData() {
-        Map<String, FinalData> finalDataMap = new HashMap<>();
-        try {
-            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(finalDataKey)
-                    .build();
-
-            ResponseInputStream<GetObjectResponse> finalDataObj = s3Client.getObject(getObjectRequest);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(finalDataObj));
-
-            Iterable<CSVRecord> csvRecords = CSVFormat.DEFAULT
-                    .withFirstRecordAsHeader()
-                    .parse(reader);
-
-            for (CSVRecord record : csvRecords) {
-                String srcIp = record.get("Src IP");
-                String dstIp = record.get("Dst IP");
-                double avgFlowDuration = Double.parseDouble(record.get("Avg Flow Duration"));
-                double stdDevFlowDuration = Double.parseDouble(record.get("StdDev Flow Duration"));
-                double avgTotFwdPkts = Double.parseDouble(record.get("Avg Tot Fwd Pkts"));
-                double stdDevTotFwdPkts = Double.parseDouble(record.get("StdDev Tot Fwd Pkts"));
-                int trafficNumber = Integer.parseInt(record.get("TrafficNumber"));
-
-                String keyPair = srcIp + "," + dstIp;
-                finalDataMap.put(keyPair, new FinalData(
-                        avgFlowDuration,
-                        stdDevFlowDuration,
-                        avgTotFwdPkts,
-                        stdDevTotFwdPkts,
-                        trafficNumber
-                ));
+    /**
+     * Applies the summaries of the fused pipeline, which skips the SQS hop and its
+     * string encoding.
+     *
+     * @return the updated statistics of every summarized pair, in order.
+     */
+    public List<FinalDataMessage> consolidate(List<SummaryMessage> summaries) {
+        List<FinalDataMessage> updates = new ArrayList<>(summaries.size());
+        for (SummaryMessage summary : summaries) {
+            FinalData updated = apply(summary);
+            if (updated != null) {
+                updates.add(new FinalDataMessage(summary.getSrcIp(), summary.getDstIp(), updated));
             }
-            logger.info("Successfully loaded existing finalData.csv with {} records.", finalDataMap.size());
-
-        } catch (NoSuchKeyException e) {
-            logger.warn("No finalData.csv found in S3. Returning empty map.", e);
-        } catch (Exception e) {
-            logger.error("Error fetching finalData.csv: {}", e.getMessage(), e);
         }
-        return finalDataMap;
+        metrics.pairsEmitted(PipelineMetrics.CONSOLIDATE, updates.size());
+        return updates;
     }
 
-    private static class FinalData {
-        double avgFlowDuration = 0.0;
-        double stdDevFlowDuration = 0.0;
-        double avgTotFwdPkts = 0.0;
-        double stdDevTotFwdPkts = 0.0;
-        int trafficNumber = 0;
-
-        public FinalData() {}
-
-        public FinalData(double avgFlowDuration, double stdDevFlowDuration, double avgTotFwdPkts,
-                         double stdDevTotFwdPkts, int trafficNumber) {
-            this.avgFlowDuration = avgFlowDuration;
-            this.stdDevFlowDuration = stdDevFlowDuration;
-            this.avgTotFwdPkts = avgTotFwdPkts;
-            this.stdDevTotFwdPkts = stdDevTotFwdPkts;
-            this.trafficNumber = trafficNumber;
+    /**
+     * @return the updated statistics, or null if the sketches leave the pair out.
+     */
+    private FinalData apply(SummaryMessage summary) {
+        if (sketchStore.isPresent()
+                && !sketchStore.get().add(summary.getSrcIp(), summary.getDstIp(), summary.getTotalFwdPkts())
+                && consolidatedStore.get(summary.getSrcIp(), summary.getDstIp()) == null) {
+            return null;
         }
+        FinalData updated = consolidatedStore.apply(summary.getSrcIp(), summary.getDstIp(),
+                summary.getTotalFlowDuration(), summary.getTotalFwdPkts());
+        logger.debug("For keyPair={},{} => {}", summary.getSrcIp(), summary.getDstIp(), updated);
+        return updated;
     }
 }
@@ -1,194 +1,268 @@
 package com.ProcessDataEC2.ProcessDataEC2.Service;
 
+import com.ProcessDataEC2.ProcessDataEC2.Messaging.SqsBatches;
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.ProcessDataEC2.ProcessDataEC2.Store.FinalDataRepository;
+import com.ProcessDataEC2.ProcessDataEC2.Store.WriteBehindFinalDataWriter;
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataManifest;
+import com.example.cloudworkers.common.FinalDataMessage;
 import io.awspring.cloud.sqs.annotation.SqsListener;
-import org.apache.commons.csv.*;
+import io.awspring.cloud.sqs.listener.acknowledgement.BatchAcknowledgement;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
 import org.springframework.stereotype.Service;
-import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.services.s3.model.*;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.sqs.SqsAsyncClient;
-
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.util.HashMap;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Exports consolidated statistics to the sharded finalData objects.
+ *
+ * By default updates go through the {@link WriteBehindFinalDataWriter}, which writes
+ * each touched shard once per flush window. With {@code app.export.writeBehind=false}
+ * every message is written through with its own read-modify-write of the shards
+ * its records belong to. Either way, as records can be redelivered or reordered, the
+ * one with the highest TrafficNumber wins ({@link FinalData#newest}). Written through,
+ * concurrent listeners take turns on each shard, and on the whole dataset while it is
+ * resharded, so none overwrites the records another just wrote. This only holds
+ * within one instance.
+ *
+ * Written behind, records wait in memory for the next flush, so a batch is only
+ * acknowledged once the flush that writes its records succeeded, from the flush
+ * thread. The visibility timeout of the Consolidate -> Export queue must therefore
+ * exceed {@code app.export.flushIntervalMs}, or messages are received again before
+ * they could be acknowledged.
+ *
+ * finalData.csv holds the whole dataset, so when written through with
+ * {@code app.export.writeCsv=true} it is not rewritten per message: it is rebuilt from
+ * the shards every {@code app.export.csvIntervalMs} if any of them changed, and on
+ * shutdown.
+ */
 @Service
 public class ExportService {
 
     private static final Logger logger = LoggerFactory.getLogger(ExportService.class);
 
-    @Value("${app.s3.bucketName}")
-    private String bucketName;
+    private static final int SHARD_LOCK_STRIPES = 64;
+
+    private final FinalDataRepository finalDataRepository;
+    private final Optional<WriteBehindFinalDataWriter> writeBehindWriter;
+    private final PipelineMetrics metrics;
+
+    @Value("${app.export.csvIntervalMs:60000}")
+    private long csvIntervalMs = 60000;
 
-    @Value("${app.s3.finalDataKey}")
-    private String finalDataKey;
+    // Held shared to update shards, each under its stripe, and exclusively to reshard
+    private final ReadWriteLock datasetLock = new ReentrantReadWriteLock();
+    private final Lock[] shardLocks = new Lock[SHARD_LOCK_STRIPES];
+    private final AtomicBoolean csvStale = new AtomicBoolean();
+    private ScheduledExecutorService csvExecutor;
 
-    private final S3Client s3Client;
-    private final SqsAsyncClient sqsAsyncClient;
+    public ExportService(FinalDataRepository finalDataRepository,
+                         Optional<WriteBehindFinalDataWriter> writeBehindWriter,
+                         PipelineMetrics metrics) {
+        this.finalDataRepository = finalDataRepository;
+        this.writeBehindWriter = writeBehindWriter;
+        this.metrics = metrics;
+        for (int i = 0; i < shardLocks.length; i++) {
+            shardLocks[i] = new ReentrantLock();
+        }
+    }
 
-    public ExportService(S3Client s3Client, SqsAsyncClient sqsAsyncClient) {
-        this.s3Client = s3Client;
-        this.sqsAsyncClient = sqsAsyncClient;
+    @PostConstruct
+    public void start() {
+        if (writeBehindWriter.isPresent() || !finalDataRepository.isCsvEnabled()) {
+            return;
+        }
+        csvExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "finaldata-csv");
+            thread.setDaemon(true);
+            return thread;
+        });
+        csvExecutor.scheduleWithFixedDelay(this::writeCsv, csvIntervalMs, csvIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (csvExecutor != null) {
+            csvExecutor.shutdown();
+            csvExecutor.awaitTermination(csvIntervalMs, TimeUnit.MILLISECONDS);
+            writeCsv();
+        }
     }
 
     /**
-     * This method listens on the Consolidate -> Export queue.
-     * message format: srcIp,dstIp,avgFlowDuration,stdDevFlowDuration,avgTotFwdPkts,stdDevTotFwdPkts,trafficNumber
+     * Receives up to {@code app.sqs.listener.export.maxMessagesPerPoll} messages from the
+     * Consolidate -> Export queue and exports their records together.
      */
-    @SqsListener("https://sqs.us-east-1.amazonaws.com/816069142521/SQS_ConsolidateToExport")
-    public void handleExport(String messageBody) {
-        logger.info("Received Export message: {}", messageBody);
+    @SqsListener(value = "${app.sqs.consolidateToExportQueue}",
+            maxConcurrentMessages = "${app.sqs.listener.export.maxConcurrentMessages:10}",
+            maxMessagesPerPoll = "${app.sqs.listener.export.maxMessagesPerPoll:10}",
+            pollTimeoutSeconds = "${app.sqs.listener.export.pollTimeoutSeconds:10}")
+    public void onExport(List<Message<String>> messages, BatchAcknowledgement<String> acknowledgement) {
+        handleExport(SqsBatches.payloads(messages))
+                .thenAccept(handled -> SqsBatches.acknowledge(messages, handled, acknowledgement));
+    }
+
+    /**
+     * message format: {@link FinalDataMessage} records, binary or one per line
+     *
+     * The records of all messages are exported at once, so a written-through shard is
+     * rewritten once per batch rather than once per message. Records carry the whole
+     * state of their pair, so a batch that failed is simply exported again.
+     *
+     * @return completes with the indexes of the messages that were handled and can be
+     *         deleted, once their records are written.
+     */
+    public CompletableFuture<BitSet> handleExport(List<String> messageBodies) {
+        logger.info("Received {} Export messages", messageBodies.size());
+        long started = System.nanoTime();
+        CompletableFuture<Void> exported;
 
         try {
-            String[] parts = messageBody.split(",");
-            if (parts.length != 7) {
-                logger.warn("Invalid message format for Export: {}", messageBody);
-                return;
+            List<FinalDataMessage> messages = new ArrayList<>();
+            for (String messageBody : messageBodies) {
+                messages.addAll(FinalDataMessage.unpack(messageBody,
+                        record -> logger.warn("Invalid message format for Export: {}", record)));
             }
 
-            String srcIp = parts[0];
-            String dstIp = parts[1];
-            double avgFlowDuration = Double.parseDouble(parts[2]);
-            double stdDevFlowDuration = Double.parseDouble(parts[3]);
-            double avgTotFwdPkts = Double.parseDouble(parts[4]);
-            double stdDevTotFwdPkts = Double.parseDouble(parts[5]);
-            int trafficNumber = Integer.parseInt(parts[6]);
-
-            // 1. Fetch existing finalData
-            logger.debug("Loading existing finalData.csv from S3 (bucket={}, key={})", bucketName, finalDataKey);
-            Map<String, FinalData> finalDataMap = fetchFinalData();
-
-            // 2. Update or add the new record
-            String keyPair = srcIp + "," + dstIp;
-            FinalData data = new FinalData(
-                    avgFlowDuration,
-                    stdDevFlowDuration,
-                    avgTotFwdPkts,
-                    stdDevTotFwdPkts,
-                    trafficNumber
-            );
-            logger.debug("Updating keyPair={} with: {}", keyPair, data);
-            finalDataMap.put(keyPair, data);
-
-            // 3. Write finalData back to S3
-            writeFinalData(finalDataMap);
-            logger.info("Updated finalData.csv in S3 with message: {}", messageBody);
+            exported = export(messages);
 
         } catch (Exception e) {
-            logger.error("Error in ExportService: {}", e.getMessage(), e);
+            exported = CompletableFuture.failedFuture(e);
         }
-    }
+        long handlerNanos = System.nanoTime() - started;
 
-    private Map<String, FinalData> fetchFinalData() {
-        Map<String, FinalData> finalDataMap = new HashMap<>();
-        try {
-            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(finalDataKey)
-                    .build();
-
-            ResponseInputStream<GetObjectResponse> resp = s3Client.getObject(getObjectRequest);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(resp));
-
-            CSVParser parser = CSVFormat.DEFAULT
-                    .withFirstRecordAsHeader()
-                    .parse(reader);
-
-            for (CSVRecord record : parser) {
-                String srcIp = record.get("Src IP");
-                String dstIp = record.get("Dst IP");
-                double avgFlowDuration = Double.parseDouble(record.get("Avg Flow Duration"));
-                double stdDevFlowDuration = Double.parseDouble(record.get("StdDev Flow Duration"));
-                double avgTotFwdPkts = Double.parseDouble(record.get("Avg Tot Fwd Pkts"));
-                double stdDevTotFwdPkts = Double.parseDouble(record.get("StdDev Tot Fwd Pkts"));
-                int trafficNumber = Integer.parseInt(record.get("TrafficNumber"));
-
-                String keyPair = srcIp + "," + dstIp;
-                finalDataMap.put(keyPair, new FinalData(
-                        avgFlowDuration,
-                        stdDevFlowDuration,
-                        avgTotFwdPkts,
-                        stdDevTotFwdPkts,
-                        trafficNumber
-                ));
+        return exported.handle((ignored, failure) -> {
+            BitSet handled = new BitSet(messageBodies.size());
+            if (failure == null) {
+                handled.set(0, messageBodies.size());
+            } else {
+                Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                logger.error("Error in ExportService: {}", cause.getMessage(), cause);
             }
-            logger.info("Loaded {} records from existing finalData.csv", finalDataMap.size());
+            metrics.batchHandled(PipelineMetrics.EXPORT, messageBodies.size(),
+                    messageBodies.size() - handled.cardinality(), handlerNanos);
+            return handled;
+        });
+    }
 
-        } catch (NoSuchKeyException e) {
-            // If finalData.csv doesn't exist, we start fresh
-            logger.warn("No existing finalData.csv found, will create a new one.", e);
-        } catch (Exception e) {
-            logger.error("Error reading finalData.csv: {}", e.getMessage(), e);
+    /**
+     * Exports the records, either to the write-behind buffer or written through to their shards.
+     *
+     * @return completes once the records are written to their shards.
+     */
+    public CompletableFuture<Void> export(List<FinalDataMessage> messages) {
+        if (writeBehindWriter.isPresent()) {
+            CompletableFuture<Void> flushed = CompletableFuture.completedFuture(null);
+            for (FinalDataMessage message : messages) {
+                // The flush of the last update also writes, or rewrites, those before it
+                flushed = writeBehindWriter.get().update(message.getKeyPair(), message.getData());
+            }
+            logger.debug("Queued {} records for the next finalData flush", messages.size());
+            return flushed;
         }
-        return finalDataMap;
+        if (!messages.isEmpty()) {
+            writeThrough(messages);
+        }
+        return CompletableFuture.completedFuture(null);
     }
 
-    private void writeFinalData(Map<String, FinalData> finalDataMap) {
-        logger.debug("Writing finalData.csv with {} total entries.", finalDataMap.size());
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             PrintWriter writer = new PrintWriter(baos);
-             CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT
-                     .withHeader("Src IP", "Dst IP", "Avg Flow Duration",
-                                 "StdDev Flow Duration", "Avg Tot Fwd Pkts",
-                                 "StdDev Tot Fwd Pkts", "TrafficNumber"))) {
-
-            for (Map.Entry<String, FinalData> entry : finalDataMap.entrySet()) {
-                String[] ips = entry.getKey().split(",");
-                FinalData data = entry.getValue();
-                csvPrinter.printRecord(
-                        ips[0],
-                        ips[1],
-                        data.avgFlowDuration,
-                        data.stdDevFlowDuration,
-                        data.avgTotFwdPkts,
-                        data.stdDevTotFwdPkts,
-                        data.trafficNumber
-                );
+    private void writeThrough(List<FinalDataMessage> messages) {
+        datasetLock.readLock().lock();
+        try {
+            FinalDataManifest manifest = finalDataRepository.loadManifest();
+            if (!needsResharding(manifest)) {
+                writeShards(manifest, messages);
+                return;
+            }
+        } finally {
+            datasetLock.readLock().unlock();
+        }
+
+        datasetLock.writeLock().lock();
+        try {
+            // Another listener may have resharded while this one waited
+            FinalDataManifest manifest = finalDataRepository.loadManifest();
+            if (!needsResharding(manifest)) {
+                writeShards(manifest, messages);
+                return;
             }
-            csvPrinter.flush();
+            // Not sharded yet, or resharding: the whole dataset is rewritten once
+            Map<String, FinalData> finalDataMap = finalDataRepository.load(manifest);
+            for (FinalDataMessage message : messages) {
+                finalDataMap.merge(message.getKeyPair(), message.getData(), FinalData::newest);
+            }
+            // Also writes finalData.csv if enabled
+            finalDataRepository.save(finalDataMap);
+            logger.info("Updated finalData in S3 with {} records", messages.size());
+        } finally {
+            datasetLock.writeLock().unlock();
+        }
+    }
 
-            // Upload to S3
-            PutObjectRequest putReq = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(finalDataKey)
-                    .build();
+    private boolean needsResharding(FinalDataManifest manifest) {
+        return manifest == null || manifest.getShardCount() != finalDataRepository.getShardCount();
+    }
 
-            s3Client.putObject(putReq, RequestBody.fromBytes(baos.toByteArray()));
-            logger.info("Successfully uploaded finalData.csv to s3://{}/{}", bucketName, finalDataKey);
+    private void writeShards(FinalDataManifest manifest, List<FinalDataMessage> messages) {
+        // 1. Group the records by shard
+        Map<Integer, List<FinalDataMessage>> byShard = new TreeMap<>();
+        for (FinalDataMessage message : messages) {
+            byShard.computeIfAbsent(manifest.shardOf(message.getKeyPair()), shard -> new ArrayList<>()).add(message);
+        }
 
-        } catch (Exception e) {
-            logger.error("Error writing finalData.csv: {}", e.getMessage(), e);
+        // 2. Fetch, update and write back only the shards they belong to
+        for (Map.Entry<Integer, List<FinalDataMessage>> entry : byShard.entrySet()) {
+            Lock shardLock = shardLocks[entry.getKey() % shardLocks.length];
+            shardLock.lock();
+            try {
+                Map<String, FinalData> shard = finalDataRepository.loadShard(manifest, entry.getKey());
+                for (FinalDataMessage message : entry.getValue()) {
+                    logger.debug("Updating keyPair={} with: {}", message.getKeyPair(), message.getData());
+                    shard.merge(message.getKeyPair(), message.getData(), FinalData::newest);
+                }
+                finalDataRepository.saveShard(manifest, entry.getKey(), shard);
+            } finally {
+                shardLock.unlock();
+            }
         }
+        csvStale.set(finalDataRepository.isCsvEnabled());
+        logger.info("Updated {} of {} finalData shards in S3 with {} records",
+                byShard.size(), manifest.getShardCount(), messages.size());
     }
 
-    private static class FinalData {
-        double avgFlowDuration;
-        double stdDevFlowDuration;
-        double avgTotFwdPkts;
-        double stdDevTotFwdPkts;
-        int trafficNumber;
-
-        public FinalData(double avgFlowDuration, double stdDevFlowDuration,
-                         double avgTotFwdPkts, double stdDevTotFwdPkts,
-                         int trafficNumber) {
-            this.avgFlowDuration = avgFlowDuration;
-            this.stdDevFlowDuration = stdDevFlowDuration;
-            this.avgTotFwdPkts = avgTotFwdPkts;
-            this.stdDevTotFwdPkts = stdDevTotFwdPkts;
-            this.trafficNumber = trafficNumber;
+    /**
+     * Rebuilds finalData.csv from the shards if any was written since the last time.
+     */
+    void writeCsv() {
+        if (!csvStale.compareAndSet(true, false)) {
+            return;
         }
-
-        @Override
-        public String toString() {
-            return String.format("{avgFlow=%.2f, stdDevFlow=%.2f, avgFwdPkts=%.2f, stdDevPkts=%.2f, trafficNum=%d}",
-                    avgFlowDuration, stdDevFlowDuration, avgTotFwdPkts, stdDevTotFwdPkts, trafficNumber);
+        try {
+            finalDataRepository.saveCsv(finalDataRepository.load(finalDataRepository.loadManifest()));
+        } catch (Exception e) {
+            csvStale.set(true);
+            logger.error("Failed to write finalData.csv, will retry: {}", e.getMessage(), e);
         }
     }
 }
@@ -0,0 +1,283 @@
+package com.ProcessDataEC2.ProcessDataEC2.Service;
+
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.example.cloudworkers.common.FinalDataMessage;
+import com.example.cloudworkers.common.FlowSummarizer;
+import com.example.cloudworkers.common.SummaryMessage;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects Summarize -> Consolidate -> Export inside one JVM, in place of the
+ * {@code SQS_SummarizeToConsolidate} and {@code SQS_ConsolidateToExport} hops.
+ *
+ * Summaries are handed over as typed records in batches of
+ * {@code app.pipeline.fused.batchRecords} through two bounded queues of
+ * {@code app.pipeline.fused.queueCapacity} batches each. The queues give backpressure:
+ * a full Consolidate queue blocks the summarizing thread, a full Export queue blocks
+ * the {@code app.pipeline.fused.consolidateThreads} consolidate workers. A single
+ * export worker takes whatever batches are waiting and exports them together.
+ *
+ * Records in the queues only live in memory, like the updates pending in the
+ * write-behind buffer. {@link #submit} therefore returns a future that completes only
+ * once every batch of the file has been exported, and flushed when written behind,
+ * and the summarizer checkpoints the file and acknowledges its event only then: a
+ * file whose records were lost in a restart is summarized again. On shutdown the queues are drained before the export
+ * stage stops. The SQS listeners of the intermediate queues stay up, so messages left over
+ * from the distributed mode are still consolidated.
+ */
+@Component
+@ConditionalOnProperty(name = "app.pipeline.fused", havingValue = "true")
+public class FusedPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(FusedPipeline.class);
+
+    /** Records of one hand-over, the file they came from, and when they entered the pipeline. */
+    private record Batch<T>(List<T> records, Submission submission, long submittedNanos) {
+    }
+
+    /**
+     * The records of one submitted file. Completes once all of its batches are
+     * exported, or exceptionally as soon as one of them fails.
+     */
+    private static final class Submission {
+
+        // One more than the batches in flight until submit has queued them all
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final CompletableFuture<Long> exported = new CompletableFuture<>();
+        private volatile long records;
+
+        void batchDone() {
+            if (pending.decrementAndGet() == 0) {
+                exported.complete(records);
+            }
+        }
+
+        void fail(Throwable cause) {
+            exported.completeExceptionally(cause);
+        }
+    }
+
+    private final ConsolidateService consolidateService;
+    private final ExportService exportService;
+    private final PipelineMetrics metrics;
+
+    @Value("${app.pipeline.fused.queueCapacity:64}")
+    private int queueCapacity = 64;
+
+    @Value("${app.pipeline.fused.batchRecords:1000}")
+    private int batchRecords = 1000;
+
+    @Value("${app.pipeline.fused.consolidateThreads:2}")
+    private int consolidateThreads = 2;
+
+    private BlockingQueue<Batch<SummaryMessage>> toConsolidate;
+    private BlockingQueue<Batch<FinalDataMessage>> toExport;
+    private final List<Thread> consolidateWorkers = new ArrayList<>();
+    private Thread exportWorker;
+    private final AtomicInteger pendingBatches = new AtomicInteger();
+    private volatile boolean accepting;
+    private volatile boolean consolidating;
+
+    public FusedPipeline(ConsolidateService consolidateService, ExportService exportService,
+                         PipelineMetrics metrics) {
+        this.consolidateService = consolidateService;
+        this.exportService = exportService;
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void start() {
+        toConsolidate = new ArrayBlockingQueue<>(queueCapacity);
+        toExport = new ArrayBlockingQueue<>(queueCapacity);
+        metrics.fusedQueue(PipelineMetrics.CONSOLIDATE, toConsolidate);
+        metrics.fusedQueue(PipelineMetrics.EXPORT, toExport);
+        accepting = true;
+        consolidating = true;
+        for (int i = 0; i < consolidateThreads; i++) {
+            Thread worker = new Thread(this::consolidateLoop, "fused-consolidate-" + i);
+            worker.setDaemon(true);
+            consolidateWorkers.add(worker);
+            worker.start();
+        }
+        exportWorker = new Thread(this::exportLoop, "fused-export");
+        exportWorker.setDaemon(true);
+        exportWorker.start();
+        logger.info("Fused pipeline enabled: {} consolidate workers, batches of {} records, queues of {} batches",
+                consolidateThreads, batchRecords, queueCapacity);
+    }
+
+    /**
+     * Hands the totals of a summarized file to the Consolidate stage, blocking while
+     * its queue is full.
+     *
+     * @return completes with the number of summaries handed over once all of them are
+     *         exported, or exceptionally if any of them failed to be.
+     */
+    public CompletableFuture<Long> submit(FlowSummarizer summarizer) throws InterruptedException {
+        if (!accepting) {
+            throw new IllegalStateException("The fused pipeline is stopped");
+        }
+        Submission submission = new Submission();
+        List<SummaryMessage> records = new ArrayList<>(Math.min(batchRecords, summarizer.size()));
+        long[] submitted = new long[1];
+        try {
+            summarizer.forEach((srcIp, dstIp, totalFlowDuration, totalFwdPkts) -> {
+                records.add(new SummaryMessage(srcIp, dstIp, totalFlowDuration, totalFwdPkts));
+                if (records.size() == batchRecords) {
+                    submitted[0] += enqueue(records, submission);
+                }
+            });
+            if (!records.isEmpty()) {
+                submitted[0] += enqueue(records, submission);
+            }
+        } catch (RuntimeException e) {
+            submission.fail(e);
+            if (e instanceof IllegalStateException && e.getCause() instanceof InterruptedException interrupted) {
+                throw interrupted;
+            }
+            throw e;
+        }
+        submission.records = submitted[0];
+        submission.batchDone();
+        return submission.exported;
+    }
+
+    /**
+     * Batches handed over and not yet exported.
+     */
+    public int pendingBatches() {
+        return pendingBatches.get();
+    }
+
+    /**
+     * Stops accepting summaries and waits for the queued batches to be exported.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        accepting = false;
+        for (Thread worker : consolidateWorkers) {
+            worker.join();
+        }
+        consolidating = false;
+        exportWorker.join();
+        logger.info("Fused pipeline drained");
+    }
+
+    private int enqueue(List<SummaryMessage> records, Submission submission) {
+        pendingBatches.incrementAndGet();
+        submission.pending.incrementAndGet();
+        try {
+            toConsolidate.put(new Batch<>(new ArrayList<>(records), submission, System.nanoTime()));
+        } catch (InterruptedException e) {
+            pendingBatches.decrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        int size = records.size();
+        records.clear();
+        return size;
+    }
+
+    private void consolidateLoop() {
+        while (true) {
+            Batch<SummaryMessage> batch;
+            try {
+                batch = toConsolidate.poll(100, TimeUnit.MILLISECONDS);
+                if (batch == null) {
+                    if (!accepting) {
+                        return;
+                    }
+                    continue;
+                }
+                long started = System.nanoTime();
+                boolean success = false;
+                List<FinalDataMessage> updates = List.of();
+                try {
+                    updates = consolidateService.consolidate(batch.records());
+                    success = true;
+                } catch (Exception e) {
+                    logger.error("Error consolidating {} summaries: {}", batch.records().size(), e.getMessage(), e);
+                    batch.submission().fail(e);
+                } finally {
+                    metrics.messageHandled(PipelineMetrics.CONSOLIDATE, success, System.nanoTime() - started);
+                }
+                // Passed on even if empty, so the export worker accounts for the batch
+                toExport.put(new Batch<>(updates, batch.submission(), batch.submittedNanos()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void exportLoop() {
+        List<Batch<FinalDataMessage>> batches = new ArrayList<>();
+        List<FinalDataMessage> records = new ArrayList<>();
+        while (true) {
+            try {
+                Batch<FinalDataMessage> first = toExport.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (!consolidating) {
+                        return;
+                    }
+                    continue;
+                }
+                batches.add(first);
+                toExport.drainTo(batches);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            for (Batch<FinalDataMessage> batch : batches) {
+                records.addAll(batch.records());
+            }
+            List<Batch<FinalDataMessage>> exporting = List.copyOf(batches);
+            int exportedRecords = records.size();
+            long started = System.nanoTime();
+            CompletableFuture<Void> exported;
+            try {
+                exported = exportService.export(records);
+            } catch (Exception e) {
+                exported = CompletableFuture.failedFuture(e);
+            }
+            long handlerNanos = System.nanoTime() - started;
+            batches.clear();
+            records.clear();
+            // Written behind, the batches are only done once flushed
+            exported.whenComplete((ignored, failure) -> exported(exporting, exportedRecords, handlerNanos, failure));
+        }
+    }
+
+    private void exported(List<Batch<FinalDataMessage>> batches, int records, long handlerNanos, Throwable failure) {
+        Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+        if (cause != null) {
+            logger.error("Error exporting {} records: {}", records, cause.getMessage(), cause);
+        }
+        long finished = System.nanoTime();
+        metrics.batchHandled(PipelineMetrics.EXPORT, batches.size(), cause == null ? 0 : batches.size(), handlerNanos);
+        for (Batch<FinalDataMessage> batch : batches) {
+            metrics.fusedBatchExported(finished - batch.submittedNanos());
+            if (cause != null) {
+                batch.submission().fail(cause);
+            }
+            batch.submission().batchDone();
+        }
+        pendingBatches.addAndGet(-batches.size());
+    }
+}
@@ -0,0 +1,281 @@
+package com.ProcessDataEC2.ProcessDataEC2.Service;
+
+import com.example.cloudworkers.common.FlowSummarizer;
+import com.example.cloudworkers.common.FlowWindows;
+import com.example.cloudworkers.common.LineRangeInputStream;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+/**
+ * Summarizes a large CSV object in parallel byte ranges.
+ *
+ * The object is cut into {@code app.summarize.parallel.ranges} ranges of equal size.
+ * Each range is fetched with its own ranged GetObject, aligned to line boundaries by
+ * {@link LineRangeInputStream} and summarized behind a copy of the header on a
+ * fork-join pool of {@code app.summarize.parallel.threads} workers; the partial
+ * summaries are merged pairwise as the tasks join. Both default to the number of cores. Sums are
+ * exact, so the result is the same as summarizing the object serially.
+ *
+ * Objects below {@code app.summarize.parallel.minObjectBytes} are not worth splitting
+ * and are left to the serial path.
+ *
+ * {@code app.summarize.memoryBudgetBytes} (no limit by default) bounds the pair totals
+ * of one file. It is shared by the summarizers of the ranges and the one that holds
+ * the totals so far, created through {@link #newSummarizer()}: each of them spills its
+ * pairs to {@code app.summarize.spillDirectory} beyond {@code budget / (ranges + 1)}.
+ * A summarizer that fails is closed, so its spill files are deleted.
+ *
+ * When time windows are requested, every range adds its rows to its own
+ * {@link FlowWindows} and flushes them when the range is done; the windows emitted
+ * by different ranges are partial sums that add up downstream.
+ */
+@Component
+public class RangedCsvSummarizer {
+
+    private static final Logger logger = LoggerFactory.getLogger(RangedCsvSummarizer.class);
+
+    private final S3Client s3Client;
+    private final boolean enabled;
+    private final long minObjectBytes;
+    private final int ranges;
+    private final ForkJoinPool pool;
+
+    @Value("${app.summarize.memoryBudgetBytes:0}")
+    private long memoryBudgetBytes;
+
+    @Value("${app.summarize.spillDirectory:${java.io.tmpdir}}")
+    private File spillDirectory;
+
+    public RangedCsvSummarizer(S3Client s3Client,
+                               @Value("${app.summarize.parallel.enabled:true}") boolean enabled,
+                               @Value("${app.summarize.parallel.minObjectBytes:268435456}") long minObjectBytes,
+                               @Value("${app.summarize.parallel.ranges:0}") int ranges,
+                               @Value("${app.summarize.parallel.threads:0}") int threads) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.s3Client = s3Client;
+        this.enabled = enabled;
+        this.minObjectBytes = minObjectBytes;
+        this.ranges = ranges > 0 ? ranges : cores;
+        this.pool = new ForkJoinPool(threads > 0 ? threads : cores);
+    }
+
+    /**
+     * Whether an object of this size should go through {@link #summarize}.
+     */
+    public boolean shouldSplit(long objectSize) {
+        return enabled && ranges > 1 && objectSize >= minObjectBytes;
+    }
+
+    public FlowSummarizer summarize(String bucket, String key, long objectSize) {
+        return summarize(bucket, key, objectSize, null);
+    }
+
+    /**
+     * @param windows if not null, creates the time windows of each range.
+     */
+    public FlowSummarizer summarize(String bucket, String key, long objectSize, Supplier<FlowWindows> windows) {
+        byte[] header = readHeader(bucket, key, null);
+        if (header.length == 0) {
+            throw new IllegalArgumentException("CSV input has no header: " + key);
+        }
+        return summarize(bucket, key, null, header, header.length, objectSize, windows);
+    }
+
+    /**
+     * Summarizes the lines that start in {@code [start, end)} of the object, behind the given
+     * header, in parallel ranges unless parallel summarizing is disabled. Adjacent calls
+     * therefore summarize every line of the object exactly once.
+     *
+     * @param eTag if not null, every request fails unless the object still has this ETag.
+     */
+    public FlowSummarizer summarize(String bucket, String key, String eTag, byte[] header, long start, long end) {
+        return summarize(bucket, key, eTag, header, start, end, null);
+    }
+
+    /**
+     * @param windows if not null, creates the time windows of each range.
+     */
+    public FlowSummarizer summarize(String bucket, String key, String eTag, byte[] header, long start, long end,
+                                    Supplier<FlowWindows> windows) {
+        int count = enabled ? ranges : 1;
+        long rangeSize = Math.max(1, (end - start + count - 1) / count);
+        logger.info("Summarizing bytes {}-{} of {} in {} ranges of {} bytes", start, end, key, count, rangeSize);
+
+        return pool.invoke(new RangeTask(bucket, key, eTag, header, windows, start, end, rangeSize, 0, count));
+    }
+
+    /**
+     * A summarizer within the memory budget. Close it once its totals are used.
+     */
+    public FlowSummarizer newSummarizer() {
+        // The ranges of a segment and the running totals are held at once
+        int summarizers = (enabled ? ranges : 1) + 1;
+        return new FlowSummarizer(memoryBudgetBytes / summarizers, spillDirectory);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private FlowSummarizer summarizeRange(String bucket, String key, String eTag, byte[] header,
+                                          Supplier<FlowWindows> windows, long start, long end) {
+        FlowSummarizer summarizer = newSummarizer();
+        if (start >= end) {
+            return summarizer;
+        }
+        // Start one byte early to tell whether a line begins exactly at start
+        ResponseInputStream<GetObjectResponse> in = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .ifMatch(eTag)
+                .range("bytes=" + (start - 1) + "-")
+                .build());
+        try {
+            FlowWindows rangeWindows = windows == null ? null : windows.get();
+            summarizer.addCsv(new SequenceInputStream(new ByteArrayInputStream(header),
+                    new LineRangeInputStream(in, start, end)), rangeWindows);
+            if (rangeWindows != null) {
+                rangeWindows.flush();
+            }
+        } catch (IOException e) {
+            summarizer.close();
+            throw new UncheckedIOException("Failed to summarize " + key + " bytes " + start + "-" + end, e);
+        } catch (RuntimeException e) {
+            summarizer.close();
+            throw e;
+        } finally {
+            // The request is open ended: drop the connection instead of draining the rest of the object
+            in.abort();
+        }
+        return summarizer;
+    }
+
+    /**
+     * The header line of the object, including its line break.
+     *
+     * @param eTag if not null, the request fails unless the object still has this ETag.
+     */
+    public byte[] readHeader(String bucket, String key, String eTag) {
+        ResponseInputStream<GetObjectResponse> in = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .ifMatch(eTag)
+                .build());
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) >= 0) {
+                for (int i = 0; i < read; i++) {
+                    if (chunk[i] == '\n') {
+                        header.write(chunk, 0, i + 1);
+                        return header.toByteArray();
+                    }
+                }
+                header.write(chunk, 0, read);
+            }
+            return header.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the header of " + key, e);
+        } finally {
+            in.abort();
+        }
+    }
+
+    /**
+     * Summarizes ranges [from, to) of the bytes [start, end) by splitting them in halves and
+     * merging the halves' results.
+     */
+    private final class RangeTask extends RecursiveTask<FlowSummarizer> {
+
+        private final String bucket;
+        private final String key;
+        private final String eTag;
+        private final byte[] header;
+        private final Supplier<FlowWindows> windows;
+        private final long start;
+        private final long end;
+        private final long rangeSize;
+        private final int from;
+        private final int to;
+
+        RangeTask(String bucket, String key, String eTag, byte[] header, Supplier<FlowWindows> windows,
+                  long start, long end, long rangeSize, int from, int to) {
+            this.bucket = bucket;
+            this.key = key;
+            this.eTag = eTag;
+            this.header = header;
+            this.windows = windows;
+            this.start = start;
+            this.end = end;
+            this.rangeSize = rangeSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected FlowSummarizer compute() {
+            if (to - from == 1) {
+                long rangeStart = Math.min(start + from * rangeSize, end);
+                long rangeEnd = Math.min(rangeStart + rangeSize, end);
+                return summarizeRange(bucket, key, eTag, header, windows, rangeStart, rangeEnd);
+            }
+            int middle = (from + to) >>> 1;
+            RangeTask left = new RangeTask(bucket, key, eTag, header, windows, start, end, rangeSize, from, middle);
+            RangeTask right = new RangeTask(bucket, key, eTag, header, windows, start, end, rangeSize, middle, to);
+            left.fork();
+            FlowSummarizer rightSummary;
+            try {
+                rightSummary = right.compute();
+            } catch (RuntimeException e) {
+                closeQuietly(left);
+                throw e;
+            }
+            FlowSummarizer leftSummary;
+            try {
+                leftSummary = left.join();
+            } catch (RuntimeException e) {
+                rightSummary.close();
+                throw e;
+            }
+            FlowSummarizer larger = leftSummary.size() >= rightSummary.size() ? leftSummary : rightSummary;
+            FlowSummarizer smaller = larger == leftSummary ? rightSummary : leftSummary;
+            try {
+                larger.merge(smaller);
+            } catch (RuntimeException e) {
+                larger.close();
+                throw e;
+            } finally {
+                smaller.close();
+            }
+            return larger;
+        }
+
+        /** Waits for a forked half that is no longer needed, and deletes what it spilled. */
+        private void closeQuietly(RangeTask task) {
+            try {
+                task.join().close();
+            } catch (RuntimeException ignored) {
+                // It closed its own summarizers when it failed
+            }
+        }
+    }
+}
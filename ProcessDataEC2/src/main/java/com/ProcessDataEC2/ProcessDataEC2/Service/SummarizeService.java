@@ -1,33 +1,81 @@
 package com.ProcessDataEC2.ProcessDataEC2.Service;
 
+import com.ProcessDataEC2.ProcessDataEC2.Messaging.SqsBatchSender;
+import com.ProcessDataEC2.ProcessDataEC2.Messaging.SqsBatches;
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.ProcessDataEC2.ProcessDataEC2.Store.FileCheckpoint;
+import com.ProcessDataEC2.ProcessDataEC2.Store.FileCheckpointStore;
+import com.ProcessDataEC2.ProcessDataEC2.Store.WindowedStatsStore;
+import com.example.cloudworkers.common.Compression;
+import com.example.cloudworkers.common.FlowSummarizer;
+import com.example.cloudworkers.common.FlowWindows;
+import com.example.cloudworkers.common.MessagePacker;
+import com.example.cloudworkers.common.WindowSummaryMessage;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.awspring.cloud.sqs.annotation.SqsListener;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
+import io.awspring.cloud.sqs.listener.acknowledgement.BatchAcknowledgement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
 import org.springframework.stereotype.Service;
 import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
-import software.amazon.awssdk.services.sqs.SqsAsyncClient;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
 
+/**
+ * Summarizes every new flow file announced on the S3 event queue and sends the totals
+ * of its pairs to the Summarize -> Consolidate queue.
+ *
+ * Progress is checkpointed per object key and ETag in the {@link FileCheckpointStore}:
+ * a redelivered event for a file whose summaries were already sent is skipped, and a
+ * file of at least {@code app.summarize.checkpoint.intervalBytes} is summarized in
+ * segments of that size, after each of which the totals so far are checkpointed. A
+ * file interrupted by a crash resumes after its last complete segment. Totals are
+ * only sent once the whole file is summarized, so every pair still counts the file
+ * once downstream. A file is checkpointed complete, and its event acknowledged, only
+ * once SQS has confirmed every batch of its totals; a file whose sends failed is
+ * summarized again when its event is redelivered.
+ *
+ * Files may be uploaded compressed, as {@code .csv.gz} or {@code .csv.zst}. Those are
+ * decompressed as they are read, by one reader from start to end: they are neither
+ * split into byte ranges nor checkpointed in segments, only once complete.
+ *
+ * With {@code app.pipeline.fused=true} the totals go to the in-process
+ * {@link FusedPipeline} instead of the Summarize -> Consolidate queue, and the file is
+ * checkpointed complete only once the pipeline has exported all of them.
+ *
+ * With {@code app.window.enabled=true} the flows are also totalled per time window of
+ * their Timestamp into the {@link WindowedStatsStore}, and sent as
+ * {@link WindowSummaryMessage}s to {@code app.sqs.windowQueue} if it is set. The
+ * windows of a file, or of each segment of it, are collected while it is read and
+ * sent and applied once it is summarized, at most once per object key, ETag and
+ * segment: a file summarized again after a failure does not count its flows twice.
+ */
 @Service
 public class SummarizeService {
 
     private static final Logger logger = LoggerFactory.getLogger(SummarizeService.class);
 
     private final S3Client s3Client;
-    private final SqsAsyncClient sqsAsyncClient;
+    private final SqsBatchSender sqsBatchSender;
+    private final RangedCsvSummarizer rangedCsvSummarizer;
+    private final FileCheckpointStore checkpointStore;
+    private final Optional<FusedPipeline> fusedPipeline;
+    private final Optional<WindowedStatsStore> windowedStatsStore;
+    private final PipelineMetrics metrics;
 
     @Value("${app.s3.bucketName}")
     private String bucketName;
@@ -35,18 +83,63 @@ public class SummarizeService {
     @Value("${app.sqs.summarizeToConsolidateQueue}")
     private String summarizeToConsolidateQueueUrl;
 
-    public SummarizeService(S3Client s3Client, SqsAsyncClient sqsAsyncClient) {
+    @Value("${app.sqs.windowQueue:}")
+    private String windowQueueUrl = "";
+
+    @Value("${app.summarize.checkpoint.enabled:true}")
+    private boolean checkpointEnabled = true;
+
+    @Value("${app.summarize.checkpoint.intervalBytes:268435456}")
+    private long checkpointIntervalBytes = 256L * 1024 * 1024;
+
+    public SummarizeService(S3Client s3Client, SqsBatchSender sqsBatchSender, RangedCsvSummarizer rangedCsvSummarizer,
+                            FileCheckpointStore checkpointStore, Optional<FusedPipeline> fusedPipeline,
+                            Optional<WindowedStatsStore> windowedStatsStore, PipelineMetrics metrics) {
         this.s3Client = s3Client;
-        this.sqsAsyncClient = sqsAsyncClient;
+        this.sqsBatchSender = sqsBatchSender;
+        this.rangedCsvSummarizer = rangedCsvSummarizer;
+        this.checkpointStore = checkpointStore;
+        this.fusedPipeline = fusedPipeline;
+        this.windowedStatsStore = windowedStatsStore;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Receives up to {@code app.sqs.listener.summarize.maxMessagesPerPoll} S3 event
+     * notifications (new CSVs in unprocessed-data/) and summarizes their files in turn.
+     * Messages whose files failed are not acknowledged and are redelivered later, where
+     * the checkpoints skip the work already done.
+     */
+    @SqsListener(value = "${app.sqs.s3EventQueue:https://sqs.us-east-1.amazonaws.com/816069142521/S3EventNotificationQueue}",
+            maxConcurrentMessages = "${app.sqs.listener.summarize.maxConcurrentMessages:10}",
+            maxMessagesPerPoll = "${app.sqs.listener.summarize.maxMessagesPerPoll:10}",
+            pollTimeoutSeconds = "${app.sqs.listener.summarize.pollTimeoutSeconds:10}")
+    public void onS3Notifications(List<Message<String>> messages, BatchAcknowledgement<String> acknowledgement) {
+        SqsBatches.acknowledge(messages, handleS3Notifications(SqsBatches.payloads(messages)), acknowledgement);
+    }
+
+    /**
+     * @return the indexes of the messages that were handled and can be deleted.
+     */
+    public BitSet handleS3Notifications(List<String> s3EventMessages) {
+        BitSet handled = new BitSet(s3EventMessages.size());
+        for (int i = 0; i < s3EventMessages.size(); i++) {
+            if (handleS3Notification(s3EventMessages.get(i))) {
+                handled.set(i);
+            }
+        }
+        return handled;
     }
 
     /**
-     * This method is triggered by the message from S3 Event (which notifies a new CSV in unprocessed-data/).
      * The message body from S3 notifications is a JSON object containing information about the S3 event.
+     *
+     * @return false if a file of the event failed and the event should be delivered again.
      */
-    @SqsListener("https://sqs.us-east-1.amazonaws.com/816069142521/S3EventNotificationQueue")
-    public void handleS3Notification(String s3EventMessage) {
+    public boolean handleS3Notification(String s3EventMessage) {
         logger.info("Received S3 Event Notification message:\n{}", s3EventMessage);
+        long started = System.nanoTime();
+        boolean success = false;
 
         ObjectMapper objectMapper = new ObjectMapper();
         try {
@@ -54,89 +147,270 @@ public class SummarizeService {
             JsonNode root = objectMapper.readTree(s3EventMessage);
             JsonNode records = root.path("Records");
             if (!records.isArray()) {
+                // Redelivering it would not help
                 logger.warn("Invalid S3 event format or no 'Records' array found. Message:\n{}", s3EventMessage);
-                return;
+                return true;
             }
 
+            success = true;
+
             for (JsonNode record : records) {
                 String objectKey = record.path("s3").path("object").path("key").asText();
-                if (!objectKey.startsWith("unprocessed-data/") || !objectKey.endsWith(".csv")) {
+                if (!objectKey.startsWith("unprocessed-data/") || !Compression.isFlowCsv(objectKey)) {
                     logger.info("Ignoring non-target file: {}", objectKey);
                     continue;
                 }
-                logger.info("Starting CSV processing for: {}", objectKey);
-                processCsvFile(objectKey);
+                long objectSize = record.path("s3").path("object").path("size").asLong(-1);
+                String eTag = record.path("s3").path("object").path("eTag").asText(null);
+                logger.info("Starting CSV processing for: {} ({} bytes)", objectKey, objectSize);
+                success &= processCsvFile(objectKey, objectSize, eTag);
             }
+            return success;
 
+        } catch (IOException e) {
+            logger.error("Error parsing S3 event message: {}", e.getMessage(), e);
+            return true;
         } catch (Exception e) {
-            logger.error("Error parsing or handling S3 event message: {}", e.getMessage(), e);
+            logger.error("Error handling S3 event message: {}", e.getMessage(), e);
+            success = false;
+            return false;
+        } finally {
+            metrics.messageHandled(PipelineMetrics.SUMMARIZE, success, System.nanoTime() - started);
         }
     }
 
-    private void processCsvFile(String objectKey) {
-        Map<String, Summary> summaryMap = new HashMap<>();
+    /**
+     * @param eTag the ETag of the object from the event, or null to look it up.
+     * @return false if the file could not be summarized.
+     */
+    private boolean processCsvFile(String objectKey, long objectSize, String eTag) {
+        FlowSummarizer summarizer = null;
         try {
-            // 1. Download the object from S3
-            logger.debug("Fetching CSV from bucket={} key={}", bucketName, objectKey);
-            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(objectKey)
-                    .build();
-            ResponseInputStream<GetObjectResponse> s3Object = s3Client.getObject(getObjectRequest);
-
-            // 2. Parse CSV
-            BufferedReader reader = new BufferedReader(new InputStreamReader(s3Object));
-            Iterable<CSVRecord> records = CSVFormat.DEFAULT
-                    .withFirstRecordAsHeader()
-                    .parse(reader);
-
-            logger.debug("Parsing CSV rows for file: {}", objectKey);
-            int rowCount = 0;
-            // 3. Summarize
-            for (CSVRecord record : records) {
-                rowCount++;
-                String srcIp = record.get("Src IP");
-                String dstIp = record.get("Dst IP");
-                long flowDuration = Long.parseLong(record.get("Flow Duration"));
-                long totFwdPkts = Long.parseLong(record.get("Tot Fwd Pkts"));
-
-                String keyPair = srcIp + "," + dstIp;
-                summaryMap.putIfAbsent(keyPair, new Summary());
-                Summary summary = summaryMap.get(keyPair);
-                summary.totalFlowDuration += flowDuration;
-                summary.totalFwdPkts += totFwdPkts;
+            FileCheckpoint checkpoint = null;
+            if (checkpointEnabled) {
+                if (eTag == null || objectSize < 0) {
+                    HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(objectKey)
+                            .build());
+                    eTag = head.eTag();
+                    objectSize = head.contentLength();
+                }
+                // S3 events carry the ETag without the quotes of the HTTP header
+                eTag = eTag.replace("\"", "");
+                checkpoint = checkpointStore.load(objectKey, rangedCsvSummarizer::newSummarizer);
+                if (checkpoint != null && !checkpoint.matches(eTag)) {
+                    logger.info("{} changed since its checkpoint, processing it from the start", objectKey);
+                    if (checkpoint.partial() != null) {
+                        checkpoint.partial().close();
+                    }
+                    checkpoint = null;
+                }
+                if (checkpoint != null && checkpoint.complete()) {
+                    logger.info("Skipping {}: its {} rows were already summarized", objectKey, checkpoint.rowCount());
+                    return true;
+                }
+            }
+
+            // 1. Summarize the object, in checkpointed segments or parallel byte ranges if it is large enough
+            MessagePacker windowPacker = windowedStatsStore.isPresent() && !windowQueueUrl.isEmpty()
+                    ? sqsBatchSender.packerFor(windowQueueUrl, MessagePacker.Format.TEXT) : null;
+            Compression compression = Compression.ofKey(objectKey);
+            // Compressed data can only be read from its start
+            boolean splittable = compression == Compression.NONE;
+            long rowCount;
+            if (splittable && checkpointEnabled && objectSize >= checkpointIntervalBytes) {
+                FileCheckpoint progress = summarizeInSegments(objectKey, objectSize, eTag, checkpoint, windowPacker);
+                summarizer = progress.partial();
+                rowCount = progress.rowCount();
+            } else {
+                WindowedStatsStore.Contribution fileWindows = windowsOf(objectKey, eTag, 0, objectSize);
+                Supplier<FlowWindows> windows = windowsFor(fileWindows);
+                if (splittable && rangedCsvSummarizer.shouldSplit(objectSize)) {
+                    summarizer = rangedCsvSummarizer.summarize(bucketName, objectKey, objectSize, windows);
+                } else {
+                    summarizer = summarizeSerially(objectKey, eTag, compression, windows);
+                }
+                rowCount = summarizer.getRowCount();
+                metrics.rowsParsed(rowCount);
+                applyWindows(objectKey, fileWindows, windowPacker);
             }
             logger.info("Finished parsing {} rows from file: {}", rowCount, objectKey);
 
-            // 4. Send each summarized result to SQS for Consolidation
-            for (Map.Entry<String, Summary> entry : summaryMap.entrySet()) {
-                String keyPair = entry.getKey();
-                Summary summary = entry.getValue();
-                String messageBody = keyPair + "," + summary.totalFlowDuration + "," + summary.totalFwdPkts;
-
-                logger.debug("Sending summarized data to queue={} with body={}", 
-                        summarizeToConsolidateQueueUrl, messageBody);
-
-                sqsAsyncClient.sendMessage(SendMessageRequest.builder()
-                        .queueUrl(summarizeToConsolidateQueueUrl)
-                        .messageBody(messageBody)
-                        .build())
-                        .whenComplete((resp, err) -> {
-                            if (err != null) {
-                                logger.error("Failed to send message to SummarizeToConsolidateQueue: {}", err.getMessage(), err);
-                            } else {
-                                logger.info("Sent message to SummarizeToConsolidateQueue: {}", messageBody);
-                            }
-                        });
+            // 2. Hand the summarized results to Consolidation, in process or as batched SQS messages
+            if (fusedPipeline.isPresent()) {
+                // Waits until they are exported: the in-memory queues do not survive a restart
+                long submitted = fusedPipeline.get().submit(summarizer).get();
+                logger.info("Exported {} summaries for file {} through the fused pipeline", submitted, objectKey);
+                metrics.pairsEmitted(PipelineMetrics.SUMMARIZE, submitted);
+            } else {
+                MessagePacker packer = sqsBatchSender.packerFor(summarizeToConsolidateQueueUrl);
+                summarizer.forEach(packer::addSummary);
+                // Throws unless every batch was delivered
+                packer.flush();
+                logger.info("Packed {} summaries for file {} into {} messages for queue={}",
+                        packer.getRecordCount(), objectKey, packer.getMessageCount(), summarizeToConsolidateQueueUrl);
+                metrics.pairsEmitted(PipelineMetrics.SUMMARIZE, packer.getRecordCount());
+            }
+
+            // 3. Redelivered events for this version of the file are skipped from now on
+            if (checkpointEnabled) {
+                checkpoint(FileCheckpoint.complete(objectKey, eTag, rowCount));
             }
+            return true;
 
+        } catch (S3Exception e) {
+            if (e.statusCode() == 412) {
+                // The object was replaced, and the new version has its own event
+                logger.info("Skipping {}: it changed since ETag {}", objectKey, eTag);
+                return true;
+            }
+            logger.error("Error processing file={} : {}", objectKey, e.getMessage(), e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while handing over the summaries of {}", objectKey);
+            return false;
         } catch (Exception e) {
             logger.error("Error processing file={} : {}", objectKey, e.getMessage(), e);
+            return false;
+        } finally {
+            if (summarizer != null) {
+                // Deletes its spill files, if any
+                summarizer.close();
+            }
+        }
+    }
+
+    /**
+     * Summarizes the object segment by segment, starting after the last checkpointed one,
+     * and checkpoints the totals after every segment but the last.
+     *
+     * @param checkpoint the partial checkpoint to resume from, or null.
+     * @param windowPacker receives the windows of each segment before it is checkpointed, or null.
+     * @return the totals and row count of the whole object.
+     */
+    private FileCheckpoint summarizeInSegments(String objectKey, long objectSize, String eTag,
+                                               FileCheckpoint checkpoint, MessagePacker windowPacker) {
+        byte[] header = rangedCsvSummarizer.readHeader(bucketName, objectKey, eTag);
+        if (header.length == 0) {
+            throw new IllegalArgumentException("CSV input has no header: " + objectKey);
         }
+        FileCheckpoint progress = checkpoint;
+        if (progress == null) {
+            progress = FileCheckpoint.partial(objectKey, eTag, header.length, 0, rangedCsvSummarizer.newSummarizer());
+        } else {
+            logger.info("Resuming {} at byte {} of {} after {} rows", objectKey, progress.offset(), objectSize,
+                    progress.rowCount());
+        }
+
+        FlowSummarizer totals = progress.partial();
+        long rowCount = progress.rowCount();
+        for (long start = progress.offset(); start < objectSize; ) {
+            long end = Math.min(start + checkpointIntervalBytes, objectSize);
+            WindowedStatsStore.Contribution segmentWindows = windowsOf(objectKey, eTag, start, end);
+            FlowSummarizer segment = null;
+            try {
+                segment = rangedCsvSummarizer.summarize(bucketName, objectKey, eTag, header, start, end,
+                        windowsFor(segmentWindows));
+                // The windows of the segment must not be lost once it is skipped on resume
+                applyWindows(objectKey, segmentWindows, windowPacker);
+            } catch (RuntimeException e) {
+                if (segment != null) {
+                    segment.close();
+                }
+                totals.close();
+                throw e;
+            }
+            totals.merge(segment);
+            segment.close();
+            rowCount += segment.getRowCount();
+            metrics.rowsParsed(segment.getRowCount());
+
+            progress = FileCheckpoint.partial(objectKey, eTag, end, rowCount, totals);
+            if (end < objectSize) {
+                checkpoint(progress);
+            }
+            start = end;
+        }
+        return progress;
+    }
+
+    /**
+     * Saves the checkpoint; a failure only loses the progress it would have saved.
+     */
+    private void checkpoint(FileCheckpoint checkpoint) {
+        try {
+            checkpointStore.save(checkpoint);
+        } catch (Exception e) {
+            logger.warn("Failed to checkpoint {}: {}", checkpoint.objectKey(), e.getMessage());
+        }
+    }
+
+    /**
+     * The windows of the bytes {@code start} to {@code end} of the file, or null if
+     * windowing is disabled.
+     */
+    private WindowedStatsStore.Contribution windowsOf(String objectKey, String eTag, long start, long end) {
+        return windowedStatsStore.map(store -> store.contribution(objectKey, eTag, start, end)).orElse(null);
+    }
+
+    /**
+     * Creates the time windows of each range of a contribution, or returns null if there
+     * are none to collect.
+     */
+    private static Supplier<FlowWindows> windowsFor(WindowedStatsStore.Contribution windows) {
+        return windows == null || windows.isApplied() ? null : windows::newWindows;
+    }
+
+    /**
+     * Sends the windows of a contribution to {@code windowPacker} if it is not null, and
+     * once SQS confirmed them adds them to the windowed store, unless they already were.
+     */
+    private void applyWindows(String objectKey, WindowedStatsStore.Contribution windows,
+                              MessagePacker windowPacker) {
+        if (windows == null || windows.isApplied()) {
+            return;
+        }
+        if (windowPacker != null) {
+            windows.forEach((windowStart, windowEnd, srcIp, dstIp, totalFlowDuration, totalFwdPkts) ->
+                    windowPacker.add(WindowSummaryMessage.format(srcIp, dstIp, windowStart, windowEnd,
+                            totalFlowDuration, totalFwdPkts)));
+            // Throws unless every batch was delivered
+            windowPacker.flush();
+            logger.info("Packed {} window summaries for file {} into {} messages for queue={}",
+                    windowPacker.getRecordCount(), objectKey, windowPacker.getMessageCount(), windowQueueUrl);
+        }
+        windows.apply();
     }
 
-    private static class Summary {
-        long totalFlowDuration = 0;
-        long totalFwdPkts = 0;
+    /**
+     * @param compression the codec the object is stored with, decompressed as it is read.
+     * @param windows the time windows of the file, or null.
+     */
+    private FlowSummarizer summarizeSerially(String objectKey, String eTag, Compression compression,
+                                             Supplier<FlowWindows> windows) throws IOException {
+        FlowSummarizer summarizer = rangedCsvSummarizer.newSummarizer();
+        logger.debug("Fetching CSV from bucket={} key={}", bucketName, objectKey);
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey)
+                .ifMatch(eTag)
+                .build();
+        long started = System.nanoTime();
+        try (ResponseInputStream<GetObjectResponse> s3Object = s3Client.getObject(getObjectRequest);
+             InputStream csv = compression.decompress(s3Object)) {
+            FlowWindows fileWindows = windows == null ? null : windows.get();
+            summarizer.addCsv(csv, fileWindows);
+            if (fileWindows != null) {
+                fileWindows.flush();
+            }
+            metrics.s3Request(PipelineMetrics.GET, "input", System.nanoTime() - started,
+                    s3Object.response().contentLength() == null ? 0 : s3Object.response().contentLength());
+        } catch (IOException | RuntimeException e) {
+            summarizer.close();
+            throw e;
+        }
+        return summarizer;
     }
 }
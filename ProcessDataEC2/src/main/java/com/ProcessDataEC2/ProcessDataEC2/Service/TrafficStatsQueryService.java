@@ -0,0 +1,269 @@
+package com.ProcessDataEC2.ProcessDataEC2.Service;
+
+import com.ProcessDataEC2.ProcessDataEC2.Model.PairStats;
+import com.ProcessDataEC2.ProcessDataEC2.Model.StatsPage;
+import com.ProcessDataEC2.ProcessDataEC2.Store.ConsolidatedStore;
+import com.example.cloudworkers.common.FinalData;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read side of the consolidated statistics, answered from memory without any S3 request.
+ *
+ * Point lookups and the destinations of a source read the live {@link ConsolidatedStore},
+ * whose destinations are paged in place.
+ * Top-K queries read the {@code app.query.topK} highest pairs by each metric, brought
+ * up to date in the background every {@code app.query.rankRefreshMs} if the store
+ * changed, so a page of them costs a copy of {@code limit} entries and may be that
+ * much behind the store. Only the rankings are held, not every pair: the first one is
+ * taken with a bounded heap over the store. After that only the pairs updated since
+ * the last refresh are ranked again: they are sorted among themselves and merged into
+ * the previous ranking, in place of their old entries. If that leaves fewer than
+ * {@code topK} pairs above the lowest one ranked before, a pair that was not ranked
+ * may belong in the ranking, and it is taken from the store again.
+ */
+@Service
+public class TrafficStatsQueryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrafficStatsQueryService.class);
+
+    /** The metrics pairs can be ranked by, highest first. */
+    public enum RankBy {
+        AVG_FLOW_DURATION("avgFlowDuration"),
+        AVG_TOT_FWD_PKTS("avgTotFwdPkts");
+
+        private final String parameter;
+
+        RankBy(String parameter) {
+            this.parameter = parameter;
+        }
+
+        /**
+         * @param parameter the name of the metric in the API, e.g. "avgFlowDuration".
+         */
+        public static RankBy of(String parameter) {
+            for (RankBy rankBy : values()) {
+                if (rankBy.parameter.equals(parameter)) {
+                    return rankBy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown ranking metric: " + parameter
+                    + " (expected avgFlowDuration or avgTotFwdPkts)");
+        }
+    }
+
+    /** The highest pairs by each metric, sorted, as of {@code updateCount}. */
+    private record Ranking(long updateCount, PairStats[] byAvgFlowDuration, PairStats[] byAvgTotFwdPkts) {
+
+        PairStats[] by(RankBy rankBy) {
+            return rankBy == RankBy.AVG_FLOW_DURATION ? byAvgFlowDuration : byAvgTotFwdPkts;
+        }
+    }
+
+    private static final Comparator<PairStats> BY_PAIR =
+            Comparator.comparing(PairStats::srcIp).thenComparing(PairStats::dstIp);
+
+    private final ConsolidatedStore consolidatedStore;
+
+    @Value("${app.query.rankRefreshMs:5000}")
+    private long rankRefreshMs = 5000;
+
+    @Value("${app.query.maxPageSize:1000}")
+    private int maxPageSize = 1000;
+
+    @Value("${app.query.topK:1000}")
+    private int topK = 1000;
+
+    private static final Comparator<PairStats> BY_AVG_FLOW_DURATION =
+            Comparator.comparingDouble(PairStats::avgFlowDuration).reversed().thenComparing(BY_PAIR);
+    private static final Comparator<PairStats> BY_AVG_TOT_FWD_PKTS =
+            Comparator.comparingDouble(PairStats::avgTotFwdPkts).reversed().thenComparing(BY_PAIR);
+
+    private volatile Ranking ranking = new Ranking(-1, new PairStats[0], new PairStats[0]);
+    private ScheduledExecutorService rankExecutor;
+
+    public TrafficStatsQueryService(ConsolidatedStore consolidatedStore) {
+        this.consolidatedStore = consolidatedStore;
+    }
+
+    @PostConstruct
+    public void start() {
+        rankExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "query-rank");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The first ranking reads every pair, so it is not taken on the startup thread
+        rankExecutor.scheduleWithFixedDelay(this::rerank, 0, rankRefreshMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        rankExecutor.shutdownNow();
+    }
+
+    /**
+     * @return the statistics of the pair, or null if it was never seen.
+     */
+    public PairStats pair(String srcIp, String dstIp) {
+        FinalData data = consolidatedStore.get(srcIp, dstIp);
+        return data == null ? null : PairStats.of(srcIp, dstIp, data);
+    }
+
+    /**
+     * A page of the destinations of a source, in Dst IP order.
+     */
+    public StatsPage destinations(String srcIp, int offset, int limit) {
+        return destinations(srcIp, null, offset, limit);
+    }
+
+    /**
+     * A page of the destinations of a source, in Dst IP order.
+     *
+     * @param after if not null, the page starts {@code offset} destinations after this
+     *              Dst IP, the last one of the previous page, so deep pages are not
+     *              walked from the start.
+     */
+    public StatsPage destinations(String srcIp, String after, int offset, int limit) {
+        checkPage(offset, limit);
+        List<PairStats> items = new ArrayList<>(limit);
+        Iterator<String> dstIps = consolidatedStore.destinationsOf(srcIp, after);
+        for (int skipped = 0; skipped < offset && dstIps.hasNext(); skipped++) {
+            dstIps.next();
+        }
+        while (dstIps.hasNext() && items.size() < limit) {
+            String dstIp = dstIps.next();
+            FinalData data = consolidatedStore.get(srcIp, dstIp);
+            if (data != null) {
+                items.add(PairStats.of(srcIp, dstIp, data));
+            }
+        }
+        return new StatsPage(items, offset, limit, consolidatedStore.destinationCount(srcIp));
+    }
+
+    /**
+     * A page of the {@code app.query.topK} pairs with the highest value of the metric.
+     */
+    public StatsPage top(RankBy rankBy, int offset, int limit) {
+        checkPage(offset, limit);
+        PairStats[] ranked = ranking.by(rankBy);
+        int from = Math.min(offset, ranked.length);
+        int to = (int) Math.min((long) offset + limit, ranked.length);
+        return new StatsPage(List.of(Arrays.copyOfRange(ranked, from, to)), offset, limit, ranked.length);
+    }
+
+    /**
+     * Ranks the pairs updated since the last ranking again, or takes the highest pairs
+     * from the store the first time or when the changes could let in an unranked pair.
+     */
+    synchronized void rerank() {
+        Ranking previous = ranking;
+        long updateCount = consolidatedStore.updateCount();
+        if (updateCount == previous.updateCount()) {
+            return;
+        }
+        long started = System.nanoTime();
+        PairStats[] byAvgFlowDuration = null;
+        PairStats[] byAvgTotFwdPkts = null;
+        int changedPairs = -1;
+        if (previous.updateCount() >= 0) {
+            Map<String, PairStats> changed = new HashMap<>();
+            consolidatedStore.drainChanges((keyPair, data) -> changed.put(keyPair, PairStats.of(keyPair, data)));
+            byAvgFlowDuration = merge(previous.byAvgFlowDuration(), changed, BY_AVG_FLOW_DURATION);
+            byAvgTotFwdPkts = merge(previous.byAvgTotFwdPkts(), changed, BY_AVG_TOT_FWD_PKTS);
+            changedPairs = changed.size();
+        } else {
+            // Changes made while every pair is read are ranked again next time
+            consolidatedStore.trackChanges();
+        }
+        if (byAvgFlowDuration == null || byAvgTotFwdPkts == null) {
+            PriorityQueue<PairStats> highestFlowDuration = new PriorityQueue<>(BY_AVG_FLOW_DURATION.reversed());
+            PriorityQueue<PairStats> highestTotFwdPkts = new PriorityQueue<>(BY_AVG_TOT_FWD_PKTS.reversed());
+            consolidatedStore.forEach((keyPair, data) -> {
+                PairStats stats = PairStats.of(keyPair, data);
+                offer(highestFlowDuration, stats, BY_AVG_FLOW_DURATION);
+                offer(highestTotFwdPkts, stats, BY_AVG_TOT_FWD_PKTS);
+            });
+            byAvgFlowDuration = sorted(highestFlowDuration, BY_AVG_FLOW_DURATION);
+            byAvgTotFwdPkts = sorted(highestTotFwdPkts, BY_AVG_TOT_FWD_PKTS);
+        }
+        ranking = new Ranking(updateCount, byAvgFlowDuration, byAvgTotFwdPkts);
+        logger.debug("Ranked {} in {} ms", changedPairs < 0 ? "every pair" : changedPairs + " changed pairs",
+                (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * Keeps {@code stats} among the {@code topK} highest pairs in {@code lowestFirst}.
+     */
+    private void offer(PriorityQueue<PairStats> lowestFirst, PairStats stats, Comparator<PairStats> order) {
+        if (lowestFirst.size() < topK) {
+            lowestFirst.add(stats);
+        } else if (order.compare(stats, lowestFirst.peek()) < 0) {
+            lowestFirst.poll();
+            lowestFirst.add(stats);
+        }
+    }
+
+    private static PairStats[] sorted(PriorityQueue<PairStats> highest, Comparator<PairStats> order) {
+        PairStats[] sorted = highest.toArray(new PairStats[0]);
+        Arrays.sort(sorted, order);
+        return sorted;
+    }
+
+    /**
+     * The ranking without the old entries of the changed pairs and with their new ones,
+     * in order and cut to {@code topK}, or null if a pair that was not ranked could now
+     * belong in it.
+     */
+    private PairStats[] merge(PairStats[] ranking, Map<String, PairStats> changed, Comparator<PairStats> order) {
+        List<PairStats> kept = new ArrayList<>(ranking.length);
+        for (PairStats stats : ranking) {
+            if (!changed.containsKey(stats.srcIp() + "," + stats.dstIp())) {
+                kept.add(stats);
+            }
+        }
+        List<PairStats> updated = new ArrayList<>(changed.values());
+        updated.sort(order);
+        // Unranked pairs that did not change are all below the lowest ranked one
+        PairStats lowest = ranking.length < topK ? null : ranking[ranking.length - 1];
+        PairStats[] merged = new PairStats[Math.min(topK, kept.size() + updated.size())];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < merged.length; k++) {
+            if (j == updated.size() || (i < kept.size() && order.compare(kept.get(i), updated.get(j)) <= 0)) {
+                merged[k] = kept.get(i++);
+            } else {
+                merged[k] = updated.get(j++);
+            }
+            if (lowest != null && order.compare(merged[k], lowest) > 0) {
+                return null;
+            }
+        }
+        return merged;
+    }
+
+    private void checkPage(int offset, int limit) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        if (limit < 1 || limit > maxPageSize) {
+            throw new IllegalArgumentException("limit must be between 1 and " + maxPageSize);
+        }
+    }
+}
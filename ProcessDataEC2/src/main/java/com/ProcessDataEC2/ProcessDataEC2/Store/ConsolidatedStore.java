@@ -0,0 +1,263 @@
+package com.ProcessDataEC2.ProcessDataEC2.Store;
+
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataSnapshotMap;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Long-lived working set of the consolidated statistics.
+ *
+ * The statistics loaded from the finalData objects when the application starts are
+ * read in place from the mapped shards, not copied. The pairs updated since live in
+ * a concurrent overlay, where every summary is applied in O(1) with an atomic
+ * per-key update, so concurrent listener threads never lose each other's increments.
+ * The S3 objects stay the durable copy: they are rewritten by the export stage and
+ * only read here on startup.
+ *
+ * The store is the only up-to-date copy of the statistics, so there must be a single
+ * consolidator: one instance running the Consolidate stage, and no Consolidator
+ * Lambda next to it. Two stores would each fold their share of the summaries into
+ * their own copy of a pair, and as Export keeps the record with the highest
+ * TrafficNumber, the summaries folded by the other one would be lost.
+ *
+ * The destinations of a source are read for the query API in Dst IP order, in place:
+ * those of the loaded pairs from the key order of the mapped shards, merged with a
+ * sorted index of the pairs seen since. Once
+ * {@link #trackChanges()} was called the pairs updated since the last
+ * {@link #drainChanges} are recorded too, so rankings only need to move those.
+ */
+@Component
+public class ConsolidatedStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConsolidatedStore.class);
+
+    private final FinalDataRepository repository;
+    /** The statistics as loaded; never written. */
+    private volatile Map<String, FinalData> loaded = Map.of();
+    /** The pairs updated since they were loaded. */
+    private final ConcurrentHashMap<String, FinalData> finalDataMap = new ConcurrentHashMap<>();
+    private final AtomicInteger newPairs = new AtomicInteger();
+    /** The loaded statistics if they are mapped shards, whose destinations are not indexed. */
+    private volatile FinalDataSnapshotMap loadedShards;
+    /** The destinations of the pairs that are not in {@link #loadedShards}. */
+    private final ConcurrentHashMap<String, Destinations> destinationsBySource = new ConcurrentHashMap<>();
+    private final LongAdder updates = new LongAdder();
+    private final Set<String> changedPairs = ConcurrentHashMap.newKeySet();
+    private volatile boolean trackingChanges;
+
+    public ConsolidatedStore(FinalDataRepository repository) {
+        this.repository = repository;
+    }
+
+    @PostConstruct
+    public void load() {
+        Map<String, FinalData> finalData = repository.load();
+        if (finalData instanceof FinalDataSnapshotMap shards) {
+            loadedShards = shards;
+        } else {
+            // Only statistics migrated from finalData.csv are loaded on the heap
+            for (String keyPair : finalData.keySet()) {
+                int comma = keyPair.indexOf(',');
+                indexDestination(keyPair.substring(0, comma), keyPair.substring(comma + 1));
+            }
+        }
+        loaded = finalData;
+        updates.increment();
+        logger.info("Consolidated store initialised with {} pairs.", finalData.size());
+    }
+
+    /**
+     * Folds one summary into the statistics of its pair and returns the updated value.
+     */
+    public FinalData apply(String srcIp, String dstIp, long totalFlowDuration, long totalFwdPkts) {
+        String key = srcIp + "," + dstIp;
+        FinalData updated = finalDataMap.compute(key, (keyPair, existing) -> {
+            if (existing == null) {
+                existing = loadedOrNew(keyPair, srcIp, dstIp);
+            }
+            return existing.withSummary(totalFlowDuration, totalFwdPkts);
+        });
+        changed(key);
+        return updated;
+    }
+
+    /**
+     * Merges a partial aggregate (for example from another worker) into the pair.
+     * Merging is order independent, so partials may arrive in any order.
+     */
+    public FinalData merge(String srcIp, String dstIp, FinalData partial) {
+        String key = srcIp + "," + dstIp;
+        FinalData merged = finalDataMap.compute(key, (keyPair, existing) -> {
+            if (existing == null) {
+                existing = loadedOrNew(keyPair, srcIp, dstIp);
+            }
+            return existing.merge(partial);
+        });
+        changed(key);
+        return merged;
+    }
+
+    public FinalData get(String srcIp, String dstIp) {
+        String keyPair = srcIp + "," + dstIp;
+        FinalData data = finalDataMap.get(keyPair);
+        return data != null ? data : loaded.get(keyPair);
+    }
+
+    /**
+     * @param after if not null, only the destinations after this Dst IP are passed.
+     * @return the destinations seen from the source in Dst IP order.
+     */
+    public Iterator<String> destinationsOf(String srcIp, String after) {
+        Destinations destinations = destinationsBySource.get(srcIp);
+        Iterator<String> indexed = destinations == null ? Collections.emptyIterator()
+                : (after == null ? destinations.dstIps : destinations.dstIps.tailSet(after, false)).iterator();
+        FinalDataSnapshotMap shards = loadedShards;
+        if (shards == null) {
+            return indexed;
+        }
+        String prefix = srcIp + ",";
+        // The first key past "srcIp,after" is "srcIp,after\0", and the first past the source is "srcIp-"
+        Iterator<String> keyPairs = shards.snapshotKeys(after == null ? prefix : prefix + after + "\0", srcIp + "-");
+        return new MergedDestinations(keyPairs, prefix.length(), indexed);
+    }
+
+    /**
+     * @return the number of destinations seen from the source, without reading them.
+     */
+    public int destinationCount(String srcIp) {
+        Destinations destinations = destinationsBySource.get(srcIp);
+        FinalDataSnapshotMap shards = loadedShards;
+        return (destinations == null ? 0 : destinations.count.get())
+                + (shards == null ? 0 : shards.snapshotKeyCount(srcIp + ",", srcIp + "-"));
+    }
+
+    /**
+     * Passes every pair and its statistics, as of some point during the call.
+     */
+    public void forEach(BiConsumer<String, FinalData> consumer) {
+        finalDataMap.forEach(consumer);
+        loaded.forEach((keyPair, data) -> {
+            if (!finalDataMap.containsKey(keyPair)) {
+                consumer.accept(keyPair, data);
+            }
+        });
+    }
+
+    /**
+     * Starts recording the pairs that are updated, for {@link #drainChanges}.
+     */
+    public void trackChanges() {
+        trackingChanges = true;
+    }
+
+    /**
+     * Passes every pair updated since the last call, with its current statistics, and
+     * forgets them. A pair updated during the call may be passed again by the next one.
+     */
+    public void drainChanges(BiConsumer<String, FinalData> consumer) {
+        for (Iterator<String> keyPairs = changedPairs.iterator(); keyPairs.hasNext(); ) {
+            String keyPair = keyPairs.next();
+            keyPairs.remove();
+            FinalData data = finalDataMap.get(keyPair);
+            if (data != null) {
+                consumer.accept(keyPair, data);
+            }
+        }
+    }
+
+    /**
+     * A number that grows with every update, to tell whether anything changed since it was last read.
+     */
+    public long updateCount() {
+        return updates.sum();
+    }
+
+    public int size() {
+        return loaded.size() + newPairs.get();
+    }
+
+    /**
+     * The loaded statistics of a pair updated for the first time, or empty ones for a new pair.
+     */
+    private FinalData loadedOrNew(String keyPair, String srcIp, String dstIp) {
+        FinalData data = loaded.get(keyPair);
+        if (data != null) {
+            return data;
+        }
+        indexDestination(srcIp, dstIp);
+        newPairs.incrementAndGet();
+        return FinalData.EMPTY;
+    }
+
+    private void changed(String keyPair) {
+        if (trackingChanges) {
+            changedPairs.add(keyPair);
+        }
+        updates.increment();
+    }
+
+    private void indexDestination(String srcIp, String dstIp) {
+        Destinations destinations = destinationsBySource.computeIfAbsent(srcIp, source -> new Destinations());
+        if (destinations.dstIps.add(dstIp)) {
+            destinations.count.incrementAndGet();
+        }
+    }
+
+    /** The Dst IPs of the loaded pairs of a source merged with the indexed ones, both in order. */
+    private static final class MergedDestinations implements Iterator<String> {
+
+        private final Iterator<String> keyPairs;
+        private final int dstIpStart;
+        private final Iterator<String> indexed;
+        private String nextLoaded;
+        private String nextIndexed;
+
+        MergedDestinations(Iterator<String> keyPairs, int dstIpStart, Iterator<String> indexed) {
+            this.keyPairs = keyPairs;
+            this.dstIpStart = dstIpStart;
+            this.indexed = indexed;
+            nextLoaded = keyPairs.hasNext() ? keyPairs.next().substring(dstIpStart) : null;
+            nextIndexed = indexed.hasNext() ? indexed.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLoaded != null || nextIndexed != null;
+        }
+
+        @Override
+        public String next() {
+            String dstIp;
+            if (nextLoaded != null && (nextIndexed == null || nextLoaded.compareTo(nextIndexed) < 0)) {
+                dstIp = nextLoaded;
+                nextLoaded = keyPairs.hasNext() ? keyPairs.next().substring(dstIpStart) : null;
+            } else if (nextIndexed != null) {
+                dstIp = nextIndexed;
+                nextIndexed = indexed.hasNext() ? indexed.next() : null;
+            } else {
+                throw new NoSuchElementException();
+            }
+            return dstIp;
+        }
+    }
+
+    /** The sorted destinations of a source; the size of a skip list set is not constant time. */
+    private static final class Destinations {
+        private final ConcurrentSkipListSet<String> dstIps = new ConcurrentSkipListSet<>();
+        private final AtomicInteger count = new AtomicInteger();
+    }
+}
@@ -0,0 +1,33 @@
+package com.ProcessDataEC2.ProcessDataEC2.Store;
+
+import com.example.cloudworkers.common.FlowSummarizer;
+
+/**
+ * Progress of the Summarize stage on one input object, identified by its key and ETag.
+ *
+ * A complete checkpoint marks an object whose summaries were sent. A partial one holds
+ * the totals of the lines that start before {@code offset}, so the object can be
+ * resumed from there.
+ *
+ * @param rowCount the rows summarized up to {@code offset}.
+ * @param partial  the totals of those rows, null for a complete checkpoint.
+ */
+public record FileCheckpoint(String objectKey, String eTag, boolean complete, long offset, long rowCount,
+                             FlowSummarizer partial) {
+
+    public static FileCheckpoint partial(String objectKey, String eTag, long offset, long rowCount,
+                                         FlowSummarizer partial) {
+        return new FileCheckpoint(objectKey, eTag, false, offset, rowCount, partial);
+    }
+
+    public static FileCheckpoint complete(String objectKey, String eTag, long rowCount) {
+        return new FileCheckpoint(objectKey, eTag, true, -1, rowCount, null);
+    }
+
+    /**
+     * Whether the checkpoint was taken on this version of the object.
+     */
+    public boolean matches(String eTag) {
+        return eTag != null && eTag.equals(this.eTag);
+    }
+}
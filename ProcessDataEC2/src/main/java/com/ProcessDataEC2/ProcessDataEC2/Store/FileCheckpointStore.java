@@ -0,0 +1,186 @@
+package com.ProcessDataEC2.ProcessDataEC2.Store;
+
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.example.cloudworkers.common.FlowSummarizer;
+import com.example.cloudworkers.common.SummaryMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Keeps one {@link FileCheckpoint} per input object in S3, at
+ * {@code app.s3.checkpointPrefix} followed by the object key, so it survives the
+ * instance that wrote it.
+ *
+ * A checkpoint is a few {@code name=value} lines, an empty line, and for a partial
+ * checkpoint the totals so far, one {@link SummaryMessage} record per line:
+ * <pre>
+ * eTag="9b2cf535f27731c974343645a3985328"
+ * state=partial
+ * offset=268435456
+ * rows=2140000
+ *
+ * 192.168.1.10,8.8.8.8,1203344,17
+ * </pre>
+ * A checkpoint that cannot be read is ignored, which only costs processing the object
+ * from the start again.
+ */
+@Component
+public class FileCheckpointStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileCheckpointStore.class);
+
+    private static final String OBJECT = "checkpoint";
+    private static final int WRITE_BUFFER_CHARS = 1 << 16;
+
+    @Value("${app.s3.bucketName}")
+    private String bucketName;
+
+    @Value("${app.s3.checkpointPrefix:processed-data/checkpoints/}")
+    private String checkpointPrefix;
+
+    @Value("${app.summarize.spillDirectory:${java.io.tmpdir}}")
+    private File spillDirectory;
+
+    private final S3Client s3Client;
+    private final PipelineMetrics metrics;
+
+    public FileCheckpointStore(S3Client s3Client, PipelineMetrics metrics) {
+        this.s3Client = s3Client;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the last checkpoint of the object, or null if there is none.
+     */
+    public FileCheckpoint load(String objectKey) {
+        return load(objectKey, FlowSummarizer::new);
+    }
+
+    /**
+     * @param summarizers creates the summarizer the totals of a partial checkpoint are read into.
+     * @return the last checkpoint of the object, or null if there is none.
+     */
+    public FileCheckpoint load(String objectKey, Supplier<FlowSummarizer> summarizers) {
+        long started = System.nanoTime();
+        try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(checkpointKey(objectKey))
+                .build());
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+
+            Map<String, String> fields = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int separator = line.indexOf('=');
+                if (separator > 0) {
+                    fields.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+            String eTag = fields.get("eTag");
+            long rows = Long.parseLong(fields.getOrDefault("rows", "0"));
+            FileCheckpoint checkpoint;
+            if ("complete".equals(fields.get("state"))) {
+                checkpoint = FileCheckpoint.complete(objectKey, eTag, rows);
+            } else if ("partial".equals(fields.get("state"))) {
+                FlowSummarizer partial = summarizers.get();
+                while ((line = reader.readLine()) != null) {
+                    SummaryMessage summary = SummaryMessage.parse(line);
+                    partial.add(summary.getSrcIp(), summary.getDstIp(),
+                            summary.getTotalFlowDuration(), summary.getTotalFwdPkts());
+                }
+                checkpoint = FileCheckpoint.partial(objectKey, eTag, Long.parseLong(fields.get("offset")), rows, partial);
+            } else {
+                throw new IllegalArgumentException("Unknown checkpoint state " + fields.get("state"));
+            }
+            Long contentLength = in.response().contentLength();
+            metrics.s3Request(PipelineMetrics.GET, OBJECT, System.nanoTime() - started,
+                    contentLength == null ? 0 : contentLength);
+            return checkpoint;
+
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable checkpoint of {}: {}", objectKey, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file in {@code app.summarize.spillDirectory}
+     * and uploads that, so the totals of a partial checkpoint, read from the spill
+     * files of the summarizer once it has spilled, are never all in memory.
+     */
+    public void save(FileCheckpoint checkpoint) {
+        File file;
+        try {
+            file = File.createTempFile("checkpoint-", ".tmp", spillDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create a checkpoint file in " + spillDirectory, e);
+        }
+        try {
+            write(checkpoint, file);
+            long started = System.nanoTime();
+            s3Client.putObject(PutObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(checkpointKey(checkpoint.objectKey()))
+                            .build(),
+                    RequestBody.fromFile(file));
+            metrics.s3Request(PipelineMetrics.PUT, OBJECT, System.nanoTime() - started, file.length());
+        } finally {
+            file.delete();
+        }
+        logger.debug("Checkpointed {} at {}", checkpoint.objectKey(),
+                checkpoint.complete() ? "completion" : "offset " + checkpoint.offset());
+    }
+
+    private static void write(FileCheckpoint checkpoint, File file) {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8),
+                WRITE_BUFFER_CHARS)) {
+            writer.write("eTag=" + checkpoint.eTag() + "\n");
+            writer.write("state=" + (checkpoint.complete() ? "complete" : "partial") + "\n");
+            if (!checkpoint.complete()) {
+                writer.write("offset=" + checkpoint.offset() + "\n");
+            }
+            writer.write("rows=" + checkpoint.rowCount() + "\n");
+            writer.write("\n");
+            if (checkpoint.partial() != null) {
+                checkpoint.partial().forEach((srcIp, dstIp, totalFlowDuration, totalFwdPkts) -> {
+                    try {
+                        writer.write(SummaryMessage.format(srcIp, dstIp, totalFlowDuration, totalFwdPkts) + "\n");
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write the checkpoint to " + file, e);
+        }
+    }
+
+    private String checkpointKey(String objectKey) {
+        return checkpointPrefix + objectKey + ".checkpoint";
+    }
+}
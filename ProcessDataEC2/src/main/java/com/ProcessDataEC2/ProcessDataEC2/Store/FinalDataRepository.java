@@ -0,0 +1,421 @@
+package com.ProcessDataEC2.ProcessDataEC2.Store;
+
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.example.cloudworkers.common.Compression;
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataCsv;
+import com.example.cloudworkers.common.FinalDataManifest;
+import com.example.cloudworkers.common.FinalDataSnapshot;
+import com.example.cloudworkers.common.FinalDataSnapshotMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the durable copy of the consolidated statistics in S3.
+ *
+ * The statistics are split into {@code app.export.shardCount} shards by a hash of the
+ * pair (see {@link FinalDataManifest}). Each shard is a {@link FinalDataSnapshot}
+ * object, and the manifest at {@code app.s3.finalDataManifestKey} names the layout
+ * in use. Shards are downloaded to {@code app.export.localSnapshotDir} and
+ * memory-mapped; the download is skipped while the local file still has the ETag
+ * of the object. Loaded statistics are a {@link FinalDataSnapshotMap} over the mapped
+ * shards, read in place rather than copied into a map, which keeps what is put into
+ * it in a small overlay.
+ *
+ * Without a manifest the single snapshot at {@code app.s3.finalDataSnapshotKey}, and
+ * before it finalData.csv, are read; {@link #save(Map)} then writes the sharded
+ * layout. finalData.csv is only written with {@code app.export.writeCsv=true}, as
+ * it always holds the whole dataset, compressed with {@code app.export.compression}
+ * (none, gzip or zstd). The codec is recorded as the Content-Encoding of the object,
+ * whose key does not change, and finalData.csv is read with whichever codec it has.
+ */
+@Component
+public class FinalDataRepository {
+
+    private static final Logger logger = LoggerFactory.getLogger(FinalDataRepository.class);
+
+    @Value("${app.s3.bucketName}")
+    private String bucketName;
+
+    @Value("${app.s3.finalDataKey}")
+    private String finalDataKey;
+
+    @Value("${app.s3.finalDataSnapshotKey:processed-data/finalData.snapshot}")
+    private String snapshotKey;
+
+    @Value("${app.s3.finalDataManifestKey:processed-data/finalData.manifest}")
+    private String manifestKey;
+
+    @Value("${app.s3.finalDataShardPrefix:processed-data/finalData/}")
+    private String shardPrefix;
+
+    @Value("${app.export.shardCount:16}")
+    private int shardCount = 16;
+
+    @Value("${app.export.localSnapshotDir:${java.io.tmpdir}/finalData}")
+    private String localSnapshotDir;
+
+    @Value("${app.export.writeCsv:false}")
+    private boolean writeCsv;
+
+    @Value("${app.export.compression:none}")
+    private String compression = "none";
+
+    private static final String OBJECT = "finalData";
+    private static final String SNAPSHOT = "finalDataSnapshot";
+    private static final String SHARD = "finalDataShard";
+    private static final String MANIFEST = "finalDataManifest";
+
+    private final S3Client s3Client;
+    private final PipelineMetrics metrics;
+
+    public FinalDataRepository(S3Client s3Client, PipelineMetrics metrics) {
+        this.s3Client = s3Client;
+        this.metrics = metrics;
+    }
+
+    /** The number of shards new layouts are written with. */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public boolean isCsvEnabled() {
+        return writeCsv;
+    }
+
+    /**
+     * Loads every record keyed by "srcIp,dstIp".
+     * A missing object yields an empty map; any other failure is propagated so
+     * callers never mistake an unreadable file for an empty dataset.
+     */
+    public Map<String, FinalData> load() {
+        return load(loadManifest());
+    }
+
+    /**
+     * Loads every record of the given layout, or of the unsharded objects if
+     * {@code manifest} is null.
+     */
+    public Map<String, FinalData> load(FinalDataManifest manifest) {
+        if (manifest == null) {
+            return loadUnsharded();
+        }
+        FinalDataSnapshot[] shards = new FinalDataSnapshot[manifest.getShardCount()];
+        for (int shard = 0; shard < shards.length; shard++) {
+            shards[shard] = mapShard(manifest, shard);
+        }
+        Map<String, FinalData> finalDataMap = new FinalDataSnapshotMap(shards, manifest::shardOf);
+        logger.info("Loaded {} records from {}", finalDataMap.size(), manifest);
+        return finalDataMap;
+    }
+
+    /**
+     * @return the layout in use, or null if the statistics have not been sharded yet.
+     */
+    public FinalDataManifest loadManifest() {
+        long started = System.nanoTime();
+        try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(manifestKey)
+                .build())) {
+            FinalDataManifest manifest = FinalDataManifest.read(in);
+            Long contentLength = in.response().contentLength();
+            metrics.s3Request(PipelineMetrics.GET, MANIFEST, System.nanoTime() - started,
+                    contentLength == null ? 0 : contentLength);
+            return manifest;
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the finalData manifest", e);
+        }
+    }
+
+    /**
+     * Loads the records of one shard; a shard that was never written is empty.
+     */
+    public Map<String, FinalData> loadShard(FinalDataManifest manifest, int shard) {
+        FinalDataSnapshot snapshot = mapShard(manifest, shard);
+        return snapshot == null ? new HashMap<>() : new FinalDataSnapshotMap(snapshot);
+    }
+
+    /**
+     * @return the mapped shard, or null if it was never written.
+     */
+    private FinalDataSnapshot mapShard(FinalDataManifest manifest, int shard) {
+        String key = manifest.shardKey(shard);
+        HeadObjectResponse head;
+        try {
+            head = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .build());
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+        try {
+            return mapSnapshot(key, SHARD, head.eTag());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read finalData shard " + key, e);
+        }
+    }
+
+    /**
+     * Replaces one shard of the layout with the given records, which must all belong to it.
+     *
+     * @return the records as written, read in place from the local copy, with an empty overlay.
+     */
+    public Map<String, FinalData> saveShard(FinalDataManifest manifest, int shard, Map<String, FinalData> records) {
+        try {
+            return new FinalDataSnapshotMap(putSnapshot(manifest.shardKey(shard), SHARD, records));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write finalData shard " + shard, e);
+        }
+    }
+
+    /**
+     * Writes the records as a new layout of {@code app.export.shardCount} shards, makes
+     * it current by replacing the manifest, and deletes the shards of the previous layout.
+     * This shards unsharded statistics, and reshards them when the shard count changed.
+     *
+     * @return the new layout.
+     */
+    public FinalDataManifest save(Map<String, FinalData> finalDataMap) {
+        FinalDataManifest previous = loadManifest();
+        FinalDataManifest manifest = FinalDataManifest.create(shardPrefix, shardCount);
+        logger.info("Writing {} records as {}", finalDataMap.size(), manifest);
+
+        List<Map<String, FinalData>> shards = manifest.split(finalDataMap);
+        for (int shard = 0; shard < shards.size(); shard++) {
+            saveShard(manifest, shard, shards.get(shard));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            manifest.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        long started = System.nanoTime();
+        s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(manifestKey)
+                        .build(),
+                RequestBody.fromBytes(bytes.toByteArray()));
+        metrics.s3Request(PipelineMetrics.PUT, MANIFEST, System.nanoTime() - started, bytes.size());
+        logger.info("Switched finalData to {}", manifest);
+
+        if (previous != null && !previous.equals(manifest)) {
+            deleteShards(previous);
+        }
+        if (writeCsv) {
+            saveCsv(finalDataMap);
+        }
+        return manifest;
+    }
+
+    /**
+     * Replaces finalData.csv with the given records, the whole dataset.
+     */
+    public void saveCsv(Map<String, FinalData> finalDataMap) {
+        saveCsv(List.of(finalDataMap));
+    }
+
+    /**
+     * Replaces finalData.csv with the records of the given shards, which together hold
+     * the whole dataset.
+     */
+    public void saveCsv(List<? extends Map<String, FinalData>> shards) {
+        Compression codec = Compression.named(compression);
+        Path csv = localDir().resolve("finalData.csv.tmp");
+        try {
+            Files.createDirectories(csv.getParent());
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(codec.compress(Files.newOutputStream(csv)),
+                    StandardCharsets.UTF_8))) {
+                FinalDataCsv.write(shards, writer);
+            }
+            long started = System.nanoTime();
+            s3Client.putObject(PutObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(finalDataKey)
+                            .contentEncoding(codec.getContentEncoding())
+                            .build(),
+                    RequestBody.fromFile(csv));
+            metrics.s3Request(PipelineMetrics.PUT, OBJECT, System.nanoTime() - started, Files.size(csv));
+            logger.info("Successfully uploaded finalData.csv to s3://{}/{}", bucketName, finalDataKey);
+            Files.deleteIfExists(csv);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write finalData.csv", e);
+        }
+    }
+
+    private Map<String, FinalData> loadUnsharded() {
+        HeadObjectResponse head;
+        try {
+            head = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(snapshotKey)
+                    .build());
+        } catch (NoSuchKeyException e) {
+            logger.info("No snapshot at s3://{}/{}, reading finalData.csv.", bucketName, snapshotKey);
+            return loadCsv();
+        }
+
+        try {
+            FinalDataSnapshot snapshot = mapSnapshot(snapshotKey, SNAPSHOT, head.eTag());
+            logger.info("Loaded {} records from s3://{}/{}", snapshot.size(), bucketName, snapshotKey);
+            return new FinalDataSnapshotMap(snapshot);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the finalData snapshot", e);
+        }
+    }
+
+    private FinalDataSnapshot putSnapshot(String key, String object, Map<String, FinalData> records) throws IOException {
+        Path local = localPath(key);
+        Path temp = local.resolveSibling(local.getFileName() + ".tmp");
+        Files.createDirectories(local.getParent());
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            FinalDataSnapshot.write(records, out);
+        }
+
+        long started = System.nanoTime();
+        String eTag = s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .build(),
+                RequestBody.fromFile(temp)).eTag();
+        metrics.s3Request(PipelineMetrics.PUT, object, System.nanoTime() - started, Files.size(temp));
+        Files.move(temp, local, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writeLocalETag(local, eTag);
+        logger.debug("Uploaded {} records to s3://{}/{}", records.size(), bucketName, key);
+        return FinalDataSnapshot.map(local);
+    }
+
+    /**
+     * Maps the local copy of the snapshot object, downloading it first unless it has
+     * the given ETag. A corrupt local copy is downloaded again.
+     */
+    private FinalDataSnapshot mapSnapshot(String key, String object, String eTag) throws IOException {
+        Path local = localPath(key);
+        if (eTag != null && eTag.equals(readLocalETag(local)) && Files.exists(local)) {
+            try {
+                return FinalDataSnapshot.map(local);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Discarding local snapshot {}: {}", local, e.getMessage());
+            }
+        }
+
+        Files.createDirectories(local.getParent());
+        Path temp = local.resolveSibling(local.getFileName() + ".download");
+        long started = System.nanoTime();
+        try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build())) {
+            long bytes = Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            metrics.s3Request(PipelineMetrics.GET, object, System.nanoTime() - started, bytes);
+            Files.move(temp, local, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeLocalETag(local, in.response().eTag());
+        }
+        return FinalDataSnapshot.map(local);
+    }
+
+    private Map<String, FinalData> loadCsv() {
+        Map<String, FinalData> finalDataMap = new HashMap<>();
+        GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(finalDataKey)
+                .build();
+
+        long started = System.nanoTime();
+        try (ResponseInputStream<GetObjectResponse> finalDataObj = s3Client.getObject(getObjectRequest);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(
+                     Compression.ofContentEncoding(finalDataObj.response().contentEncoding()).decompress(finalDataObj),
+                     StandardCharsets.UTF_8))) {
+
+            finalDataMap = FinalDataCsv.read(reader);
+            Long contentLength = finalDataObj.response().contentLength();
+            metrics.s3Request(PipelineMetrics.GET, OBJECT, System.nanoTime() - started,
+                    contentLength == null ? 0 : contentLength);
+            logger.info("Loaded {} records from s3://{}/{}", finalDataMap.size(), bucketName, finalDataKey);
+
+        } catch (NoSuchKeyException e) {
+            logger.warn("No finalData.csv found at s3://{}/{}. Starting from an empty dataset.", bucketName, finalDataKey);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read finalData.csv", e);
+        }
+        return finalDataMap;
+    }
+
+    private void deleteShards(FinalDataManifest manifest) {
+        for (int shard = 0; shard < manifest.getShardCount(); shard++) {
+            String key = manifest.shardKey(shard);
+            try {
+                s3Client.deleteObject(DeleteObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .build());
+                Files.deleteIfExists(localPath(key));
+                Files.deleteIfExists(etagPath(localPath(key)));
+            } catch (Exception e) {
+                logger.warn("Failed to delete s3://{}/{} of the previous layout: {}", bucketName, key, e.getMessage());
+            }
+        }
+    }
+
+    private Path localDir() {
+        return Paths.get(localSnapshotDir);
+    }
+
+    /** The local copy of an object: its key, flattened into the local directory. */
+    private Path localPath(String key) {
+        return localDir().resolve(key.replace('/', '_'));
+    }
+
+    private static Path etagPath(Path local) {
+        return local.resolveSibling(local.getFileName() + ".etag");
+    }
+
+    private static String readLocalETag(Path local) throws IOException {
+        Path path = etagPath(local);
+        return Files.exists(path) ? new String(Files.readAllBytes(path), StandardCharsets.UTF_8) : null;
+    }
+
+    private static void writeLocalETag(Path local, String eTag) throws IOException {
+        Path path = etagPath(local);
+        if (eTag == null) {
+            Files.deleteIfExists(path);
+        } else {
+            Files.write(path, eTag.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
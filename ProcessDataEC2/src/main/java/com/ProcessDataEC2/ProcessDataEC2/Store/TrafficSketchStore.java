@@ -0,0 +1,103 @@
+package com.ProcessDataEC2.ProcessDataEC2.Store;
+
+import com.ProcessDataEC2.ProcessDataEC2.Model.FanOut;
+import com.ProcessDataEC2.ProcessDataEC2.Model.HeavyPair;
+import com.example.cloudworkers.common.TrafficSketch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Approximate statistics of every consolidated summary in fixed memory, next to the
+ * exact {@link ConsolidatedStore}: the heaviest pairs by Tot Fwd Pkts, the volume of
+ * any pair, the number of distinct destinations of the busiest sources and the number
+ * of distinct pairs. See {@link TrafficSketch} for the sketches and their errors.
+ *
+ * With {@code app.sketch.exactHeavyOnly=true} the exact statistics are only kept for
+ * heavy hitters: a pair that is not yet in the consolidated store enters it once its
+ * volume is at least {@code 1 / app.sketch.heavyPairs} of all the volume seen. Its
+ * exact statistics then count from that point, while the sketches count all of it.
+ *
+ * Only created with {@code app.sketch.enabled=true}. Updates take one lock, held for
+ * a few counter updates.
+ */
+@Component
+@ConditionalOnProperty(name = "app.sketch.enabled", havingValue = "true")
+public class TrafficSketchStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrafficSketchStore.class);
+
+    private final TrafficSketch sketch;
+    private final boolean exactHeavyOnly;
+
+    public TrafficSketchStore(@Value("${app.sketch.heavyPairs:1000}") int heavyPairs,
+                              @Value("${app.sketch.fanOutSources:256}") int fanOutSources,
+                              @Value("${app.sketch.countMinWidth:65536}") int countMinWidth,
+                              @Value("${app.sketch.countMinDepth:4}") int countMinDepth,
+                              @Value("${app.sketch.hllPrecision:12}") int hllPrecision,
+                              @Value("${app.sketch.exactHeavyOnly:false}") boolean exactHeavyOnly) {
+        this.sketch = new TrafficSketch(heavyPairs, fanOutSources, countMinWidth, countMinDepth, hllPrecision);
+        this.exactHeavyOnly = exactHeavyOnly;
+        logger.info("Traffic sketches use {} KiB, exact statistics kept for {}", sketch.sizeBytes() / 1024,
+                exactHeavyOnly ? "heavy hitters only" : "every pair");
+    }
+
+    /**
+     * Adds one summary to the sketches.
+     *
+     * @return whether the exact statistics of the pair should be updated as well.
+     */
+    public boolean add(String srcIp, String dstIp, long totalFwdPkts) {
+        synchronized (sketch) {
+            sketch.add(srcIp, dstIp, totalFwdPkts);
+            return !exactHeavyOnly || sketch.isHeavy(srcIp, dstIp);
+        }
+    }
+
+    public List<HeavyPair> heavyPairs(int limit) {
+        List<HeavyPair> pairs = new ArrayList<>();
+        synchronized (sketch) {
+            sketch.forEachHeavyPair(limit, (srcIp, dstIp, estimatedFwdPkts, maxError) ->
+                    pairs.add(new HeavyPair(srcIp, dstIp, estimatedFwdPkts, maxError)));
+        }
+        return pairs;
+    }
+
+    /** An upper bound of the Tot Fwd Pkts volume of the pair. */
+    public long estimateFwdPkts(String srcIp, String dstIp) {
+        synchronized (sketch) {
+            return sketch.estimateFwdPkts(srcIp, dstIp);
+        }
+    }
+
+    /**
+     * @return the fan-out of the source, or null if its destinations are not counted.
+     */
+    public FanOut fanOut(String srcIp) {
+        long estimate;
+        synchronized (sketch) {
+            estimate = sketch.estimateFanOut(srcIp);
+        }
+        return estimate < 0 ? null : new FanOut(srcIp, estimate);
+    }
+
+    public List<FanOut> topFanOut(int limit) {
+        List<FanOut> fanOuts = new ArrayList<>();
+        synchronized (sketch) {
+            sketch.forEachTopFanOut(limit, (srcIp, estimatedDestinations) ->
+                    fanOuts.add(new FanOut(srcIp, estimatedDestinations)));
+        }
+        return fanOuts;
+    }
+
+    public long estimateDistinctPairs() {
+        synchronized (sketch) {
+            return sketch.estimateDistinctPairs();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.ProcessDataEC2.ProcessDataEC2.Store;
+
+import com.ProcessDataEC2.ProcessDataEC2.Model.WindowStats;
+import com.example.cloudworkers.common.FlowWindows;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Totals per pair and time window of the flows summarized by this instance, keyed by
+ * the Timestamp of each flow.
+ *
+ * Windows are {@code app.window.sizeSeconds} long and start every
+ * {@code app.window.slideSeconds} (tumbling when unset). The windows of a file, or of
+ * one segment of it, are collected by the {@link Contribution} of its key, ETag and
+ * byte range: each of its parts is windowed by a {@link FlowWindows} from
+ * {@link Contribution#newWindows}, which emits a window once the flows of the part are
+ * {@code app.window.allowedLatenessSeconds} past its end, and the partial sums are
+ * added up in the contribution. {@link Contribution#apply()} then adds them here, once:
+ * the last {@code app.window.appliedContributions} applied contributions are
+ * remembered, so a file summarized again after a failure, or a redelivered event, does
+ * not count its flows twice.
+ *
+ * Windows are indexed by pair, so the windows of a pair are read without visiting the
+ * others. Windows ending more than {@code app.window.retentionSeconds} before the
+ * newest one are evicted as newer windows arrive, so memory stays bounded by the
+ * retention.
+ *
+ * Only created with {@code app.window.enabled=true}.
+ */
+@Component
+@ConditionalOnProperty(name = "app.window.enabled", havingValue = "true")
+public class WindowedStatsStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(WindowedStatsStore.class);
+
+    private final long sizeSeconds;
+    private final long slideSeconds;
+    private final long allowedLatenessSeconds;
+    private final long retentionSeconds;
+    /** The totals of every pair, by window start. */
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Long, long[]>> windowsByPair = new ConcurrentHashMap<>();
+    /** The pairs of every window, by window start, to evict them. */
+    private final ConcurrentSkipListMap<Long, Set<String>> pairsByWindow = new ConcurrentSkipListMap<>();
+    private final AtomicLong newestWindowEnd = new AtomicLong(Long.MIN_VALUE);
+
+    @Value("${app.window.appliedContributions:10000}")
+    private int appliedContributionCapacity = 10_000;
+
+    // The most recently applied contributions, oldest first
+    private final Map<String, Boolean> appliedContributions = Collections.synchronizedMap(
+            new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > appliedContributionCapacity;
+                }
+            });
+
+    public WindowedStatsStore(@Value("${app.window.sizeSeconds:60}") long sizeSeconds,
+                              @Value("${app.window.slideSeconds:0}") long slideSeconds,
+                              @Value("${app.window.allowedLatenessSeconds:60}") long allowedLatenessSeconds,
+                              @Value("${app.window.retentionSeconds:3600}") long retentionSeconds) {
+        this.sizeSeconds = sizeSeconds;
+        this.slideSeconds = slideSeconds > 0 ? slideSeconds : sizeSeconds;
+        this.allowedLatenessSeconds = allowedLatenessSeconds;
+        this.retentionSeconds = retentionSeconds;
+        // Fail on startup rather than on the first file
+        new FlowWindows(sizeSeconds, this.slideSeconds, allowedLatenessSeconds, null);
+        logger.info("Windowing flows in windows of {} s every {} s, keeping {} s", sizeSeconds, this.slideSeconds,
+                retentionSeconds);
+    }
+
+    /**
+     * The windows of the bytes {@code start} to {@code end} of one version of a file.
+     */
+    public Contribution contribution(String objectKey, String eTag, long start, long end) {
+        return new Contribution(objectKey + "@" + eTag + ":" + start + "-" + end);
+    }
+
+    /**
+     * Adds partial totals of a pair to its window, unless the window is past the retention.
+     */
+    public void add(long windowStart, long windowEnd, String srcIp, String dstIp,
+                    long totalFlowDuration, long totalFwdPkts) {
+        long newest = newestWindowEnd.accumulateAndGet(windowEnd, Math::max);
+        long oldestKept = newest - retentionSeconds;
+        if (windowEnd <= oldestKept) {
+            return;
+        }
+        String keyPair = srcIp + "," + dstIp;
+        pairsByWindow.computeIfAbsent(windowStart, start -> ConcurrentHashMap.newKeySet()).add(keyPair);
+        windowsByPair.computeIfAbsent(keyPair, pair -> new ConcurrentSkipListMap<>())
+                .merge(windowStart, new long[] {totalFlowDuration, totalFwdPkts}, WindowedStatsStore::sum);
+        if (windowEnd == newest) {
+            // Starts are ordered like ends, all windows having the same size
+            evictUpTo(oldestKept - sizeSeconds);
+        }
+    }
+
+    /**
+     * The windows of a pair that are still kept, oldest first.
+     */
+    public List<WindowStats> windowsOf(String srcIp, String dstIp) {
+        ConcurrentSkipListMap<Long, long[]> pairWindows = windowsByPair.get(srcIp + "," + dstIp);
+        if (pairWindows == null) {
+            return List.of();
+        }
+        // A window added while it was evicted may linger in the index
+        long oldestKept = newestWindowEnd.get() - retentionSeconds - sizeSeconds;
+        List<WindowStats> result = new ArrayList<>();
+        for (Map.Entry<Long, long[]> window : pairWindows.tailMap(oldestKept, false).entrySet()) {
+            long[] totals = window.getValue();
+            result.add(new WindowStats(window.getKey(), window.getKey() + sizeSeconds, totals[0], totals[1]));
+        }
+        return result;
+    }
+
+    /** The number of windows held in memory. */
+    public int windowCount() {
+        return pairsByWindow.size();
+    }
+
+    private void evictUpTo(long lastStart) {
+        for (Iterator<Map.Entry<Long, Set<String>>> evicted = pairsByWindow.headMap(lastStart, true)
+                .entrySet().iterator(); evicted.hasNext(); ) {
+            Map.Entry<Long, Set<String>> window = evicted.next();
+            evicted.remove();
+            for (String keyPair : window.getValue()) {
+                windowsByPair.computeIfPresent(keyPair, (pair, pairWindows) -> {
+                    pairWindows.remove(window.getKey());
+                    return pairWindows.isEmpty() ? null : pairWindows;
+                });
+            }
+        }
+    }
+
+    private static long[] sum(long[] totals, long[] partial) {
+        return new long[] {totals[0] + partial[0], totals[1] + partial[1]};
+    }
+
+    /**
+     * The windows of one part of one version of a file, added up as they are emitted
+     * and added to the store once they are all in.
+     */
+    public final class Contribution {
+
+        private final String id;
+        private final ConcurrentSkipListMap<Long, ConcurrentHashMap<String, long[]>> pending =
+                new ConcurrentSkipListMap<>();
+
+        private Contribution(String id) {
+            this.id = id;
+        }
+
+        /**
+         * @return whether the windows of this part were already added to the store.
+         */
+        public boolean isApplied() {
+            return appliedContributions.containsKey(id);
+        }
+
+        /**
+         * Windows for one range of this part; several can be filled concurrently. Call
+         * {@link FlowWindows#flush()} once its flows are added.
+         */
+        public FlowWindows newWindows() {
+            return new FlowWindows(sizeSeconds, slideSeconds, allowedLatenessSeconds,
+                    (windowStart, windowEnd, srcIp, dstIp, totalFlowDuration, totalFwdPkts) ->
+                            pending.computeIfAbsent(windowStart, start -> new ConcurrentHashMap<>())
+                                    .merge(srcIp + "," + dstIp, new long[] {totalFlowDuration, totalFwdPkts},
+                                            WindowedStatsStore::sum));
+        }
+
+        /**
+         * Passes the totals of every pair and window collected so far, oldest window first.
+         */
+        public void forEach(FlowWindows.WindowConsumer consumer) {
+            for (Map.Entry<Long, ConcurrentHashMap<String, long[]>> window : pending.entrySet()) {
+                long windowStart = window.getKey();
+                window.getValue().forEach((keyPair, totals) -> {
+                    int comma = keyPair.indexOf(',');
+                    consumer.accept(windowStart, windowStart + sizeSeconds, keyPair.substring(0, comma),
+                            keyPair.substring(comma + 1), totals[0], totals[1]);
+                });
+            }
+        }
+
+        /**
+         * Adds the collected windows to the store, unless this part already was.
+         *
+         * @return false if it already was.
+         */
+        public boolean apply() {
+            synchronized (appliedContributions) {
+                if (appliedContributions.containsKey(id)) {
+                    return false;
+                }
+                forEach(WindowedStatsStore.this::add);
+                appliedContributions.put(id, Boolean.TRUE);
+            }
+            pending.clear();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.ProcessDataEC2.ProcessDataEC2.Store;
+
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataManifest;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-behind buffer in front of the sharded finalData objects.
+ *
+ * Export updates are coalesced per pair into a pending set and a single flush thread
+ * folds them into its copy of the dataset, held per shard, and rewrites the shards
+ * they touched every {@code app.export.flushIntervalMs}, or sooner once
+ * {@code app.export.flushMaxUpdates} pairs are pending. N updates in a window
+ * therefore cost one PUT per touched shard instead of N GET/PUT round trips, and
+ * concurrent listeners no longer race on the objects.
+ *
+ * On startup statistics that are not sharded yet, or sharded with another shard
+ * count, are rewritten in the layout of {@code app.export.shardCount} shards.
+ *
+ * Messages can be redelivered or reordered, so for a given pair the record with the
+ * highest TrafficNumber wins. Pending updates are flushed on shutdown; a shard whose
+ * write failed is rewritten by the next flush even if nothing new arrived.
+ *
+ * With {@code app.export.writeCsv=true}, finalData.csv is rebuilt from the shards
+ * every {@code app.export.csvIntervalMs} if any was written since, and on shutdown,
+ * rather than on every flush. It runs on the flush thread, which owns the shards,
+ * and streams them without merging them into one map.
+ *
+ * Pending updates only live in memory, so {@link #update} returns a future that
+ * completes once the flush that writes them succeeded. Callers acknowledge their
+ * messages only then: updates lost in a crash are received again.
+ */
+@Component
+@ConditionalOnProperty(name = "app.export.writeBehind", havingValue = "true", matchIfMissing = true)
+public class WriteBehindFinalDataWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindFinalDataWriter.class);
+
+    private final FinalDataRepository repository;
+
+    @Value("${app.export.flushIntervalMs:5000}")
+    private long flushIntervalMs;
+
+    @Value("${app.export.flushMaxUpdates:1000}")
+    private int flushMaxUpdates;
+
+    @Value("${app.export.csvIntervalMs:60000}")
+    private long csvIntervalMs = 60000;
+
+    private final ConcurrentHashMap<String, FinalData> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private boolean csvStale;
+    private final Set<Integer> unsavedShards = new TreeSet<>();
+    private volatile CompletableFuture<Void> nextFlush = new CompletableFuture<>();
+    private FinalDataManifest manifest;
+    private List<Map<String, FinalData>> shards;
+    private ScheduledExecutorService flushExecutor;
+
+    public WriteBehindFinalDataWriter(FinalDataRepository repository) {
+        this.repository = repository;
+    }
+
+    @PostConstruct
+    public void start() {
+        manifest = repository.loadManifest();
+        if (manifest == null || manifest.getShardCount() != repository.getShardCount()) {
+            logger.info("Resharding finalData from {} into {} shards", manifest == null ? "a single object" : manifest,
+                    repository.getShardCount());
+            manifest = repository.save(repository.load(manifest));
+        }
+        // Read in place from the local copies, updates are kept aside until written
+        shards = new ArrayList<>(manifest.getShardCount());
+        for (int shard = 0; shard < manifest.getShardCount(); shard++) {
+            shards.add(repository.loadShard(manifest, shard));
+        }
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "finaldata-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        if (repository.isCsvEnabled()) {
+            flushExecutor.scheduleWithFixedDelay(this::writeCsv, csvIntervalMs, csvIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        logger.info("Write-behind export enabled: flush every {} ms or {} pending pairs", flushIntervalMs, flushMaxUpdates);
+    }
+
+    /**
+     * Records the latest statistics of a pair; they reach S3 with the next flush.
+     *
+     * @return completes once they are written, or exceptionally if a shard could not be.
+     *         Futures returned later never complete before those returned earlier.
+     */
+    public CompletableFuture<Void> update(String keyPair, FinalData data) {
+        pending.merge(keyPair, data, FinalData::newest);
+        // Read after the merge: a flush swaps the future before draining the pending updates
+        CompletableFuture<Void> flushed = nextFlush;
+        if (pending.size() >= flushMaxUpdates && flushRequested.compareAndSet(false, true)) {
+            try {
+                flushExecutor.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // Shutting down: stop() flushes whatever is pending
+            }
+        }
+        return flushed;
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Folds the pending updates into the dataset and writes each touched shard once.
+     * Only ever runs on the flush thread, or on the caller during shutdown.
+     */
+    synchronized void flush() {
+        flushRequested.set(false);
+        CompletableFuture<Void> flushed = nextFlush;
+        nextFlush = new CompletableFuture<>();
+        if (pending.isEmpty() && unsavedShards.isEmpty()) {
+            flushed.complete(null);
+            return;
+        }
+
+        int updated = 0;
+        for (String keyPair : pending.keySet()) {
+            FinalData data = pending.remove(keyPair);
+            if (data != null) {
+                int shard = manifest.shardOf(keyPair);
+                shards.get(shard).merge(keyPair, data, FinalData::newest);
+                unsavedShards.add(shard);
+                updated++;
+            }
+        }
+
+        int written = 0;
+        for (Integer shard : unsavedShards.toArray(new Integer[0])) {
+            try {
+                // Drops the overlay of updates, now part of the snapshot
+                shards.set(shard, repository.saveShard(manifest, shard, shards.get(shard)));
+                unsavedShards.remove(shard);
+                written++;
+            } catch (Exception e) {
+                logger.error("Failed to flush finalData shard {}, will retry on the next flush: {}", shard, e.getMessage(), e);
+            }
+        }
+        logger.info("Flushed {} updated pairs into {} of {} finalData shards", updated, written, shards.size());
+        // A shard left unsaved holds updates of this flush or of a failed one before it
+        if (unsavedShards.isEmpty()) {
+            flushed.complete(null);
+        } else {
+            flushed.completeExceptionally(new IllegalStateException("Failed to flush finalData shards " + unsavedShards));
+        }
+        csvStale |= written > 0;
+    }
+
+    /**
+     * Rebuilds finalData.csv from the shards if any was written since the last time.
+     */
+    synchronized void writeCsv() {
+        if (!csvStale || !repository.isCsvEnabled()) {
+            return;
+        }
+        try {
+            repository.saveCsv(shards);
+            csvStale = false;
+        } catch (Exception e) {
+            logger.error("Failed to write finalData.csv, will retry: {}", e.getMessage(), e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        flushExecutor.shutdown();
+        flushExecutor.awaitTermination(flushIntervalMs, TimeUnit.MILLISECONDS);
+        logger.info("Flushing {} pending pairs before shutdown", pending.size());
+        flush();
+        writeCsv();
+    }
+}
@@ -0,0 +1,145 @@
+package com.ProcessDataEC2.ProcessDataEC2.Service;
+
+import com.ProcessDataEC2.ProcessDataEC2.Messaging.SqsBatchSender;
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.ProcessDataEC2.ProcessDataEC2.Model.HeavyPair;
+import com.ProcessDataEC2.ProcessDataEC2.Store.ConsolidatedStore;
+import com.ProcessDataEC2.ProcessDataEC2.Store.TrafficSketchStore;
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataMessage;
+import com.example.cloudworkers.common.SummaryMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConsolidateServiceTests {
+
+    private final List<String> sent = new ArrayList<>();
+    private boolean sqsDown;
+
+    private final SqsAsyncClient sqs = new SqsAsyncClient() {
+        @Override
+        public CompletableFuture<SendMessageBatchResponse> sendMessageBatch(SendMessageBatchRequest request) {
+            if (sqsDown) {
+                return CompletableFuture.failedFuture(SdkClientException.create("Unable to execute HTTP request"));
+            }
+            for (SendMessageBatchRequestEntry entry : request.entries()) {
+                sent.add(entry.messageBody());
+            }
+            return CompletableFuture.completedFuture(SendMessageBatchResponse.builder().build());
+        }
+
+        @Override
+        public String serviceName() {
+            return "sqs";
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private final ConsolidatedStore store = new ConsolidatedStore(null);
+    private final TrafficSketchStore sketchStore = new TrafficSketchStore(10, 4, 1024, 4, 10, true);
+    private final ConsolidateService consolidateService = new ConsolidateService(store, null,
+            Optional.of(sketchStore), new PipelineMetrics(new SimpleMeterRegistry()));
+
+    @Test
+    void acknowledgesOnlyDeliveredMessagesAndAppliesEachOnce() {
+        PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry());
+        ConsolidateService service = new ConsolidateService(store, new SqsBatchSender(sqs, metrics),
+                Optional.empty(), metrics);
+        ReflectionTestUtils.setField(service, "consolidateToExportQueueUrl", "consolidate-to-export");
+        List<String> ids = List.of("id-1", "id-2");
+        List<String> messages = List.of("10.0.0.1,10.0.0.2,100,3", "10.0.0.1,10.0.0.3,50,1");
+
+        sqsDown = true;
+        assertTrue(service.handleConsolidation(ids, messages).isEmpty());
+        assertEquals(1, store.get("10.0.0.1", "10.0.0.2").getTrafficNumber());
+
+        // Redelivered: sent again, not applied again
+        sqsDown = false;
+        assertEquals(BitSet.valueOf(new long[] {0b11}), service.handleConsolidation(ids, messages));
+        assertEquals(1, store.get("10.0.0.1", "10.0.0.2").getTrafficNumber());
+        List<FinalDataMessage> exported = new ArrayList<>();
+        for (String body : sent) {
+            exported.addAll(FinalDataMessage.unpack(body, record -> {
+                throw new AssertionError(record);
+            }));
+        }
+        assertEquals(2, exported.size());
+        assertEquals(100, exported.get(0).getData().getAvgFlowDuration(), 0.0);
+
+        // A new message is applied
+        service.handleConsolidation(List.of("id-3"), List.of("10.0.0.1,10.0.0.2,300,5"));
+        assertEquals(2, store.get("10.0.0.1", "10.0.0.2").getTrafficNumber());
+    }
+
+    @Test
+    void appliesOnlyTheRestOfAMessageThatFailedPartWay() {
+        ConsolidatedStore failingStore = new ConsolidatedStore(null) {
+            private int applied;
+
+            @Override
+            public FinalData apply(String srcIp, String dstIp, long totalFlowDuration, long totalFwdPkts) {
+                if (++applied == 2) {
+                    throw new IllegalStateException("Failed to apply");
+                }
+                return super.apply(srcIp, dstIp, totalFlowDuration, totalFwdPkts);
+            }
+        };
+        PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry());
+        ConsolidateService service = new ConsolidateService(failingStore, new SqsBatchSender(sqs, metrics),
+                Optional.empty(), metrics);
+        ReflectionTestUtils.setField(service, "consolidateToExportQueueUrl", "consolidate-to-export");
+        List<String> ids = List.of("id-1");
+        List<String> messages = List.of("10.0.0.1,10.0.0.2,100,3\n10.0.0.1,10.0.0.3,50,1\n10.0.0.1,10.0.0.4,20,1");
+
+        assertTrue(service.handleConsolidation(ids, messages).isEmpty());
+        assertEquals(1, failingStore.get("10.0.0.1", "10.0.0.2").getTrafficNumber());
+        assertNull(failingStore.get("10.0.0.1", "10.0.0.3"));
+
+        // Redelivered: the first record is not applied again
+        assertEquals(BitSet.valueOf(new long[] {0b1}), service.handleConsolidation(ids, messages));
+        assertEquals(1, failingStore.get("10.0.0.1", "10.0.0.2").getTrafficNumber());
+        assertEquals(1, failingStore.get("10.0.0.1", "10.0.0.3").getTrafficNumber());
+        assertEquals(1, failingStore.get("10.0.0.1", "10.0.0.4").getTrafficNumber());
+    }
+
+    @Test
+    void keepsExactStatisticsOnlyForHeavyHitters() {
+        List<SummaryMessage> summaries = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            // One pair with half the packets, and a scan of one packet per pair
+            summaries.add(new SummaryMessage("10.0.0.1", "192.168.0.1", 100, 1));
+            summaries.add(new SummaryMessage("10.6.6.6", "172.16." + (i >>> 8) + "." + (i & 0xFF), 1, 1));
+        }
+        List<FinalDataMessage> exported = consolidateService.consolidate(summaries);
+
+        assertTrue(store.size() < 20, "kept " + store.size() + " pairs");
+        assertEquals(10_000, store.get("10.0.0.1", "192.168.0.1").getTrafficNumber());
+        assertEquals(store.size(), exported.stream().map(update -> update.getSrcIp() + "," + update.getDstIp())
+                .distinct().count());
+
+        HeavyPair heaviest = sketchStore.heavyPairs(1).get(0);
+        assertEquals("10.0.0.1", heaviest.srcIp());
+        assertTrue(heaviest.estimatedFwdPkts() >= 10_000);
+        assertEquals(10_000, sketchStore.fanOut("10.6.6.6").estimatedDestinations(), 10_000 * 0.1);
+        assertEquals(10_001, sketchStore.estimateDistinctPairs(), 10_001 * 0.1);
+    }
+}
@@ -0,0 +1,100 @@
+package com.ProcessDataEC2.ProcessDataEC2.Service;
+
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.ProcessDataEC2.ProcessDataEC2.Store.FinalDataRepository;
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataManifest;
+import com.example.cloudworkers.common.FinalDataMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ExportServiceTests {
+
+    private static final FinalDataManifest MANIFEST = new FinalDataManifest(1, "processed-data/finalData/1/");
+
+    private volatile FinalDataManifest manifest;
+    private final Map<Integer, Map<String, FinalData>> shards = new ConcurrentHashMap<>();
+
+    // Slow enough for concurrent read-modify-writes of a shard to overlap
+    private final FinalDataRepository repository = new FinalDataRepository(null, null) {
+        @Override
+        public int getShardCount() {
+            return MANIFEST.getShardCount();
+        }
+
+        @Override
+        public boolean isCsvEnabled() {
+            return false;
+        }
+
+        @Override
+        public FinalDataManifest loadManifest() {
+            return manifest;
+        }
+
+        @Override
+        public Map<String, FinalData> load(FinalDataManifest manifest) {
+            return manifest == null ? new HashMap<>() : loadShard(manifest, 0);
+        }
+
+        @Override
+        public Map<String, FinalData> loadShard(FinalDataManifest manifest, int shard) {
+            Map<String, FinalData> records = new HashMap<>(shards.getOrDefault(shard, Map.of()));
+            pause();
+            return records;
+        }
+
+        @Override
+        public Map<String, FinalData> saveShard(FinalDataManifest manifest, int shard, Map<String, FinalData> records) {
+            shards.put(shard, new HashMap<>(records));
+            return records;
+        }
+
+        @Override
+        public FinalDataManifest save(Map<String, FinalData> finalDataMap) {
+            shards.put(0, new HashMap<>(finalDataMap));
+            manifest = MANIFEST;
+            return MANIFEST;
+        }
+    };
+
+    private final ExportService exportService = new ExportService(repository, Optional.empty(),
+            new PipelineMetrics(new SimpleMeterRegistry()));
+
+    private static void pause() {
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void concurrentWritesThroughKeepTheRecordsOfEachOther() throws Exception {
+        // The first batches also race to shard the statistics
+        ExecutorService listeners = Executors.newFixedThreadPool(8);
+        List<Future<?>> exports = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            FinalDataMessage message = new FinalDataMessage("10.0.0." + i, "10.0.1.1", FinalData.ofSummary(i, 1));
+            exports.add(listeners.submit(() -> exportService.export(List.of(message)).join()));
+        }
+        for (Future<?> export : exports) {
+            export.get();
+        }
+        listeners.shutdown();
+
+        assertEquals(40, shards.get(0).size());
+    }
+}
@@ -0,0 +1,130 @@
+package com.ProcessDataEC2.ProcessDataEC2.Service;
+
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.ProcessDataEC2.ProcessDataEC2.Store.ConsolidatedStore;
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataMessage;
+import com.example.cloudworkers.common.FlowSummarizer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FusedPipelineTests {
+
+    private final PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry());
+    private final ConsolidateService consolidateService = new ConsolidateService(new ConsolidatedStore(null), null,
+            Optional.empty(), metrics);
+    private final Map<String, FinalData> exported = new ConcurrentHashMap<>();
+    private final CountDownLatch exportAllowed = new CountDownLatch(1);
+    private volatile boolean exportFails;
+
+    private final ExportService exportService = new ExportService(null, Optional.empty(), metrics) {
+        @Override
+        public CompletableFuture<Void> export(List<FinalDataMessage> messages) {
+            try {
+                exportAllowed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (exportFails) {
+                throw new IllegalStateException("S3 is down");
+            }
+            // Consolidate workers may pass batches on out of order, as with SQS the newest record wins
+            for (FinalDataMessage message : messages) {
+                exported.merge(message.getKeyPair(), message.getData(),
+                        (a, b) -> a.getTrafficNumber() >= b.getTrafficNumber() ? a : b);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+    };
+
+    private FusedPipeline newPipeline(int queueCapacity, int batchRecords) {
+        FusedPipeline pipeline = new FusedPipeline(consolidateService, exportService, metrics);
+        ReflectionTestUtils.setField(pipeline, "queueCapacity", queueCapacity);
+        ReflectionTestUtils.setField(pipeline, "batchRecords", batchRecords);
+        pipeline.start();
+        return pipeline;
+    }
+
+    @Test
+    void consolidatesAndExportsEverySummaryBeforeStopping() throws Exception {
+        exportAllowed.countDown();
+        FusedPipeline pipeline = newPipeline(4, 1000);
+        FlowSummarizer summarizer = new FlowSummarizer();
+        for (int i = 0; i < 2500; i++) {
+            summarizer.add("10.0." + (i >> 8) + "." + (i & 0xFF), "172.16.0.1", 100, 2);
+        }
+
+        assertEquals(2500, pipeline.submit(summarizer).join());
+        assertEquals(2500, pipeline.submit(summarizer).join());
+        pipeline.stop();
+
+        assertEquals(0, pipeline.pendingBatches());
+        assertEquals(2500, exported.size());
+        FinalData pair = exported.get("10.0.9.195,172.16.0.1");
+        assertEquals(2, pair.getTrafficNumber());
+        assertEquals(100.0, pair.getAvgFlowDuration());
+    }
+
+    @Test
+    void blocksTheSummarizerWhileTheQueuesAreFull() throws Exception {
+        FusedPipeline pipeline = newPipeline(1, 1);
+        FlowSummarizer summarizer = new FlowSummarizer();
+        for (int i = 0; i < 20; i++) {
+            summarizer.add("10.0.0." + i, "172.16.0.1", 100, 2);
+        }
+        AtomicLong submitted = new AtomicLong(-1);
+        Thread summarizing = new Thread(() -> {
+            try {
+                submitted.set(pipeline.submit(summarizer).join());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        summarizing.start();
+
+        summarizing.join(300);
+        assertTrue(summarizing.isAlive());
+        assertTrue(pipeline.pendingBatches() < 20);
+
+        exportAllowed.countDown();
+        summarizing.join(5_000);
+        assertFalse(summarizing.isAlive());
+        pipeline.stop();
+        assertEquals(20, submitted.get());
+        assertEquals(20, exported.size());
+    }
+
+    @Test
+    void reportsAFileExportedOnlyOnceAllOfItsBatchesAre() throws Exception {
+        FusedPipeline pipeline = newPipeline(4, 10);
+        FlowSummarizer summarizer = new FlowSummarizer();
+        for (int i = 0; i < 25; i++) {
+            summarizer.add("10.0.0." + i, "172.16.0.1", 100, 2);
+        }
+
+        CompletableFuture<Long> submitted = pipeline.submit(summarizer);
+        Thread.sleep(100);
+        assertFalse(submitted.isDone());
+
+        exportFails = true;
+        exportAllowed.countDown();
+        assertThrows(CompletionException.class, submitted::join);
+        pipeline.stop();
+        assertEquals(0, pipeline.pendingBatches());
+    }
+}
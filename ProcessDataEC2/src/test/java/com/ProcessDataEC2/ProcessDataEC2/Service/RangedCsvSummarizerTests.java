@@ -0,0 +1,95 @@
+package com.ProcessDataEC2.ProcessDataEC2.Service;
+
+import com.example.cloudworkers.common.FlowSummarizer;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RangedCsvSummarizerTests {
+
+    @Test
+    void rangedSummaryIsIdenticalToSerialSummary() throws IOException {
+        byte[] csv = flowFile(5_000);
+        FlowSummarizer serial = new FlowSummarizer();
+        serial.addCsv(new ByteArrayInputStream(csv));
+
+        // From a few ranges to many more ranges than lines per range
+        for (int ranges : new int[] {2, 3, 7, 64, 20_000}) {
+            RangedCsvSummarizer ranged = new RangedCsvSummarizer(objectStore(csv), true, 0, ranges, 4);
+            try {
+                FlowSummarizer summary = ranged.summarize("bucket", "unprocessed-data/flows.csv", csv.length);
+                assertEquals(serial.getRowCount(), summary.getRowCount(), "ranges=" + ranges);
+                assertEquals(totals(serial), totals(summary), "ranges=" + ranges);
+            } finally {
+                ranged.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void smallObjectsStaySerial() {
+        RangedCsvSummarizer ranged = new RangedCsvSummarizer(objectStore(new byte[0]), true, 1024, 4, 1);
+        try {
+            assertFalse(ranged.shouldSplit(1023));
+            assertTrue(ranged.shouldSplit(1024));
+        } finally {
+            ranged.shutdown();
+        }
+    }
+
+    private static byte[] flowFile(int rows) {
+        SplittableRandom random = new SplittableRandom(3);
+        StringBuilder csv = new StringBuilder("Flow ID,Src IP,Dst IP,Flow Duration,Tot Fwd Pkts,Label\r\n");
+        for (int i = 0; i < rows; i++) {
+            int pair = random.nextInt(300);
+            csv.append(i).append(",10.0.").append(pair % 7).append('.').append(pair)
+                    .append(pair % 5 == 0 ? ",fe80::" + pair : ",192.168.1." + (pair % 256))
+                    .append(',').append(random.nextInt(1_000_000)).append(',').append(random.nextInt(50))
+                    .append(i % 3 == 0 ? ",Benign\r\n" : ",DoS attack with a longer label\n");
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Serves {@code object} for every key, honouring "bytes=start-" ranges. */
+    private static S3Client objectStore(byte[] object) {
+        return new S3Client() {
+            @Override
+            public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+                int start = request.range() == null ? 0
+                        : Integer.parseInt(request.range().substring("bytes=".length(), request.range().length() - 1));
+                return new ResponseInputStream<>(GetObjectResponse.builder().build(),
+                        AbortableInputStream.create(new ByteArrayInputStream(object, start, object.length - start)));
+            }
+
+            @Override
+            public String serviceName() {
+                return "s3";
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static Map<String, String> totals(FlowSummarizer summarizer) {
+        Map<String, String> totals = new HashMap<>();
+        summarizer.forEach((srcIp, dstIp, totalFlowDuration, totalFwdPkts) ->
+                totals.put(srcIp + "," + dstIp, totalFlowDuration + "," + totalFwdPkts));
+        return totals;
+    }
+}
@@ -0,0 +1,300 @@
+package com.ProcessDataEC2.ProcessDataEC2.Service;
+
+import com.ProcessDataEC2.ProcessDataEC2.Messaging.SqsBatchSender;
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.ProcessDataEC2.ProcessDataEC2.Store.FileCheckpoint;
+import com.ProcessDataEC2.ProcessDataEC2.Store.FileCheckpointStore;
+import com.example.cloudworkers.common.FlowSummarizer;
+import com.example.cloudworkers.common.SummaryMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SummarizeServiceTests {
+
+    private static final String KEY = "unprocessed-data/flows.csv";
+    private static final String GZIP_KEY = "unprocessed-data/flows.csv.gz";
+    private static final String ETAG = "9b2cf535f27731c974343645a3985328";
+
+    private final byte[] csv = flowFile(5_000);
+    private final byte[] gzip = gzip(csv);
+    private final Map<String, byte[]> checkpoints = new HashMap<>();
+    private final List<String> sent = new ArrayList<>();
+    private int inputGets;
+    private int failAtInputGet = Integer.MAX_VALUE;
+    private boolean sqsDown;
+
+    private final S3Client s3 = new S3Client() {
+        @Override
+        public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+            byte[] object;
+            if (request.key().equals(KEY)) {
+                if (++inputGets >= failAtInputGet) {
+                    throw SdkClientException.create("Instance terminated");
+                }
+                object = csv;
+            } else if (request.key().equals(GZIP_KEY)) {
+                inputGets++;
+                object = gzip;
+            } else {
+                object = checkpoints.get(request.key());
+                if (object == null) {
+                    throw NoSuchKeyException.builder().message(request.key()).build();
+                }
+            }
+            int start = request.range() == null ? 0
+                    : Integer.parseInt(request.range().substring("bytes=".length(), request.range().indexOf('-')));
+            return new ResponseInputStream<>(GetObjectResponse.builder().contentLength((long) object.length - start).build(),
+                    AbortableInputStream.create(new ByteArrayInputStream(object, start, object.length - start)));
+        }
+
+        @Override
+        public HeadObjectResponse headObject(HeadObjectRequest request) {
+            return HeadObjectResponse.builder().eTag("\"" + ETAG + "\"").contentLength((long) csv.length).build();
+        }
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+            try {
+                checkpoints.put(request.key(), body.contentStreamProvider().newStream().readAllBytes());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return PutObjectResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private final SqsAsyncClient sqs = new SqsAsyncClient() {
+        @Override
+        public CompletableFuture<SendMessageBatchResponse> sendMessageBatch(SendMessageBatchRequest request) {
+            if (sqsDown) {
+                return CompletableFuture.failedFuture(SdkClientException.create("Unable to execute HTTP request"));
+            }
+            for (SendMessageBatchRequestEntry entry : request.entries()) {
+                sent.add(entry.messageBody());
+            }
+            return CompletableFuture.completedFuture(SendMessageBatchResponse.builder().build());
+        }
+
+        @Override
+        public String serviceName() {
+            return "sqs";
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private final PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry());
+    private final RangedCsvSummarizer rangedCsvSummarizer = new RangedCsvSummarizer(s3, false, 0, 1, 1);
+    private final FileCheckpointStore checkpointStore = new FileCheckpointStore(s3, metrics);
+    private final SummarizeService service = newService();
+
+    private SummarizeService newService() {
+        ReflectionTestUtils.setField(checkpointStore, "bucketName", "bucket");
+        ReflectionTestUtils.setField(checkpointStore, "checkpointPrefix", "processed-data/checkpoints/");
+        SummarizeService service = new SummarizeService(s3, new SqsBatchSender(sqs, metrics), rangedCsvSummarizer,
+                checkpointStore, Optional.empty(), Optional.empty(), metrics);
+        ReflectionTestUtils.setField(service, "bucketName", "bucket");
+        ReflectionTestUtils.setField(service, "summarizeToConsolidateQueueUrl", "summarize-to-consolidate");
+        // Five segments
+        ReflectionTestUtils.setField(service, "checkpointIntervalBytes", (long) csv.length / 5 + 1);
+        return service;
+    }
+
+    @AfterEach
+    void shutdown() {
+        rangedCsvSummarizer.shutdown();
+    }
+
+    @Test
+    void resumesAnInterruptedFileFromItsLastCheckpoint() throws IOException {
+        // Header, then the first two segments, then the instance dies
+        failAtInputGet = 4;
+        service.handleS3Notification(event());
+
+        assertTrue(sent.isEmpty());
+        FileCheckpoint checkpoint = checkpointStore.load(KEY);
+        assertFalse(checkpoint.complete());
+        assertTrue(checkpoint.offset() > 0 && checkpoint.offset() < csv.length);
+
+        failAtInputGet = Integer.MAX_VALUE;
+        inputGets = 0;
+        service.handleS3Notification(event());
+
+        // Header and the last three segments only
+        assertEquals(4, inputGets);
+        FlowSummarizer serial = new FlowSummarizer();
+        serial.addCsv(new ByteArrayInputStream(csv));
+        assertEquals(totals(serial), sentTotals());
+        assertTrue(checkpointStore.load(KEY).complete());
+    }
+
+    @Test
+    void summarizesWithinAMemoryBudgetAndDeletesItsSpillFiles(@TempDir File spillDirectory) throws IOException {
+        // Every summarizer spills at its minimum of 256 pairs
+        ReflectionTestUtils.setField(rangedCsvSummarizer, "memoryBudgetBytes", 1L);
+        ReflectionTestUtils.setField(rangedCsvSummarizer, "spillDirectory", spillDirectory);
+        failAtInputGet = 4;
+        service.handleS3Notification(event());
+        assertEquals(0, spillDirectory.listFiles().length);
+
+        failAtInputGet = Integer.MAX_VALUE;
+        service.handleS3Notification(event());
+
+        FlowSummarizer serial = new FlowSummarizer();
+        serial.addCsv(new ByteArrayInputStream(csv));
+        assertEquals(totals(serial), sentTotals());
+        assertEquals(0, spillDirectory.listFiles().length);
+    }
+
+    @Test
+    void readsACompressedFileWholeWithoutSegments() throws IOException {
+        service.handleS3Notification(event(GZIP_KEY));
+
+        assertEquals(1, inputGets);
+        FlowSummarizer serial = new FlowSummarizer();
+        serial.addCsv(new ByteArrayInputStream(csv));
+        assertEquals(totals(serial), sentTotals());
+        assertTrue(checkpointStore.load(GZIP_KEY).complete());
+    }
+
+    @Test
+    void skipsARedeliveredEventOfASummarizedFile() {
+        service.handleS3Notification(event());
+        int messages = sent.size();
+        assertTrue(messages > 0);
+
+        inputGets = 0;
+        service.handleS3Notification(event());
+
+        assertEquals(messages, sent.size());
+        assertEquals(0, inputGets);
+    }
+
+    @Test
+    void checkpointsAFileOnlyOnceItsSummariesWereDelivered() {
+        sqsDown = true;
+        assertFalse(service.handleS3Notification(event(GZIP_KEY)));
+        assertTrue(sent.isEmpty());
+        assertEquals(null, checkpointStore.load(GZIP_KEY));
+
+        // The redelivered event summarizes the file again
+        sqsDown = false;
+        assertTrue(service.handleS3Notification(event(GZIP_KEY)));
+        assertEquals(2, inputGets);
+        assertFalse(sentTotals().isEmpty());
+        assertTrue(checkpointStore.load(GZIP_KEY).complete());
+    }
+
+    @Test
+    void acknowledgesOnlyTheEventsThatWereHandled() {
+        BitSet handled = service.handleS3Notifications(List.of(
+                event(), event("unprocessed-data/missing.csv"), "not an S3 event"));
+
+        // The missing file is retried; an unreadable event never could be
+        assertEquals(BitSet.valueOf(new long[] {0b101}), handled);
+    }
+
+    private String event() {
+        return event(KEY);
+    }
+
+    private String event(String key) {
+        return "{\"Records\":[{\"s3\":{\"object\":{\"key\":\"" + key + "\",\"size\":" + csv.length
+                + ",\"eTag\":\"" + ETAG + "\"}}}]}";
+    }
+
+    private Map<String, String> sentTotals() {
+        Map<String, String> totals = new HashMap<>();
+        for (String body : sent) {
+            for (SummaryMessage summary : SummaryMessage.unpack(body, record -> {
+                throw new AssertionError(record);
+            })) {
+                String previous = totals.put(summary.getSrcIp() + "," + summary.getDstIp(),
+                        summary.getTotalFlowDuration() + "," + summary.getTotalFwdPkts());
+                assertEquals(null, previous, "pair sent twice");
+            }
+        }
+        return totals;
+    }
+
+    private static Map<String, String> totals(FlowSummarizer summarizer) {
+        Map<String, String> totals = new HashMap<>();
+        summarizer.forEach((srcIp, dstIp, totalFlowDuration, totalFwdPkts) ->
+                totals.put(srcIp + "," + dstIp, totalFlowDuration + "," + totalFwdPkts));
+        return totals;
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] flowFile(int rows) {
+        SplittableRandom random = new SplittableRandom(5);
+        StringBuilder csv = new StringBuilder("Flow ID,Src IP,Dst IP,Flow Duration,Tot Fwd Pkts,Label\r\n");
+        for (int i = 0; i < rows; i++) {
+            int pair = random.nextInt(300);
+            csv.append(i).append(",10.0.").append(pair % 7).append('.').append(pair)
+                    .append(",192.168.1.").append(pair % 256)
+                    .append(',').append(random.nextInt(1_000_000)).append(',').append(random.nextInt(50))
+                    .append(",Benign\n");
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,160 @@
+package com.ProcessDataEC2.ProcessDataEC2.Service;
+
+import com.ProcessDataEC2.ProcessDataEC2.Model.PairStats;
+import com.ProcessDataEC2.ProcessDataEC2.Model.StatsPage;
+import com.ProcessDataEC2.ProcessDataEC2.Service.TrafficStatsQueryService.RankBy;
+import com.ProcessDataEC2.ProcessDataEC2.Store.ConsolidatedStore;
+import com.ProcessDataEC2.ProcessDataEC2.Store.FinalDataRepository;
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataManifest;
+import com.example.cloudworkers.common.FinalDataSnapshot;
+import com.example.cloudworkers.common.FinalDataSnapshotMap;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TrafficStatsQueryServiceTests {
+
+    private final ConsolidatedStore store = new ConsolidatedStore(null);
+    private final TrafficStatsQueryService queryService = new TrafficStatsQueryService(store);
+
+    @Test
+    void looksUpPairsAndTheDestinationsOfASource() {
+        store.apply("10.0.0.1", "192.168.1.3", 300, 3);
+        store.apply("10.0.0.1", "192.168.1.1", 100, 1);
+        store.apply("10.0.0.1", "192.168.1.1", 200, 5);
+        store.apply("10.0.0.1", "fe80::2", 50, 1);
+        store.apply("10.0.0.2", "192.168.1.1", 10, 1);
+
+        PairStats pair = queryService.pair("10.0.0.1", "192.168.1.1");
+        assertEquals(2, pair.trafficNumber());
+        assertEquals(150.0, pair.avgFlowDuration());
+        assertEquals(3.0, pair.avgTotFwdPkts());
+        assertNull(queryService.pair("10.0.0.2", "fe80::2"));
+
+        StatsPage page = queryService.destinations("10.0.0.1", 1, 5);
+        assertEquals(3, page.total());
+        assertEquals(List.of("192.168.1.3", "fe80::2"), page.items().stream().map(PairStats::dstIp).toList());
+        StatsPage next = queryService.destinations("10.0.0.1", "192.168.1.1", 0, 1);
+        assertEquals(3, next.total());
+        assertEquals(List.of("192.168.1.3"), next.items().stream().map(PairStats::dstIp).toList());
+        assertEquals(0, queryService.destinations("10.9.9.9", 0, 5).total());
+    }
+
+    @Test
+    void readsTheDestinationsOfLoadedPairsFromTheShards() throws IOException {
+        Map<String, FinalData> finalData = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            finalData.put("10.0.0.1,192.168.1." + (10 + i), FinalData.ofSummary(i, 1));
+        }
+        finalData.put("10.0.0.2,192.168.1.10", FinalData.ofSummary(1, 1));
+        FinalDataManifest manifest = FinalDataManifest.create("shards/", 4);
+        FinalDataSnapshot[] shards = new FinalDataSnapshot[4];
+        for (int shard = 0; shard < 4; shard++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            FinalDataSnapshot.write(manifest.split(finalData).get(shard), out);
+            shards[shard] = FinalDataSnapshot.open(ByteBuffer.wrap(out.toByteArray()));
+        }
+        ConsolidatedStore loaded = new ConsolidatedStore(new FinalDataRepository(null, null) {
+            @Override
+            public Map<String, FinalData> load() {
+                return new FinalDataSnapshotMap(shards, manifest::shardOf);
+            }
+        });
+        loaded.load();
+        TrafficStatsQueryService loadedQueries = new TrafficStatsQueryService(loaded);
+        // New destinations are merged in order with the loaded ones
+        loaded.apply("10.0.0.1", "192.168.1.2", 5, 5);
+        loaded.apply("10.0.0.1", "192.168.1.15", 5, 5);
+        loaded.apply("10.0.0.1", "192.168.1.30", 5, 5);
+
+        StatsPage first = loadedQueries.destinations("10.0.0.1", 0, 3);
+        assertEquals(22, first.total());
+        assertEquals(List.of("192.168.1.10", "192.168.1.11", "192.168.1.12"),
+                first.items().stream().map(PairStats::dstIp).toList());
+        StatsPage next = loadedQueries.destinations("10.0.0.1", "192.168.1.14", 0, 3);
+        assertEquals(List.of("192.168.1.15", "192.168.1.16", "192.168.1.17"),
+                next.items().stream().map(PairStats::dstIp).toList());
+        assertEquals(2, next.items().get(0).trafficNumber());
+        StatsPage last = loadedQueries.destinations("10.0.0.1", 19, 5);
+        assertEquals(List.of("192.168.1.28", "192.168.1.29", "192.168.1.30"),
+                last.items().stream().map(PairStats::dstIp).toList());
+        assertEquals(1, loadedQueries.destinations("10.0.0.2", 0, 5).total());
+    }
+
+    @Test
+    void pagesThroughTheRankingOfEveryPair() {
+        for (int i = 0; i < 25; i++) {
+            store.apply("10.0.0." + i, "192.168.1.1", 1000 - i, i);
+        }
+        queryService.rerank();
+
+        StatsPage first = queryService.top(RankBy.AVG_FLOW_DURATION, 0, 10);
+        StatsPage last = queryService.top(RankBy.AVG_FLOW_DURATION, 20, 10);
+        assertEquals(25, first.total());
+        assertEquals("10.0.0.0", first.items().get(0).srcIp());
+        assertEquals(5, last.items().size());
+        assertEquals("10.0.0.24", last.items().get(4).srcIp());
+        assertEquals("10.0.0.24", queryService.top(RankBy.AVG_TOT_FWD_PKTS, 0, 1).items().get(0).srcIp());
+        assertEquals(0, queryService.top(RankBy.AVG_TOT_FWD_PKTS, 30, 10).items().size());
+
+        // Rankings only move on the next rerank
+        store.apply("10.0.0.99", "192.168.1.1", 5000, 1);
+        assertEquals(25, queryService.top(RankBy.AVG_FLOW_DURATION, 0, 1).total());
+        queryService.rerank();
+        assertEquals("10.0.0.99", queryService.top(RankBy.AVG_FLOW_DURATION, 0, 1).items().get(0).srcIp());
+
+        // A pair that changed moves, and is ranked once
+        store.apply("10.0.0.24", "192.168.1.1", 20000, 0);
+        queryService.rerank();
+        StatsPage moved = queryService.top(RankBy.AVG_FLOW_DURATION, 0, 30);
+        assertEquals(26, moved.total());
+        assertEquals("10.0.0.24", moved.items().get(0).srcIp());
+        assertEquals("10.0.0.99", moved.items().get(1).srcIp());
+        assertEquals("10.0.0.23", moved.items().get(25).srcIp());
+    }
+
+    @Test
+    void keepsTheTopKAndTakesThemAgainWhenARankedPairDropsOut() {
+        ReflectionTestUtils.setField(queryService, "topK", 3);
+        for (int i = 0; i < 10; i++) {
+            store.apply("10.0.0." + i, "192.168.1.1", 1000 - i, i);
+        }
+        queryService.rerank();
+        StatsPage top = queryService.top(RankBy.AVG_FLOW_DURATION, 0, 10);
+        assertEquals(3, top.total());
+        assertEquals(List.of("10.0.0.0", "10.0.0.1", "10.0.0.2"), top.items().stream().map(PairStats::srcIp).toList());
+
+        // Merged in place
+        store.apply("10.0.0.9", "192.168.1.1", 2000, 0);
+        queryService.rerank();
+        assertEquals(List.of("10.0.0.9", "10.0.0.0", "10.0.0.1"),
+                queryService.top(RankBy.AVG_FLOW_DURATION, 0, 10).items().stream().map(PairStats::srcIp).toList());
+
+        // Leaves room for a pair that was not ranked
+        store.apply("10.0.0.9", "192.168.1.1", 0, 0);
+        store.apply("10.0.0.9", "192.168.1.1", 0, 0);
+        store.apply("10.0.0.0", "192.168.1.1", 0, 0);
+        queryService.rerank();
+        assertEquals(List.of("10.0.0.1", "10.0.0.2", "10.0.0.3"),
+                queryService.top(RankBy.AVG_FLOW_DURATION, 0, 10).items().stream().map(PairStats::srcIp).toList());
+    }
+
+    @Test
+    void rejectsInvalidPagesAndMetrics() {
+        assertThrows(IllegalArgumentException.class, () -> queryService.top(RankBy.AVG_FLOW_DURATION, -1, 10));
+        assertThrows(IllegalArgumentException.class, () -> queryService.destinations("10.0.0.1", 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> queryService.top(RankBy.AVG_FLOW_DURATION, 0, 1001));
+        assertThrows(IllegalArgumentException.class, () -> RankBy.of("trafficNumber"));
+    }
+}
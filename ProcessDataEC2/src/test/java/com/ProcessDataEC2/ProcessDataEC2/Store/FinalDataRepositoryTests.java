@@ -0,0 +1,248 @@
+package com.ProcessDataEC2.ProcessDataEC2.Store;
+
+import com.ProcessDataEC2.ProcessDataEC2.Metrics.PipelineMetrics;
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataCsv;
+import com.example.cloudworkers.common.FinalDataManifest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FinalDataRepositoryTests {
+
+    private static final String CSV_KEY = "processed-data/finalData.csv";
+
+    @TempDir
+    Path dir;
+
+    private final ObjectStore s3 = new ObjectStore();
+
+    @Test
+    void legacyCsvIsReadUntilTheStatisticsAreSharded() throws IOException {
+        Map<String, FinalData> legacy = new HashMap<>();
+        legacy.put("10.0.0.1,10.0.0.2", FinalData.ofSummary(100, 3).withSummary(50, 1));
+        StringWriter csv = new StringWriter();
+        FinalDataCsv.write(legacy, csv);
+        s3.objects.put(CSV_KEY, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        FinalDataRepository repository = repository("a", 4);
+        assertNull(repository.loadManifest());
+        Map<String, FinalData> loaded = repository.load();
+        assertEquals(legacy.keySet(), loaded.keySet());
+
+        loaded.put("10.0.0.3,10.0.0.4", FinalData.ofSummary(7, 2));
+        ReflectionTestUtils.setField(repository, "writeCsv", true);
+        FinalDataManifest manifest = repository.save(loaded);
+
+        assertEquals(manifest, repository.loadManifest());
+        assertEquals(4, manifest.getShardCount());
+        assertEquals(loaded.keySet(), repository("b", 4).load().keySet());
+        Map<String, FinalData> derived = FinalDataCsv.read(new InputStreamReader(
+                new ByteArrayInputStream(s3.objects.get(CSV_KEY)), StandardCharsets.UTF_8));
+        assertEquals(loaded.keySet(), derived.keySet());
+        assertEquals(75.0, derived.get("10.0.0.1,10.0.0.2").getAvgFlowDuration());
+    }
+
+    @Test
+    void csvIsWrittenCompressedAndReadByItsContentEncoding() {
+        Map<String, FinalData> finalData = finalData(1_000);
+        FinalDataRepository repository = repository("a", 4);
+        ReflectionTestUtils.setField(repository, "writeCsv", true);
+        ReflectionTestUtils.setField(repository, "compression", "zstd");
+        repository.save(finalData);
+
+        assertEquals("zstd", s3.contentEncodings.get(CSV_KEY));
+        // The zstd frame magic number, little-endian
+        byte[] stored = s3.objects.get(CSV_KEY);
+        assertEquals(0xFD2FB528, ByteBuffer.wrap(stored).order(ByteOrder.LITTLE_ENDIAN).getInt());
+
+        // Without a manifest finalData.csv is all there is to read
+        s3.objects.remove("processed-data/finalData.manifest");
+        Map<String, FinalData> loaded = repository("b", 4).load();
+        assertEquals(finalData.keySet(), loaded.keySet());
+        assertEquals(999.0, loaded.get("10.0.0.231,192.168.0.3").getAvgFlowDuration());
+    }
+
+    @Test
+    void savingAShardRewritesOnlyThatObject() {
+        FinalDataRepository repository = repository("a", 8);
+        FinalDataManifest manifest = repository.save(finalData(1000));
+        Map<String, byte[]> before = new HashMap<>(s3.objects);
+
+        int shard = manifest.shardOf("10.9.9.9,10.9.9.8");
+        Map<String, FinalData> records = repository.loadShard(manifest, shard);
+        records.put("10.9.9.9,10.9.9.8", FinalData.ofSummary(1, 1));
+        repository.saveShard(manifest, shard, records);
+
+        for (Map.Entry<String, byte[]> entry : s3.objects.entrySet()) {
+            boolean changed = !Arrays.equals(before.get(entry.getKey()), entry.getValue());
+            assertEquals(entry.getKey().equals(manifest.shardKey(shard)), changed, entry.getKey());
+        }
+        assertEquals(1001, repository("b", 8).load().size());
+    }
+
+    @Test
+    void reshardingReplacesThePreviousLayout() {
+        Map<String, FinalData> finalData = finalData(1000);
+        FinalDataManifest previous = repository("a", 4).save(finalData);
+
+        FinalDataManifest manifest = repository("a", 16).save(finalData);
+
+        assertEquals(16, repository("b", 16).loadManifest().getShardCount());
+        assertEquals(finalData.keySet(), repository("b", 16).load().keySet());
+        for (int shard = 0; shard < previous.getShardCount(); shard++) {
+            assertFalse(s3.objects.containsKey(previous.shardKey(shard)));
+        }
+        assertTrue(s3.objects.containsKey(manifest.shardKey(15)));
+    }
+
+    @Test
+    void localShardsAreReusedWhileTheirETagMatches() throws IOException {
+        Map<String, FinalData> finalData = finalData(1000);
+        FinalDataManifest manifest = repository("writer", 4).save(finalData);
+
+        FinalDataRepository reader = repository("reader", 4);
+        assertEquals(finalData.keySet(), reader.load().keySet());
+        assertEquals(4, s3.shardGets.get());
+        assertEquals(finalData.keySet(), reader.load().keySet());
+        assertEquals(4, s3.shardGets.get());
+
+        // A corrupt local copy is downloaded again
+        Path local = dir.resolve("reader").resolve(manifest.shardKey(0).replace('/', '_'));
+        byte[] bytes = Files.readAllBytes(local);
+        bytes[40] ^= 1;
+        Files.write(local, bytes);
+        assertEquals(finalData.keySet(), reader.load().keySet());
+        assertEquals(5, s3.shardGets.get());
+
+        // So is a shard that changed in S3
+        int shard = manifest.shardOf("10.9.9.9,10.9.9.8");
+        Map<String, FinalData> records = reader.loadShard(manifest, shard);
+        records.put("10.9.9.9,10.9.9.8", FinalData.ofSummary(1, 1));
+        repository("writer", 4).saveShard(manifest, shard, records);
+        assertEquals(finalData.size() + 1, reader.load().size());
+        assertEquals(6, s3.shardGets.get());
+    }
+
+    private static Map<String, FinalData> finalData(int pairs) {
+        Map<String, FinalData> finalData = new HashMap<>();
+        for (int i = 0; i < pairs; i++) {
+            finalData.put("10.0.0." + (i % 256) + ",192.168.0." + (i / 256), FinalData.ofSummary(i, i % 7));
+        }
+        return finalData;
+    }
+
+    private FinalDataRepository repository(String name, int shardCount) {
+        FinalDataRepository repository = new FinalDataRepository(s3, new PipelineMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(repository, "bucketName", "bucket");
+        ReflectionTestUtils.setField(repository, "finalDataKey", CSV_KEY);
+        ReflectionTestUtils.setField(repository, "snapshotKey", "processed-data/finalData.snapshot");
+        ReflectionTestUtils.setField(repository, "manifestKey", "processed-data/finalData.manifest");
+        ReflectionTestUtils.setField(repository, "shardPrefix", "processed-data/finalData/");
+        ReflectionTestUtils.setField(repository, "shardCount", shardCount);
+        ReflectionTestUtils.setField(repository, "localSnapshotDir", dir.resolve(name).toString());
+        return repository;
+    }
+
+    /** Objects of a single bucket, with the content hash as ETag. */
+    private static class ObjectStore implements S3Client {
+
+        final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        final Map<String, String> contentEncodings = new ConcurrentHashMap<>();
+        final AtomicInteger shardGets = new AtomicInteger();
+
+        @Override
+        public HeadObjectResponse headObject(HeadObjectRequest request) {
+            return HeadObjectResponse.builder().eTag(eTag(require(request.key()))).build();
+        }
+
+        @Override
+        public ResponseInputStream<GetObjectResponse> getObject(GetObjectRequest request) {
+            if (request.key().endsWith(".snapshot")) {
+                shardGets.incrementAndGet();
+            }
+            byte[] content = require(request.key());
+            return new ResponseInputStream<>(
+                    GetObjectResponse.builder().eTag(eTag(content)).contentLength((long) content.length)
+                            .contentEncoding(contentEncodings.get(request.key())).build(),
+                    AbortableInputStream.create(new ByteArrayInputStream(content)));
+        }
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+            try (InputStream in = body.contentStreamProvider().newStream()) {
+                byte[] content = in.readAllBytes();
+                objects.put(request.key(), content);
+                if (request.contentEncoding() != null) {
+                    contentEncodings.put(request.key(), request.contentEncoding());
+                }
+                return PutObjectResponse.builder().eTag(eTag(content)).build();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public DeleteObjectResponse deleteObject(DeleteObjectRequest request) {
+            objects.remove(request.key());
+            return DeleteObjectResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private byte[] require(String key) {
+            byte[] content = objects.get(key);
+            if (content == null) {
+                throw NoSuchKeyException.builder().message("No such key " + key).build();
+            }
+            return content;
+        }
+
+        private static String eTag(byte[] content) {
+            return Integer.toHexString(Arrays.hashCode(content));
+        }
+    }
+}
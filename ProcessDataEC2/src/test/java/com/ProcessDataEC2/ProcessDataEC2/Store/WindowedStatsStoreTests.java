@@ -0,0 +1,90 @@
+package com.ProcessDataEC2.ProcessDataEC2.Store;
+
+import com.ProcessDataEC2.ProcessDataEC2.Model.WindowStats;
+import com.example.cloudworkers.common.FlowWindows;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WindowedStatsStoreTests {
+
+    @Test
+    void addsUpThePartialWindowsOfSeveralFiles() {
+        WindowedStatsStore store = new WindowedStatsStore(60, 0, 0, 3600);
+        List<Long> forwarded = new ArrayList<>();
+        for (int file = 0; file < 2; file++) {
+            WindowedStatsStore.Contribution contribution = store.contribution("file" + file, "etag", 0, 100);
+            // Two ranges of the file, the second one late for the window of the first
+            FlowWindows windows = contribution.newWindows();
+            windows.add(10, "10.0.0.1", "10.0.0.2", 5, 1);
+            windows.add(70, "10.0.0.1", "10.0.0.2", 7, 2);
+            windows.flush();
+            FlowWindows late = contribution.newWindows();
+            late.add(15, "10.0.0.1", "10.0.0.2", 1, 1);
+            late.add(75, "10.0.0.3", "10.0.0.2", 1, 1);
+            late.flush();
+            contribution.forEach(
+                    (windowStart, windowEnd, srcIp, dstIp, totalFlowDuration, totalFwdPkts) -> forwarded.add(windowStart));
+            assertTrue(contribution.apply());
+        }
+
+        // One record per pair and window of each file
+        assertEquals(6, forwarded.size());
+        assertEquals(List.of(new WindowStats(0, 60, 12, 4), new WindowStats(60, 120, 14, 4)),
+                store.windowsOf("10.0.0.1", "10.0.0.2"));
+        assertEquals(List.of(new WindowStats(60, 120, 2, 2)), store.windowsOf("10.0.0.3", "10.0.0.2"));
+        assertEquals(List.of(), store.windowsOf("10.0.0.2", "10.0.0.1"));
+    }
+
+    @Test
+    void appliesTheWindowsOfAFileVersionOnce() {
+        WindowedStatsStore store = new WindowedStatsStore(60, 0, 0, 3600);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            WindowedStatsStore.Contribution contribution = store.contribution("file", "etag", 0, 100);
+            if (attempt > 0) {
+                assertTrue(contribution.isApplied());
+            }
+            FlowWindows windows = contribution.newWindows();
+            windows.add(10, "10.0.0.1", "10.0.0.2", 5, 1);
+            windows.flush();
+            assertEquals(attempt == 0, contribution.apply());
+        }
+        assertEquals(List.of(new WindowStats(0, 60, 5, 1)), store.windowsOf("10.0.0.1", "10.0.0.2"));
+
+        // Another version, or another segment, of the file counts
+        WindowedStatsStore.Contribution changed = store.contribution("file", "etag2", 0, 100);
+        assertFalse(changed.isApplied());
+        FlowWindows windows = changed.newWindows();
+        windows.add(10, "10.0.0.1", "10.0.0.2", 5, 1);
+        windows.flush();
+        assertTrue(changed.apply());
+        assertEquals(List.of(new WindowStats(0, 60, 10, 2)), store.windowsOf("10.0.0.1", "10.0.0.2"));
+    }
+
+    @Test
+    void evictsWindowsPastTheRetention() {
+        WindowedStatsStore store = new WindowedStatsStore(60, 30, 0, 120);
+        for (long start = 0; start <= 600; start += 30) {
+            store.add(start, start + 60, "10.0.0.1", "10.0.0.2", 1, 1);
+        }
+        // Windows ending after 660 - 120
+        assertEquals(List.of(510L, 540L, 570L, 600L),
+                store.windowsOf("10.0.0.1", "10.0.0.2").stream().map(WindowStats::windowStart).toList());
+        assertEquals(4, store.windowCount());
+
+        // Too late to be kept
+        store.add(0, 60, "10.0.0.1", "10.0.0.2", 1, 1);
+        assertEquals(4, store.windowCount());
+    }
+
+    @Test
+    void rejectsASlideLongerThanTheWindow() {
+        assertThrows(IllegalArgumentException.class, () -> new WindowedStatsStore(60, 120, 0, 3600));
+    }
+}
@@ -0,0 +1,180 @@
+package com.ProcessDataEC2.ProcessDataEC2.Store;
+
+import com.example.cloudworkers.common.FinalData;
+import com.example.cloudworkers.common.FinalDataManifest;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteBehindFinalDataWriterTests {
+
+    private static final FinalDataManifest MANIFEST = new FinalDataManifest(16, "processed-data/finalData/1/");
+
+    private FinalDataManifest manifest = MANIFEST;
+    private Map<String, FinalData> saved;
+    private final Map<Integer, Map<String, FinalData>> savedShards = new LinkedHashMap<>();
+    private volatile boolean s3Down;
+    private int csvWrites;
+
+    private final FinalDataRepository repository = new FinalDataRepository(null, null) {
+        @Override
+        public boolean isCsvEnabled() {
+            return true;
+        }
+
+        @Override
+        public void saveCsv(List<? extends Map<String, FinalData>> shards) {
+            csvWrites++;
+        }
+
+        @Override
+        public FinalDataManifest loadManifest() {
+            return manifest;
+        }
+
+        @Override
+        public Map<String, FinalData> load(FinalDataManifest manifest) {
+            Map<String, FinalData> existing = new HashMap<>();
+            existing.put("1.1.1.1,2.2.2.2", FinalData.ofSummary(10, 1));
+            return existing;
+        }
+
+        @Override
+        public Map<String, FinalData> loadShard(FinalDataManifest manifest, int shard) {
+            return manifest.split(load(manifest)).get(shard);
+        }
+
+        @Override
+        public FinalDataManifest save(Map<String, FinalData> finalDataMap) {
+            saved = new HashMap<>(finalDataMap);
+            return MANIFEST;
+        }
+
+        @Override
+        public Map<String, FinalData> saveShard(FinalDataManifest manifest, int shard, Map<String, FinalData> records) {
+            if (s3Down) {
+                throw new IllegalStateException("S3 is down");
+            }
+            savedShards.put(shard, new HashMap<>(records));
+            return new HashMap<>(records);
+        }
+    };
+
+    private WriteBehindFinalDataWriter newWriter(int flushMaxUpdates) {
+        WriteBehindFinalDataWriter writer = new WriteBehindFinalDataWriter(repository);
+        ReflectionTestUtils.setField(writer, "flushIntervalMs", 60_000L);
+        ReflectionTestUtils.setField(writer, "flushMaxUpdates", flushMaxUpdates);
+        writer.start();
+        return writer;
+    }
+
+    @Test
+    void coalescesUpdatesIntoOneWriteKeepingTheNewestRecord() throws Exception {
+        WriteBehindFinalDataWriter writer = newWriter(1000);
+        FinalData second = FinalData.ofSummary(10, 1).withSummary(20, 2);
+        FinalData third = second.withSummary(30, 3);
+
+        writer.update("1.1.1.1,2.2.2.2", third);
+        writer.update("1.1.1.1,2.2.2.2", second);
+        writer.update("3.3.3.3,4.4.4.4", FinalData.ofSummary(5, 5));
+        writer.stop();
+
+        Map<String, FinalData> written = new HashMap<>();
+        savedShards.values().forEach(written::putAll);
+        assertEquals(2, written.size());
+        assertEquals(3, written.get("1.1.1.1,2.2.2.2").getTrafficNumber());
+        assertEquals(1, written.get("3.3.3.3,4.4.4.4").getTrafficNumber());
+    }
+
+    @Test
+    void rewritesOnlyTheShardsOfTheUpdatedPairs() throws Exception {
+        WriteBehindFinalDataWriter writer = newWriter(1000);
+        writer.update("3.3.3.3,4.4.4.4", FinalData.ofSummary(5, 5));
+        writer.stop();
+
+        int shard = MANIFEST.shardOf("3.3.3.3,4.4.4.4");
+        assertEquals(1, savedShards.size());
+        assertNotNull(savedShards.get(shard).get("3.3.3.3,4.4.4.4"));
+        assertNull(saved);
+    }
+
+    @Test
+    void shardsUnshardedStatisticsOnStartup() throws Exception {
+        manifest = null;
+        WriteBehindFinalDataWriter writer = newWriter(1000);
+
+        assertEquals(1, saved.size());
+        writer.update("5.5.5.5,6.6.6.6", FinalData.ofSummary(1, 1));
+        writer.stop();
+        assertEquals(1, savedShards.size());
+    }
+
+    @Test
+    void flushesOnceEnoughPairsArePending() throws Exception {
+        WriteBehindFinalDataWriter writer = newWriter(2);
+        writer.update("5.5.5.5,6.6.6.6", FinalData.ofSummary(1, 1));
+        writer.update("7.7.7.7,8.8.8.8", FinalData.ofSummary(1, 1));
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (writer.pendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        writer.stop();
+
+        Map<String, FinalData> written = new HashMap<>();
+        savedShards.values().forEach(written::putAll);
+        assertNotNull(written.get("5.5.5.5,6.6.6.6"));
+        assertNotNull(written.get("7.7.7.7,8.8.8.8"));
+        assertEquals(0, writer.pendingCount());
+    }
+
+    @Test
+    void completesTheUpdatesOnlyOnceTheirShardIsWritten() throws Exception {
+        WriteBehindFinalDataWriter writer = newWriter(1000);
+        s3Down = true;
+        CompletableFuture<Void> failed = writer.update("5.5.5.5,6.6.6.6", FinalData.ofSummary(1, 1));
+        assertFalse(failed.isDone());
+        writer.flush();
+        assertTrue(failed.isCompletedExceptionally());
+
+        s3Down = false;
+        CompletableFuture<Void> flushed = writer.update("7.7.7.7,8.8.8.8", FinalData.ofSummary(1, 1));
+        assertFalse(flushed.isDone());
+        writer.stop();
+
+        assertTrue(flushed.isDone() && !flushed.isCompletedExceptionally());
+        Map<String, FinalData> written = new HashMap<>();
+        savedShards.values().forEach(written::putAll);
+        assertNotNull(written.get("5.5.5.5,6.6.6.6"));
+        assertNotNull(written.get("7.7.7.7,8.8.8.8"));
+    }
+
+    @Test
+    void rebuildsTheCsvOnItsOwnScheduleRatherThanOnEveryFlush() throws Exception {
+        WriteBehindFinalDataWriter writer = newWriter(1000);
+        writer.update("5.5.5.5,6.6.6.6", FinalData.ofSummary(1, 1));
+        writer.flush();
+        writer.update("7.7.7.7,8.8.8.8", FinalData.ofSummary(1, 1));
+        writer.flush();
+        assertEquals(0, csvWrites);
+
+        writer.writeCsv();
+        writer.writeCsv();
+        assertEquals(1, csvWrites);
+
+        writer.update("5.5.5.5,6.6.6.6", FinalData.ofSummary(1, 1).withSummary(2, 2));
+        writer.stop();
+        assertEquals(2, csvWrites);
+    }
+}
@@ -4,12 +4,18 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
+import java.util.Map;
+
 @SpringBootApplication
 @EnableScheduling
 public class CloudProjectApplication {
 
 	public static void main(String[] args) {
-		SpringApplication.run(CloudProjectApplication.class, args);
+		SpringApplication application = new SpringApplication(CloudProjectApplication.class);
+		// Overridable in application.properties
+		application.setDefaultProperties(Map.of(
+				"management.endpoints.web.exposure.include", "health,metrics,prometheus"));
+		application.run(args);
 	}
 
 }
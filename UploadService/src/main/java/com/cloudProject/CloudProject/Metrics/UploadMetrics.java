@@ -0,0 +1,50 @@
+package com.cloudProject.CloudProject.Metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of the uploads to S3, exposed through the actuator
+ * ({@code /actuator/metrics} and {@code /actuator/prometheus}).
+ */
+@Component
+@RequiredArgsConstructor
+public class UploadMetrics {
+
+    /** Files uploaded through the REST endpoint. */
+    public static final String API = "api";
+    /** Files mirrored from the dataset API. */
+    public static final String DATASET = "dataset";
+
+    private final MeterRegistry registry;
+
+    /**
+     * Records one S3 request and the bytes it sent.
+     *
+     * @param operation the S3 operation, e.g. "PutObject" or "HeadObject".
+     * @param source    {@link #API} or {@link #DATASET}.
+     */
+    public void s3Request(String operation, String source, boolean success, long nanos, long bytes) {
+        Timer.builder("upload.s3.requests")
+                .description("Latency of S3 requests")
+                .tag("operation", operation)
+                .tag("source", source)
+                .tag("outcome", success ? "success" : "failure")
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        if (bytes > 0) {
+            Counter.builder("upload.s3.bytes")
+                    .description("Bytes uploaded to S3")
+                    .baseUnit("bytes")
+                    .tag("source", source)
+                    .register(registry)
+                    .increment(bytes);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.cloudProject.CloudProject.Model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * What was last mirrored of one dataset resource: the upstream version and the S3 key
+ * it was stored under.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ManifestEntry {
+    private String resourceId;
+    // "last_modified" of the resource in the dataset API
+    private String lastModified;
+    // ETag header of the download, used for conditional requests
+    private String etag;
+    private String s3Key;
+}
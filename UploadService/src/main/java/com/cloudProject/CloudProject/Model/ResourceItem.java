@@ -1,6 +1,7 @@
 package com.cloudProject.CloudProject.Model;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
 @Data
@@ -10,4 +11,6 @@ public class ResourceItem {
     private String title;
     private String format;
     private String url;
-}
\ No newline at end of file
+    @JsonProperty("last_modified")
+    private String lastModified;
+}
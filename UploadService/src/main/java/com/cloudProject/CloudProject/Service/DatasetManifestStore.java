@@ -0,0 +1,65 @@
+package com.cloudProject.CloudProject.Service;
+
+import com.cloudProject.CloudProject.Model.ManifestEntry;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local manifest of the mirrored dataset resources, a JSON file at
+ * {@code dataset.manifest.path} keyed by resource id.
+ */
+@Component
+@Slf4j
+public class DatasetManifestStore {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${dataset.manifest.path:dataset-manifest.json}")
+    private String manifestPath = "dataset-manifest.json";
+
+    /**
+     * @return the entries by resource id, empty if no manifest was written yet.
+     */
+    public Map<String, ManifestEntry> load() {
+        Path path = Paths.get(manifestPath);
+        Map<String, ManifestEntry> entries = new HashMap<>();
+        if (!Files.exists(path)) {
+            log.info("No dataset manifest at {}, starting a new one.", path.toAbsolutePath());
+            return entries;
+        }
+        try {
+            List<ManifestEntry> stored = objectMapper.readValue(path.toFile(), new TypeReference<List<ManifestEntry>>() {
+            });
+            for (ManifestEntry entry : stored) {
+                entries.put(entry.getResourceId(), entry);
+            }
+        } catch (IOException e) {
+            // The manifest only saves work: without it, resources already in S3 are adopted again
+            log.error("Unreadable dataset manifest {}, starting a new one: {}", path.toAbsolutePath(), e.getMessage());
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the manifest; written to a temporary file first so a crash never leaves it truncated.
+     */
+    public void save(Collection<ManifestEntry> entries) throws IOException {
+        Path path = Paths.get(manifestPath).toAbsolutePath();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(temp.toFile(), entries);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
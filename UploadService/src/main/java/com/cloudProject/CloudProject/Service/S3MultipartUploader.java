@@ -0,0 +1,222 @@
+package com.cloudProject.CloudProject.Service;
+
+import com.cloudProject.CloudProject.Metrics.UploadMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Streams an object of unknown length to S3.
+ *
+ * The stream is cut into parts of {@code aws.s3.multipart.part-size} bytes that are
+ * uploaded concurrently with UploadPart. Every upload reads into at most
+ * {@code aws.s3.multipart.parallelism} part buffers, which are reused as their parts
+ * complete, so the memory used per upload does not depend on the size of the object.
+ * Streams shorter than one part are written with a single PutObject.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class S3MultipartUploader {
+
+    /** Smallest part size accepted by S3 for every part but the last. */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final S3Client s3Client;
+    private final UploadMetrics uploadMetrics;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @Value("${aws.s3.multipart.part-size:8388608}")
+    private int partSize = 8 * 1024 * 1024;
+
+    @Value("${aws.s3.multipart.parallelism:4}")
+    private int parallelism = 4;
+
+    /**
+     * Uploads the remaining content of {@code in} to {@code s3://bucket/key}.
+     *
+     * @param source the {@link UploadMetrics} source the requests are recorded under.
+     * @return the number of bytes uploaded.
+     * @throws IOException if reading the stream fails; the multipart upload is aborted.
+     */
+    public long upload(String bucket, String key, String contentType, InputStream in, String source)
+            throws IOException {
+        int size = Math.max(partSize, MIN_PART_SIZE);
+        byte[] first = new byte[size];
+        int length = readFully(in, first);
+        if (length < size) {
+            putObject(bucket, key, contentType, first, length, source);
+            return length;
+        }
+
+        String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .contentType(contentType)
+                        .build())
+                .uploadId();
+        log.debug("Started multipart upload {} for s3://{}/{}", uploadId, bucket, key);
+
+        BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(Math.max(1, parallelism));
+        int allocated = 1;
+        List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        long total = 0;
+        try {
+            byte[] buffer = first;
+            while (length > 0) {
+                total += length;
+                parts.add(uploadPart(bucket, key, uploadId, parts.size() + 1, buffer, length, buffers, source));
+
+                buffer = buffers.poll();
+                if (buffer == null && allocated < Math.max(1, parallelism)) {
+                    buffer = new byte[size];
+                    allocated++;
+                } else if (buffer == null) {
+                    buffer = buffers.take();
+                }
+                failFast(parts);
+                length = readFully(in, buffer);
+            }
+
+            List<CompletedPart> completed = new ArrayList<>(parts.size());
+            for (CompletableFuture<CompletedPart> part : parts) {
+                completed.add(part.join());
+            }
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                    .build());
+            log.info("Uploaded {} bytes in {} parts to s3://{}/{}", total, parts.size(), bucket, key);
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(bucket, key, uploadId, parts);
+            throw new InterruptedIOException("Interrupted while uploading s3://" + bucket + "/" + key);
+        } catch (CompletionException e) {
+            abort(bucket, key, uploadId, parts);
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        } catch (IOException | RuntimeException e) {
+            abort(bucket, key, uploadId, parts);
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private CompletableFuture<CompletedPart> uploadPart(String bucket, String key, String uploadId, int partNumber,
+                                                        byte[] buffer, int length, BlockingQueue<byte[]> buffers,
+                                                        String source) {
+        return CompletableFuture.supplyAsync(() -> {
+            long started = System.nanoTime();
+            boolean success = false;
+            try {
+                String eTag = s3Client.uploadPart(UploadPartRequest.builder()
+                                .bucket(bucket)
+                                .key(key)
+                                .uploadId(uploadId)
+                                .partNumber(partNumber)
+                                .contentLength((long) length)
+                                .build(),
+                        RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, length), length)).eTag();
+                success = true;
+                return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+            } finally {
+                uploadMetrics.s3Request("UploadPart", source, success, System.nanoTime() - started,
+                        success ? length : 0);
+                buffers.add(buffer);
+            }
+        }, executor);
+    }
+
+    private void putObject(String bucket, String key, String contentType, byte[] buffer, int length, String source) {
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            s3Client.putObject(PutObjectRequest.builder()
+                            .bucket(bucket)
+                            .key(key)
+                            .contentType(contentType)
+                            .contentLength((long) length)
+                            .build(),
+                    RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, length), length));
+            success = true;
+        } finally {
+            uploadMetrics.s3Request("PutObject", source, success, System.nanoTime() - started,
+                    success ? length : 0);
+        }
+    }
+
+    /**
+     * Stops reading as soon as a part has failed instead of after the whole stream.
+     */
+    private static void failFast(List<CompletableFuture<CompletedPart>> parts) {
+        for (CompletableFuture<CompletedPart> part : parts) {
+            if (part.isCompletedExceptionally()) {
+                part.join();
+            }
+        }
+    }
+
+    private void abort(String bucket, String key, String uploadId, List<CompletableFuture<CompletedPart>> parts) {
+        // Parts still in flight would otherwise be stored after the abort
+        for (CompletableFuture<CompletedPart> part : parts) {
+            try {
+                part.join();
+            } catch (RuntimeException ignored) {
+                // Reported by the caller
+            }
+        }
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build());
+            log.warn("Aborted multipart upload {} for s3://{}/{}", uploadId, bucket, key);
+        } catch (RuntimeException e) {
+            log.error("Failed to abort multipart upload {} for s3://{}/{}: {}", uploadId, bucket, key, e.getMessage());
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+}
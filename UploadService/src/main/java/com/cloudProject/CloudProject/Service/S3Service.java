@@ -1,22 +1,32 @@
 package com.cloudProject.CloudProject.Service;
 
+import com.cloudProject.CloudProject.Metrics.UploadMetrics;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
-import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 import software.amazon.awssdk.regions.Region;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class S3Service {
 
-    private final S3Client s3Client;
+    /**
+     * The extensions of the flow CSVs the summarizers read, plain or compressed, and their content types.
+     * Compressed files are stored as uploaded and decompressed by the summarizers as they read them.
+     */
+    private static final List<String> EXTENSIONS = List.of(".csv.gz", ".csv.zst", ".csv");
+    private static final List<String> CONTENT_TYPES = List.of("application/gzip", "application/zstd", "text/csv");
+
+    private final S3MultipartUploader s3MultipartUploader;
 
     @Value("${aws.s3.bucket-name}")
     private String bucketName;
@@ -26,6 +36,8 @@ public class S3Service {
 
     /**
      * Uploads a CSV file to the specified S3 bucket.
+     * The file is streamed to S3 in parts, without being loaded on the heap.
+     * Files compressed with gzip (.csv.gz) or zstd (.csv.zst) are uploaded as they are.
      *
      * @param file The CSV file to upload.
      * @return The S3 object URL upon successful upload.
@@ -37,16 +49,10 @@ public class S3Service {
 
         String fileName = generateFileName(file);
         String s3Key = uploadFolder + fileName;
+        String contentType = CONTENT_TYPES.get(EXTENSIONS.indexOf(extensionOf(fileName)));
 
-        try {
-            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(s3Key)
-                    .contentType("text/csv")
-                    .contentLength(file.getSize())
-                    .build();
-
-            s3Client.putObject(putObjectRequest, software.amazon.awssdk.core.sync.RequestBody.fromBytes(file.getBytes()));
+        try (InputStream in = file.getInputStream()) {
+            s3MultipartUploader.upload(bucketName, s3Key, contentType, in, UploadMetrics.API);
             log.info("Successfully uploaded file {} to s3://{}/{}", fileName, bucketName, uploadFolder);
 
             return getS3ObjectUrl(s3Key);
@@ -72,9 +78,10 @@ public class S3Service {
             throw new IllegalArgumentException("Uploaded file is empty.");
         }
 
+        String originalFileName = file.getOriginalFilename();
         if (!"text/csv".equalsIgnoreCase(file.getContentType()) &&
-            !file.getOriginalFilename().toLowerCase().endsWith(".csv")) {
-            throw new IllegalArgumentException("Only CSV files are allowed.");
+            (originalFileName == null || extensionOf(originalFileName) == null)) {
+            throw new IllegalArgumentException("Only CSV files are allowed, optionally compressed as .csv.gz or .csv.zst.");
         }
 
         // Optionally, add more validations (e.g., file size limits)
@@ -89,15 +96,24 @@ public class S3Service {
     private String generateFileName(MultipartFile file) {
         String originalFileName = file.getOriginalFilename();
         String uniqueSuffix = "_" + System.currentTimeMillis();
-        if (originalFileName != null && originalFileName.contains(".")) {
-            String name = originalFileName.substring(0, originalFileName.lastIndexOf('.'));
-            String extension = originalFileName.substring(originalFileName.lastIndexOf('.'));
-            return name + uniqueSuffix + extension;
+        String extension = originalFileName == null ? null : extensionOf(originalFileName);
+        if (extension != null) {
+            // The suffix goes before ".csv.gz", not between ".csv" and ".gz"
+            String name = originalFileName.substring(0, originalFileName.length() - extension.length());
+            return name + uniqueSuffix + originalFileName.substring(name.length());
         } else {
             return "upload" + uniqueSuffix + ".csv";
         }
     }
 
+    /**
+     * Returns the flow CSV extension the file name ends with, in lower case, or null if it has none.
+     */
+    private static String extensionOf(String fileName) {
+        String lower = fileName.toLowerCase(Locale.ROOT);
+        return EXTENSIONS.stream().filter(lower::endsWith).findFirst().orElse(null);
+    }
+
     /**
      * Constructs the S3 object URL.
      *
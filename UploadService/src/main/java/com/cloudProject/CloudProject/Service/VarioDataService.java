@@ -9,18 +9,30 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.ExchangeStrategies;
 import org.springframework.web.reactive.function.client.WebClient;
 
+import com.cloudProject.CloudProject.Metrics.UploadMetrics;
 import com.cloudProject.CloudProject.Model.DatasetResponse;
+import com.cloudProject.CloudProject.Model.ManifestEntry;
 import com.cloudProject.CloudProject.Model.ResourceItem;
 
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
-import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
-import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.S3Object;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 @RequiredArgsConstructor
@@ -28,6 +40,9 @@ import java.net.URL;
 public class VarioDataService {
 
     private final S3Client s3Client;
+    private final UploadMetrics uploadMetrics;
+    private final S3MultipartUploader s3MultipartUploader;
+    private final DatasetManifestStore datasetManifestStore;
 
     @Value("${aws.s3.bucket-name}")
     private String bucketName;
@@ -38,6 +53,10 @@ public class VarioDataService {
     @Value("${dataset.api.url}")
     private String datasetApiUrl;
 
+    // Resources downloaded and uploaded at the same time
+    @Value("${dataset.mirror.parallelism:4}")
+    private int mirrorParallelism = 4;
+
     // Schedule the method to run every minute
     @Scheduled(fixedRate = 84400000) // 60000 milliseconds = 1 minute
     public void fetchAndUploadCsvFiles() {
@@ -66,36 +85,102 @@ public class VarioDataService {
             return;
         }
 
-        boolean hasNewFiles = false;
+        // 2. Mirror the CSV resources that changed since the last run
+        List<ResourceItem> csvResources = datasetResponse.getResources().stream()
+                // Check if it's a CSV by either format or filetype. Here we check `format`.
+                .filter(resourceItem -> "csv".equalsIgnoreCase(resourceItem.getFormat()))
+                .toList();
+        int mirrored = sync(csvResources);
+
+        log.info("Completed fetchAndUploadCsvFiles task: mirrored {} of {} CSV files.", mirrored, csvResources.size());
+    }
+
+    /**
+     * Mirrors the resources that are not in S3 yet or changed upstream.
+     *
+     * What is in S3 comes from a single listing of the unprocessed folder, what was
+     * mirrored from the {@link DatasetManifestStore}. A resource is transferred when it
+     * has no manifest entry and its key is not in S3, when its key is missing from S3,
+     * or when its {@code last_modified} differs from the manifest. Resources without
+     * {@code last_modified} are requested with {@code If-None-Match} and skipped on
+     * 304 Not Modified. Objects found in S3 without a manifest entry are adopted as
+     * they are, so they are not processed twice.
+     *
+     * @return the number of resources transferred.
+     */
+    int sync(List<ResourceItem> resourceItems) {
+        Set<String> existingKeys;
+        try {
+            existingKeys = listUnprocessedKeys();
+        } catch (Exception e) {
+            log.error("Could not list s3://{}/{}, skipping this run: {}", bucketName, unprocessedFolder, e.getMessage(), e);
+            return 0;
+        }
+        Map<String, ManifestEntry> manifest = new ConcurrentHashMap<>(datasetManifestStore.load());
 
-        // 2. Iterate over each resource
-        for (ResourceItem resourceItem : datasetResponse.getResources()) {
-            // Check if it's a CSV by either format or filetype. Here we check `format`.
-            if ("csv".equalsIgnoreCase(resourceItem.getFormat())) {
-                String fileName = getFileName(resourceItem);
-                String s3Key = unprocessedFolder + fileName;
+        List<Transfer> transfers = new ArrayList<>();
+        for (ResourceItem resourceItem : resourceItems) {
+            String s3Key = unprocessedFolder + getFileName(resourceItem);
+            ManifestEntry previous = manifest.get(resourceItem.getId());
+            boolean inS3 = existingKeys.contains(s3Key);
 
-                // Check if the file already exists in S3
-                if (!isFileExistsInS3(s3Key)) {
-                    hasNewFiles = true;
-                    break; // Exit early if at least one new file is found
+            if (previous == null && inS3) {
+                log.debug("Adopting s3://{}/{} for resource {}", bucketName, s3Key, resourceItem.getId());
+                manifest.put(resourceItem.getId(),
+                        new ManifestEntry(resourceItem.getId(), resourceItem.getLastModified(), null, s3Key));
+            } else if (previous == null || !inS3 || !s3Key.equals(previous.getS3Key())) {
+                transfers.add(new Transfer(resourceItem, s3Key, null));
+            } else if (resourceItem.getLastModified() != null) {
+                if (!resourceItem.getLastModified().equals(previous.getLastModified())) {
+                    transfers.add(new Transfer(resourceItem, s3Key, null));
                 }
+            } else if (previous.getEtag() != null) {
+                transfers.add(new Transfer(resourceItem, s3Key, previous));
             }
         }
+        log.info("{} of {} CSV resources may have changed since the last run.", transfers.size(), resourceItems.size());
 
-        if (!hasNewFiles) {
-            log.info("No new CSV files to process.");
-            return;
+        int mirrored = mirrorAll(transfers, manifest);
+        try {
+            datasetManifestStore.save(manifest.values());
+        } catch (IOException e) {
+            log.error("Failed to save the dataset manifest: {}", e.getMessage(), e);
         }
+        return mirrored;
+    }
 
-        // Since there are new files, proceed to download and upload
-        for (ResourceItem resourceItem : datasetResponse.getResources()) {
-            if ("csv".equalsIgnoreCase(resourceItem.getFormat())) {
-                downloadAndUploadToS3(resourceItem);
+    /**
+     * Mirrors the resources concurrently, one virtual thread per resource and at most
+     * {@code dataset.mirror.parallelism} transfers at a time, and records them in the manifest.
+     *
+     * @return the number of resources transferred.
+     */
+    private int mirrorAll(List<Transfer> transfers, Map<String, ManifestEntry> manifest) {
+        Semaphore permits = new Semaphore(Math.max(1, mirrorParallelism));
+        AtomicInteger mirrored = new AtomicInteger();
+        // close() waits for every transfer to finish
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Transfer transfer : transfers) {
+                executor.execute(() -> {
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    try {
+                        ManifestEntry entry = downloadAndUploadToS3(transfer);
+                        if (entry != null && entry != transfer.ifNoneMatch()) {
+                            manifest.put(entry.getResourceId(), entry);
+                            mirrored.incrementAndGet();
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                });
             }
         }
-
-        log.info("Completed fetchAndUploadCsvFiles task successfully.");
+        return mirrored.get();
     }
 
     private String getFileName(ResourceItem resourceItem) {
@@ -112,49 +197,68 @@ public class VarioDataService {
         return fileName;
     }
 
-    private boolean isFileExistsInS3(String key) {
+    private Set<String> listUnprocessedKeys() {
+        long started = System.nanoTime();
+        boolean success = false;
         try {
-            HeadObjectRequest headObjectRequest = HeadObjectRequest.builder()
+            Set<String> keys = new HashSet<>();
+            ListObjectsV2Request request = ListObjectsV2Request.builder()
                     .bucket(bucketName)
-                    .key(key)
+                    .prefix(unprocessedFolder)
                     .build();
-
-            HeadObjectResponse headObjectResponse = s3Client.headObject(headObjectRequest);
-            log.debug("File {} exists in S3 bucket {}.", key, bucketName);
-            return true;
-        } catch (software.amazon.awssdk.services.s3.model.NoSuchKeyException e) {
-            log.debug("File {} does not exist in S3 bucket {}.", key, bucketName);
-            return false;
-        } catch (Exception e) {
-            log.error("Error checking existence of file {} in S3: {}", key, e.getMessage());
-            // Depending on your requirements, you might want to treat this as non-existing
-            return false;
+            for (S3Object object : s3Client.listObjectsV2Paginator(request).contents()) {
+                keys.add(object.key());
+            }
+            success = true;
+            log.debug("Found {} objects under s3://{}/{}", keys.size(), bucketName, unprocessedFolder);
+            return keys;
+        } finally {
+            uploadMetrics.s3Request("ListObjectsV2", UploadMetrics.DATASET, success, System.nanoTime() - started, 0);
         }
     }
 
-    private void downloadAndUploadToS3(ResourceItem resourceItem) {
+    /**
+     * Streams the resource from its URL into S3; the length of the download does not
+     * need to be known in advance.
+     *
+     * @return the new manifest entry, {@code transfer.ifNoneMatch()} if the resource was
+     * not modified, or null if the file could not be mirrored.
+     */
+    private ManifestEntry downloadAndUploadToS3(Transfer transfer) {
+        ResourceItem resourceItem = transfer.resourceItem();
         String fileUrl = resourceItem.getUrl();
         String fileName = getFileName(resourceItem);
-        String s3Key = unprocessedFolder + fileName;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new URL(fileUrl).openStream())) {
-            log.info("Downloading file from URL: {}", fileUrl);
+        try {
+            URLConnection connection = new URL(fileUrl).openConnection();
+            if (connection instanceof HttpURLConnection http && transfer.ifNoneMatch() != null) {
+                http.setRequestProperty("If-None-Match", transfer.ifNoneMatch().getEtag());
+                if (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    log.debug("File {} not modified upstream.", fileName);
+                    http.disconnect();
+                    return transfer.ifNoneMatch();
+                }
+            }
 
-            // 4. Prepare the PUT request
-            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(s3Key)
-                    .build();
+            try (InputStream in = connection.getInputStream()) {
+                log.info("Downloading file from URL: {}", fileUrl);
 
-            // 5. Upload the file to S3
-            s3Client.putObject(
-                    putObjectRequest,
-                    RequestBody.fromInputStream(bis, bis.available() > 0 ? bis.available() : 4096));
-            log.info("Successfully uploaded file {} to s3://{}/{}", fileName, bucketName, unprocessedFolder);
+                long size = s3MultipartUploader.upload(bucketName, transfer.s3Key(), "text/csv", in, UploadMetrics.DATASET);
+                log.info("Successfully uploaded file {} ({} bytes) to s3://{}/{}", fileName, size, bucketName, unprocessedFolder);
+                return new ManifestEntry(resourceItem.getId(), resourceItem.getLastModified(),
+                        connection.getHeaderField("ETag"), transfer.s3Key());
+            }
         } catch (IOException e) {
             log.error("Error downloading/uploading file: " + fileUrl, e);
         } catch (Exception e) {
             log.error("Unexpected error during upload of file {}: {}", fileName, e.getMessage(), e);
         }
+        return null;
+    }
+
+    /**
+     * @param ifNoneMatch the manifest entry whose ETag makes the download conditional, or null.
+     */
+    private record Transfer(ResourceItem resourceItem, String s3Key, ManifestEntry ifNoneMatch) {
     }
 }
@@ -0,0 +1,186 @@
+package com.cloudProject.CloudProject.Service;
+
+import com.cloudProject.CloudProject.Metrics.UploadMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class S3MultipartUploaderTests {
+
+    private static final int PART_SIZE = S3MultipartUploader.MIN_PART_SIZE;
+
+    private final RecordingS3Client s3Client = new RecordingS3Client();
+    private final S3MultipartUploader uploader =
+            new S3MultipartUploader(s3Client, new UploadMetrics(new SimpleMeterRegistry()));
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(uploader, "partSize", PART_SIZE);
+    }
+
+    @AfterEach
+    void shutdown() {
+        uploader.shutdown();
+    }
+
+    @Test
+    void smallStreamIsWrittenWithOnePutObject() throws IOException {
+        byte[] content = content(1000);
+
+        assertEquals(1000, uploader.upload("bucket", "key.csv", "text/csv", new ByteArrayInputStream(content), "api"));
+
+        assertArrayEquals(content, s3Client.objects.get("key.csv"));
+        assertEquals(0, s3Client.createdUploads.get());
+    }
+
+    @Test
+    void largeStreamIsUploadedInOrderedParts() throws IOException {
+        ReflectionTestUtils.setField(uploader, "parallelism", 2);
+        for (int size : new int[]{PART_SIZE, 3 * PART_SIZE, 3 * PART_SIZE + 12345}) {
+            byte[] content = content(size);
+
+            assertEquals(size, uploader.upload("bucket", "key.csv", "text/csv", new ByteArrayInputStream(content), "api"));
+
+            assertArrayEquals(content, s3Client.objects.get("key.csv"), "size " + size);
+        }
+        assertEquals(0, s3Client.aborted.get());
+    }
+
+    @Test
+    void failedPartAbortsTheUpload() {
+        s3Client.failPart = 2;
+
+        assertThrows(S3Exception.class, () -> uploader.upload("bucket", "key.csv", "text/csv",
+                new ByteArrayInputStream(content(4 * PART_SIZE)), "api"));
+
+        assertEquals(1, s3Client.aborted.get());
+        assertNull(s3Client.objects.get("key.csv"));
+    }
+
+    @Test
+    void unreadableStreamAbortsTheUpload() {
+        InputStream failing = new InputStream() {
+            private int remaining = 2 * PART_SIZE;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining == 0) {
+                    throw new IOException("connection reset");
+                }
+                remaining--;
+                return 'x';
+            }
+        };
+
+        assertThrows(IOException.class, () -> uploader.upload("bucket", "key.csv", "text/csv", failing, "api"));
+
+        assertEquals(1, s3Client.aborted.get());
+        assertTrue(s3Client.objects.isEmpty());
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    /** Keeps uploaded objects in memory and assembles multipart uploads on completion. */
+    private static class RecordingS3Client implements S3Client {
+
+        final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        final Map<String, byte[]> parts = new ConcurrentHashMap<>();
+        final AtomicInteger createdUploads = new AtomicInteger();
+        final AtomicInteger aborted = new AtomicInteger();
+        volatile int failPart = -1;
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+            objects.put(request.key(), read(body));
+            return PutObjectResponse.builder().build();
+        }
+
+        @Override
+        public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+            return CreateMultipartUploadResponse.builder()
+                    .uploadId("upload-" + createdUploads.incrementAndGet())
+                    .build();
+        }
+
+        @Override
+        public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody body) {
+            if (request.partNumber() == failPart) {
+                throw (S3Exception) S3Exception.builder().message("part failed").statusCode(500).build();
+            }
+            String eTag = request.uploadId() + "/" + request.partNumber();
+            parts.put(eTag, read(body));
+            return UploadPartResponse.builder().eTag(eTag).build();
+        }
+
+        @Override
+        public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            ByteArrayOutputStream object = new ByteArrayOutputStream();
+            int partNumber = 1;
+            for (CompletedPart part : request.multipartUpload().parts()) {
+                assertEquals(partNumber++, part.partNumber());
+                object.writeBytes(parts.remove(part.eTag()));
+            }
+            objects.put(request.key(), object.toByteArray());
+            return CompleteMultipartUploadResponse.builder().build();
+        }
+
+        @Override
+        public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+            aborted.incrementAndGet();
+            return AbortMultipartUploadResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private static byte[] read(RequestBody body) {
+            try (InputStream in = body.contentStreamProvider().newStream()) {
+                return in.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
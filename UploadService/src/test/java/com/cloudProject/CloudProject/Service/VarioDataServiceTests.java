@@ -0,0 +1,144 @@
+package com.cloudProject.CloudProject.Service;
+
+import com.cloudProject.CloudProject.Metrics.UploadMetrics;
+import com.cloudProject.CloudProject.Model.ResourceItem;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class VarioDataServiceTests {
+
+    @TempDir
+    Path dir;
+
+    private final ListingS3Client s3Client = new ListingS3Client();
+    private final UploadMetrics uploadMetrics = new UploadMetrics(new SimpleMeterRegistry());
+    private final S3MultipartUploader uploader = new S3MultipartUploader(s3Client, uploadMetrics);
+    private final DatasetManifestStore manifestStore = new DatasetManifestStore();
+    private final VarioDataService service = new VarioDataService(s3Client, uploadMetrics, uploader, manifestStore);
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(service, "bucketName", "bucket");
+        ReflectionTestUtils.setField(service, "unprocessedFolder", "unprocessed-data/");
+        ReflectionTestUtils.setField(manifestStore, "manifestPath", dir.resolve("manifest.json").toString());
+    }
+
+    @AfterEach
+    void shutdown() {
+        uploader.shutdown();
+    }
+
+    @Test
+    void onlyNewAndChangedResourcesAreTransferred() throws IOException {
+        ResourceItem a = resource("a", "2024-01-01");
+        ResourceItem b = resource("b", "2024-01-01");
+
+        assertEquals(2, service.sync(List.of(a, b)));
+        assertEquals(2, s3Client.puts.get());
+        assertEquals(1, s3Client.listings.get());
+
+        // Nothing changed: one listing, no transfer
+        assertEquals(0, service.sync(List.of(a, b)));
+        assertEquals(2, s3Client.puts.get());
+        assertEquals(2, s3Client.listings.get());
+
+        // b changed upstream, c is new
+        b.setLastModified("2024-02-01");
+        Files.writeString(dir.resolve("b.csv"), "Src IP,Dst IP\n10.0.0.1,10.0.0.9\n");
+        ResourceItem c = resource("c", "2024-02-01");
+        assertEquals(2, service.sync(List.of(a, b, c)));
+        assertEquals(4, s3Client.puts.get());
+        assertEquals("Src IP,Dst IP\n10.0.0.1,10.0.0.9\n", s3Client.objects.get("unprocessed-data/b.csv"));
+    }
+
+    @Test
+    void objectsAlreadyInS3AreAdoptedAndMissingOnesRestored() throws IOException {
+        ResourceItem a = resource("a", "2024-01-01");
+        s3Client.objects.put("unprocessed-data/a.csv", "uploaded before the manifest existed");
+
+        assertEquals(0, service.sync(List.of(a)));
+        assertEquals(0, s3Client.puts.get());
+
+        s3Client.objects.clear();
+        assertEquals(1, service.sync(List.of(a)));
+        assertEquals(1, s3Client.puts.get());
+    }
+
+    private ResourceItem resource(String id, String lastModified) throws IOException {
+        Path file = dir.resolve(id + ".csv");
+        if (!Files.exists(file)) {
+            Files.writeString(file, "Src IP,Dst IP\n10.0.0.1,10.0.0.2\n");
+        }
+        ResourceItem resourceItem = new ResourceItem();
+        resourceItem.setId(id);
+        resourceItem.setTitle(id + ".csv");
+        resourceItem.setFormat("csv");
+        resourceItem.setUrl(file.toUri().toString());
+        resourceItem.setLastModified(lastModified);
+        return resourceItem;
+    }
+
+    /** Keeps objects in memory and lists them in a single page. */
+    private static class ListingS3Client implements S3Client {
+
+        final Map<String, String> objects = new ConcurrentHashMap<>();
+        final AtomicInteger puts = new AtomicInteger();
+        final AtomicInteger listings = new AtomicInteger();
+
+        @Override
+        public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+            listings.incrementAndGet();
+            return ListObjectsV2Response.builder()
+                    .contents(objects.keySet().stream()
+                            .filter(key -> key.startsWith(request.prefix()))
+                            .map(key -> S3Object.builder().key(key).build())
+                            .toList())
+                    .isTruncated(false)
+                    .build();
+        }
+
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+            puts.incrementAndGet();
+            try (InputStream in = body.contentStreamProvider().newStream()) {
+                objects.put(request.key(), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return PutObjectResponse.builder().build();
+        }
+
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}